@@ -0,0 +1,92 @@
+package me.j360.trace.benchmarks;
+
+import me.j360.trace.collector.core.BoundarySampler;
+import me.j360.trace.collector.core.CountingSampler;
+import me.j360.trace.collector.core.Sampler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of sampling decisions, which tracers make on every root span, as the count of
+ * threads starting traces grows.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class SamplerBenchmarks {
+  static final long TRACE_ID = new Random().nextLong();
+
+  final Sampler counting = CountingSampler.create(0.1f);
+  final Sampler synchronizedCounting = new SynchronizedCountingSampler(0.1f);
+  final Sampler boundary = BoundarySampler.create(0.1f);
+
+  @Benchmark @Threads(1)
+  public boolean counting_1Thread() {
+    return counting.isSampled(TRACE_ID);
+  }
+
+  @Benchmark @Threads(8)
+  public boolean counting_8Threads() {
+    return counting.isSampled(TRACE_ID);
+  }
+
+  @Benchmark @Threads(1)
+  public boolean synchronizedCounting_1Thread() {
+    return synchronizedCounting.isSampled(TRACE_ID);
+  }
+
+  @Benchmark @Threads(8)
+  public boolean synchronizedCounting_8Threads() {
+    return synchronizedCounting.isSampled(TRACE_ID);
+  }
+
+  /** For reference: stateless, so doesn't contend at all. */
+  @Benchmark @Threads(8)
+  public boolean boundary_8Threads() {
+    return boundary.isSampled(TRACE_ID);
+  }
+
+  /** What CountingSampler used to do: guard the position in the bitset with a lock. */
+  static final class SynchronizedCountingSampler extends Sampler {
+    final BitSet sampleDecisions = new BitSet(100);
+    int i; // guarded by this
+
+    SynchronizedCountingSampler(float rate) {
+      sampleDecisions.set(0, (int) (rate * 100));
+    }
+
+    @Override public synchronized boolean isSampled(long traceIdIgnored) {
+      boolean result = sampleDecisions.get(i++);
+      if (i == 100) i = 0;
+      return result;
+    }
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + SamplerBenchmarks.class.getSimpleName() + ".*")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
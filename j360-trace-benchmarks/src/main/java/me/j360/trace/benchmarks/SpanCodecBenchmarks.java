@@ -0,0 +1,91 @@
+package me.j360.trace.benchmarks;
+
+import me.j360.trace.collector.core.internal.Buffer;
+import me.j360.trace.collector.core.module.Annotation;
+import me.j360.trace.collector.core.module.BinaryAnnotation;
+import me.j360.trace.collector.core.module.Endpoint;
+import me.j360.trace.collector.core.module.Span;
+import me.j360.trace.collector.core.module.SpanCodec;
+import me.j360.trace.core.Codec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encoding a batch of spans the way {@code AbstractSpanCollector} used to, by converting
+ * each to zipkin's model first, with writing them directly into a reused buffer.
+ *
+ * <p>Run with {@code -prof gc} to compare allocation rate, ex. {@code java -jar
+ * target/benchmarks.jar SpanCodecBenchmarks -prof gc}.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SpanCodecBenchmarks {
+  static final Endpoint FRONTEND = Endpoint.create("frontend", 192 << 24 | 168 << 16 | 1, 8080);
+  static final Endpoint BACKEND = Endpoint.create("backend", 192 << 24 | 168 << 16 | 2, 9000);
+
+  final List<Span> batch = new ArrayList<Span>();
+  final Buffer buffer = new Buffer(0);
+
+  public SpanCodecBenchmarks() {
+    for (long i = 1; i <= 100; i++) {
+      batch.add(new Span().setTrace_id(i).setId(i).setParent_id(i - 1).setName("get")
+          .setTimestamp(1472470996199000L).setDuration(207000L)
+          .addToAnnotations(Annotation.create(1472470996199000L, "cs", FRONTEND))
+          .addToAnnotations(Annotation.create(1472470996406000L, "cr", FRONTEND))
+          .addToBinary_annotations(BinaryAnnotation.create("http.path", "/api", FRONTEND))
+          .addToBinary_annotations(BinaryAnnotation.address("sa", BACKEND)));
+    }
+  }
+
+  /** The previous path: a zipkin span per span, a list of them, and an array per batch. */
+  @Benchmark
+  public byte[] writeSpans_viaZipkinModel() {
+    List<me.j360.trace.core.Span> out = new ArrayList<me.j360.trace.core.Span>(batch.size());
+    for (Span span : batch) {
+      out.add(span.toZipkin());
+    }
+    return Codec.JSON.writeSpans(out);
+  }
+
+  /** Allocates only a right-sized array per batch. */
+  @Benchmark
+  public byte[] writeSpans_direct() {
+    return SpanCodec.JSON.writeSpans(batch);
+  }
+
+  /** What collectors do now: write into a buffer which is reset and reused across batches. */
+  @Benchmark
+  public Buffer writeSpans_reusedBuffer() {
+    SpanCodec.JSON.writeSpans(batch, buffer.reset());
+    return buffer;
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + SpanCodecBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
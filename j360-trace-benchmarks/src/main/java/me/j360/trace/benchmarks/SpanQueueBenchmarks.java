@@ -0,0 +1,93 @@
+package me.j360.trace.benchmarks;
+
+import me.j360.trace.collector.core.SpanQueue;
+import me.j360.trace.collector.core.module.Span;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of {@link SpanQueue#offer(Span)}, which is what application threads pay in
+ * {@code FlushingSpanCollector.collect}, while a flusher thread drains concurrently.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class SpanQueueBenchmarks {
+
+  @Param({"BLOCKING", "RING", "STRIPED"})
+  SpanQueue.Type type;
+
+  SpanQueue queue;
+  Thread flusher;
+  volatile boolean running;
+
+  final Span span = new Span().setTrace_id(1L).setId(1L).setName("get");
+
+  @Setup
+  public void setup() {
+    queue = SpanQueue.create(type, 1024);
+    running = true;
+    flusher = new Thread(new Runnable() {
+      @Override public void run() {
+        List<Span> drained = new ArrayList<Span>(1024);
+        while (running) {
+          queue.drainTo(drained);
+          drained.clear();
+        }
+      }
+    }, "flusher");
+    flusher.start();
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    running = false;
+    flusher.join();
+  }
+
+  @Benchmark @Threads(1)
+  public boolean offer_1Producer() {
+    return queue.offer(span);
+  }
+
+  @Benchmark @Threads(8)
+  public boolean offer_8Producers() {
+    return queue.offer(span);
+  }
+
+  @Benchmark @Threads(64)
+  public boolean offer_64Producers() {
+    return queue.offer(span);
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + SpanQueueBenchmarks.class.getSimpleName() + ".*")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -1,38 +1,344 @@
 package me.j360.trace.collector.core;
 
 
+import me.j360.trace.collector.core.internal.Buffer;
+import me.j360.trace.collector.core.internal.Nullable;
 import me.j360.trace.collector.core.module.Span;
 import me.j360.trace.collector.core.module.SpanCodec;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static me.j360.trace.collector.core.internal.Util.checkArgument;
 
 /**
  * Implemented {@link #sendSpans} to transport a encoded list of spans to Zipkin.
+ *
+ * <p>By default, spans are encoded and sent on the flushing thread. When there are sender threads,
+ * the flushing thread only encodes, and hands each batch to a sender. This keeps one slow send from
+ * stalling the next flush. Once {@code maxInFlightBatches} are encoded but not yet sent, flushing
+ * waits, so spans back up into the pending queue, which drops them according to its policy.
+ *
+ * <p>Spans are encoded into pooled buffers, which are reused once sent. At most one buffer per
+ * in-flight batch, plus one being encoded, is retained.
+ *
+ * <p>When there's a {@link SpanSpool spool}, batches which fail to send, spans which overflow the
+ * queue, and spans pending on close are appended to it instead of dropped. Each flush first
+ * replays the spool, oldest batch first. Until it is empty, new batches are spooled behind the
+ * others, as opposed to sent, so that spans are sent in the order they were flushed.
  */
 public abstract class AbstractSpanCollector extends FlushingSpanCollector {
 
+  /** Buffers which grew larger than this, for example after a burst, aren't reused. */
+  static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+  /**
+   * New buffers grow to fit their first batch. Guessing from the first span's size could
+   * over-allocate, or overflow, when it isn't typical of the batch.
+   */
+  static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
   private final SpanCodec codec;
+  private final ConcurrentLinkedQueue<Buffer> buffers = new ConcurrentLinkedQueue<Buffer>();
+  private final SpanCollectorMetricsHandler metrics;
+  @Nullable // when sending on the flushing thread
+  private final ExecutorService senders;
+  @Nullable // when sending on the flushing thread
+  private final Semaphore inFlight;
+  @Nullable // when failed batches are dropped
+  private final SpanSpool spool;
+  /** Ensures only one thread replays the spool at a time, so batches aren't sent twice. */
+  private final AtomicBoolean replaying = new AtomicBoolean();
 
   /**
    * @param flushInterval in seconds. 0 implies spans are {@link #flush() flushed externally.
    */
   public AbstractSpanCollector(SpanCodec codec, SpanCollectorMetricsHandler metrics,
       int flushInterval) {
-    super(metrics, flushInterval);
+    this(codec, metrics, SpanQueue.blocking(1000), FlushTrigger.interval(flushInterval));
+  }
+
+  /**
+   * @param flushInterval in seconds. 0 implies spans are {@link #flush() flushed externally.
+   * @param pending holds spans between flushes. Spans are dropped when it is full.
+   */
+  public AbstractSpanCollector(SpanCodec codec, SpanCollectorMetricsHandler metrics,
+      int flushInterval, SpanQueue pending) {
+    this(codec, metrics, pending, FlushTrigger.interval(flushInterval));
+  }
+
+  /**
+   * @param pending holds spans between flushes. Spans are dropped when it is full.
+   * @param trigger decides when to flush. When disabled, spans are {@link #flush() flushed
+   * externally.
+   */
+  public AbstractSpanCollector(SpanCodec codec, SpanCollectorMetricsHandler metrics,
+      SpanQueue pending, FlushTrigger trigger) {
+    this(codec, metrics, pending, trigger, 0, 0);
+  }
+
+  /**
+   * @param pending holds spans between flushes. Spans are dropped when it is full.
+   * @param trigger decides when to flush. When disabled, spans are {@link #flush() flushed
+   * externally.
+   * @param senderThreads count of threads which call {@link #sendSpans}. 0 implies spans are sent
+   * on the flushing thread.
+   * @param maxInFlightBatches only used when there are sender threads: maximum count of encoded
+   * batches not yet sent, after which flushing waits.
+   */
+  public AbstractSpanCollector(SpanCodec codec, SpanCollectorMetricsHandler metrics,
+      SpanQueue pending, FlushTrigger trigger, int senderThreads, int maxInFlightBatches) {
+    this(codec, metrics, pending, trigger, senderThreads, maxInFlightBatches, null);
+  }
+
+  /**
+   * @param pending holds spans between flushes. Spans are dropped when it is full.
+   * @param trigger decides when to flush. When disabled, spans are {@link #flush() flushed
+   * externally.
+   * @param senderThreads count of threads which call {@link #sendSpans}. 0 implies spans are sent
+   * on the flushing thread.
+   * @param maxInFlightBatches only used when there are sender threads: maximum count of encoded
+   * batches not yet sent, after which flushing waits.
+   * @param spool when not null, keeps spans which would otherwise be dropped until the transport
+   * recovers.
+   */
+  public AbstractSpanCollector(SpanCodec codec, SpanCollectorMetricsHandler metrics,
+      SpanQueue pending, FlushTrigger trigger, int senderThreads, int maxInFlightBatches,
+      @Nullable SpanSpool spool) {
+    super(metrics, pending, trigger);
+    checkArgument(senderThreads >= 0, "senderThreads should not be negative: was %s",
+        senderThreads);
     this.codec = codec;
+    this.metrics = metrics;
+    this.spool = spool;
+    if (senderThreads == 0) {
+      this.senders = null;
+      this.inFlight = null;
+    } else {
+      checkArgument(maxInFlightBatches > 0, "maxInFlightBatches should be positive: was %s",
+          maxInFlightBatches);
+      this.senders = newSenders(senderThreads, getClass().getSimpleName() + "-sender-");
+      this.inFlight = new Semaphore(maxInFlightBatches);
+    }
+  }
+
+  /** Replays the spool, if there is one, then flushes pending spans. */
+  @Override
+  public void flush() {
+    if (spool != null && !spool.isEmpty()) replaySpool();
+    super.flush();
+  }
+
+  /**
+   * Sends spooled batches, oldest first, until one fails. Stops after the spans spooled when it
+   * began, so that a transport which spools failures as they complete can't keep flushing here.
+   */
+  void replaySpool() {
+    if (!replaying.compareAndSet(false, true)) return; // another thread is replaying
+    try {
+      int remaining = spool.spanCount();
+      for (SpanSpool.Record record; remaining > 0 && (record = spool.peek()) != null; ) {
+        try {
+          replay(record);
+        } catch (IOException | RuntimeException e) {
+          return; // still failing: try again next flush
+        }
+        spool.remove(record);
+        remaining -= record.spanCount;
+      }
+    } finally {
+      replaying.set(false);
+    }
+  }
+
+  /**
+   * Sends a spooled batch, which is removed from the spool when this returns. The default calls
+   * {@link #sendSpans(byte[], int, int, int, byte[])}, which is only correct when it completes
+   * synchronously. Transports which complete asynchronously override this to wait for the outcome,
+   * without spooling a failure, as the batch is still spooled. Otherwise, a failed replay is
+   * spooled again, behind newer batches.
+   *
+   * @throws IOException (or RuntimeException) when the batch wasn't sent, so it stays spooled
+   */
+  protected void replay(SpanSpool.Record record) throws IOException {
+    sendSpans(record.bytes, 0, record.bytes.length, record.spanCount, record.key);
   }
 
   @Override
   protected void reportSpans(List<Span> drained) throws IOException {
-    byte[] encoded = codec.writeSpans(drained);
-    sendSpans(encoded);
+    reportBatch(drained, null);
+  }
+
+  /**
+   * Encodes the batch and sends it, either now or on a sender thread. Transports which split or
+   * route spans override {@link #reportSpans} to call this once per batch.
+   *
+   * @param key passed to {@link #sendSpans(byte[], int, int, int, byte[])}, for example to choose
+   * a partition.
+   */
+  protected final void reportBatch(List<Span> batch, @Nullable byte[] key) throws IOException {
+    Buffer buffer = buffers.poll();
+    if (buffer == null) buffer = new Buffer(INITIAL_BUFFER_SIZE);
+    codec.writeSpans(batch, buffer);
+    if (spool != null && !spool.isEmpty()) { // send older batches first
+      spoolOrDrop(buffer.array(), 0, buffer.size(), batch.size(), key);
+      release(buffer);
+      return;
+    }
+    if (senders == null) {
+      try {
+        sendSpans(buffer.array(), 0, buffer.size(), batch.size(), key);
+      } catch (IOException | RuntimeException e) {
+        if (spool == null) throw e;
+        spoolOrDrop(buffer.array(), 0, buffer.size(), batch.size(), key);
+      } finally {
+        release(buffer);
+      }
+      return;
+    }
+    // backpressure: while senders are behind, the flushing thread waits here and spans pend
+    inFlight.acquireUninterruptibly();
+    try {
+      senders.execute(new SendBatch(buffer, batch.size(), key));
+    } catch (RejectedExecutionException e) { // closed
+      inFlight.release();
+      release(buffer);
+      throw e;
+    }
+  }
+
+  void release(Buffer buffer) {
+    if (buffer.capacity() > MAX_POOLED_BUFFER_SIZE) return;
+    buffers.offer(buffer.reset());
+  }
+
+  final class SendBatch implements Runnable {
+    final Buffer buffer;
+    final int spanCount;
+    @Nullable final byte[] key;
+
+    SendBatch(Buffer buffer, int spanCount, @Nullable byte[] key) {
+      this.buffer = buffer;
+      this.spanCount = spanCount;
+      this.key = key;
+    }
+
+    @Override
+    public void run() {
+      try {
+        sendSpans(buffer.array(), 0, buffer.size(), spanCount, key);
+      } catch (IOException | RuntimeException e) {
+        spoolOrDrop(buffer.array(), 0, buffer.size(), spanCount, key);
+      } finally {
+        release(buffer);
+        inFlight.release();
+      }
+    }
+  }
+
+  /**
+   * Appends a batch which couldn't be sent to the spool, or reports its spans as dropped if there
+   * is no spool, or it is full. Transports which complete asynchronously call this on failure.
+   */
+  protected final void spoolOrDrop(byte[] buffer, int offset, int length, int spanCount,
+      @Nullable byte[] key) {
+    if (spool == null || !spool.append(buffer, offset, length, spanCount, key)) {
+      metrics.incrementDroppedSpans(spanCount);
+    }
+  }
+
+  @Override
+  protected boolean spill(Span span) {
+    if (spool == null) return false;
+    byte[] encoded = codec.writeSpans(Collections.singletonList(span));
+    return spool.append(encoded, 0, encoded.length, 1, null);
+  }
+
+  @Override
+  protected void abandon(List<Span> unflushed) {
+    if (spool == null) {
+      super.abandon(unflushed);
+      return;
+    }
+    byte[] encoded = codec.writeSpans(unflushed);
+    spoolOrDrop(encoded, 0, encoded.length, unflushed.size(), null);
+  }
+
+  /**
+   * Stops flushing, then waits up to 30 seconds for in-flight batches to be sent, in the order they
+   * were flushed. When there's a spool, pending spans are appended to it, to be sent when a
+   * collector is next opened with the same spool directory.
+   */
+  @Override
+  public void close() {
+    super.close();
+    if (senders != null) {
+      senders.shutdown();
+      try {
+        if (!senders.awaitTermination(30, SECONDS)) senders.shutdownNow();
+      } catch (InterruptedException e) {
+        senders.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (spool != null) spool.flush();
+  }
+
+  /** Sender threads take batches in FIFO order. The queue is bounded by the in-flight semaphore. */
+  static ExecutorService newSenders(int threads, final String threadNamePrefix) {
+    return new ThreadPoolExecutor(threads, threads, 0L, MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        return new Thread(r, threadNamePrefix + count.incrementAndGet());
+      }
+    });
   }
 
   /**
    * Sends a encoded list of spans over the current transport.
    *
+   * <p>The buffer is reused after this returns, so implementations must copy any bytes they need
+   * later. When there are sender threads, this is called concurrently by each of them.
+   *
+   * @param buffer holds the encoded spans from {@code offset} for {@code length} bytes
    * @throws IOException when thrown, drop metrics will increment accordingly
    */
-  protected abstract void sendSpans(byte[] encoded) throws IOException;
+  protected abstract void sendSpans(byte[] buffer, int offset, int length) throws IOException;
+
+  /**
+   * Override this instead of {@link #sendSpans(byte[], int, int)} when the transport completes
+   * asynchronously, so it can report failures itself, for example with {@link #spoolOrDrop}. Such
+   * transports also override {@link #replay}.
+   *
+   * @param spanCount count of spans encoded in the buffer
+   */
+  protected void sendSpans(byte[] buffer, int offset, int length, int spanCount)
+      throws IOException {
+    sendSpans(buffer, offset, length);
+  }
+
+  /**
+   * Override this instead of {@link #sendSpans(byte[], int, int, int)} when the transport routes
+   * batches by the key passed to {@link #reportBatch}.
+   *
+   * @param key null unless the batch was reported with one
+   */
+  protected void sendSpans(byte[] buffer, int offset, int length, int spanCount,
+      @Nullable byte[] key) throws IOException {
+    sendSpans(buffer, offset, length, spanCount);
+  }
 }
@@ -0,0 +1,16 @@
+package me.j360.trace.collector.core;
+
+/**
+ * Optional extension of {@linkplain SpanCollectorMetricsHandler}, notified when the transport
+ * confirms delivery. Only collectors whose transport confirms delivery, such as Kafka, call this.
+ */
+public interface AcknowledgementMetricsHandler extends SpanCollectorMetricsHandler {
+
+    /**
+     * Called when the transport confirms spans were delivered, for example when a Kafka broker
+     * acknowledges them.
+     *
+     * @param quantity the number of spans acknowledged.
+     */
+    void incrementAcknowledgedSpans(int quantity);
+}
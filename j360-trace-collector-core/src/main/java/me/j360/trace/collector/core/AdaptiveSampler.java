@@ -0,0 +1,165 @@
+package me.j360.trace.collector.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static me.j360.trace.collector.core.internal.Util.checkArgument;
+import static me.j360.trace.collector.core.internal.Util.checkNotNull;
+
+/**
+ * This sampler aims for the same count of traces per second from each endpoint, regardless of how
+ * much traffic each receives. A fixed percentage either misses rare endpoints, or keeps far too
+ * many traces of busy ones: this keeps all traces of an endpoint receiving less than the target,
+ * and a shrinking fraction of those receiving more.
+ *
+ * <p>Endpoints are told apart by the name of the root span, such as the http route or rpc method,
+ * as passed to {@link #isSampled(long, String)}. Tracers do so when starting a new trace. Calls to
+ * {@link #isSampled(long)}, which have no name, share a budget with endpoints that don't fit in the
+ * table.
+ *
+ * <h3>Implementation</h3>
+ *
+ * <p>Each span name has a counter of new traces, and a sampling probability. Every interval, the
+ * first caller to notice it has elapsed turns the count into a request rate, smooths it with the
+ * previous one, and sets the probability to {@code tracesPerSecond / rate}, up to 1. There's no
+ * lock and no background thread: a decision is a map lookup, an increment, and a comparison of the
+ * trace id against the probability, so like {@link BoundarySampler}, trace ids must be random.
+ *
+ * <p>A name seen for the first time is sampled at 100% until its first interval elapses. To cap
+ * bursts of new names, or of traffic between recomputes, wrap this in a {@link
+ * RateLimitingSampler}.
+ *
+ * <p>The table holds up to {@code maxSpanNames} names, so that names which embed ids, like raw
+ * http paths, can't exhaust memory. Once full, further names share one budget.
+ */
+public final class AdaptiveSampler extends Sampler {
+  static final int DEFAULT_MAX_SPAN_NAMES = 1000;
+  static final long DEFAULT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+  /** weight of the latest interval's rate when smoothing, to damp oscillation */
+  static final float ALPHA = 0.5f;
+  static final long SALT = 0x7e3c5f91b2a4d6e8L;
+
+  /**
+   * Returns a sampler which targets the given count of traces per second for each span name,
+   * recomputed every 10 seconds across up to 1000 names.
+   *
+   * @param tracesPerSecond 0 means never sample. Otherwise, the target count of traces sampled
+   * per second, per span name.
+   */
+  public static Sampler create(float tracesPerSecond) {
+    return create(tracesPerSecond, DEFAULT_MAX_SPAN_NAMES, DEFAULT_INTERVAL_NANOS,
+        TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param tracesPerSecond 0 means never sample. Otherwise, the target count of traces sampled
+   * per second, per span name.
+   * @param maxSpanNames maximum count of span names with their own budget.
+   * @param interval how often probabilities are recomputed from traffic.
+   */
+  public static Sampler create(float tracesPerSecond, int maxSpanNames, long interval,
+      TimeUnit unit) {
+    checkArgument(tracesPerSecond >= 0, "tracesPerSecond should not be negative: was %s",
+        tracesPerSecond);
+    checkArgument(maxSpanNames >= 0, "maxSpanNames should not be negative: was %s", maxSpanNames);
+    checkArgument(interval > 0, "interval should be positive: was %s", interval);
+    checkNotNull(unit, "unit");
+    if (tracesPerSecond == 0) return NEVER_SAMPLE;
+    return new AdaptiveSampler(tracesPerSecond, maxSpanNames, unit.toNanos(interval),
+        System.nanoTime());
+  }
+
+  static final class Budget {
+    final AtomicInteger count = new AtomicInteger();
+    /** System.nanoTime when {@link #count} started */
+    final AtomicLong windowStart;
+    /** smoothed traces per second, or negative before the first interval elapses */
+    volatile float rate = -1;
+    /** traces whose salted id is at most this are sampled */
+    volatile long threshold = Long.MAX_VALUE;
+
+    Budget(long now) {
+      windowStart = new AtomicLong(now);
+    }
+  }
+
+  private final float tracesPerSecond;
+  private final int maxSpanNames;
+  private final long intervalNanos;
+  private final ConcurrentMap<String, Budget> budgets = new ConcurrentHashMap<String, Budget>();
+  /** count of entries in {@link #budgets}, so that checking the bound is constant time */
+  private final AtomicInteger spanNames = new AtomicInteger();
+  private final Budget overflow;
+
+  // Visible for testing
+  AdaptiveSampler(float tracesPerSecond, int maxSpanNames, long intervalNanos, long now) {
+    this.tracesPerSecond = tracesPerSecond;
+    this.maxSpanNames = maxSpanNames;
+    this.intervalNanos = intervalNanos;
+    this.overflow = new Budget(now);
+  }
+
+  @Override
+  public boolean isSampled(long traceId) {
+    return isSampled(traceId, overflow, System.nanoTime());
+  }
+
+  @Override
+  public boolean isSampled(long traceId, String spanName) {
+    long now = System.nanoTime();
+    return isSampled(traceId, budget(spanName, now), now);
+  }
+
+  // Visible for testing
+  boolean isSampled(long traceId, String spanName, long now) {
+    return isSampled(traceId, budget(spanName, now), now);
+  }
+
+  boolean isSampled(long traceId, Budget budget, long now) {
+    long start = budget.windowStart.get();
+    if (now - start >= intervalNanos && budget.windowStart.compareAndSet(start, now)) {
+      recompute(budget, budget.count.getAndSet(0), now - start);
+    }
+    budget.count.incrementAndGet();
+    return ((traceId ^ SALT) & Long.MAX_VALUE) <= budget.threshold;
+  }
+
+  Budget budget(String spanName, long now) {
+    if (spanName == null) return overflow;
+    Budget budget = budgets.get(spanName);
+    if (budget != null) return budget;
+    if (spanNames.incrementAndGet() > maxSpanNames) {
+      spanNames.decrementAndGet();
+      return overflow;
+    }
+    budget = new Budget(now);
+    Budget existing = budgets.putIfAbsent(spanName, budget);
+    if (existing == null) return budget;
+    spanNames.decrementAndGet(); // another thread added it first
+    return existing;
+  }
+
+  void recompute(Budget budget, int count, long elapsedNanos) {
+    float observed = count * (float) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    float rate = budget.rate < 0 ? observed : ALPHA * observed + (1 - ALPHA) * budget.rate;
+    budget.rate = rate;
+    budget.threshold = rate <= tracesPerSecond
+        ? Long.MAX_VALUE
+        : (long) (Long.MAX_VALUE * (double) (tracesPerSecond / rate));
+  }
+
+  // Visible for testing
+  float probability(String spanName) {
+    Budget budget = spanName == null ? overflow : budgets.get(spanName);
+    if (budget == null) return 1.0f;
+    return (float) ((double) budget.threshold / Long.MAX_VALUE);
+  }
+
+  @Override
+  public String toString() {
+    return "AdaptiveSampler(" + tracesPerSecond + "/s per span name)";
+  }
+}
@@ -0,0 +1,36 @@
+package me.j360.trace.collector.core;
+
+import me.j360.trace.collector.core.module.Span;
+
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/** Bounded queue which takes a lock on each offer and allocates a node per span. */
+final class BlockingSpanQueue extends SpanQueue {
+  private final BlockingQueue<Span> delegate;
+
+  BlockingSpanQueue(int capacity) {
+    this.delegate = new LinkedBlockingQueue<Span>(capacity);
+  }
+
+  @Override
+  public boolean offer(Span span) {
+    return delegate.offer(span);
+  }
+
+  @Override
+  public int drainTo(Collection<? super Span> sink) {
+    return delegate.drainTo(sink);
+  }
+
+  @Override
+  public int size() {
+    return delegate.size();
+  }
+
+  @Override
+  public String toString() {
+    return "BlockingSpanQueue(" + (delegate.size() + delegate.remainingCapacity()) + ")";
+  }
+}
@@ -2,7 +2,7 @@ package me.j360.trace.collector.core;
 
 import java.util.Random;
 
-import static autovalue.shaded.com.google.common.common.base.Preconditions.checkArgument;
+import static me.j360.trace.collector.core.internal.Util.checkArgument;
 
 
 /**
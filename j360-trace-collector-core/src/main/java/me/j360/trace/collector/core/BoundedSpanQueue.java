@@ -0,0 +1,176 @@
+package me.j360.trace.collector.core;
+
+import me.j360.trace.collector.core.module.Span;
+import me.j360.trace.collector.core.module.SpanCodec;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Array-backed queue bounded by both the count of spans and their estimated encoded size. This
+ * keeps a few spans with large binary annotations (ex. "sql.query") from using the heap a burst of
+ * small spans would otherwise be allowed.
+ *
+ * <p>Sizes are estimated with {@link SpanCodec#sizeInBytes(Span)} before taking the lock, unless
+ * the caller already did.
+ */
+final class BoundedSpanQueue extends SpanQueue {
+  final SpanCodec codec;
+  final SpanCollectorMetricsHandler metrics;
+  final int maxSpans;
+  final int maxBytes;
+  final OverflowPolicy policy;
+  final long timeoutNanos;
+
+  final ReentrantLock lock = new ReentrantLock();
+  final Condition notFull = lock.newCondition();
+  final Span[] spans; // guarded by lock
+  final int[] sizes; // guarded by lock
+  int head, count; // guarded by lock
+  long bytes; // guarded by lock
+
+  BoundedSpanQueue(SpanCodec codec, SpanCollectorMetricsHandler metrics, int maxSpans,
+      int maxBytes, OverflowPolicy policy, long timeoutMillis) {
+    this.codec = codec;
+    this.metrics = metrics;
+    this.maxSpans = maxSpans;
+    this.maxBytes = maxBytes;
+    this.policy = policy;
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    this.spans = new Span[maxSpans];
+    this.sizes = new int[maxSpans];
+  }
+
+  @Override
+  public boolean offer(Span span) {
+    return offer(span, -1);
+  }
+
+  @Override
+  boolean offer(Span span, int sizeInBytes) {
+    int size = maxBytes == 0 ? 0 : sizeInBytes >= 0 ? sizeInBytes : codec.sizeInBytes(span);
+    if (maxBytes > 0 && size > maxBytes) { // can never fit, so don't evict or wait for room
+      overflowed(1);
+      return false;
+    }
+
+    int evicted = 0;
+    boolean accepted = true;
+    lock.lock();
+    try {
+      switch (policy) {
+        case DROP_NEWEST:
+          accepted = hasRoom(size);
+          break;
+        case DROP_OLDEST:
+          while (!hasRoom(size)) {
+            removeFirst();
+            evicted++;
+          }
+          break;
+        case BLOCK:
+          accepted = awaitRoom(size);
+          break;
+        default:
+          throw new AssertionError("OverflowPolicy " + policy + " was added, but not handled");
+      }
+      if (accepted) addLast(span, size);
+    } finally {
+      lock.unlock();
+    }
+
+    if (evicted > 0) {
+      metrics.incrementDroppedSpans(evicted);
+      overflowed(evicted);
+    }
+    if (!accepted) overflowed(1);
+    return accepted;
+  }
+
+  void overflowed(int quantity) {
+    if (metrics instanceof OverflowMetricsHandler) {
+      ((OverflowMetricsHandler) metrics).incrementOverflowedSpans(policy, quantity);
+    }
+  }
+
+  @Override
+  public int drainTo(Collection<? super Span> sink) {
+    lock.lock();
+    try {
+      int drained = count;
+      while (count > 0) {
+        sink.add(removeFirst());
+      }
+      notFull.signalAll();
+      return drained;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    lock.lock();
+    try {
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns the estimated encoded size of pending spans, or zero if bytes aren't bounded. */
+  long sizeInBytes() {
+    lock.lock();
+    try {
+      return bytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // guarded by lock
+  boolean hasRoom(int size) {
+    return count < maxSpans && (maxBytes == 0 || bytes + size <= maxBytes);
+  }
+
+  // guarded by lock
+  boolean awaitRoom(int size) {
+    long nanos = timeoutNanos;
+    try {
+      while (!hasRoom(size)) {
+        if (nanos <= 0) return false;
+        nanos = notFull.awaitNanos(nanos);
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  // guarded by lock
+  void addLast(Span span, int size) {
+    int tail = (head + count) % maxSpans;
+    spans[tail] = span;
+    sizes[tail] = size;
+    bytes += size;
+    count++;
+  }
+
+  // guarded by lock
+  Span removeFirst() {
+    Span result = spans[head];
+    spans[head] = null;
+    bytes -= sizes[head];
+    head = (head + 1) % maxSpans;
+    count--;
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "BoundedSpanQueue(" + maxSpans + ", " + maxBytes + "B, " + policy + ")";
+  }
+}
@@ -40,6 +40,7 @@ public class Brave {
         private Random random = new Random();
         // default added so callers don't need to check null.
         private Sampler sampler = Sampler.create(1.0f);
+        private int maxTracesPerSecond;
 
         /**
          * Builder which initializes with serviceName = "unknown".
@@ -103,6 +104,19 @@ public class Brave {
             return this;
         }
 
+        /**
+         * Caps new traces per second across all tracers built here, after the {@link
+         * #traceSampler(Sampler) trace sampler} decides to sample. Default 0, which implies no cap.
+         *
+         * @see RateLimitingSampler
+         */
+        public Builder maxTracesPerSecond(int maxTracesPerSecond) {
+            Util.checkArgument(maxTracesPerSecond >= 0,
+                "maxTracesPerSecond should not be negative: was %s", maxTracesPerSecond);
+            this.maxTracesPerSecond = maxTracesPerSecond;
+            return this;
+        }
+
         /**
          * @param spanCollector
          */
@@ -209,23 +223,28 @@ public class Brave {
     }
 
     private Brave(Builder builder) {
+        // one instance, so that the limit applies to the sum of server, client and local traces
+        Sampler sampler = builder.maxTracesPerSecond == 0
+                ? builder.sampler
+                : RateLimitingSampler.create(builder.maxTracesPerSecond, builder.sampler);
+
         serverTracer = ServerTracer.builder()
                 .randomGenerator(builder.random)
                 .spanCollector(builder.spanCollector)
                 .state(builder.state)
-                .traceSampler(builder.sampler).build();
+                .traceSampler(sampler).build();
 
         clientTracer = ClientTracer.builder()
                 .randomGenerator(builder.random)
                 .spanCollector(builder.spanCollector)
                 .state(builder.state)
-                .traceSampler(builder.sampler).build();
+                .traceSampler(sampler).build();
 
         localTracer = LocalTracer.builder()
                 .randomGenerator(builder.random)
                 .spanCollector(builder.spanCollector)
                 .spanAndEndpoint(SpanAndEndpoint.LocalSpanAndEndpoint.create(builder.state))
-                .traceSampler(builder.sampler).build();
+                .traceSampler(sampler).build();
         
         serverRequestInterceptor = new ServerRequestInterceptor(serverTracer);
         serverResponseInterceptor = new ServerResponseInterceptor(serverTracer);
@@ -105,7 +105,7 @@ public abstract class ClientTracer extends AnnotationSubmitter {
         SpanId newSpanId = getNewSpanId();
         if (sample == null) {
             // No sample indication is present.
-            if (!traceSampler().isSampled(newSpanId.traceId)) {
+            if (!traceSampler().isSampled(newSpanId.traceId, requestName)) {
                 spanAndEndpoint().state().setCurrentClientSpan(null);
                 return null;
             }
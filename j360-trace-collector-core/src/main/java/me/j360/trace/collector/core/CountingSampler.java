@@ -2,8 +2,9 @@ package me.j360.trace.collector.core;
 
 import java.util.BitSet;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static autovalue.shaded.com.google.common.common.base.Preconditions.checkArgument;
+import static me.j360.trace.collector.core.internal.Util.checkArgument;
 
 
 /**
@@ -13,43 +14,57 @@ import static autovalue.shaded.com.google.common.common.base.Preconditions.check
  *
  * <h3>Implementation</h3>
  *
- * <p>This initializes a random bitset of size 100 (corresponding to 1% granularity). This means
- * that it is accurate in units of 100 traces. At runtime, this loops through the bitset, returning
- * the value according to a counter.
+ * <p>This initializes a random bitset whose size is the smallest window of decisions in which the
+ * rate is exact: 100 for a rate of 0.07, 10000 for 0.0007 and 2 for 0.5. This means that it is
+ * accurate in units of that window. At runtime, this loops through the bitset, returning the value
+ * according to an atomic counter, so concurrent callers don't take a lock.
  */
 public final class CountingSampler extends Sampler {
+  /** Rates are rounded to a multiple of 1/PRECISION. */
+  static final int PRECISION = 10000;
 
   /**
-   * @param rate 0 means never sample, 1 means always sample. Otherwise minimum sample rate is 0.01,
-   * or 1% of traces
+   * @param rate 0 means never sample, 1 means always sample. Otherwise minimum sample rate is
+   * 0.0001, or 0.01% of traces
    */
   public static Sampler create(final float rate) {
     if (rate == 0) return NEVER_SAMPLE;
     if (rate == 1.0) return ALWAYS_SAMPLE;
-    checkArgument(rate >= 0.01f && rate < 1, "rate should be between 0.01 and 1: was %s", rate);
+    checkArgument(rate >= 0.0001f && rate < 1, "rate should be between 0.0001 and 1: was %s", rate);
     return new CountingSampler(rate);
   }
 
-  private int i; // guarded by this
+  private final AtomicLong counter = new AtomicLong();
+  private final int window;
   private final BitSet sampleDecisions;
 
   /** Fills a bitset with decisions according to the supplied rate. */
   CountingSampler(float rate) {
-    int outOf100 = (int) (rate * 100.0f);
-    this.sampleDecisions = randomBitSet(100, outOf100, new Random());
+    int outOfPrecision = Math.round(rate * PRECISION);
+    int gcd = gcd(outOfPrecision, PRECISION);
+    this.window = PRECISION / gcd;
+    this.sampleDecisions = randomBitSet(window, outOfPrecision / gcd, new Random());
   }
 
-  /** loops over the pre-canned decisions, resetting to zero when it gets to the end. */
+  /** loops over the pre-canned decisions, starting over when it gets to the end of the window. */
   @Override
-  public synchronized boolean isSampled(long traceIdIgnored) {
-    boolean result = sampleDecisions.get(i++);
-    if (i == 100) i = 0;
-    return result;
+  public boolean isSampled(long traceIdIgnored) {
+    // a long won't overflow in practice, so every run of window decisions uses the whole bitset
+    return sampleDecisions.get((int) (counter.getAndIncrement() % window));
   }
 
   @Override
   public String toString() {
-    return "CountingSampler()";
+    return "CountingSampler(" + sampleDecisions.cardinality() + "/" + window + ")";
+  }
+
+  static int gcd(int a, int b) {
+    while (b != 0) {
+      int t = a % b;
+      a = b;
+      b = t;
+    }
+    return a;
   }
 
   /**
@@ -0,0 +1,50 @@
+package me.j360.trace.collector.core;
+
+import com.google.auto.value.AutoValue;
+
+import static me.j360.trace.collector.core.internal.Util.checkArgument;
+
+/**
+ * Decides when {@link FlushingSpanCollector} flushes pending spans: when enough spans or bytes are
+ * pending, or when the maximum delay expires, whichever comes first.
+ *
+ * <p>Size triggers keep the queue from overflowing between flushes under heavy load, while a short
+ * delay keeps spans from waiting long under light load.
+ */
+@AutoValue
+public abstract class FlushTrigger {
+
+  /** Flushes every {@code flushInterval} seconds. 0 implies spans are flushed externally. */
+  public static FlushTrigger interval(int flushInterval) {
+    return create(flushInterval * 1000L, 0, 0);
+  }
+
+  /**
+   * @param maxDelay milliseconds between flushes. 0 implies only size triggers apply.
+   * @param batchSize flush when at least this many spans are pending. 0 disables.
+   * @param batchBytes flush when at least this many bytes of json are pending. 0 disables.
+   */
+  public static FlushTrigger create(long maxDelay, int batchSize, int batchBytes) {
+    checkArgument(maxDelay >= 0, "maxDelay should not be negative: was %s", maxDelay);
+    checkArgument(batchSize >= 0, "batchSize should not be negative: was %s", batchSize);
+    checkArgument(batchBytes >= 0, "batchBytes should not be negative: was %s", batchBytes);
+    return new AutoValue_FlushTrigger(maxDelay, batchSize, batchBytes);
+  }
+
+  /** Milliseconds between flushes, or 0 if only size triggers apply. */
+  public abstract long maxDelay();
+
+  /** Count of pending spans that triggers a flush, or 0 if disabled. */
+  public abstract int batchSize();
+
+  /** Estimated json size of pending spans that triggers a flush, or 0 if disabled. */
+  public abstract int batchBytes();
+
+  /** False implies spans are {@link FlushingSpanCollector#flush() flushed} externally. */
+  public boolean isEnabled() {
+    return maxDelay() > 0 || batchSize() > 0 || batchBytes() > 0;
+  }
+
+  FlushTrigger() {
+  }
+}
@@ -3,6 +3,7 @@ package me.j360.trace.collector.core;
 
 import me.j360.trace.collector.core.internal.Nullable;
 import me.j360.trace.collector.core.module.Span;
+import me.j360.trace.collector.core.module.SpanCodec;
 
 import java.io.Closeable;
 import java.io.Flushable;
@@ -10,9 +11,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
-import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
  * Extend this class to offload the task of reporting spans to separate thread. By doing so, callers
@@ -21,7 +24,10 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 public abstract class FlushingSpanCollector implements SpanCollector, Flushable, Closeable {
 
   private final SpanCollectorMetricsHandler metrics;
-  private final BlockingQueue<Span> pending = new LinkedBlockingQueue<Span>(1000);
+  private final SpanQueue pending;
+  private final FlushTrigger trigger;
+  /** Estimated json size of pending spans, only tracked when there's a byte trigger. */
+  private final AtomicLong pendingBytes = new AtomicLong();
   @Nullable // for testing
   private final Flusher flusher;
 
@@ -29,8 +35,31 @@ public abstract class FlushingSpanCollector implements SpanCollector, Flushable,
    * @param flushInterval in seconds. 0 implies spans are {@link #flush() flushed externally.
    */
   protected FlushingSpanCollector(SpanCollectorMetricsHandler metrics, int flushInterval) {
+    this(metrics, flushInterval, SpanQueue.blocking(1000));
+  }
+
+  /**
+   * @param flushInterval in seconds. 0 implies spans are {@link #flush() flushed externally.
+   * @param pending holds spans between flushes. Spans are dropped when it is full.
+   */
+  protected FlushingSpanCollector(SpanCollectorMetricsHandler metrics, int flushInterval,
+      SpanQueue pending) {
+    this(metrics, pending, FlushTrigger.interval(flushInterval));
+  }
+
+  /**
+   * @param pending holds spans between flushes. Spans are dropped when it is full.
+   * @param trigger decides when to flush. When disabled, spans are {@link #flush() flushed
+   * externally.
+   */
+  protected FlushingSpanCollector(SpanCollectorMetricsHandler metrics, SpanQueue pending,
+      FlushTrigger trigger) {
     this.metrics = metrics;
-    this.flusher = flushInterval > 0 ? new Flusher(this, flushInterval, getClass().getSimpleName()) : null;
+    this.pending = pending;
+    this.trigger = trigger;
+    this.flusher = trigger.isEnabled()
+        ? new Flusher(this, trigger.maxDelay(), getClass().getSimpleName())
+        : null;
   }
 
   /**
@@ -41,8 +70,17 @@ public abstract class FlushingSpanCollector implements SpanCollector, Flushable,
   @Override
   public void collect(Span span) {
     metrics.incrementAcceptedSpans(1);
-    if (!pending.offer(span)) {
-      metrics.incrementDroppedSpans(1);
+    // estimated once, as a bounded queue needs the same size
+    int size = flusher != null && trigger.batchBytes() > 0 ? SpanCodec.JSON.sizeInBytes(span) : -1;
+    if (!pending.offer(span, size)) {
+      if (!spill(span)) metrics.incrementDroppedSpans(1);
+      return;
+    }
+    if (flusher == null) return;
+    if (size >= 0 && pendingBytes.addAndGet(size) >= trigger.batchBytes()) {
+      flusher.wake();
+    } else if (trigger.batchSize() > 0 && pending.size() >= trigger.batchSize()) {
+      flusher.wake();
     }
   }
 
@@ -52,6 +90,8 @@ public abstract class FlushingSpanCollector implements SpanCollector, Flushable,
   @Override
   public void flush() {
     if (pending.isEmpty()) return;
+    // reset before draining: spans added meanwhile are over-counted, which only flushes sooner
+    if (trigger.batchBytes() > 0) pendingBytes.set(0);
     List<Span> drained = new ArrayList<Span>(pending.size());
     pending.drainTo(drained);
     if (drained.isEmpty()) return;
@@ -66,27 +106,58 @@ public abstract class FlushingSpanCollector implements SpanCollector, Flushable,
     }
   }
 
-  /** Calls flush on a fixed interval */
+  /**
+   * Calls flush when {@link #wake() woken} by a size trigger, or when the maximum delay since the
+   * last flush expires.
+   */
   static final class Flusher implements Runnable {
     final Flushable flushable;
-    final ScheduledExecutorService scheduler;
+    final long maxDelayNanos;
+    final AtomicBoolean flushRequested = new AtomicBoolean();
+    final Thread thread;
+    volatile boolean closed;
 
-    Flusher(Flushable flushable, int flushInterval, final String threadPoolName) {
+    Flusher(Flushable flushable, long maxDelay, String threadName) {
       this.flushable = flushable;
-      this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
-        @Override
-        public Thread newThread(final Runnable r) {
-          return new Thread(r, threadPoolName);
-        }
-      });
-      this.scheduler.scheduleWithFixedDelay(this, 0, flushInterval, SECONDS);
+      this.maxDelayNanos = MILLISECONDS.toNanos(maxDelay);
+      this.thread = new Thread(this, threadName);
+      this.thread.start();
+    }
+
+    /** Requests a flush. Cheap enough to call on every span, as only the first call unparks. */
+    void wake() {
+      if (!flushRequested.get() && flushRequested.compareAndSet(false, true)) {
+        LockSupport.unpark(thread);
+      }
+    }
+
+    void close() {
+      closed = true;
+      LockSupport.unpark(thread);
     }
 
     @Override
     public void run() {
-      try {
-        flushable.flush();
-      } catch (IOException ignored) {
+      long nextFlush = System.nanoTime();
+      while (!closed) {
+        if (!flushRequested.get()) {
+          if (maxDelayNanos == 0) {
+            LockSupport.park(this);
+          } else {
+            long remaining = nextFlush - System.nanoTime();
+            if (remaining > 0) LockSupport.parkNanos(this, remaining);
+          }
+        }
+        if (closed) return;
+        // parking can return spuriously, so check if there's really something to do
+        boolean requested = flushRequested.getAndSet(false);
+        if (!requested && (maxDelayNanos == 0 || nextFlush - System.nanoTime() > 0)) continue;
+        try {
+          flushable.flush();
+        } catch (IOException ignored) {
+        } catch (RuntimeException ignored) { // don't let a bug kill the flushing thread
+        }
+        nextFlush = System.nanoTime() + maxDelayNanos;
       }
     }
   }
@@ -98,6 +169,19 @@ public abstract class FlushingSpanCollector implements SpanCollector, Flushable,
    */
   protected abstract void reportSpans(List<Span> drained) throws IOException;
 
+  /**
+   * Called on the collecting thread with a span the queue had no room for. Returns true if the span
+   * was kept elsewhere, or false to drop it.
+   */
+  protected boolean spill(Span span) {
+    return false;
+  }
+
+  /** Called on {@link #close()} with spans that were never flushed. By default, they're dropped. */
+  protected void abandon(List<Span> unflushed) {
+    metrics.incrementDroppedSpans(unflushed.size());
+  }
+
   @Override
   public void addDefaultAnnotation(String key, String value) {
     throw new UnsupportedOperationException();
@@ -108,9 +192,8 @@ public abstract class FlushingSpanCollector implements SpanCollector, Flushable,
    */
   @Override
   public void close() {
-    if (flusher != null) flusher.scheduler.shutdown();
-    // throw any outstanding spans on the floor
-    int dropped = pending.drainTo(new LinkedList<Span>());
-    metrics.incrementDroppedSpans(dropped);
+    if (flusher != null) flusher.close();
+    List<Span> unflushed = new LinkedList<Span>();
+    if (pending.drainTo(unflushed) > 0) abandon(unflushed);
   }
 }
@@ -108,7 +108,7 @@ public abstract class LocalTracer extends AnnotationSubmitter {
         SpanId newSpanId = getNewSpanId();
         if (sample == null) {
             // No sample indication is present.
-            if (!traceSampler().isSampled(newSpanId.traceId)) {
+            if (!traceSampler().isSampled(newSpanId.traceId, operation)) {
                 spanAndEndpoint().state().setCurrentLocalSpan(null);
                 return null;
             }
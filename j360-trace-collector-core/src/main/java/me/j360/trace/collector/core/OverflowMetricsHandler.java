@@ -0,0 +1,20 @@
+package me.j360.trace.collector.core;
+
+/**
+ * Optional extension of {@linkplain SpanCollectorMetricsHandler}, notified when a {@link
+ * SpanQueue#bounded bounded queue} drops spans. Handlers which only implement {@linkplain
+ * SpanCollectorMetricsHandler} still see these spans as {@link
+ * SpanCollectorMetricsHandler#incrementDroppedSpans(int) dropped}.
+ */
+public interface OverflowMetricsHandler extends SpanCollectorMetricsHandler {
+
+    /**
+     * Called when spans are dropped because a {@link SpanQueue#bounded bounded queue} had no room for
+     * them. This breaks down a subset of {@link #incrementDroppedSpans(int) dropped spans} by the
+     * policy that dropped them.
+     *
+     * @param policy the overflow policy of the queue
+     * @param quantity the number of spans dropped.
+     */
+    void incrementOverflowedSpans(SpanQueue.OverflowPolicy policy, int quantity);
+}
@@ -0,0 +1,96 @@
+package me.j360.trace.collector.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static me.j360.trace.collector.core.internal.Util.checkArgument;
+import static me.j360.trace.collector.core.internal.Util.checkNotNull;
+
+/**
+ * This sampler caps the count of new traces per second, regardless of traffic. Use it to protect
+ * the collection tier from spikes, alone or {@link #create(int, Sampler) in front of} a percentage
+ * sampler. Like {@link CountingSampler}, the decision isn't consistent based on trace id.
+ *
+ * <h3>Implementation</h3>
+ *
+ * <p>This is a token bucket holding up to a second of traces, which refills continuously. Rather
+ * than counting tokens, it keeps the time at which the bucket will next be full, and each sampled
+ * trace pushes that time out by {@code 1 / tracesPerSecond}. A trace is sampled when that doesn't
+ * push it further than a second from now. This means a single compare-and-set per decision, with
+ * no lock and no background thread. Over any interval, at most {@code tracesPerSecond} traces plus
+ * the interval's share are sampled.
+ */
+public final class RateLimitingSampler extends Sampler {
+
+  /**
+   * @param tracesPerSecond 0 means never sample. Otherwise, the maximum count of traces sampled
+   * per second.
+   */
+  public static Sampler create(int tracesPerSecond) {
+    return create(tracesPerSecond, ALWAYS_SAMPLE);
+  }
+
+  /**
+   * Returns a sampler which only takes a token when {@code delegate} samples the trace. For
+   * example, {@code create(100, CountingSampler.create(0.1f))} samples 10% of traces, but no more
+   * than 100 per second.
+   *
+   * @param tracesPerSecond 0 means never sample. Otherwise, the maximum count of traces sampled
+   * per second.
+   */
+  public static Sampler create(int tracesPerSecond, Sampler delegate) {
+    checkArgument(tracesPerSecond >= 0, "tracesPerSecond should not be negative: was %s",
+        tracesPerSecond);
+    checkNotNull(delegate, "delegate");
+    if (tracesPerSecond == 0 || delegate == NEVER_SAMPLE) return NEVER_SAMPLE;
+    return new RateLimitingSampler(tracesPerSecond, delegate);
+  }
+
+  static final long CAPACITY_NANOS = SECONDS.toNanos(1);
+
+  private final int tracesPerSecond;
+  private final Sampler delegate;
+  private final long nanosPerTrace;
+  /** System.nanoTime when the bucket will next be full */
+  private final AtomicLong fullAt;
+
+  RateLimitingSampler(int tracesPerSecond, Sampler delegate) {
+    this(tracesPerSecond, delegate, System.nanoTime());
+  }
+
+  // Visible for testing
+  RateLimitingSampler(int tracesPerSecond, Sampler delegate, long now) {
+    this.tracesPerSecond = tracesPerSecond;
+    this.delegate = delegate;
+    this.nanosPerTrace = CAPACITY_NANOS / tracesPerSecond;
+    this.fullAt = new AtomicLong(now); // starts full
+  }
+
+  @Override
+  public boolean isSampled(long traceId) {
+    if (!delegate.isSampled(traceId)) return false;
+    return tryAcquire(System.nanoTime());
+  }
+
+  @Override
+  public boolean isSampled(long traceId, String spanName) {
+    if (!delegate.isSampled(traceId, spanName)) return false;
+    return tryAcquire(System.nanoTime());
+  }
+
+  // Visible for testing
+  boolean tryAcquire(long now) {
+    while (true) {
+      long current = fullAt.get();
+      // when fullAt is in the past, the bucket is full, and has been for a while: start from now
+      long next = (current - now > 0 ? current : now) + nanosPerTrace;
+      if (next - now > CAPACITY_NANOS) return false; // empty
+      if (fullAt.compareAndSet(current, next)) return true;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "RateLimitingSampler(" + tracesPerSecond + "/s, " + delegate + ")";
+  }
+}
@@ -0,0 +1,86 @@
+package me.j360.trace.collector.core;
+
+import me.j360.trace.collector.core.module.Span;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static me.j360.trace.collector.core.internal.Util.checkNotNull;
+
+/**
+ * Multi-producer, single-consumer queue backed by a power-of-two array.
+ *
+ * <h3>Implementation</h3>
+ *
+ * <p>Producers claim a slot by compare-and-set on {@link #producerIndex}, then publish the span
+ * into it with an ordered write. The consumer reads slots in sequence until it finds one that is
+ * still empty, which is either the end of the queue or a slot claimed by a producer that hasn't
+ * published yet. Either way, the remainder is picked up by the next drain. Nothing is allocated per
+ * span, and producers never block each other.
+ *
+ * <p>Based on the MPSC array queue in JCTools, without {@code sun.misc.Unsafe}.
+ */
+final class RingSpanQueue extends SpanQueue {
+  final int capacity;
+  final int mask;
+  final AtomicReferenceArray<Span> buffer;
+  final AtomicLong producerIndex = new AtomicLong();
+  final AtomicLong consumerIndex = new AtomicLong();
+  /** Last consumer index seen by a producer. Lags the real value, so is safe to read stale. */
+  volatile long consumerIndexCache;
+
+  RingSpanQueue(int capacity) {
+    this.capacity = roundToPowerOfTwo(capacity);
+    this.mask = this.capacity - 1;
+    this.buffer = new AtomicReferenceArray<Span>(this.capacity);
+  }
+
+  @Override
+  public boolean offer(Span span) {
+    checkNotNull(span, "span");
+    long index;
+    do {
+      index = producerIndex.get();
+      long wrapPoint = index - capacity;
+      if (consumerIndexCache <= wrapPoint) {
+        long consumed = consumerIndex.get();
+        if (consumed <= wrapPoint) return false; // full
+        consumerIndexCache = consumed;
+      }
+    } while (!producerIndex.compareAndSet(index, index + 1));
+    buffer.lazySet((int) index & mask, span);
+    return true;
+  }
+
+  /** Drains at most one lap of the ring, so that busy producers can't starve the caller. */
+  @Override
+  public synchronized int drainTo(Collection<? super Span> sink) {
+    long index = consumerIndex.get();
+    int drained = 0;
+    while (drained < capacity) {
+      int offset = (int) index & mask;
+      Span next = buffer.get(offset);
+      if (next == null) break;
+      // clear the slot before releasing it to producers via the consumer index
+      buffer.lazySet(offset, null);
+      consumerIndex.lazySet(++index);
+      sink.add(next);
+      drained++;
+    }
+    return drained;
+  }
+
+  @Override
+  public int size() {
+    // read the consumer first, so that the difference is never negative
+    long consumed = consumerIndex.get();
+    long size = producerIndex.get() - consumed;
+    return (int) Math.min(size, capacity);
+  }
+
+  @Override
+  public String toString() {
+    return "RingSpanQueue(" + capacity + ")";
+  }
+}
@@ -41,13 +41,22 @@ public abstract class Sampler {
   /** Returns true if the trace ID should be measured. */
   public abstract boolean isSampled(long traceId);
 
+  /**
+   * Like {@link #isSampled(long)}, except also given the name of the root span, such as the http
+   * route or rpc method. Tracers call this when starting a new trace, so that samplers like {@link
+   * AdaptiveSampler} can budget traces per endpoint. By default, the name is ignored.
+   */
+  public boolean isSampled(long traceId, String spanName) {
+    return isSampled(traceId);
+  }
+
   /**
    * Returns a sampler, given a rate expressed as a percentage.
    *
    * <p>The sampler returned is good for low volumes of traffic (<100K requests), as it is precise.
    * If you have high volumes of traffic, consider {@link BoundarySampler}.
    *
-   * @param rate minimum sample rate is 0.01, or 1% of traces
+   * @param rate minimum sample rate is 0.0001, or 0.01% of traces
    */
   public static Sampler create(float rate) {
     return CountingSampler.create(rate);
@@ -101,7 +101,7 @@ public abstract class ServerTracer extends AnnotationSubmitter {
     public void setStateUnknown(String spanName) {
         checkNotBlank(spanName, "Null or blank span name");
         long newTraceId = randomGenerator().nextLong();
-        if (!traceSampler().isSampled(newTraceId)) {
+        if (!traceSampler().isSampled(newTraceId, spanName)) {
             spanAndEndpoint().state().setCurrentServerSpan(ServerSpan.NOT_SAMPLED);
             return;
         }
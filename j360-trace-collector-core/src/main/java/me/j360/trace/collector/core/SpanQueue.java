@@ -0,0 +1,164 @@
+package me.j360.trace.collector.core;
+
+import me.j360.trace.collector.core.module.Span;
+import me.j360.trace.collector.core.module.SpanCodec;
+
+import java.util.Collection;
+
+import static me.j360.trace.collector.core.internal.Util.checkArgument;
+import static me.j360.trace.collector.core.internal.Util.checkNotNull;
+
+/**
+ * Holds spans accepted by {@link FlushingSpanCollector#collect(Span)} until they are drained by
+ * {@link FlushingSpanCollector#flush()}.
+ *
+ * <p>Many threads offer spans, but only the flushing thread drains them. Implementations may rely
+ * on this: {@link #drainTo(Collection)} must only be called by one thread at a time.
+ */
+// abstract for factory-method support on Java language level 7
+public abstract class SpanQueue {
+
+  /** Defines the implementation of a {@link SpanQueue} created from configuration. */
+  public enum Type {
+    /** Lock-based linked queue. This allocates a node per span and is the historical default. */
+    BLOCKING,
+    /** Lock-free, multi-producer single-consumer array. Capacity rounds up to a power of two. */
+    RING,
+    /** One {@link #RING} per stripe of producer threads, which avoids contention on 32+ cores. */
+    STRIPED,
+    /**
+     * Lock-based array bounded by span count and estimated encoded bytes, which handles overflow
+     * according to an {@link OverflowPolicy}.
+     */
+    BOUNDED
+  }
+
+  /** Decides what happens when a {@link Type#BOUNDED} queue has no room for a span. */
+  public enum OverflowPolicy {
+    /** Drops the span being offered. This is what all other queue types do. */
+    DROP_NEWEST,
+    /** Drops the oldest pending spans until there's room for the one being offered. */
+    DROP_OLDEST,
+    /** Waits for a flush to make room, dropping the span being offered on timeout. */
+    BLOCK
+  }
+
+  /**
+   * Returns a queue of the given type.
+   *
+   * @param capacity maximum count of pending spans. Rounded up to a power of two, except when the
+   * type is {@link Type#BLOCKING}.
+   */
+  public static SpanQueue create(Type type, int capacity) {
+    checkArgument(type != Type.BOUNDED, "use the overload which accepts overflow settings");
+    return create(type, capacity, 0, OverflowPolicy.DROP_NEWEST, 0, null);
+  }
+
+  /**
+   * Returns a queue of the given type.
+   *
+   * @param capacity maximum count of pending spans. Rounded up to a power of two, except when the
+   * type is {@link Type#BLOCKING} or {@link Type#BOUNDED}.
+   * @param maxBytes only used by {@link Type#BOUNDED}. See {@link #bounded}
+   * @param overflowPolicy only used by {@link Type#BOUNDED}. See {@link #bounded}
+   * @param overflowTimeout only used by {@link Type#BOUNDED}. See {@link #bounded}
+   * @param metrics only used by {@link Type#BOUNDED}. See {@link #bounded}
+   */
+  public static SpanQueue create(Type type, int capacity, int maxBytes,
+      OverflowPolicy overflowPolicy, long overflowTimeout, SpanCollectorMetricsHandler metrics) {
+    checkNotNull(type, "type");
+    switch (type) {
+      case BLOCKING:
+        return blocking(capacity);
+      case RING:
+        return ring(capacity);
+      case STRIPED:
+        return striped(capacity, Runtime.getRuntime().availableProcessors());
+      case BOUNDED:
+        return bounded(capacity, maxBytes, overflowPolicy, overflowTimeout, metrics);
+      default:
+        throw new AssertionError("SpanQueue.Type " + type + " was added, but not handled");
+    }
+  }
+
+  /** Returns a lock-based queue which holds at most {@code capacity} spans. */
+  public static SpanQueue blocking(int capacity) {
+    checkArgument(capacity > 0, "capacity should be positive: was %s", capacity);
+    return new BlockingSpanQueue(capacity);
+  }
+
+  /** Returns a lock-free queue which holds at most {@code capacity} spans, rounded to a power of two. */
+  public static SpanQueue ring(int capacity) {
+    checkArgument(capacity > 0, "capacity should be positive: was %s", capacity);
+    return new RingSpanQueue(capacity);
+  }
+
+  /**
+   * Returns a queue which spreads producer threads across {@code stripes} lock-free rings, each
+   * holding an equal share of {@code capacity}.
+   *
+   * <p>Order is only preserved among spans offered by the same thread.
+   */
+  public static SpanQueue striped(int capacity, int stripes) {
+    checkArgument(capacity > 0, "capacity should be positive: was %s", capacity);
+    checkArgument(stripes > 0, "stripes should be positive: was %s", stripes);
+    return new StripedSpanQueue(capacity, stripes);
+  }
+
+  /**
+   * Returns a lock-based queue bounded by both count and the {@link SpanCodec#sizeInBytes estimated
+   * encoded size} of pending spans.
+   *
+   * <p>Dropped spans are reported to {@link OverflowMetricsHandler#incrementOverflowedSpans} by
+   * policy, if the handler implements it. Spans evicted by {@link OverflowPolicy#DROP_OLDEST} are
+   * also reported to {@link SpanCollectorMetricsHandler#incrementDroppedSpans}, as the caller can't
+   * see them.
+   *
+   * @param maxSpans maximum count of pending spans
+   * @param maxBytes maximum estimated encoded size of pending spans. 0 implies no limit.
+   * @param overflowPolicy what to do when there isn't room for a span
+   * @param overflowTimeout milliseconds to wait for room, when the policy is {@link
+   * OverflowPolicy#BLOCK}
+   * @param metrics notified when spans are dropped due to overflow
+   */
+  public static SpanQueue bounded(int maxSpans, int maxBytes, OverflowPolicy overflowPolicy,
+      long overflowTimeout, SpanCollectorMetricsHandler metrics) {
+    checkArgument(maxSpans > 0, "maxSpans should be positive: was %s", maxSpans);
+    checkArgument(maxBytes >= 0, "maxBytes should not be negative: was %s", maxBytes);
+    checkArgument(overflowTimeout >= 0, "overflowTimeout should not be negative: was %s",
+        overflowTimeout);
+    checkNotNull(overflowPolicy, "overflowPolicy");
+    checkNotNull(metrics, "metrics");
+    return new BoundedSpanQueue(SpanCodec.JSON, metrics, maxSpans, maxBytes, overflowPolicy,
+        overflowTimeout);
+  }
+
+  /** Returns false if the span was dropped because the queue was full. */
+  public abstract boolean offer(Span span);
+
+  /**
+   * Like {@link #offer(Span)}, except the caller already knows the span's {@link
+   * SpanCodec#JSON json} size, or -1 if it doesn't. This avoids estimating the size twice.
+   */
+  boolean offer(Span span, int sizeInBytes) {
+    return offer(span);
+  }
+
+  /**
+   * Moves pending spans into the sink, returning how many were moved. Spans offered concurrently
+   * with this call may be left for the next drain.
+   */
+  public abstract int drainTo(Collection<? super Span> sink);
+
+  /** Returns an estimate of the count of pending spans. */
+  public abstract int size();
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  static int roundToPowerOfTwo(int value) {
+    checkArgument(value <= 1 << 30, "value should be at most 2^30: was %s", value);
+    return value == 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+  }
+}
@@ -0,0 +1,321 @@
+package me.j360.trace.collector.core;
+
+import me.j360.trace.collector.core.internal.Nullable;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import static me.j360.trace.collector.core.internal.Util.checkArgument;
+import static me.j360.trace.collector.core.internal.Util.checkNotNull;
+
+/**
+ * Keeps encoded batches of spans on local disk while the transport is failing, so that they can be
+ * sent once it recovers, without holding them on the heap.
+ *
+ * <p>Batches are appended to memory-mapped segment files in a directory. Each record holds the
+ * encoded spans, their count, an optional routing key and the time it was spooled. Records are
+ * {@link #peek() read} oldest first, and marked as sent in place when {@link #remove removed}, so
+ * that reopening the directory, for example after a restart, only replays what wasn't sent.
+ * Segments are deleted once all of their records are sent.
+ *
+ * <p>When appending would exceed {@code maxBytes} of segment files, the oldest segment is deleted,
+ * and its unsent spans reported as dropped. Likewise, records older than {@code maxAge} are dropped
+ * instead of replayed.
+ */
+public final class SpanSpool implements Flushable {
+  static final String SUFFIX = ".spool";
+  /** Maximum size of a segment file. Larger records get a segment of their own size. */
+  static final int SEGMENT_BYTES = 4 * 1024 * 1024;
+  /** length, span count, timestamp and key length. A negative length means the record was sent. */
+  static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+  /**
+   * @param directory where segment files are kept. Created if it doesn't exist. Only one spool
+   * should use a directory at a time.
+   * @param maxBytes maximum total size of segment files.
+   * @param maxAge milliseconds after which an unsent record is dropped. 0 implies no limit.
+   */
+  public static SpanSpool open(File directory, long maxBytes, long maxAge,
+      SpanCollectorMetricsHandler metrics) throws IOException {
+    return new SpanSpool(directory, maxBytes, maxAge, SEGMENT_BYTES, metrics);
+  }
+
+  /**
+   * Like {@link #open}, except returns null when the directory is null, which is how collector
+   * configs disable spooling.
+   *
+   * @throws IllegalStateException if the directory couldn't be opened
+   */
+  @Nullable public static SpanSpool create(@Nullable File directory, long maxBytes, long maxAge,
+      SpanCollectorMetricsHandler metrics) {
+    if (directory == null) return null;
+    try {
+      return open(directory, maxBytes, maxAge, metrics);
+    } catch (IOException e) {
+      throw new IllegalStateException("couldn't open spool in " + directory, e);
+    }
+  }
+
+  /** A batch read from the spool. Pass it to {@link #remove} once it was sent. */
+  public static final class Record {
+    public final byte[] bytes;
+    public final int spanCount;
+    @Nullable public final byte[] key;
+    final Segment segment;
+    final int position;
+
+    Record(byte[] bytes, int spanCount, @Nullable byte[] key, Segment segment, int position) {
+      this.bytes = bytes;
+      this.spanCount = spanCount;
+      this.key = key;
+      this.segment = segment;
+      this.position = position;
+    }
+  }
+
+  static final class Segment {
+    final File file;
+    final MappedByteBuffer map;
+    final long sequence;
+    int readPosition;
+    int writePosition;
+    int unsentSpans;
+
+    Segment(File file, MappedByteBuffer map, long sequence) {
+      this.file = file;
+      this.map = map;
+      this.sequence = sequence;
+    }
+
+    /** Returns the length field at the position, or 0 if there's no complete record there. */
+    int lengthAt(int position) {
+      if (position + HEADER_SIZE > map.capacity()) return 0;
+      int length = map.getInt(position);
+      if (position + HEADER_SIZE + Math.abs(length) > map.capacity()) return 0; // torn write
+      return length;
+    }
+  }
+
+  final File directory;
+  final long maxBytes;
+  final long maxAge;
+  final int segmentBytes;
+  final SpanCollectorMetricsHandler metrics;
+  final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+  long totalBytes;
+  long nextSequence;
+  int unsentSpans;
+
+  SpanSpool(File directory, long maxBytes, long maxAge, int segmentBytes,
+      SpanCollectorMetricsHandler metrics) throws IOException {
+    this.directory = checkNotNull(directory, "directory");
+    checkArgument(maxBytes > 0, "maxBytes should be positive: was %s", maxBytes);
+    checkArgument(maxAge >= 0, "maxAge should not be negative: was %s", maxAge);
+    this.maxBytes = maxBytes;
+    this.maxAge = maxAge;
+    // at most a quarter of the limit, so that eviction drops a fraction of what's spooled
+    this.segmentBytes = (int) Math.max(1, Math.min(segmentBytes, maxBytes / 4));
+    this.metrics = checkNotNull(metrics, "metrics");
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("couldn't create " + directory);
+    }
+    recover();
+  }
+
+  /** Reopens segments left by a previous spool in this directory, oldest first. */
+  void recover() throws IOException {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override public boolean accept(File dir, String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    if (files == null) throw new IOException("couldn't list " + directory);
+    long[] sequences = new long[files.length];
+    int count = 0;
+    for (File file : files) {
+      try {
+        sequences[count++] = Long.parseLong(
+            file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+      } catch (NumberFormatException e) {
+        count--; // not ours
+      }
+    }
+    Arrays.sort(sequences, 0, count);
+    for (int i = 0; i < count; i++) {
+      File file = segmentFile(sequences[i]);
+      Segment segment = new Segment(file, map(file, file.length()), sequences[i]);
+      scan(segment);
+      segments.add(segment);
+      totalBytes += segment.map.capacity();
+      unsentSpans += segment.unsentSpans;
+      nextSequence = sequences[i] + 1;
+    }
+    // delete fully sent segments, but keep the last, so that appends can continue in it
+    while (segments.size() > 1 && segments.peekFirst().unsentSpans == 0) {
+      Segment sent = segments.removeFirst();
+      totalBytes -= sent.map.capacity();
+      delete(sent);
+    }
+  }
+
+  static void scan(Segment segment) {
+    boolean sawUnsent = false;
+    int position = 0;
+    for (int length; (length = segment.lengthAt(position)) != 0; ) {
+      if (length > 0) {
+        segment.unsentSpans += segment.map.getInt(position + 4);
+        sawUnsent = true;
+      } else if (!sawUnsent) {
+        segment.readPosition = position + HEADER_SIZE - length;
+      }
+      position += HEADER_SIZE + Math.abs(length);
+    }
+    segment.writePosition = position;
+  }
+
+  /**
+   * Appends a batch of encoded spans, deleting the oldest segments if needed to stay under the size
+   * limit. Returns false if the batch is larger than the limit, or couldn't be written.
+   */
+  public synchronized boolean append(byte[] buffer, int offset, int length, int spanCount,
+      @Nullable byte[] key) {
+    int keyLength = key != null ? key.length : 0;
+    int recordSize = HEADER_SIZE + keyLength + length;
+    Segment tail = segments.peekLast();
+    if (tail == null || tail.writePosition + recordSize > tail.map.capacity()) {
+      try {
+        tail = newSegment(Math.max(segmentBytes, recordSize));
+      } catch (IOException e) {
+        return false;
+      }
+      if (tail == null) return false;
+    }
+    MappedByteBuffer map = tail.map;
+    int position = tail.writePosition;
+    map.putInt(position + 4, spanCount);
+    map.putLong(position + 8, System.currentTimeMillis());
+    map.putInt(position + 16, keyLength);
+    map.position(position + HEADER_SIZE);
+    if (key != null) map.put(key);
+    map.put(buffer, offset, length);
+    map.putInt(position, keyLength + length); // last, so that a torn record reads as the end
+    tail.writePosition += recordSize;
+    tail.unsentSpans += spanCount;
+    unsentSpans += spanCount;
+    return true;
+  }
+
+  /** Returns the oldest unsent record, or null if there are none. Skips expired records. */
+  @Nullable public synchronized Record peek() {
+    long expiredBefore = maxAge == 0 ? Long.MIN_VALUE : System.currentTimeMillis() - maxAge;
+    for (Iterator<Segment> i = segments.iterator(); i.hasNext(); ) {
+      Segment segment = i.next();
+      for (int length; (length = segment.lengthAt(segment.readPosition)) != 0; ) {
+        int position = segment.readPosition;
+        if (length < 0) { // removed out of order
+          segment.readPosition += HEADER_SIZE - length;
+          continue;
+        }
+        MappedByteBuffer map = segment.map;
+        int spanCount = map.getInt(position + 4);
+        if (map.getLong(position + 8) < expiredBefore) {
+          markSent(segment, position);
+          metrics.incrementDroppedSpans(spanCount);
+          continue;
+        }
+        int keyLength = map.getInt(position + 16);
+        byte[] key = keyLength == 0 ? null : new byte[keyLength];
+        byte[] bytes = new byte[length - keyLength];
+        map.position(position + HEADER_SIZE);
+        if (key != null) map.get(key);
+        map.get(bytes);
+        return new Record(bytes, spanCount, key, segment, position);
+      }
+      if (segment != segments.peekLast()) { // there's nothing left to read in this one
+        i.remove();
+        totalBytes -= segment.map.capacity();
+        delete(segment);
+      }
+    }
+    return null;
+  }
+
+  /** Marks a record returned by {@link #peek} as sent. */
+  public synchronized void remove(Record record) {
+    Segment segment = record.segment;
+    if (!segments.contains(segment)) return; // evicted meanwhile
+    if (segment.map.getInt(record.position) < 0) return; // already removed
+    markSent(segment, record.position);
+  }
+
+  void markSent(Segment segment, int position) {
+    MappedByteBuffer map = segment.map;
+    int length = map.getInt(position);
+    int spanCount = map.getInt(position + 4);
+    map.putInt(position, -length);
+    segment.unsentSpans -= spanCount;
+    unsentSpans -= spanCount;
+    if (segment.readPosition == position) segment.readPosition += HEADER_SIZE + length;
+  }
+
+  /** Returns true if there are no unsent spans. */
+  public synchronized boolean isEmpty() {
+    return unsentSpans == 0;
+  }
+
+  /** Count of spans not yet sent. */
+  public synchronized int spanCount() {
+    return unsentSpans;
+  }
+
+  /** Writes spooled records to the storage device, for example before the process exits. */
+  @Override
+  public synchronized void flush() {
+    for (Segment segment : segments) {
+      segment.map.force();
+    }
+  }
+
+  @Nullable Segment newSegment(int size) throws IOException {
+    if (size > maxBytes) return null;
+    while (totalBytes + size > maxBytes) {
+      Segment evicted = segments.removeFirst();
+      totalBytes -= evicted.map.capacity();
+      unsentSpans -= evicted.unsentSpans;
+      if (evicted.unsentSpans > 0) metrics.incrementDroppedSpans(evicted.unsentSpans);
+      delete(evicted);
+    }
+    long sequence = nextSequence++;
+    File file = segmentFile(sequence);
+    Segment segment = new Segment(file, map(file, size), sequence);
+    segments.add(segment);
+    totalBytes += size;
+    return segment;
+  }
+
+  File segmentFile(long sequence) {
+    return new File(directory, String.format("%019d", sequence) + SUFFIX);
+  }
+
+  /** Maps the file, extending it with zeros if it is shorter than {@code size}. */
+  static MappedByteBuffer map(File file, long size) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      if (raf.length() < size) raf.setLength(size);
+      // the mapping stays valid after the channel is closed
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  /** The mapping is released when garbage collected, as there's no api to unmap it sooner. */
+  static void delete(Segment segment) {
+    segment.file.delete();
+  }
+}
@@ -0,0 +1,55 @@
+package me.j360.trace.collector.core;
+
+import me.j360.trace.collector.core.module.Span;
+
+import java.util.Collection;
+
+/**
+ * Spreads producer threads across several {@link RingSpanQueue rings}, so that threads on different
+ * cores rarely contend on the same producer index.
+ *
+ * <p>A thread always offers into the same stripe, so spans from one thread stay in order. A stripe
+ * that is full drops spans even if other stripes have room.
+ */
+final class StripedSpanQueue extends SpanQueue {
+  final RingSpanQueue[] stripes;
+  final int mask;
+
+  StripedSpanQueue(int capacity, int stripes) {
+    int stripeCount = roundToPowerOfTwo(stripes);
+    int stripeCapacity = Math.max(1, roundToPowerOfTwo(capacity) / stripeCount);
+    this.stripes = new RingSpanQueue[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      this.stripes[i] = new RingSpanQueue(stripeCapacity);
+    }
+    this.mask = stripeCount - 1;
+  }
+
+  @Override
+  public boolean offer(Span span) {
+    return stripes[(int) Thread.currentThread().getId() & mask].offer(span);
+  }
+
+  @Override
+  public int drainTo(Collection<? super Span> sink) {
+    int drained = 0;
+    for (RingSpanQueue stripe : stripes) {
+      drained += stripe.drainTo(sink);
+    }
+    return drained;
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (RingSpanQueue stripe : stripes) {
+      size += stripe.size();
+    }
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    return "StripedSpanQueue(" + stripes.length + "x" + stripes[0].capacity + ")";
+  }
+}
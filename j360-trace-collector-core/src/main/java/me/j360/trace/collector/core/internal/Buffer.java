@@ -0,0 +1,321 @@
+package me.j360.trace.collector.core.internal;
+
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer which spans are encoded into. Unlike the fixed-size buffer in zipkin's
+ * codec, this is meant to be reset and reused across batches, so that steady-state encoding doesn't
+ * allocate.
+ *
+ * <p>Not thread-safe.
+ */
+public final class Buffer {
+  private byte[] buf;
+  private int pos;
+
+  public Buffer(int initialCapacity) {
+    buf = new byte[Math.max(initialCapacity, 16)];
+  }
+
+  /** The backing array, which is valid from index 0 until {@link #size()}. */
+  public byte[] array() {
+    return buf;
+  }
+
+  /** Count of bytes written since the last {@link #reset()}. */
+  public int size() {
+    return pos;
+  }
+
+  /** Length of the backing array. */
+  public int capacity() {
+    return buf.length;
+  }
+
+  /** Discards written bytes, retaining the backing array. */
+  public Buffer reset() {
+    pos = 0;
+    return this;
+  }
+
+  /** Returns a copy of the bytes written. */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buf, pos);
+  }
+
+  void require(int byteCount) {
+    int needed = pos + byteCount;
+    if (needed <= buf.length) return;
+    buf = Arrays.copyOf(buf, Math.max(needed, buf.length << 1));
+  }
+
+  Buffer writeByte(int v) {
+    require(1);
+    buf[pos++] = (byte) v;
+    return this;
+  }
+
+  Buffer write(byte[] v) {
+    require(v.length);
+    System.arraycopy(v, 0, buf, pos, v.length);
+    pos += v.length;
+    return this;
+  }
+
+  Buffer writeAscii(String v) {
+    int length = v.length();
+    require(length);
+    for (int i = 0; i < length; i++) {
+      buf[pos++] = (byte) v.charAt(i);
+    }
+    return this;
+  }
+
+  /** Writes the string as UTF-8, without allocating an intermediate byte array. */
+  Buffer writeUtf8(String v) {
+    for (int i = 0, length = v.length(); i < length; i++) {
+      char c = v.charAt(i);
+      if (c < 0x80) {
+        writeByte(c);
+      } else if (c < 0x800) {
+        require(2);
+        buf[pos++] = (byte) (0xc0 | (c >> 6));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(v.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, v.charAt(++i));
+        require(4);
+        buf[pos++] = (byte) (0xf0 | (codePoint >> 18));
+        buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        writeByte('?'); // malformed, same as String.getBytes
+      } else {
+        require(3);
+        buf[pos++] = (byte) (0xe0 | (c >> 12));
+        buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    return this;
+  }
+
+  static int utf8SizeInBytes(String v) {
+    int sizeInBytes = 0;
+    for (int i = 0, length = v.length(); i < length; i++) {
+      char c = v.charAt(i);
+      if (c < 0x80) {
+        sizeInBytes++;
+      } else if (c < 0x800) {
+        sizeInBytes += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(v.charAt(i + 1))) {
+        sizeInBytes += 4;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        sizeInBytes++;
+      } else {
+        sizeInBytes += 3;
+      }
+    }
+    return sizeInBytes;
+  }
+
+  /*
+   * Same escaping as zipkin's json codec: quotation mark, reverse solidus, the control characters
+   * (U+0000 through U+001F) and U+2028 and U+2029, which JavaScript interprets as newlines.
+   */
+  private static final String[] REPLACEMENT_CHARS;
+
+  static {
+    REPLACEMENT_CHARS = new String[128];
+    for (int i = 0; i <= 0x1f; i++) {
+      REPLACEMENT_CHARS[i] = String.format("\\u%04x", i);
+    }
+    REPLACEMENT_CHARS['"'] = "\\\"";
+    REPLACEMENT_CHARS['\\'] = "\\\\";
+    REPLACEMENT_CHARS['\t'] = "\\t";
+    REPLACEMENT_CHARS['\b'] = "\\b";
+    REPLACEMENT_CHARS['\n'] = "\\n";
+    REPLACEMENT_CHARS['\r'] = "\\r";
+    REPLACEMENT_CHARS['\f'] = "\\f";
+  }
+
+  private static final String U2028 = "\\u2028";
+  private static final String U2029 = "\\u2029";
+
+  /** Writes the string as escaped UTF-8. */
+  Buffer writeJsonEscaped(String v) {
+    int afterReplacement = 0;
+    int length = v.length();
+    for (int i = 0; i < length; i++) {
+      char c = v.charAt(i);
+      String replacement;
+      if (c < 0x80) {
+        replacement = REPLACEMENT_CHARS[c];
+        if (replacement == null) continue;
+      } else if (c == '\u2028') {
+        replacement = U2028;
+      } else if (c == '\u2029') {
+        replacement = U2029;
+      } else {
+        continue;
+      }
+      if (afterReplacement < i) writeUtf8(v, afterReplacement, i);
+      writeAscii(replacement);
+      afterReplacement = i + 1;
+    }
+    if (afterReplacement == 0) return writeUtf8(v);
+    if (afterReplacement < length) writeUtf8(v, afterReplacement, length);
+    return this;
+  }
+
+  private void writeUtf8(String v, int beginIndex, int endIndex) {
+    // substrings only happen when escaping, which is rare
+    writeUtf8(v.substring(beginIndex, endIndex));
+  }
+
+  /** Writes already UTF-8 encoded bytes, escaping only if needed. */
+  Buffer writeJsonEscaped(byte[] v) {
+    return needsJsonEscaping(v) ? writeJsonEscaped(new String(v, Util.UTF_8)) : write(v);
+  }
+
+  static int jsonEscapedSizeInBytes(String v) {
+    int escapingOverhead = 0;
+    for (int i = 0, length = v.length(); i < length; i++) {
+      char c = v.charAt(i);
+      if (c == '\u2028' || c == '\u2029') {
+        escapingOverhead += 3; // 6 escaped characters instead of 3 bytes of UTF-8
+      } else if (c < 0x80) {
+        String maybeReplacement = REPLACEMENT_CHARS[c];
+        if (maybeReplacement != null) escapingOverhead += maybeReplacement.length() - 1;
+      }
+    }
+    return utf8SizeInBytes(v) + escapingOverhead;
+  }
+
+  static int jsonEscapedSizeInBytes(byte[] v) {
+    return needsJsonEscaping(v) ? jsonEscapedSizeInBytes(new String(v, Util.UTF_8)) : v.length;
+  }
+
+  static boolean needsJsonEscaping(byte[] v) {
+    for (int i = 0; i < v.length; i++) {
+      int current = v[i] & 0xFF;
+      if (i >= 2
+          // Is this the end of a u2028 or u2029 UTF-8 codepoint?
+          && (current == 0xA8 || current == 0xA9)
+          && (v[i - 1] & 0xFF) == 0x80
+          && (v[i - 2] & 0xFF) == 0xE2) {
+        return true;
+      } else if (current < 0x80 && REPLACEMENT_CHARS[current] != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static final byte[] HEX_DIGITS =
+      {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+  /** Writes 16 lower-hex characters, zero-padded. */
+  Buffer writeLowerHex(long v) {
+    require(16);
+    for (int shift = 60; shift >= 0; shift -= 4) {
+      buf[pos++] = HEX_DIGITS[(int) ((v >>> shift) & 0xf)];
+    }
+    return this;
+  }
+
+  /** Binary search for character width which favors matching lower numbers. */
+  static int asciiSizeInBytes(long v) {
+    if (v == 0) return 1;
+    if (v == Long.MIN_VALUE) return 20;
+
+    boolean negative = false;
+    if (v < 0) {
+      v = -v; // making this positive allows us to compare using less-than
+      negative = true;
+    }
+    int width =
+        v < 100000000L
+            ? v < 10000L
+            ? v < 100L
+            ? v < 10L ? 1 : 2
+            : v < 1000L ? 3 : 4
+            : v < 1000000L
+                ? v < 100000L ? 5 : 6
+                : v < 10000000L ? 7 : 8
+            : v < 1000000000000L
+                ? v < 10000000000L
+                ? v < 1000000000L ? 9 : 10
+                : v < 100000000000L ? 11 : 12
+                : v < 1000000000000000L
+                    ? v < 10000000000000L ? 13
+                    : v < 100000000000000L ? 14 : 15
+                    : v < 100000000000000000L
+                        ? v < 10000000000000000L ? 16 : 17
+                        : v < 1000000000000000000L ? 18 : 19;
+    return negative ? width + 1 : width; // conditionally add room for negative sign
+  }
+
+  Buffer writeAscii(long v) {
+    if (v == 0) return writeByte('0');
+    if (v == Long.MIN_VALUE) return writeAscii("-9223372036854775808");
+
+    int width = asciiSizeInBytes(v);
+    require(width);
+    int pos = this.pos += width; // We write backwards from right to left.
+
+    boolean negative = false;
+    if (v < 0) {
+      negative = true;
+      v = -v; // needs to be positive so we can use this for an array index
+    }
+    while (v != 0) {
+      int digit = (int) (v % 10);
+      buf[--pos] = HEX_DIGITS[digit];
+      v /= 10;
+    }
+    if (negative) buf[--pos] = '-';
+    return this;
+  }
+
+  static final byte[] URL_MAP = new byte[] {
+      'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P', 'Q', 'R', 'S',
+      'T', 'U', 'V', 'W', 'X', 'Y', 'Z', 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l',
+      'm', 'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z', '0', '1', '2', '3', '4',
+      '5', '6', '7', '8', '9', '-', '_'
+  };
+
+  static int base64UrlSizeInBytes(byte[] in) {
+    return (in.length + 2) / 3 * 4;
+  }
+
+  /** Adapted from okio.Base64 as JRE 6 doesn't have a base64Url encoder */
+  Buffer writeBase64Url(byte[] in) {
+    require(base64UrlSizeInBytes(in));
+    int end = in.length - in.length % 3;
+    for (int i = 0; i < end; i += 3) {
+      buf[pos++] = URL_MAP[(in[i] & 0xff) >> 2];
+      buf[pos++] = URL_MAP[((in[i] & 0x03) << 4) | ((in[i + 1] & 0xff) >> 4)];
+      buf[pos++] = URL_MAP[((in[i + 1] & 0x0f) << 2) | ((in[i + 2] & 0xff) >> 6)];
+      buf[pos++] = URL_MAP[(in[i + 2] & 0x3f)];
+    }
+    switch (in.length % 3) {
+      case 1:
+        buf[pos++] = URL_MAP[(in[end] & 0xff) >> 2];
+        buf[pos++] = URL_MAP[(in[end] & 0x03) << 4];
+        buf[pos++] = '=';
+        buf[pos++] = '=';
+        break;
+      case 2:
+        buf[pos++] = URL_MAP[(in[end] & 0xff) >> 2];
+        buf[pos++] = URL_MAP[((in[end] & 0x03) << 4) | ((in[end + 1] & 0xff) >> 4)];
+        buf[pos++] = URL_MAP[((in[end + 1] & 0x0f) << 2)];
+        buf[pos++] = '=';
+        break;
+    }
+    return this;
+  }
+}
@@ -3,9 +3,9 @@ package me.j360.trace.collector.core.internal;
 import me.j360.trace.collector.core.module.*;
 import me.j360.trace.core.Codec;
 
-import java.util.ArrayList;
 import java.util.List;
 
+/** Writes spans directly as json, and reads them with zipkin's codec. */
 public final class DefaultSpanCodec implements SpanCodec {
   public static final SpanCodec JSON = new DefaultSpanCodec(Codec.JSON);
 
@@ -15,18 +15,33 @@ public final class DefaultSpanCodec implements SpanCodec {
     this.codec = codec;
   }
 
+  @Override
+  public int sizeInBytes(Span span) {
+    return JsonSpanWriter.sizeInBytes(span);
+  }
+
   @Override
   public byte[] writeSpan(Span span) {
-    return codec.writeSpan(span.toZipkin());
+    Buffer b = new Buffer(JsonSpanWriter.sizeInBytes(span));
+    JsonSpanWriter.write(span, b);
+    return toByteArray(b);
   }
 
   @Override
   public byte[] writeSpans(List<Span> spans) {
-    List<me.j360.trace.core.Span> out = new ArrayList<me.j360.trace.core.Span>(spans.size());
-    for (Span span : spans) {
-      out.add(span.toZipkin());
-    }
-    return codec.writeSpans(out);
+    Buffer b = new Buffer(JsonSpanWriter.sizeInBytes(spans));
+    JsonSpanWriter.write(spans, b);
+    return toByteArray(b);
+  }
+
+  /** Avoids a copy when the buffer was sized exactly, which it isn't below its minimum capacity. */
+  static byte[] toByteArray(Buffer b) {
+    return b.size() == b.capacity() ? b.array() : b.toByteArray();
+  }
+
+  @Override
+  public void writeSpans(List<Span> spans, Buffer buffer) {
+    JsonSpanWriter.write(spans, buffer);
   }
 
   @Override
@@ -0,0 +1,316 @@
+package me.j360.trace.collector.core.internal;
+
+import me.j360.trace.collector.core.module.Annotation;
+import me.j360.trace.collector.core.module.AnnotationType;
+import me.j360.trace.collector.core.module.BinaryAnnotation;
+import me.j360.trace.collector.core.module.Endpoint;
+import me.j360.trace.collector.core.module.Span;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static me.j360.trace.collector.core.internal.Buffer.asciiSizeInBytes;
+import static me.j360.trace.collector.core.internal.Buffer.base64UrlSizeInBytes;
+import static me.j360.trace.collector.core.internal.Buffer.jsonEscapedSizeInBytes;
+
+/**
+ * Writes {@link Span} directly as zipkin v1 json, producing the same bytes as converting it with
+ * {@link Span#toZipkin()} and writing that with {@link me.j360.trace.core.Codec#JSON}.
+ *
+ * <p>Skipping the conversion avoids allocating zipkin's immutable model, its sorted copies, and a
+ * right-sized array per batch. Like the conversion, annotations are written sorted by timestamp
+ * and value, binary annotations by key, and duplicates are skipped. Lists are only copied when
+ * not already sorted, which is rare as spans record annotations in order.
+ */
+final class JsonSpanWriter {
+
+  static int sizeInBytes(List<Span> spans) {
+    int sizeInBytes = 2; // brackets
+    if (spans.size() > 1) sizeInBytes += spans.size() - 1; // comma to join elements
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      sizeInBytes += sizeInBytes(spans.get(i));
+    }
+    return sizeInBytes;
+  }
+
+  static void write(List<Span> spans, Buffer b) {
+    b.writeByte('[');
+    for (int i = 0, length = spans.size(); i < length; ) {
+      write(spans.get(i++), b);
+      if (i < length) b.writeByte(',');
+    }
+    b.writeByte(']');
+  }
+
+  static int sizeInBytes(Span value) {
+    int sizeInBytes = 0;
+    sizeInBytes += "{\"traceId\":\"".length() + 16; // fixed-width hex
+    sizeInBytes += "\",\"id\":\"".length() + 16;
+    sizeInBytes += "\",\"name\":\"".length() + jsonEscapedSizeInBytes(name(value)) + 1;
+    if (value.getParent_id() != null) {
+      sizeInBytes += ",\"parentId\":\"".length() + 16 + 1;
+    }
+    if (value.getTimestamp() != null) {
+      sizeInBytes += ",\"timestamp\":".length() + asciiSizeInBytes(value.getTimestamp());
+    }
+    if (value.getDuration() != null) {
+      sizeInBytes += ",\"duration\":".length() + asciiSizeInBytes(value.getDuration());
+    }
+    List<Annotation> annotations = sortedAnnotations(value.getAnnotations());
+    if (!annotations.isEmpty()) {
+      sizeInBytes += ",\"annotations\":[]".length();
+      Annotation last = null;
+      for (int i = 0, length = annotations.size(); i < length; i++) {
+        Annotation a = annotations.get(i);
+        if (a.equals(last)) continue;
+        if (last != null) sizeInBytes++; // comma
+        sizeInBytes += sizeInBytes(a);
+        last = a;
+      }
+    }
+    List<BinaryAnnotation> binaryAnnotations =
+        sortedBinaryAnnotations(value.getBinary_annotations());
+    if (!binaryAnnotations.isEmpty()) {
+      sizeInBytes += ",\"binaryAnnotations\":[]".length();
+      BinaryAnnotation last = null;
+      for (int i = 0, length = binaryAnnotations.size(); i < length; i++) {
+        BinaryAnnotation a = binaryAnnotations.get(i);
+        if (a.equals(last)) continue;
+        if (last != null) sizeInBytes++; // comma
+        sizeInBytes += sizeInBytes(a);
+        last = a;
+      }
+    }
+    if (Boolean.TRUE.equals(value.isDebug())) {
+      sizeInBytes += ",\"debug\":true".length();
+    }
+    return ++sizeInBytes; // end curly-brace
+  }
+
+  static void write(Span value, Buffer b) {
+    b.writeAscii("{\"traceId\":\"").writeLowerHex(value.getTrace_id());
+    b.writeAscii("\",\"id\":\"").writeLowerHex(value.getId());
+    b.writeAscii("\",\"name\":\"").writeJsonEscaped(name(value)).writeByte('"');
+    if (value.getParent_id() != null) {
+      b.writeAscii(",\"parentId\":\"").writeLowerHex(value.getParent_id()).writeByte('"');
+    }
+    if (value.getTimestamp() != null) {
+      b.writeAscii(",\"timestamp\":").writeAscii(value.getTimestamp());
+    }
+    if (value.getDuration() != null) {
+      b.writeAscii(",\"duration\":").writeAscii(value.getDuration());
+    }
+    List<Annotation> annotations = sortedAnnotations(value.getAnnotations());
+    if (!annotations.isEmpty()) {
+      b.writeAscii(",\"annotations\":[");
+      Annotation last = null;
+      for (int i = 0, length = annotations.size(); i < length; i++) {
+        Annotation a = annotations.get(i);
+        if (a.equals(last)) continue;
+        if (last != null) b.writeByte(',');
+        write(a, b);
+        last = a;
+      }
+      b.writeByte(']');
+    }
+    List<BinaryAnnotation> binaryAnnotations =
+        sortedBinaryAnnotations(value.getBinary_annotations());
+    if (!binaryAnnotations.isEmpty()) {
+      b.writeAscii(",\"binaryAnnotations\":[");
+      BinaryAnnotation last = null;
+      for (int i = 0, length = binaryAnnotations.size(); i < length; i++) {
+        BinaryAnnotation a = binaryAnnotations.get(i);
+        if (a.equals(last)) continue;
+        if (last != null) b.writeByte(',');
+        write(a, b);
+        last = a;
+      }
+      b.writeByte(']');
+    }
+    if (Boolean.TRUE.equals(value.isDebug())) {
+      b.writeAscii(",\"debug\":true");
+    }
+    b.writeByte('}');
+  }
+
+  static int sizeInBytes(Annotation value) {
+    int sizeInBytes = 0;
+    sizeInBytes += "{\"timestamp\":".length() + asciiSizeInBytes(value.timestamp);
+    sizeInBytes += ",\"value\":\"".length() + jsonEscapedSizeInBytes(value.value) + 1;
+    if (value.host != null) sizeInBytes += sizeInBytes(value.host);
+    return ++sizeInBytes; // end curly-brace
+  }
+
+  static void write(Annotation value, Buffer b) {
+    b.writeAscii("{\"timestamp\":").writeAscii(value.timestamp);
+    b.writeAscii(",\"value\":\"").writeJsonEscaped(value.value).writeByte('"');
+    if (value.host != null) write(value.host, b);
+    b.writeByte('}');
+  }
+
+  static int sizeInBytes(BinaryAnnotation value) {
+    int sizeInBytes = 0;
+    sizeInBytes += "{\"key\":\"".length() + jsonEscapedSizeInBytes(value.key);
+    sizeInBytes += "\",\"value\":".length();
+    switch (value.type) {
+      case BOOL:
+        sizeInBytes += value.value[0] == 1 ? 4 : 5; // true or false
+        break;
+      case STRING:
+        sizeInBytes += jsonEscapedSizeInBytes(value.value) + 2; // for quotes
+        break;
+      case BYTES:
+        sizeInBytes += base64UrlSizeInBytes(value.value) + 2; // for quotes
+        break;
+      case I16:
+        sizeInBytes += asciiSizeInBytes(readShort(value.value));
+        break;
+      case I32:
+        sizeInBytes += asciiSizeInBytes(readInt(value.value));
+        break;
+      case I64:
+        sizeInBytes += asciiSizeInBytes(readLong(value.value));
+        break;
+      case DOUBLE:
+        sizeInBytes += Double.toString(Double.longBitsToDouble(readLong(value.value))).length();
+        break;
+      default:
+    }
+    if (value.type != AnnotationType.STRING && value.type != AnnotationType.BOOL) {
+      sizeInBytes += ",\"type\":\"".length() + value.type.name().length() + 1;
+    }
+    if (value.host != null) sizeInBytes += sizeInBytes(value.host);
+    return ++sizeInBytes; // end curly-brace
+  }
+
+  static void write(BinaryAnnotation value, Buffer b) {
+    b.writeAscii("{\"key\":\"").writeJsonEscaped(value.key);
+    b.writeAscii("\",\"value\":");
+    switch (value.type) {
+      case BOOL:
+        b.writeAscii(value.value[0] == 1 ? "true" : "false");
+        break;
+      case STRING:
+        b.writeByte('"').writeJsonEscaped(value.value).writeByte('"');
+        break;
+      case BYTES:
+        b.writeByte('"').writeBase64Url(value.value).writeByte('"');
+        break;
+      case I16:
+        b.writeAscii(readShort(value.value));
+        break;
+      case I32:
+        b.writeAscii(readInt(value.value));
+        break;
+      case I64:
+        b.writeAscii(readLong(value.value));
+        break;
+      case DOUBLE:
+        b.writeAscii(Double.toString(Double.longBitsToDouble(readLong(value.value))));
+        break;
+      default:
+    }
+    if (value.type != AnnotationType.STRING && value.type != AnnotationType.BOOL) {
+      b.writeAscii(",\"type\":\"").writeAscii(value.type.name()).writeByte('"');
+    }
+    if (value.host != null) write(value.host, b);
+    b.writeByte('}');
+  }
+
+  static int sizeInBytes(Endpoint value) {
+    int sizeInBytes = 0;
+    sizeInBytes += ",\"endpoint\":{\"serviceName\":\"".length();
+    sizeInBytes += jsonEscapedSizeInBytes(value.service_name) + 1; // for end quote
+    if (value.ipv4 != 0) {
+      sizeInBytes += ",\"ipv4\":\"".length();
+      sizeInBytes += asciiSizeInBytes(value.ipv4 >> 24 & 0xff) + 1; // for dot
+      sizeInBytes += asciiSizeInBytes(value.ipv4 >> 16 & 0xff) + 1; // for dot
+      sizeInBytes += asciiSizeInBytes(value.ipv4 >> 8 & 0xff) + 1; // for dot
+      sizeInBytes += asciiSizeInBytes(value.ipv4 & 0xff) + 1; // for end quote
+    }
+    if (value.port != null && value.port != 0) {
+      sizeInBytes += ",\"port\":".length() + asciiSizeInBytes(value.port & 0xffff);
+    }
+    return ++sizeInBytes; // end curly-brace
+  }
+
+  static void write(Endpoint value, Buffer b) {
+    b.writeAscii(",\"endpoint\":{\"serviceName\":\"");
+    b.writeJsonEscaped(value.service_name).writeByte('"');
+    if (value.ipv4 != 0) {
+      b.writeAscii(",\"ipv4\":\"");
+      b.writeAscii(value.ipv4 >> 24 & 0xff).writeByte('.');
+      b.writeAscii(value.ipv4 >> 16 & 0xff).writeByte('.');
+      b.writeAscii(value.ipv4 >> 8 & 0xff).writeByte('.');
+      b.writeAscii(value.ipv4 & 0xff).writeByte('"');
+    }
+    if (value.port != null && value.port != 0) {
+      b.writeAscii(",\"port\":").writeAscii(value.port & 0xffff);
+    }
+    b.writeByte('}');
+  }
+
+  /** Same as zipkin, which requires a name. {@link Span#setName} already lower-cased it. */
+  static String name(Span value) {
+    String name = value.getName();
+    if (name == null) throw new NullPointerException("name");
+    return name;
+  }
+
+  static List<Annotation> sortedAnnotations(List<Annotation> in) {
+    for (int i = 1, length = in.size(); i < length; i++) {
+      if (ANNOTATION_ORDER.compare(in.get(i - 1), in.get(i)) > 0) {
+        List<Annotation> copy = new ArrayList<Annotation>(in);
+        Collections.sort(copy, ANNOTATION_ORDER);
+        return copy;
+      }
+    }
+    return in;
+  }
+
+  static List<BinaryAnnotation> sortedBinaryAnnotations(List<BinaryAnnotation> in) {
+    for (int i = 1, length = in.size(); i < length; i++) {
+      if (in.get(i - 1).key.compareTo(in.get(i).key) > 0) {
+        List<BinaryAnnotation> copy = new ArrayList<BinaryAnnotation>(in);
+        Collections.sort(copy, BINARY_ANNOTATION_ORDER);
+        return copy;
+      }
+    }
+    return in;
+  }
+
+  static final Comparator<Annotation> ANNOTATION_ORDER = new Comparator<Annotation>() {
+    @Override public int compare(Annotation left, Annotation right) {
+      if (left.timestamp != right.timestamp) return left.timestamp < right.timestamp ? -1 : 1;
+      return left.value.compareTo(right.value);
+    }
+  };
+
+  static final Comparator<BinaryAnnotation> BINARY_ANNOTATION_ORDER =
+      new Comparator<BinaryAnnotation>() {
+        @Override public int compare(BinaryAnnotation left, BinaryAnnotation right) {
+          return left.key.compareTo(right.key);
+        }
+      };
+
+  static short readShort(byte[] v) {
+    return (short) ((v[0] & 0xff) << 8 | (v[1] & 0xff));
+  }
+
+  static int readInt(byte[] v) {
+    return (v[0] & 0xff) << 24 | (v[1] & 0xff) << 16 | (v[2] & 0xff) << 8 | (v[3] & 0xff);
+  }
+
+  static long readLong(byte[] v) {
+    long result = 0;
+    for (int i = 0; i < 8; i++) {
+      result = result << 8 | (v[i] & 0xff);
+    }
+    return result;
+  }
+
+  JsonSpanWriter() {
+  }
+}
@@ -23,6 +23,16 @@ public final class Util {
     return reference;
   }
 
+  /**
+   * Copy of {@code com.google.common.base.Preconditions#checkArgument}.
+   */
+  public static void checkArgument(boolean expression, String errorMessageTemplate,
+                                   Object... errorMessageArgs) {
+    if (!expression) {
+      throw new IllegalArgumentException(format(errorMessageTemplate, errorMessageArgs));
+    }
+  }
+
   public static String checkNotBlank(String string, String errorMessageTemplate,
                                      Object... errorMessageArgs) {
     if (checkNotNull(string, errorMessageTemplate, errorMessageArgs).trim().isEmpty()) {
@@ -1,6 +1,7 @@
 package me.j360.trace.collector.core.module;
 
 
+import me.j360.trace.collector.core.internal.Buffer;
 import me.j360.trace.collector.core.internal.DefaultSpanCodec;
 
 import java.util.List;
@@ -9,10 +10,19 @@ public interface SpanCodec {
 
   SpanCodec JSON = DefaultSpanCodec.JSON;
 
+  /** Returns the count of bytes {@link #writeSpan(Span)} would produce. */
+  int sizeInBytes(Span span);
+
   byte[] writeSpan(Span span);
 
   byte[] writeSpans(List<Span> spans);
 
+  /**
+   * Appends the encoded list of spans to the buffer, which grows as needed. Unlike {@link
+   * #writeSpans(List)}, this doesn't allocate when the buffer is reused across calls.
+   */
+  void writeSpans(List<Span> spans, Buffer buffer);
+
   /** throws {@linkplain IllegalArgumentException} if the span couldn't be decoded */
   Span readSpan(byte[] bytes);
 }
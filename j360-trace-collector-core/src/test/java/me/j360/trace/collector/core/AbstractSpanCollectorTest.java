@@ -0,0 +1,327 @@
+package me.j360.trace.collector.core;
+
+import me.j360.trace.collector.core.module.Span;
+import me.j360.trace.collector.core.module.SpanCodec;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static me.j360.trace.collector.core.internal.Util.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AbstractSpanCollectorTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  BoundedSpanQueueTest.TestMetricsHandler metrics = new BoundedSpanQueueTest.TestMetricsHandler();
+  TestCollector collector;
+
+  @After
+  public void close() {
+    if (collector != null) {
+      collector.release.countDown();
+      collector.close();
+    }
+  }
+
+  @Test
+  public void sendsOnFlushingThread_byDefault() {
+    collector = new TestCollector(0, 0);
+    collector.release.countDown();
+
+    collector.collect(span(1));
+    collector.flush();
+
+    assertThat(collector.sent).containsExactly(json(span(1)));
+  }
+
+  @Test
+  public void flushDoesntWaitForSlowSend() {
+    collector = new TestCollector(1, 2);
+
+    collector.collect(span(1));
+    collector.flush(); // would block forever if the send happened on this thread
+    collector.collect(span(2));
+    collector.flush();
+
+    assertThat(collector.sent).isEmpty();
+  }
+
+  @Test
+  public void backpressure_spansPendWhileBatchesAreInFlight() throws Exception {
+    collector = new TestCollector(1, 1);
+    collector.collect(span(1));
+    collector.flush(); // takes the only in-flight slot
+
+    final CountDownLatch flushed = new CountDownLatch(1);
+    collector.collect(span(2));
+    Thread flusher = new Thread(new Runnable() {
+      @Override public void run() {
+        collector.flush();
+        flushed.countDown();
+      }
+    });
+    flusher.start();
+
+    assertThat(flushed.await(100, TimeUnit.MILLISECONDS)).isFalse();
+
+    collector.release.countDown();
+    assertThat(flushed.await(10, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  public void close_sendsInFlightBatchesInOrder() {
+    collector = new TestCollector(1, 10);
+    for (long i = 1; i <= 3; i++) {
+      collector.collect(span(i));
+      collector.flush();
+    }
+
+    collector.release.countDown();
+    collector.close();
+
+    assertThat(collector.sent).containsExactly(json(span(1)), json(span(2)), json(span(3)));
+  }
+
+  @Test
+  public void failedSendsAreDropped() {
+    collector = new TestCollector(2, 2);
+    collector.fail = true;
+    collector.release.countDown();
+
+    collector.collect(span(1));
+    collector.collect(span(2));
+    collector.flush();
+    collector.close();
+
+    assertThat(metrics.droppedSpans.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void failedSendsAreSpooledThenReplayedInOrder() throws Exception {
+    collector = new TestCollector(0, 0, spool());
+    collector.release.countDown();
+    collector.fail = true;
+
+    collector.collect(span(1));
+    collector.flush();
+    collector.collect(span(2));
+    collector.flush(); // spooled without an attempt, behind the first
+
+    collector.fail = false;
+    collector.collect(span(3));
+    collector.flush();
+
+    assertThat(collector.sent).containsExactly(json(span(1)), json(span(2)), json(span(3)));
+    assertThat(metrics.droppedSpans.get()).isZero();
+  }
+
+  @Test
+  public void failedSendsAreSpooled_senderThreads() throws Exception {
+    collector = new TestCollector(2, 2, spool());
+    collector.release.countDown();
+    collector.fail = true;
+
+    collector.collect(span(1));
+    collector.flush();
+    collector.close(); // waits for the sender
+
+    assertThat(metrics.droppedSpans.get()).isZero();
+    assertThat(drainSpool()).containsExactly(json(span(1)));
+  }
+
+  @Test
+  public void overflowedSpansAreSpooled() throws Exception {
+    collector = new TestCollector(0, 0, spool());
+    collector.release.countDown();
+
+    for (long i = 1; i <= 101; i++) {
+      collector.collect(span(i)); // the queue holds 100
+    }
+    collector.flush();
+
+    assertThat(collector.sent).hasSize(2).startsWith(json(span(101)));
+    assertThat(metrics.droppedSpans.get()).isZero();
+  }
+
+  @Test
+  public void close_spoolsPendingSpans_forTheNextCollector() throws Exception {
+    collector = new TestCollector(0, 0, spool());
+    collector.collect(span(1));
+    collector.close();
+    assertThat(metrics.droppedSpans.get()).isZero();
+
+    collector = new TestCollector(0, 0, spool());
+    collector.release.countDown();
+    collector.flush(); // replays even though nothing is pending
+
+    assertThat(collector.sent).containsExactly(json(span(1)));
+  }
+
+  @Test
+  public void asyncFailuresAreSpooledOnce_andReplayedInOrder() throws Exception {
+    AsyncCollector async = new AsyncCollector(spool(), true);
+    try {
+      async.fail = true;
+      async.collect(span(1));
+      async.flush();
+      async.awaitSends(); // spools the first batch
+
+      async.collect(span(2));
+      async.flush(); // replaying the first fails, so the second is spooled behind it
+      async.awaitSends();
+      assertThat(async.spool.spanCount()).isEqualTo(2);
+
+      async.fail = false;
+      async.collect(span(3));
+      async.flush();
+      async.awaitSends();
+
+      assertThat(async.sent).containsExactly(json(span(1)), json(span(2)), json(span(3)));
+      assertThat(metrics.droppedSpans.get()).isZero();
+    } finally {
+      async.close();
+    }
+  }
+
+  @Test(timeout = 10000L)
+  public void replayStops_whenAsyncFailuresAreSpooledAgain() throws Exception {
+    AsyncCollector async = new AsyncCollector(spool(), false); // doesn't wait when replaying
+    try {
+      async.fail = true;
+      async.collect(span(1));
+      async.flush();
+      async.awaitSends();
+
+      async.flush(); // would replay forever if it followed records the failures spool again
+      async.awaitSends();
+
+      assertThat(async.spool.spanCount()).isEqualTo(1);
+    } finally {
+      async.close();
+    }
+  }
+
+  SpanSpool spool() throws IOException {
+    return SpanSpool.open(folder.getRoot(), 1024 * 1024, 0, metrics);
+  }
+
+  List<String> drainSpool() throws IOException {
+    return SpanSpoolTest.drain(spool());
+  }
+
+  static String json(Span span) {
+    return new String(SpanCodec.JSON.writeSpans(Collections.singletonList(span)), UTF_8);
+  }
+
+  static Span span(long id) {
+    return new Span().setTrace_id(id).setId(id).setName("foo");
+  }
+
+  /** Completes sends on another thread, spooling failures as they complete. */
+  final class AsyncCollector extends AbstractSpanCollector {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+    final SpanSpool spool;
+    final boolean waitWhenReplaying;
+    volatile boolean fail;
+    volatile Future<?> lastSend;
+
+    AsyncCollector(SpanSpool spool, boolean waitWhenReplaying) {
+      super(SpanCodec.JSON, metrics, SpanQueue.blocking(100), FlushTrigger.interval(0), 0, 0,
+          spool);
+      this.spool = spool;
+      this.waitWhenReplaying = waitWhenReplaying;
+    }
+
+    @Override protected void sendSpans(byte[] buffer, int offset, int length, int spanCount,
+        byte[] key) {
+      lastSend = send(Arrays.copyOfRange(buffer, offset, offset + length), spanCount, true);
+    }
+
+    /** Like a transport's callback, the replay spools its failure unless it waits for it. */
+    @Override protected void replay(SpanSpool.Record record) throws IOException {
+      if (!waitWhenReplaying) {
+        super.replay(record);
+        return;
+      }
+      try {
+        send(record.bytes, record.spanCount, false).get();
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    Future<?> send(final byte[] bytes, final int spanCount, final boolean spoolOnFailure) {
+      return executor.submit(new Callable<Void>() {
+        @Override public Void call() throws IOException {
+          if (fail) {
+            if (spoolOnFailure) spoolOrDrop(bytes, 0, bytes.length, spanCount, null);
+            throw new IOException("failed");
+          }
+          sent.add(new String(bytes, UTF_8));
+          return null;
+        }
+      });
+    }
+
+    @Override protected void sendSpans(byte[] buffer, int offset, int length) {
+      throw new AssertionError();
+    }
+
+    void awaitSends() throws InterruptedException {
+      Future<?> send = lastSend;
+      if (send == null) return;
+      try {
+        send.get();
+      } catch (ExecutionException ignored) {
+      }
+    }
+
+    @Override public void close() {
+      super.close();
+      executor.shutdown();
+    }
+  }
+
+  final class TestCollector extends AbstractSpanCollector {
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+    volatile boolean fail;
+
+    TestCollector(int senderThreads, int maxInFlightBatches) {
+      this(senderThreads, maxInFlightBatches, null);
+    }
+
+    TestCollector(int senderThreads, int maxInFlightBatches, SpanSpool spool) {
+      super(SpanCodec.JSON, metrics, SpanQueue.blocking(100), FlushTrigger.interval(0),
+          senderThreads, maxInFlightBatches, spool);
+    }
+
+    @Override protected void sendSpans(byte[] buffer, int offset, int length) throws IOException {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+      if (fail) throw new IOException("failed");
+      sent.add(new String(buffer, offset, length, UTF_8));
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package me.j360.trace.collector.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class AdaptiveSamplerTest {
+  static final long INTERVAL = SECONDS.toNanos(1);
+
+  Random random = new Random(1234L);
+  long now = System.nanoTime();
+
+  @Test
+  public void samplesEverythingUntilTheFirstInterval() {
+    AdaptiveSampler sampler = new AdaptiveSampler(10, 100, INTERVAL, now);
+
+    assertThat(sampled(sampler, "get /api", 1000)).isEqualTo(1000);
+  }
+
+  @Test
+  public void convergesOnTargetPerSpanName() {
+    AdaptiveSampler sampler = new AdaptiveSampler(10, 100, INTERVAL, now);
+
+    int busy = 0, quiet = 0;
+    for (int second = 0; second < 10; second++) {
+      busy = sampled(sampler, "get /api", 1000);
+      quiet = sampled(sampler, "get /health", 5);
+      now += INTERVAL;
+    }
+
+    assertThat(busy).isCloseTo(10, within(5));
+    assertThat(quiet).isEqualTo(5);
+    assertThat(sampler.probability("get /api")).isCloseTo(0.01f, within(0.002f));
+    assertThat(sampler.probability("get /health")).isEqualTo(1.0f);
+  }
+
+  @Test
+  public void followsChangesInTraffic() {
+    AdaptiveSampler sampler = new AdaptiveSampler(10, 100, INTERVAL, now);
+    for (int second = 0; second < 5; second++) {
+      sampled(sampler, "get /api", 1000);
+      now += INTERVAL;
+    }
+
+    // traffic dropped below the target: smoothing halves the rate each interval
+    int sampled = 0;
+    for (int second = 0; second < 10; second++) {
+      sampled = sampled(sampler, "get /api", 8);
+      now += INTERVAL;
+    }
+
+    assertThat(sampled).isEqualTo(8);
+  }
+
+  @Test
+  public void recomputesOnlyOncePerInterval() {
+    AdaptiveSampler sampler = new AdaptiveSampler(10, 100, INTERVAL, now);
+    sampled(sampler, "get /api", 1000);
+    now += INTERVAL;
+    sampled(sampler, "get /api", 1); // recomputes from 1000 traces in a second
+
+    now += MILLISECONDS.toNanos(999);
+    assertThat(sampled(sampler, "get /api", 1000)).isCloseTo(10, within(5));
+  }
+
+  @Test
+  public void spanNamesBeyondTheLimitShareABudget() {
+    AdaptiveSampler sampler = new AdaptiveSampler(10, 1, INTERVAL, now);
+    sampled(sampler, "get /users/1", 1000);
+    for (int i = 2; i < 1002; i++) {
+      sampled(sampler, "get /users/" + i, 1);
+    }
+    now += INTERVAL;
+    sampled(sampler, "get /users/1", 1);
+    sampled(sampler, "get /users/9999", 1);
+
+    assertThat(sampler.probability("get /users/1")).isCloseTo(0.01f, within(0.002f));
+    assertThat(sampler.probability(null)).isCloseTo(0.01f, within(0.002f));
+    assertThat(sampler.probability("get /users/2")).isEqualTo(1.0f); // not in the table
+  }
+
+  @Test
+  public void traceIdOnlyCallsShareTheOverflowBudget() {
+    AdaptiveSampler sampler = new AdaptiveSampler(10, 100, INTERVAL, now);
+    for (int i = 0; i < 1000; i++) {
+      sampler.isSampled(random.nextLong(), (String) null, now);
+    }
+    now += INTERVAL;
+    sampler.isSampled(random.nextLong(), (String) null, now);
+
+    assertThat(sampler.probability(null)).isCloseTo(0.01f, within(0.002f));
+  }
+
+  @Test
+  public void zeroNeverSamples() {
+    assertThat(AdaptiveSampler.create(0)).isSameAs(Sampler.NEVER_SAMPLE);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void tracesPerSecondCantBeNegative() {
+    AdaptiveSampler.create(-1);
+  }
+
+  @Test
+  public void rateLimitingSamplerPassesTheSpanName() {
+    AdaptiveSampler adaptive = new AdaptiveSampler(10, 100, INTERVAL, now);
+    Sampler sampler = RateLimitingSampler.create(1000, adaptive);
+
+    sampler.isSampled(1L, "get /api");
+
+    assertThat(adaptive.probability("get /api")).isEqualTo(1.0f);
+    assertThat(adaptive.budget("get /api", now).count.get()).isEqualTo(1);
+  }
+
+  int sampled(AdaptiveSampler sampler, String spanName, int traces) {
+    int sampled = 0;
+    for (int i = 0; i < traces; i++) {
+      if (sampler.isSampled(random.nextLong(), spanName, now)) sampled++;
+    }
+    return sampled;
+  }
+}
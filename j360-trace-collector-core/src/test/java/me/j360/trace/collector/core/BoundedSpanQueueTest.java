@@ -0,0 +1,165 @@
+package me.j360.trace.collector.core;
+
+import me.j360.trace.collector.core.SpanQueue.OverflowPolicy;
+import me.j360.trace.collector.core.module.BinaryAnnotation;
+import me.j360.trace.collector.core.module.Span;
+import me.j360.trace.collector.core.module.SpanCodec;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BoundedSpanQueueTest {
+  TestMetricsHandler metrics = new TestMetricsHandler();
+
+  @Test
+  public void dropNewest_whenCountExceeded() {
+    SpanQueue queue = SpanQueue.bounded(2, 0, OverflowPolicy.DROP_NEWEST, 0, metrics);
+
+    assertThat(queue.offer(span(1))).isTrue();
+    assertThat(queue.offer(span(2))).isTrue();
+    assertThat(queue.offer(span(3))).isFalse();
+
+    assertThat(drain(queue)).extracting("id").containsExactly(1L, 2L);
+    assertThat(metrics.overflowed[OverflowPolicy.DROP_NEWEST.ordinal()].get()).isEqualTo(1);
+    // the collector counts rejected spans as dropped
+    assertThat(metrics.droppedSpans.get()).isZero();
+  }
+
+  @Test
+  public void dropNewest_whenBytesExceeded() {
+    int spanSize = SpanCodec.JSON.sizeInBytes(span(1));
+    SpanQueue queue = SpanQueue.bounded(100, spanSize * 2, OverflowPolicy.DROP_NEWEST, 0, metrics);
+
+    assertThat(queue.offer(span(1))).isTrue();
+    assertThat(queue.offer(span(2))).isTrue();
+    assertThat(queue.offer(span(3))).isFalse();
+
+    assertThat(((BoundedSpanQueue) queue).sizeInBytes()).isEqualTo(spanSize * 2);
+  }
+
+  @Test
+  public void usesSizeKnownByCaller() {
+    int spanSize = SpanCodec.JSON.sizeInBytes(span(1));
+    SpanQueue queue = SpanQueue.bounded(100, spanSize * 2, OverflowPolicy.DROP_NEWEST, 0, metrics);
+
+    assertThat(queue.offer(span(1), spanSize)).isTrue();
+    assertThat(queue.offer(span(2), -1)).isTrue(); // unknown, so estimated
+
+    assertThat(((BoundedSpanQueue) queue).sizeInBytes()).isEqualTo(spanSize * 2);
+  }
+
+  @Test
+  public void dropOldest_evictsUntilThereIsRoom() {
+    int spanSize = SpanCodec.JSON.sizeInBytes(span(1));
+    Span big = bigSpan(4, spanSize * 2);
+    int bigSize = SpanCodec.JSON.sizeInBytes(big);
+    SpanQueue queue =
+        SpanQueue.bounded(100, spanSize + bigSize, OverflowPolicy.DROP_OLDEST, 0, metrics);
+    queue.offer(span(1));
+    queue.offer(span(2));
+    queue.offer(span(3));
+
+    assertThat(queue.offer(big)).isTrue();
+
+    assertThat(drain(queue)).extracting("id").containsExactly(3L, 4L);
+    assertThat(metrics.overflowed[OverflowPolicy.DROP_OLDEST.ordinal()].get()).isEqualTo(2);
+    assertThat(metrics.droppedSpans.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void dropsSpansLargerThanMaxBytes_regardlessOfPolicy() {
+    int spanSize = SpanCodec.JSON.sizeInBytes(span(1));
+    SpanQueue queue = SpanQueue.bounded(100, spanSize, OverflowPolicy.DROP_OLDEST, 0, metrics);
+    queue.offer(span(1));
+
+    assertThat(queue.offer(bigSpan(2, spanSize))).isFalse();
+
+    assertThat(drain(queue)).extracting("id").containsExactly(1L);
+  }
+
+  @Test
+  public void block_dropsOnTimeout() {
+    SpanQueue queue = SpanQueue.bounded(1, 0, OverflowPolicy.BLOCK, 10, metrics);
+    queue.offer(span(1));
+
+    assertThat(queue.offer(span(2))).isFalse();
+    assertThat(metrics.overflowed[OverflowPolicy.BLOCK.ordinal()].get()).isEqualTo(1);
+  }
+
+  @Test
+  public void block_acceptsOnceDrained() throws Exception {
+    final SpanQueue queue = SpanQueue.bounded(1, 0, OverflowPolicy.BLOCK, 10000, metrics);
+    queue.offer(span(1));
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Boolean> blocked = executor.submit(new Callable<Boolean>() {
+        @Override public Boolean call() {
+          return queue.offer(span(2));
+        }
+      });
+
+      List<Span> drained = new ArrayList<Span>();
+      while (drained.size() < 2) {
+        queue.drainTo(drained);
+      }
+
+      assertThat(blocked.get(10, TimeUnit.SECONDS)).isTrue();
+      assertThat(drained).extracting("id").containsExactly(1L, 2L);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  static List<Span> drain(SpanQueue queue) {
+    List<Span> result = new ArrayList<Span>();
+    queue.drainTo(result);
+    return result;
+  }
+
+  static Span bigSpan(long id, int querySize) {
+    char[] query = new char[querySize];
+    Arrays.fill(query, 'a');
+    return span(id).addToBinary_annotations(
+        BinaryAnnotation.create("sql.query", new String(query), null));
+  }
+
+  static Span span(long id) {
+    return new Span().setTrace_id(id).setId(id).setName("foo");
+  }
+
+  static class TestMetricsHandler implements OverflowMetricsHandler {
+    final AtomicInteger acceptedSpans = new AtomicInteger();
+    final AtomicInteger droppedSpans = new AtomicInteger();
+    final AtomicInteger[] overflowed = new AtomicInteger[OverflowPolicy.values().length];
+
+    TestMetricsHandler() {
+      for (int i = 0; i < overflowed.length; i++) overflowed[i] = new AtomicInteger();
+    }
+
+    @Override
+    public void incrementAcceptedSpans(int quantity) {
+      acceptedSpans.addAndGet(quantity);
+    }
+
+    @Override
+    public void incrementDroppedSpans(int quantity) {
+      droppedSpans.addAndGet(quantity);
+    }
+
+    @Override
+    public void incrementOverflowedSpans(OverflowPolicy policy, int quantity) {
+      overflowed[policy.ordinal()].addAndGet(quantity);
+    }
+  }
+}
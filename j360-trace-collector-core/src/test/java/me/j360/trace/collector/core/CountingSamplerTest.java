@@ -0,0 +1,84 @@
+package me.j360.trace.collector.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CountingSamplerTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void exactPerWindowOf100() {
+    for (float rate : new float[] {0.01f, 0.07f, 0.33f, 0.5f, 0.99f}) {
+      Sampler sampler = CountingSampler.create(rate);
+      for (int window = 0; window < 3; window++) {
+        assertThat(countSampled(sampler, 100)).isEqualTo(Math.round(rate * 100));
+      }
+    }
+  }
+
+  @Test
+  public void ratesFinerThanOnePercent() {
+    for (float rate : new float[] {0.0001f, 0.0005f, 0.0123f}) {
+      Sampler sampler = CountingSampler.create(rate);
+      assertThat(countSampled(sampler, 10000)).isEqualTo(Math.round(rate * 10000));
+    }
+  }
+
+  @Test
+  public void windowIsSmallestWhereRateIsExact() {
+    assertThat(CountingSampler.create(0.5f)).hasToString("CountingSampler(1/2)");
+    assertThat(CountingSampler.create(0.07f)).hasToString("CountingSampler(7/100)");
+    assertThat(CountingSampler.create(0.0005f)).hasToString("CountingSampler(1/2000)");
+  }
+
+  @Test
+  public void exactAcrossConcurrentCallers() throws Exception {
+    final Sampler sampler = CountingSampler.create(0.2f);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+    for (int i = 0; i < 8; i++) {
+      futures.add(executor.submit(new Callable<Integer>() {
+        @Override public Integer call() {
+          return countSampled(sampler, 10000);
+        }
+      }));
+    }
+    int sampled = 0;
+    for (Future<Integer> future : futures) sampled += future.get();
+    executor.shutdown();
+
+    // 80000 decisions is a whole number of windows, however the threads interleaved
+    assertThat(sampled).isEqualTo(16000);
+  }
+
+  @Test
+  public void zeroAndOne() {
+    assertThat(CountingSampler.create(0.0f)).isSameAs(Sampler.NEVER_SAMPLE);
+    assertThat(CountingSampler.create(1.0f)).isSameAs(Sampler.ALWAYS_SAMPLE);
+  }
+
+  @Test
+  public void rateCantBeLessThanOneHundredthOfAPercent() {
+    thrown.expect(IllegalArgumentException.class);
+    CountingSampler.create(0.00001f);
+  }
+
+  static int countSampled(Sampler sampler, int decisions) {
+    int sampled = 0;
+    for (int i = 0; i < decisions; i++) {
+      if (sampler.isSampled(i)) sampled++;
+    }
+    return sampled;
+  }
+}
@@ -0,0 +1,82 @@
+package me.j360.trace.collector.core;
+
+import me.j360.trace.collector.core.module.Span;
+import me.j360.trace.collector.core.module.SpanCodec;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FlushTriggerTest {
+  BoundedSpanQueueTest.TestMetricsHandler metrics = new BoundedSpanQueueTest.TestMetricsHandler();
+  RecordingCollector collector;
+
+  @After
+  public void close() {
+    if (collector != null) collector.close();
+  }
+
+  @Test
+  public void interval_zeroIsDisabled() {
+    assertThat(FlushTrigger.interval(0).isEnabled()).isFalse();
+    assertThat(FlushTrigger.interval(1).maxDelay()).isEqualTo(1000L);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void create_negativeBatchSize() {
+    FlushTrigger.create(0, -1, 0);
+  }
+
+  @Test
+  public void flushesOnBatchSize_withoutWaitingForDelay() throws Exception {
+    collector = new RecordingCollector(FlushTrigger.create(0, 3, 0));
+
+    collector.collect(span(1));
+    collector.collect(span(2));
+    assertThat(collector.reports.poll(100, TimeUnit.MILLISECONDS)).isNull();
+
+    collector.collect(span(3));
+    assertThat(collector.reports.poll(10, TimeUnit.SECONDS)).hasSize(3);
+  }
+
+  @Test
+  public void flushesOnBatchBytes() throws Exception {
+    int spanSize = SpanCodec.JSON.sizeInBytes(span(1));
+    collector = new RecordingCollector(FlushTrigger.create(0, 0, spanSize * 2));
+
+    collector.collect(span(1));
+    assertThat(collector.reports.poll(100, TimeUnit.MILLISECONDS)).isNull();
+
+    collector.collect(span(2));
+    assertThat(collector.reports.poll(10, TimeUnit.SECONDS)).hasSize(2);
+  }
+
+  @Test
+  public void flushesOnMaxDelay() throws Exception {
+    collector = new RecordingCollector(FlushTrigger.create(50, 1000, 0));
+
+    collector.collect(span(1));
+    assertThat(collector.reports.poll(10, TimeUnit.SECONDS)).hasSize(1);
+  }
+
+  static Span span(long id) {
+    return new Span().setTrace_id(id).setId(id).setName("foo");
+  }
+
+  final class RecordingCollector extends FlushingSpanCollector {
+    final BlockingQueue<List<Span>> reports = new ArrayBlockingQueue<List<Span>>(10);
+
+    RecordingCollector(FlushTrigger trigger) {
+      super(metrics, SpanQueue.ring(1024), trigger);
+    }
+
+    @Override protected void reportSpans(List<Span> drained) {
+      reports.add(drained);
+    }
+  }
+}
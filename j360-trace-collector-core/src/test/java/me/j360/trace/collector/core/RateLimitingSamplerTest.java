@@ -0,0 +1,121 @@
+package me.j360.trace.collector.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RateLimitingSamplerTest {
+  long now = System.nanoTime();
+
+  @Test
+  public void startsWithASecondOfTraces() {
+    RateLimitingSampler sampler = new RateLimitingSampler(10, Sampler.ALWAYS_SAMPLE, now);
+
+    assertThat(acquired(sampler, 100)).isEqualTo(10);
+  }
+
+  @Test
+  public void refillsContinuously() {
+    RateLimitingSampler sampler = new RateLimitingSampler(10, Sampler.ALWAYS_SAMPLE, now);
+    acquired(sampler, 10);
+
+    now += MILLISECONDS.toNanos(99);
+    assertThat(sampler.tryAcquire(now)).isFalse();
+    now += MILLISECONDS.toNanos(1);
+    assertThat(sampler.tryAcquire(now)).isTrue();
+    assertThat(sampler.tryAcquire(now)).isFalse();
+
+    now += MILLISECONDS.toNanos(500);
+    assertThat(acquired(sampler, 100)).isEqualTo(5);
+  }
+
+  @Test
+  public void doesntAccumulateMoreThanASecond() {
+    RateLimitingSampler sampler = new RateLimitingSampler(10, Sampler.ALWAYS_SAMPLE, now);
+
+    now += SECONDS.toNanos(60);
+    assertThat(acquired(sampler, 100)).isEqualTo(10);
+  }
+
+  @Test
+  public void onlyTakesTokensForTracesTheDelegateSamples() {
+    Sampler sampler = RateLimitingSampler.create(1000, CountingSampler.create(0.1f));
+
+    int sampled = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (sampler.isSampled(i)) sampled++;
+    }
+    assertThat(sampled).isEqualTo(100);
+  }
+
+  @Test
+  public void neverSampleWhenZero() {
+    assertThat(RateLimitingSampler.create(0)).isSameAs(Sampler.NEVER_SAMPLE);
+    assertThat(RateLimitingSampler.create(10, Sampler.NEVER_SAMPLE))
+        .isSameAs(Sampler.NEVER_SAMPLE);
+  }
+
+  @Test
+  public void capsConcurrentCallers() throws Exception {
+    final Sampler sampler = RateLimitingSampler.create(1000);
+    final long deadline = System.nanoTime() + MILLISECONDS.toNanos(300);
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+    long begin = System.nanoTime();
+    for (int i = 0; i < 8; i++) {
+      futures.add(executor.submit(new Callable<Integer>() {
+        @Override public Integer call() throws InterruptedException {
+          start.await();
+          int sampled = 0;
+          while (System.nanoTime() < deadline) {
+            if (sampler.isSampled(0L)) sampled++;
+          }
+          return sampled;
+        }
+      }));
+    }
+    start.countDown();
+    int sampled = 0;
+    for (Future<Integer> future : futures) sampled += future.get();
+    long elapsedMillis = NANOSECONDS.toMillis(System.nanoTime() - begin);
+    executor.shutdown();
+
+    // the initial second of traces, plus what refilled while the threads ran
+    assertThat(sampled).isBetween(1000, 1000 + (int) elapsedMillis + 1);
+  }
+
+  @Test
+  public void braveBuilder_capsTracesAfterTheTraceSampler() {
+    Brave brave = new Brave.Builder(127 << 24 | 1, 8080, "service")
+        .spanCollector(new EmptySpanCollector())
+        .traceSampler(Sampler.ALWAYS_SAMPLE)
+        .maxTracesPerSecond(5).build();
+
+    int sampled = 0;
+    for (int i = 0; i < 20; i++) {
+      if (brave.localTracer().startNewSpan("component", "op") != null) sampled++;
+      brave.localTracer().finishSpan();
+    }
+    assertThat(sampled).isEqualTo(5);
+  }
+
+  int acquired(RateLimitingSampler sampler, int attempts) {
+    int acquired = 0;
+    for (int i = 0; i < attempts; i++) {
+      if (sampler.tryAcquire(now)) acquired++;
+    }
+    return acquired;
+  }
+}
@@ -0,0 +1,128 @@
+package me.j360.trace.collector.core;
+
+import me.j360.trace.collector.core.module.Span;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpanQueueTest {
+
+  @Test
+  public void roundToPowerOfTwo() {
+    assertThat(SpanQueue.roundToPowerOfTwo(1)).isEqualTo(1);
+    assertThat(SpanQueue.roundToPowerOfTwo(2)).isEqualTo(2);
+    assertThat(SpanQueue.roundToPowerOfTwo(3)).isEqualTo(4);
+    assertThat(SpanQueue.roundToPowerOfTwo(1000)).isEqualTo(1024);
+    assertThat(SpanQueue.roundToPowerOfTwo(1024)).isEqualTo(1024);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void ring_capacityMustBePositive() {
+    SpanQueue.ring(0);
+  }
+
+  @Test
+  public void ring_dropsWhenFull() {
+    SpanQueue queue = SpanQueue.ring(4);
+    for (int i = 0; i < 4; i++) {
+      assertThat(queue.offer(span(i))).isTrue();
+    }
+    assertThat(queue.offer(span(4))).isFalse();
+    assertThat(queue.size()).isEqualTo(4);
+  }
+
+  @Test
+  public void ring_drainsInOrder_acrossLaps() {
+    SpanQueue queue = SpanQueue.ring(4);
+    List<Span> drained = new ArrayList<Span>();
+    for (int lap = 0; lap < 3; lap++) {
+      for (int i = 0; i < 3; i++) {
+        queue.offer(span(lap * 3 + i));
+      }
+      assertThat(queue.drainTo(drained)).isEqualTo(3);
+    }
+
+    assertThat(drained).extracting("id")
+        .containsExactly(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L);
+    assertThat(queue.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void ring_acceptsAgainAfterDrain() {
+    SpanQueue queue = SpanQueue.ring(2);
+    queue.offer(span(1));
+    queue.offer(span(2));
+    assertThat(queue.offer(span(3))).isFalse();
+
+    queue.drainTo(new ArrayList<Span>());
+
+    assertThat(queue.offer(span(3))).isTrue();
+  }
+
+  @Test
+  public void striped_splitsCapacityAcrossStripes() {
+    StripedSpanQueue queue = (StripedSpanQueue) SpanQueue.striped(1000, 3);
+
+    assertThat(queue.stripes).hasSize(4);
+    assertThat(queue.stripes[0].capacity).isEqualTo(256);
+  }
+
+  @Test
+  public void ring_concurrentProducers() throws Exception {
+    concurrentProducers(SpanQueue.ring(1 << 16));
+  }
+
+  @Test
+  public void striped_concurrentProducers() throws Exception {
+    concurrentProducers(SpanQueue.striped(1 << 18, 4));
+  }
+
+  /** Ensures no span is lost or duplicated while draining concurrently with producers. */
+  static void concurrentProducers(final SpanQueue queue) throws Exception {
+    final int producers = 8;
+    final int spansPerProducer = 5000;
+    ExecutorService executor = Executors.newFixedThreadPool(producers);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (int p = 0; p < producers; p++) {
+      final long offset = p * spansPerProducer;
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override public Void call() {
+          for (int i = 0; i < spansPerProducer; i++) {
+            assertThat(queue.offer(span(offset + i))).isTrue();
+          }
+          return null;
+        }
+      }));
+    }
+
+    List<Span> drained = new ArrayList<Span>();
+    while (drained.size() < producers * spansPerProducer) {
+      queue.drainTo(drained);
+    }
+    for (Future<Void> future : futures) {
+      future.get(10, TimeUnit.SECONDS);
+    }
+    executor.shutdownNow();
+
+    Set<Long> ids = new HashSet<Long>();
+    for (Span span : drained) {
+      ids.add(span.getId());
+    }
+    assertThat(ids).hasSize(producers * spansPerProducer);
+    assertThat(queue.isEmpty()).isTrue();
+  }
+
+  static Span span(long id) {
+    return new Span().setTrace_id(id).setId(id).setName("foo");
+  }
+}
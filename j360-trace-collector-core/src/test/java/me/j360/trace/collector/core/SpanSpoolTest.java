@@ -0,0 +1,129 @@
+package me.j360.trace.collector.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static me.j360.trace.collector.core.internal.Util.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpanSpoolTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  BoundedSpanQueueTest.TestMetricsHandler metrics = new BoundedSpanQueueTest.TestMetricsHandler();
+
+  SpanSpool spool(long maxBytes, long maxAge, int segmentBytes) throws IOException {
+    return new SpanSpool(folder.getRoot(), maxBytes, maxAge, segmentBytes, metrics);
+  }
+
+  @Test
+  public void replaysInOrder() throws IOException {
+    SpanSpool spool = spool(1024 * 1024, 0, 64); // small segments: records span many files
+    for (int i = 1; i <= 10; i++) append(spool, "batch" + i, i);
+
+    assertThat(spool.spanCount()).isEqualTo(55);
+    List<String> replayed = drain(spool);
+    assertThat(replayed).hasSize(10).startsWith("batch1", "batch2").endsWith("batch10");
+    assertThat(spool.isEmpty()).isTrue();
+    // sent segments are deleted, except the one being appended to
+    assertThat(folder.getRoot().listFiles()).hasSize(1);
+  }
+
+  @Test
+  public void peekDoesntRemove() throws IOException {
+    SpanSpool spool = spool(1024 * 1024, 0, 1024);
+    spool.append(bytes("[1]"), 0, 3, 1, new byte[] {1, 2});
+
+    SpanSpool.Record record = spool.peek();
+    assertThat(spool.peek().bytes).isEqualTo(record.bytes);
+    assertThat(record.key).isEqualTo(new byte[] {1, 2});
+    assertThat(record.spanCount).isEqualTo(1);
+
+    spool.remove(record);
+    spool.remove(record); // idempotent
+    assertThat(spool.peek()).isNull();
+    assertThat(spool.spanCount()).isZero();
+  }
+
+  @Test
+  public void reopenReplaysOnlyUnsent() throws IOException {
+    SpanSpool spool = spool(1024 * 1024, 0, 64);
+    for (int i = 1; i <= 4; i++) append(spool, "batch" + i, 1);
+    spool.remove(spool.peek());
+    spool.flush();
+
+    SpanSpool reopened = spool(1024 * 1024, 0, 64);
+    assertThat(reopened.spanCount()).isEqualTo(3);
+    append(reopened, "batch5", 1);
+    assertThat(drain(reopened)).containsExactly("batch2", "batch3", "batch4", "batch5");
+  }
+
+  @Test
+  public void evictsOldestSegmentsOverMaxBytes() throws IOException {
+    SpanSpool spool = spool(64, 0, 16); // room for two segments, each holding one record
+    for (int i = 1; i <= 4; i++) append(spool, "batch" + i, 2);
+
+    assertThat(metrics.droppedSpans.get()).isEqualTo(4);
+    assertThat(spool.spanCount()).isEqualTo(4);
+    assertThat(drain(spool)).containsExactly("batch3", "batch4");
+  }
+
+  @Test
+  public void dropsRecordsLargerThanMaxBytes() throws IOException {
+    SpanSpool spool = spool(64, 0, 64);
+
+    assertThat(spool.append(new byte[100], 0, 100, 1, null)).isFalse();
+    assertThat(spool.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void largeRecordsGetTheirOwnSegment() throws IOException {
+    SpanSpool spool = spool(1024 * 1024, 0, 64);
+    byte[] large = new byte[1000];
+
+    assertThat(spool.append(large, 0, large.length, 1, null)).isTrue();
+    assertThat(spool.peek().bytes).isEqualTo(large);
+  }
+
+  @Test
+  public void dropsExpiredRecords() throws Exception {
+    SpanSpool spool = spool(1024 * 1024, 1, 1024);
+    append(spool, "batch1", 3);
+    Thread.sleep(10);
+
+    assertThat(spool.peek()).isNull();
+    assertThat(metrics.droppedSpans.get()).isEqualTo(3);
+    assertThat(spool.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void ignoresOtherFiles() throws IOException {
+    assertThat(new File(folder.getRoot(), "notes.spool").createNewFile()).isTrue();
+
+    assertThat(spool(1024, 0, 64).isEmpty()).isTrue();
+  }
+
+  static void append(SpanSpool spool, String batch, int spanCount) {
+    byte[] bytes = bytes(batch);
+    assertThat(spool.append(bytes, 0, bytes.length, spanCount, null)).isTrue();
+  }
+
+  static List<String> drain(SpanSpool spool) {
+    List<String> result = new ArrayList<String>();
+    for (SpanSpool.Record record; (record = spool.peek()) != null; ) {
+      result.add(new String(record.bytes, UTF_8));
+      spool.remove(record);
+    }
+    return result;
+  }
+
+  static byte[] bytes(String string) {
+    return string.getBytes(UTF_8);
+  }
+}
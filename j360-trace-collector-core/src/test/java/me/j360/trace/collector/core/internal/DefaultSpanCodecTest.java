@@ -0,0 +1,148 @@
+package me.j360.trace.collector.core.internal;
+
+import me.j360.trace.collector.core.module.Annotation;
+import me.j360.trace.collector.core.module.AnnotationType;
+import me.j360.trace.collector.core.module.BinaryAnnotation;
+import me.j360.trace.collector.core.module.Endpoint;
+import me.j360.trace.collector.core.module.Span;
+import me.j360.trace.collector.core.module.SpanCodec;
+import me.j360.trace.core.Codec;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DefaultSpanCodecTest {
+  Endpoint frontend = Endpoint.create("frontend", 192 << 24 | 168 << 16 | 1, 8080);
+  Endpoint backend = Endpoint.create("backend", 127 << 24 | 1);
+  Endpoint noPort = Endpoint.create("db", 10 << 24 | 1, 0);
+
+  @Test
+  public void writeSpans_sameBytesAsZipkinCodec() {
+    List<Span> spans = Arrays.asList(clientSpan(), serverSpan(), allTypes(), escaped());
+
+    assertThat(new String(SpanCodec.JSON.writeSpans(spans), Util.UTF_8))
+        .isEqualTo(zipkinJson(Codec.JSON.writeSpans(toZipkin(spans))));
+  }
+
+  @Test
+  public void writeSpan_sameBytesAsZipkinCodec() {
+    for (Span span : Arrays.asList(clientSpan(), serverSpan(), allTypes(), escaped())) {
+      assertThat(new String(SpanCodec.JSON.writeSpan(span), Util.UTF_8))
+          .isEqualTo(zipkinJson(Codec.JSON.writeSpan(span.toZipkin())));
+    }
+  }
+
+  @Test
+  public void writeSpans_empty() {
+    assertThat(new String(SpanCodec.JSON.writeSpans(new ArrayList<Span>()), Util.UTF_8))
+        .isEqualTo("[]");
+  }
+
+  @Test
+  public void writeSpan_tiny() {
+    Span span = new Span().setTrace_id(1L).setId(1L).setName("");
+
+    assertThat(SpanCodec.JSON.writeSpan(span))
+        .isEqualTo(Codec.JSON.writeSpan(span.toZipkin()));
+    assertThat(SpanCodec.JSON.writeSpans(Arrays.asList(span)))
+        .isEqualTo(Codec.JSON.writeSpans(toZipkin(Arrays.asList(span))));
+  }
+
+  @Test
+  public void sizeInBytes() {
+    for (Span span : Arrays.asList(clientSpan(), serverSpan(), allTypes(), escaped())) {
+      String json = zipkinJson(Codec.JSON.writeSpan(span.toZipkin()));
+      assertThat(SpanCodec.JSON.sizeInBytes(span)).isEqualTo(json.getBytes(Util.UTF_8).length);
+    }
+  }
+
+  @Test
+  public void writeSpans_unsortedAndDuplicateAnnotations() {
+    Span span = new Span().setTrace_id(1L).setId(2L).setName("get")
+        .addToAnnotations(Annotation.create(2L, "cr", frontend))
+        .addToAnnotations(Annotation.create(1L, "cs", frontend))
+        .addToAnnotations(Annotation.create(1L, "cs", frontend))
+        .addToBinary_annotations(BinaryAnnotation.create("z", "1", null))
+        .addToBinary_annotations(BinaryAnnotation.create("a", "2", null));
+
+    assertThat(SpanCodec.JSON.writeSpan(span))
+        .isEqualTo(Codec.JSON.writeSpan(span.toZipkin()));
+    assertThat(SpanCodec.JSON.sizeInBytes(span))
+        .isEqualTo(Codec.JSON.writeSpan(span.toZipkin()).length);
+  }
+
+  @Test
+  public void writeSpans_growsAndReusesBuffer() {
+    List<Span> spans = Arrays.asList(clientSpan(), allTypes());
+    byte[] expected = SpanCodec.JSON.writeSpans(spans);
+    Buffer buffer = new Buffer(1);
+
+    SpanCodec.JSON.writeSpans(spans, buffer);
+    assertThat(buffer.toByteArray()).isEqualTo(expected);
+
+    byte[] array = buffer.array();
+    SpanCodec.JSON.writeSpans(spans, buffer.reset());
+    assertThat(buffer.toByteArray()).isEqualTo(expected);
+    assertThat(buffer.array()).isSameAs(array);
+  }
+
+  Span clientSpan() {
+    return new Span().setTrace_id(-692101025335252320L).setId(-692101025335252320L)
+        .setName("get").setTimestamp(1444438900939000L).setDuration(376000L)
+        .addToAnnotations(Annotation.create(1444438900939000L, "cs", frontend))
+        .addToAnnotations(Annotation.create(1444438901315000L, "cr", frontend))
+        .addToBinary_annotations(BinaryAnnotation.create("http.path", "/api", frontend))
+        .addToBinary_annotations(BinaryAnnotation.address("sa", noPort));
+  }
+
+  Span serverSpan() {
+    return new Span().setTrace_id(1L).setId(2L).setParent_id(1L).setName("query")
+        .setDebug(true)
+        .addToAnnotations(Annotation.create(1L, "sr", backend))
+        .addToAnnotations(Annotation.create(2L, "ss", null));
+  }
+
+  Span allTypes() {
+    return new Span().setTrace_id(3L).setId(3L).setName("types")
+        .addToBinary_annotations(BinaryAnnotation.create("a", new byte[] {1, 2, 3, 4},
+            AnnotationType.BYTES, null))
+        .addToBinary_annotations(BinaryAnnotation.create("b", new byte[] {0},
+            AnnotationType.BOOL, backend))
+        .addToBinary_annotations(BinaryAnnotation.create("c",
+            ByteBuffer.allocate(2).putShort(0, (short) -20).array(), AnnotationType.I16, null))
+        .addToBinary_annotations(BinaryAnnotation.create("d",
+            ByteBuffer.allocate(4).putInt(0, Integer.MAX_VALUE).array(), AnnotationType.I32,
+            null))
+        .addToBinary_annotations(BinaryAnnotation.create("e",
+            ByteBuffer.allocate(8).putLong(0, Long.MIN_VALUE).array(), AnnotationType.I64, null))
+        .addToBinary_annotations(BinaryAnnotation.create("f",
+            ByteBuffer.allocate(8).putDouble(0, 1.5d).array(), AnnotationType.DOUBLE, null));
+  }
+
+  Span escaped() {
+    return new Span().setTrace_id(4L).setId(4L).setName("\"quoted\"\t名前 \u2028")
+        .addToAnnotations(Annotation.create(1L, "emoji 😀 \\", frontend))
+        .addToBinary_annotations(BinaryAnnotation.create("sql", "select\n'ü' \u2029", null));
+  }
+
+  /**
+   * Zipkin's codec over-estimates the size of escaped line separators in non-ascii strings, which
+   * leaves zeros after the json.
+   */
+  static String zipkinJson(byte[] bytes) {
+    int length = bytes.length;
+    while (length > 0 && bytes[length - 1] == 0) length--;
+    return new String(bytes, 0, length, Util.UTF_8);
+  }
+
+  static List<me.j360.trace.core.Span> toZipkin(List<Span> spans) {
+    List<me.j360.trace.core.Span> result = new ArrayList<me.j360.trace.core.Span>();
+    for (Span span : spans) result.add(span.toZipkin());
+    return result;
+  }
+}
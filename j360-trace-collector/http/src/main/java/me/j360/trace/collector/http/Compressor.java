@@ -0,0 +1,109 @@
+package me.j360.trace.collector.http;
+
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a batch of encoded spans into an array which is reused across batches. Instances
+ * aren't thread-safe: {@link HttpSpanCollector} pools them, so that each concurrent send has its
+ * own {@link Deflater} and output array.
+ */
+abstract class Compressor {
+
+  static Compressor create(HttpSpanCollector.Compression compression, int level) {
+    switch (compression) {
+      case GZIP:
+        return new Gzip(level);
+      case SNAPPY:
+        try {
+          return new SnappyCompressor();
+        } catch (LinkageError e) {
+          throw new IllegalStateException("SNAPPY compression requires snappy-java", e);
+        }
+      default:
+        throw new AssertionError("unknown compression " + compression);
+    }
+  }
+
+  /** Value of the {@code Content-Encoding} header */
+  final String contentEncoding;
+  byte[] out = new byte[1024];
+  int size;
+
+  Compressor(String contentEncoding) {
+    this.contentEncoding = contentEncoding;
+  }
+
+  /** Replaces {@link #out} with the compressed bytes, and sets {@link #size} to their count. */
+  abstract void compress(byte[] buffer, int offset, int length) throws IOException;
+
+  /** Releases native resources when this instance isn't returned to the pool. */
+  void end() {
+  }
+
+  void require(int capacity) {
+    if (out.length < capacity) {
+      byte[] grown = new byte[Math.max(capacity, out.length * 2)];
+      System.arraycopy(out, 0, grown, 0, size);
+      out = grown;
+    }
+  }
+
+  /** Writes the same bytes as {@link java.util.zip.GZIPOutputStream}, at a configurable level. */
+  static final class Gzip extends Compressor {
+    static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    final Deflater deflater;
+    final CRC32 crc = new CRC32();
+
+    Gzip(int level) {
+      super("gzip");
+      deflater = new Deflater(level, true);
+    }
+
+    @Override void compress(byte[] buffer, int offset, int length) {
+      System.arraycopy(HEADER, 0, out, 0, HEADER.length);
+      size = HEADER.length;
+      deflater.setInput(buffer, offset, length);
+      deflater.finish();
+      while (!deflater.finished()) {
+        if (size == out.length) require(size + 1);
+        size += deflater.deflate(out, size, out.length - size);
+      }
+      deflater.reset();
+      crc.update(buffer, offset, length);
+      require(size + 8);
+      writeIntLe((int) crc.getValue());
+      writeIntLe(length);
+      crc.reset();
+    }
+
+    void writeIntLe(int v) {
+      out[size++] = (byte) v;
+      out[size++] = (byte) (v >>> 8);
+      out[size++] = (byte) (v >>> 16);
+      out[size++] = (byte) (v >>> 24);
+    }
+
+    @Override void end() {
+      deflater.end();
+    }
+  }
+
+  /** Writes a raw snappy block, which compresses less than gzip, but with much less cpu. */
+  static final class SnappyCompressor extends Compressor {
+    SnappyCompressor() {
+      super("snappy");
+      Snappy.maxCompressedLength(0); // fail on construction if the library is missing
+    }
+
+    @Override void compress(byte[] buffer, int offset, int length) throws IOException {
+      size = 0;
+      require(Snappy.maxCompressedLength(length));
+      size = Snappy.rawCompress(buffer, offset, length, out, 0);
+    }
+  }
+}
@@ -3,21 +3,41 @@ package me.j360.trace.collector.http;
 
 import com.google.auto.value.AutoValue;
 import me.j360.trace.collector.core.AbstractSpanCollector;
+import me.j360.trace.collector.core.FlushTrigger;
 import me.j360.trace.collector.core.SpanCollectorMetricsHandler;
+import me.j360.trace.collector.core.SpanQueue;
+import me.j360.trace.collector.core.SpanSpool;
+import me.j360.trace.collector.core.internal.Nullable;
 import me.j360.trace.collector.core.module.SpanCodec;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.zip.GZIPOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+
+import static me.j360.trace.collector.core.internal.Util.checkArgument;
 
 /**
  * SpanCollector which submits spans to Zipkin, using its {@code POST /spans} endpoint.
  */
 public final class HttpSpanCollector extends AbstractSpanCollector {
 
+  /** How spans are compressed when {@link Config.Builder#compressionEnabled} is true. */
+  public enum Compression {
+    /** Sent with {@code Content-Encoding: gzip}, which any zipkin server accepts. */
+    GZIP,
+    /**
+     * Sent with {@code Content-Encoding: snappy}, as a raw snappy block. Uses a fraction of the cpu
+     * of gzip, at a lower compression ratio. Requires snappy-java on the classpath, and a server
+     * which accepts this encoding.
+     */
+    SNAPPY
+  }
+
   @AutoValue
   public static abstract class Config {
     public static Builder builder() {
@@ -25,7 +45,25 @@ public final class HttpSpanCollector extends AbstractSpanCollector {
           .connectTimeout(10 * 1000)
           .readTimeout(60 * 1000)
           .compressionEnabled(false)
-          .flushInterval(1);
+          .compression(Compression.GZIP)
+          .compressionLevel(Deflater.DEFAULT_COMPRESSION)
+          .compressionMinBytes(0)
+          .flushInterval(1)
+          .flushMaxDelay(0)
+          .flushBatchSize(0)
+          .flushBatchBytes(0)
+          .senderThreads(0)
+          .maxInFlightBatches(4)
+          .persistentConnections(0)
+          .maxPipelinedRequests(4)
+          .queueType(SpanQueue.Type.BLOCKING)
+          .queueCapacity(1000)
+          .queueMaxBytes(0)
+          .overflowPolicy(SpanQueue.OverflowPolicy.DROP_NEWEST)
+          .overflowTimeout(0)
+          .spoolDirectory(null)
+          .spoolMaxBytes(64 * 1024 * 1024)
+          .spoolMaxAge(0);
     }
 
     abstract int connectTimeout();
@@ -34,8 +72,44 @@ public final class HttpSpanCollector extends AbstractSpanCollector {
 
     abstract int flushInterval();
 
+    abstract long flushMaxDelay();
+
+    abstract int flushBatchSize();
+
+    abstract int flushBatchBytes();
+
+    abstract int senderThreads();
+
+    abstract int maxInFlightBatches();
+
+    abstract SpanQueue.Type queueType();
+
+    abstract int queueCapacity();
+
+    abstract int queueMaxBytes();
+
+    abstract SpanQueue.OverflowPolicy overflowPolicy();
+
+    abstract long overflowTimeout();
+
+    @Nullable abstract File spoolDirectory();
+
+    abstract long spoolMaxBytes();
+
+    abstract long spoolMaxAge();
+
     abstract boolean compressionEnabled();
 
+    abstract Compression compression();
+
+    abstract int compressionLevel();
+
+    abstract int compressionMinBytes();
+
+    abstract int persistentConnections();
+
+    abstract int maxPipelinedRequests();
+
     @AutoValue.Builder
     public interface Builder {
       /** Default 10 * 1000 milliseconds. 0 implies no timeout. */
@@ -47,6 +121,87 @@ public final class HttpSpanCollector extends AbstractSpanCollector {
       /** Default 1 second. 0 implies spans are {@link #flush() flushed} externally. */
       Builder flushInterval(int flushInterval);
 
+      /**
+       * Default 0, which implies {@link #flushInterval}. Otherwise, the maximum milliseconds a span
+       * waits before it is flushed. Use this for sub-second flushing under light load.
+       */
+      Builder flushMaxDelay(long flushMaxDelay);
+
+      /**
+       * Default 0, which disables. Otherwise, flushes as soon as this many spans are pending,
+       * without waiting for the next interval.
+       */
+      Builder flushBatchSize(int flushBatchSize);
+
+      /**
+       * Default 0, which disables. Otherwise, flushes as soon as this many bytes of json are
+       * pending, without waiting for the next interval.
+       */
+      Builder flushBatchBytes(int flushBatchBytes);
+
+      /**
+       * Default 0, which sends spans on the flushing thread. Otherwise, the flushing thread only
+       * encodes spans, and this many threads send them, so that a slow send doesn't delay the next
+       * flush.
+       */
+      Builder senderThreads(int senderThreads);
+
+      /**
+       * Default 4. Only used when {@link #senderThreads} is positive: maximum count of encoded
+       * batches waiting to be sent. Once reached, spans wait in the queue until a send completes.
+       */
+      Builder maxInFlightBatches(int maxInFlightBatches);
+
+      /**
+       * Default {@link SpanQueue.Type#BLOCKING}. Use {@link SpanQueue.Type#RING} or {@link
+       * SpanQueue.Type#STRIPED} to avoid lock contention when many threads finish spans at once.
+       */
+      Builder queueType(SpanQueue.Type queueType);
+
+      /**
+       * Default 1000. Maximum count of spans pending a flush, after which spans are dropped.
+       * Lock-free queue types round this up to a power of two.
+       */
+      Builder queueCapacity(int queueCapacity);
+
+      /**
+       * Default 0, which implies no limit. Only used by {@link SpanQueue.Type#BOUNDED}: maximum
+       * estimated json size of spans pending a flush.
+       */
+      Builder queueMaxBytes(int queueMaxBytes);
+
+      /**
+       * Default {@link SpanQueue.OverflowPolicy#DROP_NEWEST}. Only used by {@link
+       * SpanQueue.Type#BOUNDED}: what to do when there's no room for a span.
+       */
+      Builder overflowPolicy(SpanQueue.OverflowPolicy overflowPolicy);
+
+      /**
+       * Default 0 milliseconds. Only used by {@link SpanQueue.OverflowPolicy#BLOCK}: how long
+       * {@link #collect} waits for room before dropping a span.
+       */
+      Builder overflowTimeout(long overflowTimeout);
+
+      /**
+       * Default null, which drops spans that fail to send. Otherwise, a directory where batches
+       * that fail to send, spans that overflow the queue, and spans pending on close are spooled.
+       * They are sent, oldest first, once the transport recovers, including by the next collector
+       * to use this directory.
+       */
+      Builder spoolDirectory(@Nullable File spoolDirectory);
+
+      /**
+       * Default 64MiB. Only used with {@link #spoolDirectory}: maximum size of spool files. Once
+       * reached, the oldest spooled spans are dropped.
+       */
+      Builder spoolMaxBytes(long spoolMaxBytes);
+
+      /**
+       * Default 0, which implies no limit. Only used with {@link #spoolDirectory}: milliseconds
+       * after which a spooled batch is dropped instead of sent.
+       */
+      Builder spoolMaxAge(long spoolMaxAge);
+
       /**
        * Default false. true implies that spans will be gzipped before transport.
        *
@@ -54,12 +209,49 @@ public final class HttpSpanCollector extends AbstractSpanCollector {
        */
       Builder compressionEnabled(boolean compressSpans);
 
+      /** Default {@link Compression#GZIP}. Only used when {@link #compressionEnabled}. */
+      Builder compression(Compression compression);
+
+      /**
+       * Default {@link Deflater#DEFAULT_COMPRESSION}. Only used by {@link Compression#GZIP}: 1
+       * ({@link Deflater#BEST_SPEED}) through 9 ({@link Deflater#BEST_COMPRESSION}).
+       */
+      Builder compressionLevel(int compressionLevel);
+
+      /**
+       * Default 0. Only used when {@link #compressionEnabled}: batches smaller than this many bytes
+       * of json are sent uncompressed, as compressing them costs more than it saves.
+       */
+      Builder compressionMinBytes(int compressionMinBytes);
+
+      /**
+       * Default 0, which opens a {@link HttpURLConnection} per batch, and waits for its response.
+       * Otherwise, keeps this many persistent connections to an http (not https) url, and completes
+       * requests asynchronously. Failed or timed out requests are reported as dropped spans.
+       */
+      Builder persistentConnections(int persistentConnections);
+
+      /**
+       * Default 4. Only used when {@link #persistentConnections} is positive: maximum requests
+       * written to a connection before its responses arrive. Set to 1 if the server doesn't support
+       * HTTP/1.1 pipelining.
+       */
+      Builder maxPipelinedRequests(int maxPipelinedRequests);
+
       Config build();
     }
   }
 
+  /** Compressors whose output array grew larger than this, for example after a burst, are freed. */
+  static final int MAX_POOLED_OUTPUT_SIZE = 1024 * 1024;
+
   private final String url;
   private final Config config;
+  @Nullable // when using HttpURLConnection
+  private final NioHttpSender persistent;
+  /** Compressors which aren't in use by a send. At most one per concurrent send is created. */
+  private final ConcurrentLinkedQueue<Compressor> compressors =
+      new ConcurrentLinkedQueue<Compressor>();
 
   /**
    * Create a new instance with default configuration.
@@ -85,30 +277,98 @@ public final class HttpSpanCollector extends AbstractSpanCollector {
 
   // Visible for testing. Ex when tests need to explicitly control flushing, set interval to 0.
   HttpSpanCollector(String baseUrl, Config config, SpanCollectorMetricsHandler metrics) {
-    super(SpanCodec.JSON, metrics,  config.flushInterval());
+    super(SpanCodec.JSON, metrics,
+        SpanQueue.create(config.queueType(), config.queueCapacity(), config.queueMaxBytes(),
+            config.overflowPolicy(), config.overflowTimeout(), metrics),
+        FlushTrigger.create(
+            config.flushMaxDelay() > 0 ? config.flushMaxDelay() : config.flushInterval() * 1000L,
+            config.flushBatchSize(), config.flushBatchBytes()),
+        config.senderThreads(), config.maxInFlightBatches(),
+        SpanSpool.create(config.spoolDirectory(), config.spoolMaxBytes(), config.spoolMaxAge(),
+            metrics));
     this.url = baseUrl + (baseUrl.endsWith("/") ? "" : "/") + "api/v1/spans";
     this.config = config;
+    if (config.compressionEnabled()) {
+      checkArgument(config.compressionLevel() == Deflater.DEFAULT_COMPRESSION
+              || (config.compressionLevel() >= 0 && config.compressionLevel() <= 9),
+          "compressionLevel should be between 0 and 9: was %s", config.compressionLevel());
+      // fail fast when the codec isn't available, as opposed to dropping every batch
+      compressors.offer(Compressor.create(config.compression(), config.compressionLevel()));
+    }
+    if (config.persistentConnections() == 0) {
+      this.persistent = null;
+    } else {
+      checkArgument(config.maxPipelinedRequests() > 0,
+          "maxPipelinedRequests should be positive: was %s", config.maxPipelinedRequests());
+      try {
+        this.persistent = new NioHttpSender(url, config.persistentConnections(),
+            config.maxPipelinedRequests(), config.connectTimeout(), config.readTimeout(), metrics,
+            config.spoolDirectory() == null ? null : new NioHttpSender.FailureHandler() {
+              @Override public void onFailure(byte[] batch, int spanCount) {
+                spoolOrDrop(batch, 0, batch.length, spanCount, null);
+              }
+            });
+      } catch (IOException e) {
+        throw new IllegalStateException("couldn't open a selector", e);
+      }
+    }
   }
 
   @Override
-  protected void sendSpans(byte[] json) throws IOException {
+  protected void sendSpans(byte[] buffer, int offset, int length, int spanCount)
+      throws IOException {
+    if (persistent == null) {
+      sendSpans(buffer, offset, length);
+      return;
+    }
+    // the response arrives after the buffer is reused, so keep a copy to spool if it fails
+    byte[] batch = persistent.failureHandler != null
+        ? Arrays.copyOfRange(buffer, offset, offset + length)
+        : null;
+    Compressor compressor = compress(buffer, offset, length);
+    if (compressor == null) {
+      persistent.send(buffer, offset, length, null, spanCount, batch);
+      return;
+    }
+    try { // send copies the body, so the compressor can be reused as soon as it returns
+      persistent.send(compressor.out, 0, compressor.size, compressor.contentEncoding, spanCount,
+          batch);
+    } finally {
+      release(compressor);
+    }
+  }
+
+  /**
+   * Replays over {@link HttpURLConnection} even when there are persistent connections, as the batch
+   * must stay spooled until the server responds.
+   */
+  @Override
+  protected void replay(SpanSpool.Record record) throws IOException {
+    sendSpans(record.bytes, 0, record.bytes.length);
+  }
+
+  @Override
+  protected void sendSpans(byte[] buffer, int offset, int length) throws IOException {
     // intentionally not closing the connection, so as to use keep-alives
     HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
     connection.setConnectTimeout(config.connectTimeout());
     connection.setReadTimeout(config.readTimeout());
     connection.setRequestMethod("POST");
     connection.addRequestProperty("Content-Type", "application/json");
-    if (config.compressionEnabled()) {
-      connection.addRequestProperty("Content-Encoding", "gzip");
-      ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
-      try (GZIPOutputStream compressor = new GZIPOutputStream(gzipped)) {
-        compressor.write(json);
+    Compressor compressor = compress(buffer, offset, length);
+    try {
+      if (compressor != null) {
+        connection.addRequestProperty("Content-Encoding", compressor.contentEncoding);
+        buffer = compressor.out;
+        offset = 0;
+        length = compressor.size;
       }
-      json = gzipped.toByteArray();
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(length);
+      connection.getOutputStream().write(buffer, offset, length);
+    } finally {
+      if (compressor != null) release(compressor);
     }
-    connection.setDoOutput(true);
-    connection.setFixedLengthStreamingMode(json.length);
-    connection.getOutputStream().write(json);
 
     try (InputStream in = connection.getInputStream()) {
       while (in.read() != -1) ; // skip
@@ -121,4 +381,38 @@ public final class HttpSpanCollector extends AbstractSpanCollector {
       throw e;
     }
   }
+
+  /** Returns a compressor holding the compressed batch, or null if it should be sent as-is. */
+  @Nullable Compressor compress(byte[] buffer, int offset, int length) throws IOException {
+    if (!config.compressionEnabled() || length < config.compressionMinBytes()) return null;
+    Compressor compressor = compressors.poll();
+    if (compressor == null) {
+      compressor = Compressor.create(config.compression(), config.compressionLevel());
+    }
+    try {
+      compressor.compress(buffer, offset, length);
+    } catch (IOException | RuntimeException e) {
+      compressor.end();
+      throw e;
+    }
+    return compressor;
+  }
+
+  void release(Compressor compressor) {
+    if (compressor.out.length > MAX_POOLED_OUTPUT_SIZE) {
+      compressor.end(); // don't retain memory from an unusually large batch
+      return;
+    }
+    compressors.offer(compressor);
+  }
+
+  /** Stops flushing, then waits for requests on persistent connections to complete. */
+  @Override
+  public void close() {
+    super.close();
+    if (persistent != null) persistent.close();
+    for (Compressor compressor; (compressor = compressors.poll()) != null; ) {
+      compressor.end();
+    }
+  }
 }
@@ -0,0 +1,517 @@
+package me.j360.trace.collector.http;
+
+import me.j360.trace.collector.core.SpanCollectorMetricsHandler;
+import me.j360.trace.collector.core.internal.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Posts spans over a small pool of persistent HTTP/1.1 connections, driven by one selector thread.
+ *
+ * <p>{@link #send} returns once the request is queued. Each connection pipelines up to {@code
+ * maxPipelined} requests, and responses complete them in order. When every connection is full,
+ * {@link #send} waits, which backs spans up into the collector's pending queue.
+ *
+ * <p>Failures aren't retried, as the server may have stored the spans already. Requests fail when
+ * the server responds with a non-2xx status, when their connection fails or when they are still
+ * unanswered after the read timeout. Failed requests are passed to the {@link FailureHandler}, if
+ * there is one, or reported as dropped.
+ */
+final class NioHttpSender implements Closeable {
+  static final Charset ASCII = Charset.forName("US-ASCII");
+
+  /** Receives the batches of failed requests, for example to spool them. Called on any thread. */
+  interface FailureHandler {
+    /** @param batch the uncompressed batch passed to {@link #send}, for the spans it holds */
+    void onFailure(byte[] batch, int spanCount);
+  }
+
+  final InetSocketAddress address;
+  final byte[] requestLine;
+  final long connectTimeoutNanos;
+  final long readTimeoutNanos;
+  final int maxPipelined;
+  final SpanCollectorMetricsHandler metrics;
+  @Nullable final FailureHandler failureHandler;
+  final Connection[] connections;
+  final Semaphore capacity;
+  final ConcurrentLinkedQueue<Request> submitted = new ConcurrentLinkedQueue<Request>();
+  final Selector selector;
+  final Thread ioThread;
+  volatile boolean closed;
+
+  /**
+   * @param url like http://localhost:9411/api/v1/spans. Only plain http is supported.
+   * @param connectTimeout milliseconds. 0 implies no timeout.
+   * @param readTimeout milliseconds to wait for a response after queuing a request. 0 implies no
+   * timeout.
+   * @param failureHandler null to report the spans of failed requests as dropped
+   */
+  NioHttpSender(String url, int connections, int maxPipelined, int connectTimeout,
+      int readTimeout, SpanCollectorMetricsHandler metrics,
+      @Nullable FailureHandler failureHandler) throws IOException {
+    URI uri = URI.create(url);
+    if (!"http".equals(uri.getScheme())) {
+      throw new IllegalArgumentException("Only http urls are supported: " + url);
+    }
+    int port = uri.getPort() == -1 ? 80 : uri.getPort();
+    this.address = new InetSocketAddress(uri.getHost(), port);
+    this.requestLine = ("POST " + uri.getRawPath() + " HTTP/1.1\r\n"
+        + "Host: " + uri.getHost() + (uri.getPort() == -1 ? "" : ":" + port) + "\r\n"
+        + "Content-Type: application/json\r\n").getBytes(ASCII);
+    this.connectTimeoutNanos = MILLISECONDS.toNanos(connectTimeout);
+    this.readTimeoutNanos = MILLISECONDS.toNanos(readTimeout);
+    this.maxPipelined = maxPipelined;
+    this.metrics = metrics;
+    this.failureHandler = failureHandler;
+    this.connections = new Connection[connections];
+    for (int i = 0; i < connections; i++) {
+      this.connections[i] = new Connection();
+    }
+    this.capacity = new Semaphore(connections * maxPipelined);
+    this.selector = Selector.open();
+    this.ioThread = new Thread(new Runnable() {
+      @Override public void run() {
+        loop();
+      }
+    }, "HttpSpanCollector-io");
+    this.ioThread.start();
+  }
+
+  /**
+   * Queues a POST of the body, copying it, so that the caller can reuse its buffer.
+   *
+   * @param contentEncoding null when the body isn't compressed
+   * @param batch passed to the {@link FailureHandler} if the request fails. Null to report its
+   * spans as dropped instead.
+   */
+  void send(byte[] body, int offset, int length, String contentEncoding, int spanCount,
+      @Nullable byte[] batch) {
+    StringBuilder headers = new StringBuilder();
+    if (contentEncoding != null) {
+      headers.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
+    }
+    headers.append("Content-Length: ").append(length).append("\r\n\r\n");
+    byte[] extraHeaders = headers.toString().getBytes(ASCII);
+
+    ByteBuffer data = ByteBuffer.allocate(requestLine.length + extraHeaders.length + length);
+    data.put(requestLine).put(extraHeaders).put(body, offset, length).flip();
+
+    capacity.acquireUninterruptibly();
+    if (closed) {
+      fail(new Request(data, spanCount, batch));
+      return;
+    }
+    submitted.add(new Request(data, spanCount, batch));
+    if (closed) { // the IO thread may have exited after the check above
+      failSubmitted();
+      return;
+    }
+    selector.wakeup();
+  }
+
+  /** Waits up to the read timeout for queued requests to complete, then closes connections. */
+  @Override
+  public void close() {
+    closed = true;
+    selector.wakeup();
+    try {
+      ioThread.join(readTimeoutNanos == 0 ? 0 : NANOSECONDS.toMillis(readTimeoutNanos) + 1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (ioThread.isAlive()) ioThread.interrupt();
+  }
+
+  void loop() {
+    try {
+      while (!closed || hasOutstanding()) {
+        assignSubmitted();
+        long deadline = nextDeadline();
+        long timeoutNanos = deadline == Long.MAX_VALUE ? 0 : deadline - System.nanoTime();
+        if (deadline == Long.MAX_VALUE) {
+          selector.select();
+        } else if (timeoutNanos > 0) {
+          selector.select(Math.max(1, NANOSECONDS.toMillis(timeoutNanos)));
+        } else {
+          selector.selectNow();
+        }
+        if (Thread.interrupted()) break;
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          ((Connection) key.attachment()).onReady(key);
+        }
+        long now = System.nanoTime();
+        for (Connection connection : connections) {
+          connection.checkTimeout(now);
+        }
+      }
+    } catch (IOException e) {
+      // the selector itself failed: nothing to do but drop what's outstanding
+    } catch (RuntimeException e) {
+      // a bug, or the selector was closed: same as above
+    } finally {
+      closed = true; // so that send fails fast instead of waiting for capacity that never frees
+      for (Connection connection : connections) {
+        connection.failAll();
+      }
+      failSubmitted();
+      try {
+        selector.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  void failSubmitted() {
+    Request request;
+    while ((request = submitted.poll()) != null) fail(request);
+  }
+
+  boolean hasOutstanding() {
+    if (!submitted.isEmpty()) return true;
+    for (Connection connection : connections) {
+      if (connection.outstanding() > 0) return true;
+    }
+    return false;
+  }
+
+  void assignSubmitted() {
+    Request request;
+    while ((request = submitted.peek()) != null) {
+      Connection best = null;
+      for (Connection connection : connections) {
+        if (connection.outstanding() >= maxPipelined) continue;
+        if (best == null || connection.outstanding() < best.outstanding()) best = connection;
+      }
+      if (best == null) return; // not possible, as capacity permits are released on completion
+      submitted.poll();
+      best.enqueue(request);
+    }
+  }
+
+  long nextDeadline() {
+    long result = Long.MAX_VALUE;
+    for (Connection connection : connections) {
+      result = Math.min(result, connection.deadline());
+    }
+    return result;
+  }
+
+  void complete(Request request, boolean success) {
+    if (!success) {
+      if (failureHandler != null && request.batch != null) {
+        failureHandler.onFailure(request.batch, request.spanCount);
+      } else {
+        metrics.incrementDroppedSpans(request.spanCount);
+      }
+    }
+    capacity.release();
+  }
+
+  void fail(Request request) {
+    complete(request, false);
+  }
+
+  static final class Request {
+    final ByteBuffer data;
+    final int spanCount;
+    @Nullable final byte[] batch;
+    long deadline = Long.MAX_VALUE;
+
+    Request(ByteBuffer data, int spanCount, @Nullable byte[] batch) {
+      this.data = data;
+      this.spanCount = spanCount;
+      this.batch = batch;
+    }
+  }
+
+  final class Connection {
+    final ArrayDeque<Request> writing = new ArrayDeque<Request>();
+    final ArrayDeque<Request> awaiting = new ArrayDeque<Request>();
+    final ResponseParser parser = new ResponseParser();
+    final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    SocketChannel channel;
+    SelectionKey key;
+    long connectDeadline = Long.MAX_VALUE;
+
+    int outstanding() {
+      return writing.size() + awaiting.size();
+    }
+
+    long deadline() {
+      long result = connectDeadline;
+      if (!awaiting.isEmpty()) result = Math.min(result, awaiting.peek().deadline);
+      if (!writing.isEmpty()) result = Math.min(result, writing.peek().deadline);
+      return result;
+    }
+
+    void enqueue(Request request) {
+      if (readTimeoutNanos != 0) request.deadline = System.nanoTime() + readTimeoutNanos;
+      writing.add(request);
+      try {
+        if (channel == null) {
+          open();
+        } else if (channel.isConnected()) {
+          key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+      } catch (IOException e) {
+        failAll();
+      }
+    }
+
+    void open() throws IOException {
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      parser.reset();
+      if (channel.connect(address)) {
+        key = channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+      } else {
+        key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+        if (connectTimeoutNanos != 0) connectDeadline = System.nanoTime() + connectTimeoutNanos;
+      }
+    }
+
+    void onReady(SelectionKey key) {
+      try {
+        if (!key.isValid()) {
+          failAll();
+          return;
+        }
+        if (key.isConnectable()) {
+          channel.finishConnect();
+          connectDeadline = Long.MAX_VALUE;
+          key.interestOps(SelectionKey.OP_READ
+              | (writing.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+        if (key.isValid() && key.isWritable()) write();
+        if (key.isValid() && key.isReadable()) read();
+      } catch (IOException e) {
+        failAll();
+      } catch (RuntimeException e) { // ex. a malformed Content-Length: only fail this connection
+        failAll();
+      }
+    }
+
+    void write() throws IOException {
+      while (!writing.isEmpty()) {
+        Request request = writing.peek();
+        channel.write(request.data);
+        if (request.data.hasRemaining()) return; // socket buffer is full: wait until writable
+        awaiting.add(writing.poll());
+      }
+      key.interestOps(SelectionKey.OP_READ);
+    }
+
+    void read() throws IOException {
+      while (true) {
+        readBuffer.clear();
+        int read = channel.read(readBuffer);
+        if (read == -1) {
+          // a server which delimits the body by closing completes the last response here
+          if (parser.completeOnClose() && !awaiting.isEmpty()) {
+            complete(awaiting.poll(), parser.success());
+          }
+          failAll();
+          return;
+        }
+        if (read == 0) return;
+        parser.append(readBuffer.array(), read);
+        while (parser.parse()) {
+          Request request = awaiting.poll();
+          if (request == null) throw new IOException("response without a request");
+          complete(request, parser.success());
+          if (parser.closeAfterResponse()) {
+            close(true);
+            return;
+          }
+        }
+      }
+    }
+
+    void checkTimeout(long now) {
+      long deadline = deadline();
+      if (channel != null && deadline != Long.MAX_VALUE && deadline - now <= 0) failAll();
+    }
+
+    /** Closes the connection, dropping any requests on it. */
+    void failAll() {
+      close(false);
+    }
+
+    /**
+     * Closes the connection, dropping requests written to it. When the server closed politely,
+     * requests it hasn't seen yet are retried on another connection.
+     */
+    void close(boolean retryUnwritten) {
+      if (channel != null) {
+        try {
+          channel.close(); // also cancels the key
+        } catch (IOException ignored) {
+        }
+        channel = null;
+        key = null;
+      }
+      connectDeadline = Long.MAX_VALUE;
+      Request request;
+      while ((request = awaiting.poll()) != null) fail(request);
+      while ((request = writing.poll()) != null) {
+        if (retryUnwritten && request.data.position() == 0 && !closed) {
+          submitted.add(request); // the server hasn't seen any of it
+        } else {
+          fail(request);
+        }
+      }
+    }
+  }
+
+  /** Parses pipelined HTTP/1.1 responses, skipping their bodies. */
+  static final class ResponseParser {
+    byte[] in = new byte[1024];
+    int length;
+    int status;
+    boolean close;
+    boolean untilClose;
+
+    void reset() {
+      length = 0;
+      untilClose = false;
+    }
+
+    void append(byte[] bytes, int count) {
+      if (length + count > in.length) in = Arrays.copyOf(in, Math.max(length + count, in.length * 2));
+      System.arraycopy(bytes, 0, in, length, count);
+      length += count;
+    }
+
+    boolean success() {
+      return status >= 200 && status < 300;
+    }
+
+    boolean closeAfterResponse() {
+      return close;
+    }
+
+    boolean completeOnClose() {
+      return untilClose;
+    }
+
+    /** Returns true when a complete response was consumed. */
+    boolean parse() throws IOException {
+      while (true) {
+        if (untilClose) return false;
+        int headerEnd = indexOf(CRLFCRLF, 0);
+        if (headerEnd == -1) return false;
+        int bodyStart = headerEnd + 4;
+
+        String head = new String(in, 0, headerEnd, ASCII);
+        String[] lines = head.split("\r\n");
+        String[] statusLine = lines[0].split(" ", 3);
+        if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/1.")) {
+          throw new IOException("unexpected status line: " + lines[0]);
+        }
+        try {
+          status = Integer.parseInt(statusLine[1]);
+        } catch (NumberFormatException e) {
+          throw new IOException("unexpected status line: " + lines[0]);
+        }
+        long contentLength = -1;
+        boolean chunked = false;
+        close = statusLine[0].equals("HTTP/1.0");
+        for (int i = 1; i < lines.length; i++) {
+          int colon = lines[i].indexOf(':');
+          if (colon == -1) continue;
+          String name = lines[i].substring(0, colon).trim();
+          String value = lines[i].substring(colon + 1).trim();
+          if (name.equalsIgnoreCase("Content-Length")) {
+            contentLength = Long.parseLong(value);
+          } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+            chunked = value.toLowerCase().contains("chunked");
+          } else if (name.equalsIgnoreCase("Connection")) {
+            close = value.equalsIgnoreCase("close");
+          }
+        }
+
+        int end;
+        if (status / 100 == 1 || status == 204 || status == 304) {
+          end = bodyStart;
+        } else if (chunked) {
+          end = chunkedEnd(bodyStart);
+          if (end == -1) return false;
+        } else if (contentLength >= 0) {
+          if (length < bodyStart + contentLength) return false;
+          end = (int) (bodyStart + contentLength);
+        } else {
+          untilClose = true;
+          return false;
+        }
+        consume(end);
+        if (status / 100 == 1) continue; // ex. 100 Continue precedes the real response
+        return true;
+      }
+    }
+
+    /** Returns the index after the last chunk and trailers, or -1 if more input is needed. */
+    int chunkedEnd(int pos) throws IOException {
+      while (true) {
+        int lineEnd = indexOf(CRLF, pos);
+        if (lineEnd == -1) return -1;
+        String sizeLine = new String(in, pos, lineEnd - pos, ASCII);
+        int semicolon = sizeLine.indexOf(';');
+        if (semicolon != -1) sizeLine = sizeLine.substring(0, semicolon);
+        int size;
+        try {
+          size = Integer.parseInt(sizeLine.trim(), 16);
+        } catch (NumberFormatException e) {
+          throw new IOException("unexpected chunk size: " + sizeLine);
+        }
+        pos = lineEnd + 2;
+        if (size == 0) { // trailers end with an empty line
+          if (length >= pos + 2 && in[pos] == '\r' && in[pos + 1] == '\n') return pos + 2;
+          int trailersEnd = indexOf(CRLFCRLF, pos);
+          return trailersEnd == -1 ? -1 : trailersEnd + 4;
+        }
+        if (length < pos + size + 2) return -1;
+        pos += size + 2;
+      }
+    }
+
+    void consume(int count) {
+      System.arraycopy(in, count, in, 0, length - count);
+      length -= count;
+    }
+
+    int indexOf(byte[] pattern, int from) {
+      outer:
+      for (int i = from, last = length - pattern.length; i <= last; i++) {
+        for (int j = 0; j < pattern.length; j++) {
+          if (in[i + j] != pattern[j]) continue outer;
+        }
+        return i;
+      }
+      return -1;
+    }
+
+    static final byte[] CRLF = {'\r', '\n'};
+    static final byte[] CRLFCRLF = {'\r', '\n', '\r', '\n'};
+  }
+}
@@ -0,0 +1,77 @@
+package me.j360.trace.collector.http;
+
+import org.junit.Test;
+import org.xerial.snappy.Snappy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static me.j360.trace.collector.http.HttpSpanCollector.Compression.GZIP;
+import static me.j360.trace.collector.http.HttpSpanCollector.Compression.SNAPPY;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompressorTest {
+  byte[] json = ("[{\"traceId\":\"0000000000000001\",\"name\":\"get\",\"id\":\"0000000000000001\"},"
+      + "{\"traceId\":\"0000000000000002\",\"name\":\"get\",\"id\":\"0000000000000002\"}]")
+      .getBytes();
+
+  @Test
+  public void gzip_sameBytesAsGZIPOutputStream() throws Exception {
+    Compressor compressor = Compressor.create(GZIP, Deflater.DEFAULT_COMPRESSION);
+    compressor.compress(json, 0, json.length);
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(expected)) {
+      out.write(json);
+    }
+    assertThat(Arrays.copyOf(compressor.out, compressor.size))
+        .isEqualTo(expected.toByteArray());
+  }
+
+  @Test
+  public void gzip_reusedAcrossBatchesAndLevels() throws Exception {
+    for (int level : new int[] {Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION}) {
+      Compressor compressor = Compressor.create(GZIP, level);
+      for (int i = 0; i < 3; i++) {
+        compressor.compress(json, 1, json.length - 2);
+        assertThat(gunzip(compressor)).isEqualTo(Arrays.copyOfRange(json, 1, json.length - 1));
+      }
+      compressor.end();
+    }
+  }
+
+  @Test
+  public void gzip_growsOutputForIncompressibleInput() throws Exception {
+    byte[] random = new byte[10000];
+    new Random(0).nextBytes(random);
+
+    Compressor compressor = Compressor.create(GZIP, Deflater.BEST_SPEED);
+    compressor.compress(random, 0, random.length);
+
+    assertThat(compressor.out.length).isGreaterThan(random.length);
+    assertThat(gunzip(compressor)).isEqualTo(random);
+  }
+
+  @Test
+  public void snappy_roundTrips() throws Exception {
+    Compressor compressor = Compressor.create(SNAPPY, Deflater.DEFAULT_COMPRESSION);
+    assertThat(compressor.contentEncoding).isEqualTo("snappy");
+
+    for (int i = 0; i < 2; i++) {
+      compressor.compress(json, 0, json.length);
+      assertThat(compressor.size).isLessThan(json.length);
+      assertThat(Snappy.uncompress(Arrays.copyOf(compressor.out, compressor.size)))
+          .isEqualTo(json);
+    }
+  }
+
+  static byte[] gunzip(Compressor compressor) throws Exception {
+    return PersistentHttpSpanCollectorTest.readFully(new GZIPInputStream(
+        new ByteArrayInputStream(compressor.out, 0, compressor.size)));
+  }
+}
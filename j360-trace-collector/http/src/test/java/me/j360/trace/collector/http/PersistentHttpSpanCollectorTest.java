@@ -0,0 +1,352 @@
+package me.j360.trace.collector.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import me.j360.trace.collector.core.SpanCollectorMetricsHandler;
+import me.j360.trace.collector.core.module.Span;
+import me.j360.trace.core.Codec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xerial.snappy.Snappy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** Uses the JDK's http server as a stand-in for zipkin. */
+public class PersistentHttpSpanCollectorTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  HttpServer server;
+  volatile int responseCode = 202;
+  volatile long responseDelay;
+  final List<me.j360.trace.core.Span> received =
+      new CopyOnWriteArrayList<me.j360.trace.core.Span>();
+  final Set<Integer> clientPorts =
+      Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+  final AtomicInteger requests = new AtomicInteger();
+  final List<String> encodings = new CopyOnWriteArrayList<String>();
+
+  TestMetricsHandler metrics = new TestMetricsHandler();
+  HttpSpanCollector collector;
+
+  @Before
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/api/v1/spans", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        InputStream body = exchange.getRequestBody();
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        encodings.add(String.valueOf(encoding));
+        if ("gzip".equals(encoding)) {
+          body = new GZIPInputStream(body);
+        }
+        byte[] json = readFully(body);
+        if ("snappy".equals(encoding)) json = Snappy.uncompress(json);
+        received.addAll(Codec.JSON.readSpans(json));
+        if (responseDelay > 0) {
+          try {
+            Thread.sleep(responseDelay);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        exchange.sendResponseHeaders(responseCode, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+  }
+
+  @After
+  public void close() {
+    if (collector != null) collector.close();
+    server.stop(0);
+  }
+
+  HttpSpanCollector.Config.Builder config() {
+    // set flush interval to 0 so that tests can drive flushing explicitly
+    return HttpSpanCollector.Config.builder().flushInterval(0).persistentConnections(1);
+  }
+
+  HttpSpanCollector newCollector(HttpSpanCollector.Config config) {
+    String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    return collector = new HttpSpanCollector(url, config, metrics);
+  }
+
+  @Test
+  public void postsSpans_overOnePersistentConnection() throws Exception {
+    newCollector(config().maxPipelinedRequests(1).build());
+
+    for (long i = 1; i <= 3; i++) {
+      collector.collect(span(i, "foo"));
+      collector.flush(); // returns before the response
+    }
+    collector.close(); // waits for responses
+
+    assertThat(requests.get()).isEqualTo(3);
+    assertThat(received).extracting("id").containsExactly(1L, 2L, 3L);
+    assertThat(clientPorts).hasSize(1);
+    assertThat(metrics.droppedSpans.get()).isZero();
+  }
+
+  @Test
+  public void pipelinesRequests() throws Exception {
+    responseDelay = 50;
+    newCollector(config().maxPipelinedRequests(4).build());
+
+    for (long i = 1; i <= 8; i++) {
+      collector.collect(span(i, "foo"));
+      collector.flush();
+    }
+    collector.close();
+
+    assertThat(received).extracting("id").containsExactly(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L);
+    assertThat(clientPorts).hasSize(1);
+    assertThat(metrics.droppedSpans.get()).isZero();
+  }
+
+  @Test
+  public void postsCompressedSpans() throws Exception {
+    newCollector(config().compressionEnabled(true).build());
+
+    collector.collect(span(1L, "foo"));
+    collector.flush();
+    collector.close();
+
+    assertThat(received).extracting("id").containsExactly(1L);
+    assertThat(encodings).containsExactly("gzip");
+  }
+
+  @Test
+  public void postsCompressedSpans_snappy() throws Exception {
+    newCollector(config().compressionEnabled(true)
+        .compression(HttpSpanCollector.Compression.SNAPPY).build());
+
+    for (long i = 1; i <= 3; i++) {
+      collector.collect(span(i, "foo"));
+      collector.flush(); // reuses the same compressor
+    }
+    collector.close();
+
+    assertThat(received).extracting("id").containsExactly(1L, 2L, 3L);
+    assertThat(encodings).containsExactly("snappy", "snappy", "snappy");
+  }
+
+  @Test
+  public void doesntCompressSmallBatches() throws Exception {
+    newCollector(config().compressionEnabled(true).compressionMinBytes(200).build());
+
+    collector.collect(span(1L, "foo"));
+    collector.flush();
+    for (long i = 2; i <= 5; i++) {
+      collector.collect(span(i, "foo"));
+    }
+    collector.flush();
+    collector.close();
+
+    assertThat(received).extracting("id").containsExactly(1L, 2L, 3L, 4L, 5L);
+    assertThat(encodings).containsExactly("null", "gzip");
+  }
+
+  @Test
+  public void postsCompressedSpans_httpUrlConnection() throws Exception {
+    newCollector(config().persistentConnections(0).compressionEnabled(true)
+        .compressionLevel(Deflater.BEST_SPEED).build());
+
+    collector.collect(span(1L, "foo"));
+    collector.flush();
+    collector.collect(span(2L, "bar"));
+    collector.flush();
+
+    assertThat(received).extracting("id").containsExactly(1L, 2L);
+    assertThat(encodings).containsExactly("gzip", "gzip");
+  }
+
+  @Test
+  public void spreadsRequestsAcrossConnections() throws Exception {
+    responseDelay = 200;
+    newCollector(config().persistentConnections(2).maxPipelinedRequests(1).build());
+
+    collector.collect(span(1L, "foo"));
+    collector.flush();
+    collector.collect(span(2L, "bar"));
+    collector.flush();
+    collector.close();
+
+    assertThat(received).hasSize(2);
+    assertThat(clientPorts).hasSize(2);
+  }
+
+  @Test
+  public void incrementsDroppedSpansWhenServerErrors() throws Exception {
+    responseCode = 500;
+    newCollector(config().build());
+
+    collector.collect(span(1L, "foo"));
+    collector.collect(span(2L, "bar"));
+    collector.flush();
+    collector.close();
+
+    assertThat(metrics.droppedSpans.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void incrementsDroppedSpansOnReadTimeout() throws Exception {
+    responseDelay = 2000;
+    newCollector(config().readTimeout(100).build());
+
+    collector.collect(span(1L, "foo"));
+    collector.flush();
+    collector.close();
+
+    assertThat(metrics.droppedSpans.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void incrementsDroppedSpansWhenServerIsDown() throws Exception {
+    HttpSpanCollector.Config config = config().build();
+    server.stop(0);
+    newCollector(config);
+
+    collector.collect(span(1L, "foo"));
+    collector.flush();
+    collector.close();
+
+    assertThat(metrics.droppedSpans.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void spoolsWhileServerErrors_httpUrlConnection() throws Exception {
+    responseCode = 500;
+    newCollector(config().persistentConnections(0).spoolDirectory(folder.getRoot()).build());
+
+    collector.collect(span(1L, "foo"));
+    collector.flush();
+    responseCode = 202;
+    collector.collect(span(2L, "bar"));
+    collector.flush(); // replays the first batch, then sends the second
+
+    assertThat(received).extracting("id").containsExactly(1L, 1L, 2L); // 500 after storing
+    assertThat(metrics.droppedSpans.get()).isZero();
+  }
+
+  @Test
+  public void spoolsWhileServerErrors() throws Exception {
+    responseCode = 500;
+    newCollector(config().compressionEnabled(true).spoolDirectory(folder.getRoot()).build());
+    collector.collect(span(1L, "foo"));
+    collector.flush();
+    collector.close(); // waits for the response
+
+    responseCode = 202;
+    newCollector(config().spoolDirectory(folder.getRoot()).build());
+    collector.flush(); // replays the failed batch
+    collector.close();
+
+    assertThat(received).extracting("id").containsExactly(1L, 1L); // 500 after storing
+    assertThat(metrics.droppedSpans.get()).isZero();
+  }
+
+  @Test
+  public void replayKeepsBatchSpooledUntilServerAccepts() throws Exception {
+    newCollector(config().spoolDirectory(folder.getRoot()).build());
+    collector.collect(span(1L, "foo"));
+    collector.close(); // spools the pending span
+
+    responseCode = 500;
+    newCollector(config().spoolDirectory(folder.getRoot()).build());
+    collector.flush(); // the replay fails, so the batch stays spooled
+    responseCode = 202;
+    collector.flush();
+    collector.close();
+
+    assertThat(received).extracting("id").containsExactly(1L, 1L); // 500 after storing
+    assertThat(metrics.droppedSpans.get()).isZero();
+  }
+
+  @Test(timeout = 10000L)
+  public void sendFailsFastWhenIoThreadExits() throws Exception {
+    NioHttpSender sender = new NioHttpSender(
+        "http://127.0.0.1:" + server.getAddress().getPort() + "/api/v1/spans", 1, 1, 0, 0,
+        metrics, null);
+    sender.selector.close(); // the next select throws
+    sender.ioThread.join();
+
+    byte[] json = Codec.JSON.writeSpans(Collections.singletonList(span(1L, "foo").toZipkin()));
+    for (int i = 0; i < 3; i++) { // more than capacity, which would block if permits leaked
+      sender.send(json, 0, json.length, null, 1, null);
+    }
+    sender.close();
+
+    assertThat(metrics.droppedSpans.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void parser_contentLengthAndChunkedResponses() throws Exception {
+    NioHttpSender.ResponseParser parser = new NioHttpSender.ResponseParser();
+    byte[] responses = ("HTTP/1.1 100 Continue\r\n\r\n"
+        + "HTTP/1.1 202 Accepted\r\nContent-Length: 2\r\n\r\nok"
+        + "HTTP/1.1 500 Server Error\r\nTransfer-Encoding: chunked\r\n\r\n"
+        + "3\r\nabc\r\n0\r\n\r\n"
+        + "HTTP/1.1 204 No Content\r\nConnection: close\r\n\r\n").getBytes("US-ASCII");
+
+    // feed one byte at a time to ensure partial responses wait for more input
+    List<Integer> statuses = new ArrayList<Integer>();
+    for (byte b : responses) {
+      parser.append(new byte[] {b}, 1);
+      while (parser.parse()) statuses.add(parser.status);
+    }
+
+    assertThat(statuses).containsExactly(202, 500, 204);
+    assertThat(parser.closeAfterResponse()).isTrue();
+  }
+
+  static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[1024];
+    for (int read; (read = in.read(buf)) != -1; ) {
+      out.write(buf, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  static Span span(long traceId, String spanName) {
+    return new Span().setTrace_id(traceId).setId(traceId).setName(spanName);
+  }
+
+  static class TestMetricsHandler implements SpanCollectorMetricsHandler {
+    final AtomicInteger acceptedSpans = new AtomicInteger();
+    final AtomicInteger droppedSpans = new AtomicInteger();
+
+    @Override
+    public void incrementAcceptedSpans(int quantity) {
+      acceptedSpans.addAndGet(quantity);
+    }
+
+    @Override
+    public void incrementDroppedSpans(int quantity) {
+      droppedSpans.addAndGet(quantity);
+    }
+  }
+}
@@ -2,15 +2,34 @@ package me.j360.trace.collector.kafka;
 
 import com.google.auto.value.AutoValue;
 import me.j360.trace.collector.core.AbstractSpanCollector;
+import me.j360.trace.collector.core.AcknowledgementMetricsHandler;
 import me.j360.trace.collector.core.EmptySpanCollectorMetricsHandler;
+import me.j360.trace.collector.core.FlushTrigger;
 import me.j360.trace.collector.core.SpanCollectorMetricsHandler;
+import me.j360.trace.collector.core.SpanQueue;
+import me.j360.trace.collector.core.SpanSpool;
+import me.j360.trace.collector.core.internal.Nullable;
+import me.j360.trace.collector.core.module.Span;
 import me.j360.trace.collector.core.module.SpanCodec;
+import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.utils.Utils;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static me.j360.trace.collector.core.internal.Util.checkArgument;
 
 /**
  * SpanCollector which sends a thrift-encoded list of spans to a Kafka topic (default: "zipkin")
@@ -18,13 +37,32 @@ import java.util.Properties;
  * <p><b>Important</b> If using zipkin-collector-service (or zipkin-receiver-kafka), you must run v1.35+
  */
 public final class KafkaSpanCollector extends AbstractSpanCollector {
+  /** Same as kafka's default {@code metadata.max.age.ms}, so new partitions are noticed. */
+  static final long PARTITION_COUNT_MAX_AGE = TimeUnit.MINUTES.toNanos(5);
+  /** Same as kafka's default {@code timeout.ms}: milliseconds to wait for a replay's ack. */
+  static final long REPLAY_TIMEOUT = 30000;
 
   @AutoValue
   public static abstract class Config {
     public static Builder builder() {
       return new AutoValue_KafkaSpanCollector_Config.Builder()
           .topic("zipkin")
-          .flushInterval(1);
+          .keyByTraceId(false)
+          .maxMessageBytes(999000)
+          .flushInterval(1)
+          .flushMaxDelay(0)
+          .flushBatchSize(0)
+          .flushBatchBytes(0)
+          .senderThreads(0)
+          .maxInFlightBatches(4)
+          .queueType(SpanQueue.Type.BLOCKING)
+          .queueCapacity(1000)
+          .queueMaxBytes(0)
+          .overflowPolicy(SpanQueue.OverflowPolicy.DROP_NEWEST)
+          .overflowTimeout(0)
+          .spoolDirectory(null)
+          .spoolMaxBytes(64 * 1024 * 1024)
+          .spoolMaxAge(0);
     }
 
     public static Builder builder(String bootstrapServers) {
@@ -39,8 +77,38 @@ public final class KafkaSpanCollector extends AbstractSpanCollector {
 
     abstract int flushInterval();
 
+    abstract long flushMaxDelay();
+
+    abstract int flushBatchSize();
+
+    abstract int flushBatchBytes();
+
+    abstract int senderThreads();
+
+    abstract int maxInFlightBatches();
+
+    abstract SpanQueue.Type queueType();
+
+    abstract int queueCapacity();
+
+    abstract int queueMaxBytes();
+
+    abstract SpanQueue.OverflowPolicy overflowPolicy();
+
+    abstract long overflowTimeout();
+
+    @Nullable abstract File spoolDirectory();
+
+    abstract long spoolMaxBytes();
+
+    abstract long spoolMaxAge();
+
     abstract String topic();
 
+    abstract boolean keyByTraceId();
+
+    abstract int maxMessageBytes();
+
     @AutoValue.Builder
     public interface Builder {
       /**
@@ -55,9 +123,105 @@ public final class KafkaSpanCollector extends AbstractSpanCollector {
       /** Default 1 second. 0 implies spans are {@link #flush() flushed} externally. */
       Builder flushInterval(int flushInterval);
 
+      /**
+       * Default 0, which implies {@link #flushInterval}. Otherwise, the maximum milliseconds a span
+       * waits before it is flushed. Use this for sub-second flushing under light load.
+       */
+      Builder flushMaxDelay(long flushMaxDelay);
+
+      /**
+       * Default 0, which disables. Otherwise, flushes as soon as this many spans are pending,
+       * without waiting for the next interval.
+       */
+      Builder flushBatchSize(int flushBatchSize);
+
+      /**
+       * Default 0, which disables. Otherwise, flushes as soon as this many bytes of json are
+       * pending, without waiting for the next interval.
+       */
+      Builder flushBatchBytes(int flushBatchBytes);
+
+      /**
+       * Default 0, which sends spans on the flushing thread. Otherwise, the flushing thread only
+       * encodes spans, and this many threads send them, so that a slow send doesn't delay the next
+       * flush.
+       */
+      Builder senderThreads(int senderThreads);
+
+      /**
+       * Default 4. Only used when {@link #senderThreads} is positive: maximum count of encoded
+       * batches waiting to be sent. Once reached, spans wait in the queue until a send completes.
+       */
+      Builder maxInFlightBatches(int maxInFlightBatches);
+
+      /**
+       * Default {@link SpanQueue.Type#BLOCKING}. Use {@link SpanQueue.Type#RING} or {@link
+       * SpanQueue.Type#STRIPED} to avoid lock contention when many threads finish spans at once.
+       */
+      Builder queueType(SpanQueue.Type queueType);
+
+      /**
+       * Default 1000. Maximum count of spans pending a flush, after which spans are dropped.
+       * Lock-free queue types round this up to a power of two.
+       */
+      Builder queueCapacity(int queueCapacity);
+
+      /**
+       * Default 0, which implies no limit. Only used by {@link SpanQueue.Type#BOUNDED}: maximum
+       * estimated json size of spans pending a flush.
+       */
+      Builder queueMaxBytes(int queueMaxBytes);
+
+      /**
+       * Default {@link SpanQueue.OverflowPolicy#DROP_NEWEST}. Only used by {@link
+       * SpanQueue.Type#BOUNDED}: what to do when there's no room for a span.
+       */
+      Builder overflowPolicy(SpanQueue.OverflowPolicy overflowPolicy);
+
+      /**
+       * Default 0 milliseconds. Only used by {@link SpanQueue.OverflowPolicy#BLOCK}: how long
+       * {@link #collect} waits for room before dropping a span.
+       */
+      Builder overflowTimeout(long overflowTimeout);
+
+      /**
+       * Default null, which drops spans that fail to send. Otherwise, a directory where batches
+       * that fail to send, spans that overflow the queue, and spans pending on close are spooled.
+       * They are sent, oldest first, once the transport recovers, including by the next collector
+       * to use this directory.
+       */
+      Builder spoolDirectory(@Nullable File spoolDirectory);
+
+      /**
+       * Default 64MiB. Only used with {@link #spoolDirectory}: maximum size of spool files. Once
+       * reached, the oldest spooled spans are dropped.
+       */
+      Builder spoolMaxBytes(long spoolMaxBytes);
+
+      /**
+       * Default 0, which implies no limit. Only used with {@link #spoolDirectory}: milliseconds
+       * after which a spooled batch is dropped instead of sent.
+       */
+      Builder spoolMaxAge(long spoolMaxAge);
+
       /** Sets kafka-topic for zipkin to report to. Default topic zipkin. **/
       Builder topic(String topic);
 
+      /**
+       * Default false, which sends each batch as one unkeyed message. When true, spans are grouped
+       * by the partition their trace id hashes to, and each group is sent keyed by a trace id in
+       * it. This places all spans of a trace on the same partition, so a consumer can assemble
+       * traces without coordinating with others. Assumes kafka's default partitioner.
+       */
+      Builder keyByTraceId(boolean keyByTraceId);
+
+      /**
+       * Default 999000, which leaves room for the key and message overhead under the broker's
+       * default {@code message.max.bytes}. Batches whose json is larger are split into multiple
+       * messages. A single span larger than this is sent alone.
+       */
+      Builder maxMessageBytes(int maxMessageBytes);
+
       Config build();
     }
   }
@@ -65,6 +229,13 @@ public final class KafkaSpanCollector extends AbstractSpanCollector {
   private final Producer<byte[], byte[]> producer;
 
   private final String topic;
+  private final boolean keyByTraceId;
+  private final int maxMessageBytes;
+  private final SpanCollectorMetricsHandler metrics;
+
+  // Only accessed by the flushing thread
+  private int partitionCount; // 0 until known
+  private long partitionCountTimestamp;
 
   /**
    * Create a new instance with default configuration.
@@ -89,19 +260,176 @@ public final class KafkaSpanCollector extends AbstractSpanCollector {
 
   // Visible for testing. Ex when tests need to explicitly control flushing, set interval to 0.
   KafkaSpanCollector(Config config, SpanCollectorMetricsHandler metrics) {
-    super(SpanCodec.JSON, metrics, config.flushInterval());
+    super(SpanCodec.JSON, metrics,
+        SpanQueue.create(config.queueType(), config.queueCapacity(), config.queueMaxBytes(),
+            config.overflowPolicy(), config.overflowTimeout(), metrics),
+        FlushTrigger.create(
+            config.flushMaxDelay() > 0 ? config.flushMaxDelay() : config.flushInterval() * 1000L,
+            config.flushBatchSize(), config.flushBatchBytes()),
+        config.senderThreads(), config.maxInFlightBatches(),
+        SpanSpool.create(config.spoolDirectory(), config.spoolMaxBytes(), config.spoolMaxAge(),
+            metrics));
+    checkArgument(config.maxMessageBytes() > 0, "maxMessageBytes should be positive: was %s",
+        config.maxMessageBytes());
     this.producer = new KafkaProducer<>(config.kafkaProperties());
     this.topic = config.topic();
+    this.keyByTraceId = config.keyByTraceId();
+    this.maxMessageBytes = config.maxMessageBytes();
+    this.metrics = metrics;
+  }
+
+  @Override
+  protected void reportSpans(List<Span> drained) throws IOException {
+    if (!keyByTraceId) {
+      reportSplit(drained, null);
+      return;
+    }
+    int partitionCount = partitionCount();
+    if (partitionCount == 0) { // unknown: better to send unkeyed than not at all
+      reportSplit(drained, null);
+      return;
+    }
+    List<List<Span>> byPartition = new ArrayList<List<Span>>(partitionCount);
+    for (int i = 0; i < partitionCount; i++) byPartition.add(null);
+    List<byte[]> keys = new ArrayList<byte[]>(partitionCount);
+    for (int i = 0; i < partitionCount; i++) keys.add(null);
+    for (Span span : drained) {
+      byte[] key = key(span.getTrace_id());
+      int partition = partition(key, partitionCount);
+      List<Span> group = byPartition.get(partition);
+      if (group == null) {
+        byPartition.set(partition, group = new ArrayList<Span>());
+        keys.set(partition, key); // any trace id in the group routes to the same partition
+      }
+      group.add(span);
+    }
+    for (int i = 0; i < partitionCount; i++) {
+      if (byPartition.get(i) != null) reportSplit(byPartition.get(i), keys.get(i));
+    }
+  }
+
+  /**
+   * Returns the topic's partition count, or zero if it couldn't be read. This is cached, as
+   * {@link Producer#partitionsFor} blocks the flushing thread until metadata is available.
+   */
+  int partitionCount() {
+    long now = System.nanoTime();
+    if (partitionCount != 0 && now - partitionCountTimestamp < PARTITION_COUNT_MAX_AGE) {
+      return partitionCount;
+    }
+    try {
+      List<PartitionInfo> partitions = producer.partitionsFor(topic);
+      if (partitions != null && !partitions.isEmpty()) {
+        partitionCount = partitions.size();
+        partitionCountTimestamp = now;
+      }
+    } catch (RuntimeException e) {
+      // keep any previous count until it next expires. If there is none, retry on the next flush.
+      if (partitionCount != 0) partitionCountTimestamp = now;
+    }
+    return partitionCount;
+  }
+
+  /** Reports spans in batches whose json is at most {@link Config#maxMessageBytes} each. */
+  void reportSplit(List<Span> spans, @Nullable byte[] key) {
+    int from = 0;
+    int bytes = 2; // brackets
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      int size = SpanCodec.JSON.sizeInBytes(spans.get(i));
+      if (i > from) size++; // comma
+      if (i > from && bytes + size > maxMessageBytes) {
+        reportBatchOrDrop(spans.subList(from, i), key);
+        from = i;
+        bytes = 2;
+        size--;
+      }
+      bytes += size;
+    }
+    reportBatchOrDrop(spans.subList(from, spans.size()), key);
+  }
+
+  /** Counts failures per batch, as others in the same flush may have been sent. */
+  void reportBatchOrDrop(List<Span> batch, @Nullable byte[] key) {
+    try {
+      reportBatch(batch, key);
+    } catch (IOException | RuntimeException e) {
+      metrics.incrementDroppedSpans(batch.size());
+    }
   }
 
   @Override
-  protected void sendSpans(byte[] bytes) throws IOException {
-    producer.send(new ProducerRecord<byte[], byte[]>(this.topic, bytes));
+  protected void sendSpans(byte[] buffer, int offset, int length, int spanCount,
+      @Nullable byte[] key) {
+    // the producer sends later, so it needs its own copy
+    byte[] bytes = Arrays.copyOfRange(buffer, offset, offset + length);
+    ProducerRecord<byte[], byte[]> record = new ProducerRecord<byte[], byte[]>(topic, key, bytes);
+    producer.send(record, new Acknowledged(bytes, spanCount, key));
+  }
+
+  /** Waits for the broker, as the batch must stay spooled until it acknowledges. */
+  @Override
+  protected void replay(SpanSpool.Record record) throws IOException {
+    ProducerRecord<byte[], byte[]> message =
+        new ProducerRecord<byte[], byte[]>(topic, record.key, record.bytes);
+    try {
+      producer.send(message).get(REPLAY_TIMEOUT, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } catch (TimeoutException e) {
+      throw new IOException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+    if (metrics instanceof AcknowledgementMetricsHandler) {
+      ((AcknowledgementMetricsHandler) metrics).incrementAcknowledgedSpans(record.spanCount);
+    }
+  }
+
+  @Override
+  protected void sendSpans(byte[] buffer, int offset, int length) {
+    throw new AssertionError("unused: the overload which accepts a key is called instead");
+  }
+
+  /** Reports the outcome of a send, which completes on the producer's I/O thread. */
+  final class Acknowledged implements Callback {
+    final byte[] bytes;
+    final int spanCount;
+    @Nullable final byte[] key;
+
+    Acknowledged(byte[] bytes, int spanCount, @Nullable byte[] key) {
+      this.bytes = bytes;
+      this.spanCount = spanCount;
+      this.key = key;
+    }
+
+    @Override public void onCompletion(RecordMetadata metadata, Exception exception) {
+      if (exception != null) {
+        spoolOrDrop(bytes, 0, bytes.length, spanCount, key);
+      } else if (metrics instanceof AcknowledgementMetricsHandler) {
+        ((AcknowledgementMetricsHandler) metrics).incrementAcknowledgedSpans(spanCount);
+      }
+    }
+  }
+
+  /** The trace id as 8 big-endian bytes. */
+  static byte[] key(long traceId) {
+    byte[] key = new byte[8];
+    for (int i = 7; i >= 0; i--) {
+      key[i] = (byte) traceId;
+      traceId >>>= 8;
+    }
+    return key;
+  }
+
+  /** Same as kafka's default partitioner, so that records go to the partition they're grouped by. */
+  static int partition(byte[] key, int partitionCount) {
+    return Utils.abs(Utils.murmur2(key)) % partitionCount;
   }
 
   @Override
   public void close() {
+    super.close(); // first, so that in-flight batches are sent before the producer closes
     producer.close();
-    super.close();
   }
 }
@@ -2,6 +2,7 @@ package me.j360.trace.collector.kafka;
 
 import com.github.charithe.kafka.KafkaJunitRule;
 import kafka.serializer.DefaultDecoder;
+import me.j360.trace.collector.core.AcknowledgementMetricsHandler;
 import me.j360.trace.collector.core.SpanCollectorMetricsHandler;
 import me.j360.trace.collector.core.module.Span;
 import me.j360.trace.core.Codec;
@@ -9,7 +10,10 @@ import org.junit.After;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -22,6 +26,8 @@ public class KafkaSpanCollectorTest {
   public KafkaJunitRule kafka = new KafkaJunitRule();
   @Rule
   public ExpectedException thrown = ExpectedException.none();
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
 
   TestMetricsHander metrics = new TestMetricsHander();
   // set flush interval to 0 so that tests can drive flushing explicitly
@@ -128,6 +134,119 @@ public class KafkaSpanCollectorTest {
     assertThat(messages).hasSize(1);
   }
 
+  @Test
+  public void acknowledgedSpansIncrementWhenBrokerAcks() throws Exception {
+    collector.close();
+    AcknowledgingMetricsHandler metrics = new AcknowledgingMetricsHandler();
+    collector = new KafkaSpanCollector(config, metrics);
+
+    collector.collect(span(1L, "foo"));
+    collector.collect(span(2L, "bar"));
+    collector.flush();
+
+    assertThat(readMessages()).hasSize(1);
+    for (int i = 0; i < 100 && metrics.acknowledgedSpans.get() < 2; i++) {
+      Thread.sleep(50); // the callback runs on the producer's thread
+    }
+    assertThat(metrics.acknowledgedSpans.get()).isEqualTo(2);
+    assertThat(metrics.droppedSpans.get()).isZero();
+  }
+
+  @Test
+  public void splitsBatchesLargerThanMaxMessageBytes() throws Exception {
+    collector.close();
+    // each span is about 70 bytes of json, so at most two fit in a message
+    collector = new KafkaSpanCollector(KafkaSpanCollector.Config.builder(
+        "localhost:" + kafka.kafkaBrokerPort()).flushInterval(0).maxMessageBytes(150).build(),
+        metrics);
+
+    for (long i = 1; i <= 5; i++) {
+      collector.collect(span(i, "foo"));
+    }
+    collector.flush();
+
+    List<byte[]> messages = kafka.readMessages("zipkin", 3,
+        new DefaultDecoder(kafka.consumerConfig().props()));
+    List<me.j360.trace.core.Span> spans = new ArrayList<>();
+    for (byte[] message : messages) {
+      assertThat(message.length).isLessThanOrEqualTo(150);
+      spans.addAll(Codec.JSON.readSpans(message));
+    }
+    assertThat(spans).extracting("id").containsExactly(1L, 2L, 3L, 4L, 5L);
+  }
+
+  @Test
+  public void keyByTraceId_sendsSpans() throws Exception {
+    collector.close();
+    collector = new KafkaSpanCollector(KafkaSpanCollector.Config.builder(
+        "localhost:" + kafka.kafkaBrokerPort()).flushInterval(0).keyByTraceId(true).build(),
+        metrics);
+
+    collector.collect(span(1L, "foo"));
+    collector.collect(span(2L, "bar"));
+    collector.flush();
+
+    // the test broker has a single partition, so both traces are in the same message
+    assertThat(Codec.JSON.readSpans(readMessages().get(0))).containsExactly(
+        zipkinSpan(1L, "foo"),
+        zipkinSpan(2L, "bar")
+    );
+  }
+
+  @Test
+  public void replaysSpooledSpans() throws Exception {
+    collector.close();
+    KafkaSpanCollector.Config config = KafkaSpanCollector.Config.builder(
+        "localhost:" + kafka.kafkaBrokerPort()).flushInterval(0)
+        .spoolDirectory(folder.getRoot()).build();
+    collector = new KafkaSpanCollector(config, metrics);
+    collector.collect(span(1L, "foo"));
+    collector.close(); // spools the pending span
+
+    collector = new KafkaSpanCollector(config, metrics);
+    collector.flush(); // waits for the broker to acknowledge the replay
+
+    assertThat(Codec.JSON.readSpans(readMessages().get(0))).containsExactly(
+        zipkinSpan(1L, "foo")
+    );
+    assertThat(metrics.droppedSpans.get()).isZero();
+  }
+
+  @Test
+  public void partitionCount_cached() throws Exception {
+    collector.collect(span(1L, "foo"));
+    collector.flush(); // creates the topic
+
+    assertThat(collector.partitionCount()).isEqualTo(1);
+    assertThat(collector.partitionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void partitionCount_zeroWhenUnavailable() throws Exception {
+    collector.close();
+    KafkaSpanCollector.Config config = KafkaSpanCollector.Config.builder("localhost:1")
+        .flushInterval(0).keyByTraceId(true).build();
+    config.kafkaProperties().put("metadata.fetch.timeout.ms", "100");
+    collector = new KafkaSpanCollector(config, metrics);
+
+    assertThat(collector.partitionCount()).isZero();
+
+    // falls back to an unkeyed send, whose failure is counted instead of losing the batch
+    collector.collect(span(1L, "foo"));
+    collector.flush();
+    assertThat(metrics.droppedSpans.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void partition_sameForSameTraceId() {
+    byte[] key = KafkaSpanCollector.key(-692101025335252320L);
+
+    assertThat(key).isEqualTo(ByteBuffer.allocate(8).putLong(-692101025335252320L).array());
+    assertThat(KafkaSpanCollector.partition(key, 12))
+        .isEqualTo(KafkaSpanCollector.partition(KafkaSpanCollector.key(-692101025335252320L), 12))
+        .isBetween(0, 11);
+  }
+
   class TestMetricsHander implements SpanCollectorMetricsHandler {
 
     final AtomicInteger acceptedSpans = new AtomicInteger();
@@ -144,6 +263,17 @@ public class KafkaSpanCollectorTest {
     }
   }
 
+  class AcknowledgingMetricsHandler extends TestMetricsHander
+      implements AcknowledgementMetricsHandler {
+
+    final AtomicInteger acknowledgedSpans = new AtomicInteger();
+
+    @Override
+    public void incrementAcknowledgedSpans(int quantity) {
+      acknowledgedSpans.addAndGet(quantity);
+    }
+  }
+
   static Span span(long traceId, String spanName) {
     return new Span().setTrace_id(traceId).setId(traceId).setName(spanName);
   }
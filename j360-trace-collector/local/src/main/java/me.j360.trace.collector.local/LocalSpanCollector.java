@@ -3,7 +3,9 @@ package me.j360.trace.collector.local;
 import com.google.auto.value.AutoValue;
 import me.j360.trace.collector.core.EmptySpanCollectorMetricsHandler;
 import me.j360.trace.collector.core.FlushingSpanCollector;
+import me.j360.trace.collector.core.FlushTrigger;
 import me.j360.trace.collector.core.SpanCollectorMetricsHandler;
+import me.j360.trace.collector.core.SpanQueue;
 import me.j360.trace.collector.core.module.Span;
 import me.j360.trace.core.storage.AsyncSpanConsumer;
 import me.j360.trace.core.storage.Callback;
@@ -22,16 +24,88 @@ public final class LocalSpanCollector extends FlushingSpanCollector {
   public static abstract class Config {
     public static Builder builder() {
       return new AutoValue_LocalSpanCollector_Config.Builder()
-              .flushInterval(1);
+              .flushInterval(1)
+              .flushMaxDelay(0)
+              .flushBatchSize(0)
+              .flushBatchBytes(0)
+              .queueType(SpanQueue.Type.BLOCKING)
+              .queueCapacity(1000)
+              .queueMaxBytes(0)
+              .overflowPolicy(SpanQueue.OverflowPolicy.DROP_NEWEST)
+              .overflowTimeout(0);
     }
 
     abstract int flushInterval();
 
+    abstract long flushMaxDelay();
+
+    abstract int flushBatchSize();
+
+    abstract int flushBatchBytes();
+
+    abstract SpanQueue.Type queueType();
+
+    abstract int queueCapacity();
+
+    abstract int queueMaxBytes();
+
+    abstract SpanQueue.OverflowPolicy overflowPolicy();
+
+    abstract long overflowTimeout();
+
     @AutoValue.Builder
     public interface Builder {
       /** Default 1 second. 0 implies spans are {@link #flush() flushed} externally. */
       Builder flushInterval(int flushInterval);
 
+      /**
+       * Default 0, which implies {@link #flushInterval}. Otherwise, the maximum milliseconds a span
+       * waits before it is flushed. Use this for sub-second flushing under light load.
+       */
+      Builder flushMaxDelay(long flushMaxDelay);
+
+      /**
+       * Default 0, which disables. Otherwise, flushes as soon as this many spans are pending,
+       * without waiting for the next interval.
+       */
+      Builder flushBatchSize(int flushBatchSize);
+
+      /**
+       * Default 0, which disables. Otherwise, flushes as soon as this many bytes of json are
+       * pending, without waiting for the next interval.
+       */
+      Builder flushBatchBytes(int flushBatchBytes);
+
+      /**
+       * Default {@link SpanQueue.Type#BLOCKING}. Use {@link SpanQueue.Type#RING} or {@link
+       * SpanQueue.Type#STRIPED} to avoid lock contention when many threads finish spans at once.
+       */
+      Builder queueType(SpanQueue.Type queueType);
+
+      /**
+       * Default 1000. Maximum count of spans pending a flush, after which spans are dropped.
+       * Lock-free queue types round this up to a power of two.
+       */
+      Builder queueCapacity(int queueCapacity);
+
+      /**
+       * Default 0, which implies no limit. Only used by {@link SpanQueue.Type#BOUNDED}: maximum
+       * estimated json size of spans pending a flush.
+       */
+      Builder queueMaxBytes(int queueMaxBytes);
+
+      /**
+       * Default {@link SpanQueue.OverflowPolicy#DROP_NEWEST}. Only used by {@link
+       * SpanQueue.Type#BOUNDED}: what to do when there's no room for a span.
+       */
+      Builder overflowPolicy(SpanQueue.OverflowPolicy overflowPolicy);
+
+      /**
+       * Default 0 milliseconds. Only used by {@link SpanQueue.OverflowPolicy#BLOCK}: how long
+       * {@link #collect} waits for room before dropping a span.
+       */
+      Builder overflowTimeout(long overflowTimeout);
+
       Config build();
     }
   }
@@ -65,7 +139,12 @@ public final class LocalSpanCollector extends FlushingSpanCollector {
   // Visible for testing. Ex when tests need to explicitly control flushing, set interval to 0.
   LocalSpanCollector(StorageComponent storageComponent, Config config,
                      SpanCollectorMetricsHandler metrics) {
-    super(metrics, config.flushInterval());
+    super(metrics,
+        SpanQueue.create(config.queueType(), config.queueCapacity(), config.queueMaxBytes(),
+            config.overflowPolicy(), config.overflowTimeout(), metrics),
+        FlushTrigger.create(
+            config.flushMaxDelay() > 0 ? config.flushMaxDelay() : config.flushInterval() * 1000L,
+            config.flushBatchSize(), config.flushBatchBytes()));
     this.storageComponent = storageComponent;
     this.metrics = metrics;
   }
@@ -19,6 +19,7 @@ import me.j360.trace.core.Span;
 import me.j360.trace.core.storage.Callback;
 import me.j360.trace.core.storage.StorageComponent;
 
+import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -35,8 +36,10 @@ import static me.j360.trace.core.internal.Util.checkNotNull;
  * <p>Callbacks passed do not propagate to the storage layer. They only return success or failures
  * before storage is attempted. This ensures that calling threads are disconnected from storage
  * threads.
+ *
+ * <p>Transports {@link #close() close} the collector when they stop accepting spans.
  */
-public final class Collector {
+public final class Collector implements Closeable {
 
   /** Needed to scope this to the correct logging category */
   public static Builder builder(Class<?> loggingClass) {
@@ -48,6 +51,7 @@ public final class Collector {
     StorageComponent storage = null;
     CollectorSampler sampler = CollectorSampler.ALWAYS_SAMPLE;
     CollectorMetrics metrics = CollectorMetrics.NOOP_METRICS;
+    TailSampler tailSampler = null;
 
     Builder(Logger logger) {
       this.logger = logger;
@@ -71,6 +75,21 @@ public final class Collector {
       return this;
     }
 
+    /**
+     * Buffers sampled spans by trace, and only stores traces the tail sampler keeps. Defaults to
+     * null, which stores spans as soon as they are sampled.
+     *
+     * <p>Since the tail sampler decides which traces to keep, you'd typically leave the {@link
+     * #sampler(CollectorSampler) sampler} at its default of always sample.
+     *
+     * <p>The collector starts the tail sampler, and {@link Collector#close() closing} the collector
+     * closes it, which stores the buffered traces it keeps.
+     */
+    public Builder tailSampler(TailSampler tailSampler) {
+      this.tailSampler = checkNotNull(tailSampler, "tailSampler");
+      return this;
+    }
+
     public Collector build() {
       return new Collector(this);
     }
@@ -80,12 +99,33 @@ public final class Collector {
   final StorageComponent storage;
   final CollectorSampler sampler;
   final CollectorMetrics metrics;
+  final TailSampler tailSampler;
 
   Collector(Builder builder) {
     this.logger = checkNotNull(builder.logger, "logger");
     this.storage = checkNotNull(builder.storage, "storage");
     this.sampler = builder.sampler == null ? CollectorSampler.ALWAYS_SAMPLE : builder.sampler;
     this.metrics = builder.metrics == null ? CollectorMetrics.NOOP_METRICS : builder.metrics;
+    this.tailSampler = builder.tailSampler;
+    if (tailSampler != null) {
+      tailSampler.start(new TailSampler.Sink() {
+        @Override public void store(List<Span> spans) {
+          try {
+            storage.asyncSpanConsumer().accept(spans, acceptSpansCallback(spans));
+          } catch (RuntimeException e) {
+            errorStoringSpans(spans, e);
+          }
+        }
+      }, metrics);
+    }
+  }
+
+  /**
+   * Closes the {@link Builder#tailSampler tail sampler}, if there is one, storing the buffered
+   * traces it keeps. Call this after the transport stops accepting spans.
+   */
+  @Override public void close() {
+    if (tailSampler != null) tailSampler.close();
   }
 
   public void acceptSpans(byte[] serializedSpans, Codec codec, Callback<Void> callback) {
@@ -124,6 +164,7 @@ public final class Collector {
     metrics.incrementSpans(spans.size());
 
     List<Span> sampled = sample(spans);
+    if (tailSampler != null && !sampled.isEmpty()) sampled = tailSampler.accept(sampled);
     if (sampled.isEmpty()) {
       callback.onSuccess(null);
       return;
@@ -99,6 +99,22 @@ public interface CollectorMetrics {
    */
   void incrementSpansDropped(int quantity);
 
+  /**
+   * Increments the count of traces a {@link TailSampler} started buffering. Every buffered trace
+   * is later either {@link #incrementTracesKept() kept} or {@link #incrementTracesDropped()
+   * dropped}.
+   */
+  void incrementTracesBuffered();
+
+  /** Increments the count of traces a {@link TailSampler} decided to store. */
+  void incrementTracesKept();
+
+  /**
+   * Increments the count of traces a {@link TailSampler} decided not to store. Their spans are also
+   * counted as {@link #incrementSpansDropped(int) dropped spans}.
+   */
+  void incrementTracesDropped();
+
   CollectorMetrics NOOP_METRICS = new CollectorMetrics() {
 
     @Override public CollectorMetrics forTransport(String transportType) {
@@ -120,6 +136,15 @@ public interface CollectorMetrics {
     @Override public void incrementSpansDropped(int quantity) {
     }
 
+    @Override public void incrementTracesBuffered() {
+    }
+
+    @Override public void incrementTracesKept() {
+    }
+
+    @Override public void incrementTracesDropped() {
+    }
+
     @Override public String toString() {
       return "NoOpCollectorMetrics";
     }
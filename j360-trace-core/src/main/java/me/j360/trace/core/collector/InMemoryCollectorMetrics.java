@@ -27,6 +27,9 @@ public final class InMemoryCollectorMetrics implements CollectorMetrics {
   private final String bytes;
   private final String spans;
   private final String spansDropped;
+  private final String tracesBuffered;
+  private final String tracesKept;
+  private final String tracesDropped;
 
   public InMemoryCollectorMetrics() {
     this(new ConcurrentHashMap<String, AtomicInteger>(), null);
@@ -39,6 +42,9 @@ public final class InMemoryCollectorMetrics implements CollectorMetrics {
     this.bytes = scope("bytes", transport);
     this.spans = scope("spans", transport);
     this.spansDropped = scope("spansDropped", transport);
+    this.tracesBuffered = scope("tracesBuffered", transport);
+    this.tracesKept = scope("tracesKept", transport);
+    this.tracesDropped = scope("tracesDropped", transport);
   }
 
   @Override public InMemoryCollectorMetrics forTransport(String transportType) {
@@ -86,6 +92,30 @@ public final class InMemoryCollectorMetrics implements CollectorMetrics {
     return get(spansDropped);
   }
 
+  @Override public void incrementTracesBuffered() {
+    increment(tracesBuffered, 1);
+  }
+
+  public int tracesBuffered() {
+    return get(tracesBuffered);
+  }
+
+  @Override public void incrementTracesKept() {
+    increment(tracesKept, 1);
+  }
+
+  public int tracesKept() {
+    return get(tracesKept);
+  }
+
+  @Override public void incrementTracesDropped() {
+    increment(tracesDropped, 1);
+  }
+
+  public int tracesDropped() {
+    return get(tracesDropped);
+  }
+
   public void clear() {
     metrics.clear();
   }
@@ -0,0 +1,319 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.core.collector;
+
+import me.j360.trace.core.BinaryAnnotation;
+import me.j360.trace.core.Constants;
+import me.j360.trace.core.Span;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static me.j360.trace.core.internal.Util.checkArgument;
+import static me.j360.trace.core.internal.Util.checkNotNull;
+
+/**
+ * Decides whether to store a trace after seeing its spans, as opposed to {@link CollectorSampler},
+ * which decides per span, by trace id alone. This keeps all traces which have an {@link
+ * Constants#ERROR error} binary annotation, or take at least {@link Builder#slowTraceDuration},
+ * and a {@link Builder#baseRate base rate} of the rest.
+ *
+ * <p>Spans are buffered by trace id until no span of that trace was received for the {@link
+ * Builder#quietPeriod quiet period}. Then the trace is decided, and if kept, queued for storage.
+ * Spans arriving after their trace was decided follow the same decision, as long as it is
+ * remembered. {@link Span#debug Debug} traces are always kept.
+ *
+ * <p>Memory is bounded by {@link Builder#maxTraces} and {@link Builder#maxSpans}. When either is
+ * exceeded, the least recently updated traces are decided early, with the spans seen so far.
+ *
+ * <p>Use {@link Collector.Builder#tailSampler(TailSampler)} to add this stage to a collector.
+ * Instances are bound to one collector.
+ */
+public final class TailSampler implements Closeable {
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    float baseRate = 0.1f;
+    long slowTraceDuration = 0L;
+    long quietPeriodNanos = TimeUnit.SECONDS.toNanos(5);
+    int maxTraces = 10000;
+    int maxSpans = 100000;
+    boolean scheduleFlush = true;
+
+    /**
+     * Percentage of traces to keep which are neither errors nor slow. Like {@link
+     * CollectorSampler}, the decision is consistent for a trace id. Defaults to 0.1
+     */
+    public Builder baseRate(float baseRate) {
+      checkArgument(baseRate >= 0 && baseRate <= 1, "baseRate should be between 0 and 1: was %s",
+          baseRate);
+      this.baseRate = baseRate;
+      return this;
+    }
+
+    /**
+     * Traces spanning at least this long are kept. Defaults to 0, which disables the check.
+     */
+    public Builder slowTraceDuration(long duration, TimeUnit unit) {
+      checkArgument(duration >= 0, "slowTraceDuration should not be negative: was %s", duration);
+      this.slowTraceDuration = unit.toMicros(duration);
+      return this;
+    }
+
+    /**
+     * How long to wait after the last span of a trace before deciding it. Should be longer than
+     * the time instrumentation holds spans before reporting them. Defaults to 5 seconds.
+     */
+    public Builder quietPeriod(long quietPeriod, TimeUnit unit) {
+      checkArgument(quietPeriod > 0, "quietPeriod should be positive: was %s", quietPeriod);
+      this.quietPeriodNanos = unit.toNanos(quietPeriod);
+      return this;
+    }
+
+    /** Maximum count of traces buffered. Defaults to 10000 */
+    public Builder maxTraces(int maxTraces) {
+      checkArgument(maxTraces > 0, "maxTraces should be positive: was %s", maxTraces);
+      this.maxTraces = maxTraces;
+      return this;
+    }
+
+    /** Maximum count of spans buffered across all traces. Defaults to 100000 */
+    public Builder maxSpans(int maxSpans) {
+      checkArgument(maxSpans > 0, "maxSpans should be positive: was %s", maxSpans);
+      this.maxSpans = maxSpans;
+      return this;
+    }
+
+    /**
+     * When false, quiet traces are only decided when spans are accepted, or on {@link #flush()}.
+     * Defaults to true, which checks every half quiet period on a daemon thread.
+     */
+    public Builder scheduleFlush(boolean scheduleFlush) {
+      this.scheduleFlush = scheduleFlush;
+      return this;
+    }
+
+    public TailSampler build() {
+      return new TailSampler(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  /** Receives the spans of kept traces. */
+  interface Sink {
+    void store(List<Span> spans);
+  }
+
+  static final class Trace {
+    final List<Span> spans = new ArrayList<Span>(4);
+    long lastUpdate;
+    boolean keep; // error or debug
+    long minTimestamp = Long.MAX_VALUE;
+    long maxEnd = Long.MIN_VALUE;
+  }
+
+  final CollectorSampler baseSampler;
+  final long slowTraceDuration;
+  final long quietPeriodNanos;
+  final int maxTraces;
+  final int maxSpans;
+  final boolean scheduleFlush;
+
+  /** Buffered traces, least recently updated first. Guarded by this. */
+  final LinkedHashMap<Long, Trace> traces = new LinkedHashMap<Long, Trace>(16, 0.75f, true);
+  /** Decisions of recent traces, so that late spans follow them. Guarded by this. */
+  final LinkedHashMap<Long, Boolean> decisions;
+  int spanCount;
+
+  Sink sink;
+  CollectorMetrics metrics = CollectorMetrics.NOOP_METRICS;
+  ScheduledExecutorService flusher;
+
+  TailSampler(Builder builder) {
+    this.baseSampler = CollectorSampler.create(builder.baseRate);
+    this.slowTraceDuration = builder.slowTraceDuration;
+    this.quietPeriodNanos = builder.quietPeriodNanos;
+    this.maxTraces = builder.maxTraces;
+    this.maxSpans = builder.maxSpans;
+    this.scheduleFlush = builder.scheduleFlush;
+    final int maxDecisions = builder.maxTraces;
+    this.decisions = new LinkedHashMap<Long, Boolean>() {
+      @Override protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+        return size() > maxDecisions;
+      }
+    };
+  }
+
+  /** Called once by the collector which owns this. */
+  synchronized void start(Sink sink, CollectorMetrics metrics) {
+    if (this.sink != null) {
+      throw new IllegalStateException(this + " is already bound to a collector");
+    }
+    this.sink = checkNotNull(sink, "sink");
+    this.metrics = checkNotNull(metrics, "metrics");
+    if (!scheduleFlush) return;
+    flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "TailSampler");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long period = Math.max(quietPeriodNanos / 2, TimeUnit.MILLISECONDS.toNanos(100));
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      @Override public void run() {
+        flush();
+      }
+    }, period, period, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Buffers spans of undecided traces, and returns spans of traces already kept, which should be
+   * stored now.
+   */
+  List<Span> accept(List<Span> spans) {
+    return accept(spans, System.nanoTime());
+  }
+
+  List<Span> accept(List<Span> spans, long now) {
+    List<Span> result = new ArrayList<Span>();
+    List<List<Span>> kept;
+    int dropped = 0;
+    synchronized (this) {
+      for (Span span : spans) {
+        Boolean decision = decisions.get(span.traceId);
+        if (decision != null) {
+          if (decision) {
+            result.add(span);
+          } else {
+            dropped++;
+          }
+          continue;
+        }
+        Trace trace = traces.get(span.traceId);
+        if (trace == null) {
+          traces.put(span.traceId, trace = new Trace());
+          metrics.incrementTracesBuffered();
+        }
+        add(trace, span);
+        trace.lastUpdate = now;
+        spanCount++;
+      }
+      kept = decide(now);
+    }
+    if (dropped > 0) metrics.incrementSpansDropped(dropped);
+    for (List<Span> trace : kept) {
+      result.addAll(trace);
+    }
+    return result;
+  }
+
+  /** Decides traces which are quiet, and stores those kept. */
+  public void flush() {
+    flush(System.nanoTime());
+  }
+
+  void flush(long now) {
+    List<List<Span>> kept;
+    synchronized (this) {
+      kept = decide(now);
+    }
+    store(kept);
+  }
+
+  /** Decides all buffered traces, stores those kept and stops the flush thread. */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (flusher != null) flusher.shutdownNow();
+    }
+    flush(Long.MAX_VALUE); // decides every trace, regardless of when it was last updated
+  }
+
+  void store(List<List<Span>> kept) {
+    Sink sink;
+    synchronized (this) {
+      sink = this.sink;
+    }
+    if (sink == null) return;
+    for (List<Span> trace : kept) {
+      sink.store(trace);
+    }
+  }
+
+  void add(Trace trace, Span span) {
+    trace.spans.add(span);
+    if (span.debug != null && span.debug) trace.keep = true;
+    for (BinaryAnnotation b : span.binaryAnnotations) {
+      if (Constants.ERROR.equals(b.key)) trace.keep = true;
+    }
+    if (span.timestamp != null) {
+      trace.minTimestamp = Math.min(trace.minTimestamp, span.timestamp);
+      long duration = span.duration != null ? span.duration : 0L;
+      trace.maxEnd = Math.max(trace.maxEnd, span.timestamp + duration);
+    }
+  }
+
+  /** Decides quiet traces, and the least recently updated beyond the caps. Guarded by this. */
+  List<List<Span>> decide(long now) {
+    List<List<Span>> kept = new ArrayList<List<Span>>();
+    for (Iterator<Map.Entry<Long, Trace>> i = traces.entrySet().iterator(); i.hasNext(); ) {
+      Map.Entry<Long, Trace> entry = i.next();
+      Trace trace = entry.getValue();
+      boolean overCap = traces.size() > maxTraces || spanCount > maxSpans;
+      // now is Long.MAX_VALUE on close, so compare without subtracting
+      boolean quiet = now == Long.MAX_VALUE || now - trace.lastUpdate >= quietPeriodNanos;
+      if (!quiet && !overCap) break; // the rest were updated more recently
+      i.remove();
+      spanCount -= trace.spans.size();
+      boolean keep = keep(trace);
+      decisions.put(entry.getKey(), keep);
+      if (keep) {
+        metrics.incrementTracesKept();
+        kept.add(trace.spans);
+      } else {
+        metrics.incrementTracesDropped();
+        metrics.incrementSpansDropped(trace.spans.size());
+      }
+    }
+    return kept;
+  }
+
+  boolean keep(Trace trace) {
+    if (trace.keep) return true;
+    if (slowTraceDuration > 0 && trace.minTimestamp != Long.MAX_VALUE
+        && trace.maxEnd - trace.minTimestamp >= slowTraceDuration) {
+      return true;
+    }
+    return baseSampler.isSampled(trace.spans.get(0));
+  }
+
+  @Override
+  public String toString() {
+    return "TailSampler(" + baseSampler + ")";
+  }
+}
@@ -407,6 +407,19 @@ public final class JsonCodec implements Codec {
     }
   }
 
+  /**
+   * Like {@link #readSpan(byte[])}, except it reads a slice of a larger buffer, such as a search
+   * hit's source, without copying it.
+   */
+  public Span readSpan(byte[] bytes, int offset, int length) {
+    checkArgument(length > 0, "Empty input reading Span");
+    try {
+      return SPAN_ADAPTER.fromJson(jsonReader(bytes, offset, length));
+    } catch (Exception e) {
+      throw exceptionReading("Span", new String(bytes, offset, length, Util.UTF_8), e);
+    }
+  }
+
   @Override public int sizeInBytes(Span value) {
     return SPAN_ADAPTER.sizeInBytes(value);
   }
@@ -592,6 +605,11 @@ public final class JsonCodec implements Codec {
     return new JsonReader(new InputStreamReader(new ByteArrayInputStream(bytes)));
   }
 
+  private static JsonReader jsonReader(byte[] bytes, int offset, int length) {
+    return new JsonReader(
+        new InputStreamReader(new ByteArrayInputStream(bytes, offset, length), Util.UTF_8));
+  }
+
   /** Inability to encode is a programming bug. */
   static <T> byte[] write(Buffer.Writer<T> writer, T value) {
     Buffer b = new Buffer(writer.sizeInBytes(value));
@@ -627,9 +645,13 @@ public final class JsonCodec implements Codec {
   }
 
   static IllegalArgumentException exceptionReading(String type, byte[] bytes, Exception e) {
+    return exceptionReading(type, new String(bytes, Util.UTF_8), e);
+  }
+
+  static IllegalArgumentException exceptionReading(String type, String json, Exception e) {
     String cause = e.getMessage() == null ? "Error" : e.getMessage();
     if (cause.indexOf("malformed") != -1) cause = "Malformed";
-    String message = String.format("%s reading %s from json: %s", cause, type, new String(bytes, Util.UTF_8));
+    String message = String.format("%s reading %s from json: %s", cause, type, json);
     throw new IllegalArgumentException(message, e);
   }
 
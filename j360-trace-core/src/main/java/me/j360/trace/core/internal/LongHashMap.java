@@ -0,0 +1,174 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.core.internal;
+
+import java.util.Arrays;
+
+import static me.j360.trace.core.internal.Util.checkArgument;
+import static me.j360.trace.core.internal.Util.checkNotNull;
+
+/**
+ * A map of primitive long keys, such as trace ids, to non-null values. Unlike a {@code HashMap<Long,
+ * V>}, this doesn't allocate a boxed key or an entry per mapping: keys and values are held in
+ * parallel arrays, and collisions are resolved by linear probing.
+ *
+ * <p>To iterate without allocation, loop over slots up to {@link #capacity()}, skipping those whose
+ * {@link #valueAt(int) value} is null.
+ *
+ * <p>This is not thread-safe.
+ */
+@SuppressWarnings("unchecked") // values only hold V
+public final class LongHashMap<V> {
+  long[] keys;
+  Object[] values;
+  int size;
+  int mask;
+
+  public LongHashMap() {
+    this(16);
+  }
+
+  public LongHashMap(int expectedSize) {
+    checkArgument(expectedSize >= 0, "expectedSize should not be negative: was %s", expectedSize);
+    int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 4 / 3 + 1) - 1) << 1;
+    allocate(capacity);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Nullable public V get(long key) {
+    for (int i = slot(key); ; i = (i + 1) & mask) {
+      Object value = values[i];
+      if (value == null) return null;
+      if (keys[i] == key) return (V) value;
+    }
+  }
+
+  public boolean containsKey(long key) {
+    return get(key) != null;
+  }
+
+  /** Returns the previous value of the key, or null if there was none. */
+  @Nullable public V put(long key, V value) {
+    checkNotNull(value, "value");
+    int i = slot(key);
+    for (; values[i] != null; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        V previous = (V) values[i];
+        values[i] = value;
+        return previous;
+      }
+    }
+    keys[i] = key;
+    values[i] = value;
+    if (++size > (mask + 1) * 3 / 4) resize((mask + 1) * 2);
+    return null;
+  }
+
+  /** Returns the value of the removed key, or null if it wasn't present. */
+  @Nullable public V remove(long key) {
+    for (int i = slot(key); ; i = (i + 1) & mask) {
+      Object value = values[i];
+      if (value == null) return null;
+      if (keys[i] == key) {
+        deleteSlot(i);
+        size--;
+        return (V) value;
+      }
+    }
+  }
+
+  public void clear() {
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  /** Returns the keys in ascending order. */
+  public long[] sortedKeys() {
+    long[] result = new long[size];
+    int count = 0;
+    for (int i = 0; i <= mask; i++) {
+      if (values[i] != null) result[count++] = keys[i];
+    }
+    Arrays.sort(result);
+    return result;
+  }
+
+  /** Count of slots, including empty ones. */
+  public int capacity() {
+    return mask + 1;
+  }
+
+  /** Returns the key in the slot, which is only meaningful if its value is not null. */
+  public long keyAt(int slot) {
+    return keys[slot];
+  }
+
+  /** Returns the value in the slot, or null if the slot is empty. */
+  @Nullable public V valueAt(int slot) {
+    return (V) values[slot];
+  }
+
+  int slot(long key) {
+    // murmur3 finalizer, as sequential ids would otherwise cluster
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key & mask;
+  }
+
+  /** Shifts back entries which probed past the deleted slot, so that lookups still find them. */
+  void deleteSlot(int i) {
+    values[i] = null;
+    for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+      int k = slot(keys[j]);
+      // leave j in place if its home slot k is cyclically within (i, j]
+      if (i <= j ? (i < k && k <= j) : (i < k || k <= j)) continue;
+      keys[i] = keys[j];
+      values[i] = values[j];
+      values[j] = null;
+      i = j;
+    }
+  }
+
+  void resize(int capacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    allocate(capacity);
+    for (int i = 0; i < oldValues.length; i++) {
+      if (oldValues[i] == null) continue;
+      int j = slot(oldKeys[i]);
+      while (values[j] != null) j = (j + 1) & mask;
+      keys[j] = oldKeys[i];
+      values[j] = oldValues[i];
+    }
+  }
+
+  void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+  }
+
+  @Override
+  public String toString() {
+    return "LongHashMap(size=" + size + ")";
+  }
+}
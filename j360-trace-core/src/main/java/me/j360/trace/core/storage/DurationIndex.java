@@ -0,0 +1,78 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.core.storage;
+
+import me.j360.trace.core.internal.LongHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Trace ids by span duration, bucketed by powers of two microseconds. Unlike a sorted index, adding
+ * a duration doesn't shift others, as spans don't arrive in duration order.
+ *
+ * <p>A range returns the trace ids of every bucket it overlaps, so it can include traces whose
+ * durations are just outside the range. Callers should check the spans themselves.
+ *
+ * <p>This is not thread-safe.
+ */
+final class DurationIndex {
+  /** Count of spans per trace id, by {@link #bucket(long)}. Null until the first add. */
+  @SuppressWarnings("unchecked")
+  final LongHashMap<int[]>[] buckets = new LongHashMap[64];
+  int size;
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  void add(long traceId, long duration) {
+    int b = bucket(duration);
+    if (buckets[b] == null) buckets[b] = new LongHashMap<int[]>();
+    int[] count = buckets[b].get(traceId);
+    if (count == null) buckets[b].put(traceId, count = new int[1]);
+    count[0]++;
+    size++;
+  }
+
+  /** Returns false if no span of the trace had the duration's bucket. */
+  boolean remove(long traceId, long duration) {
+    LongHashMap<int[]> bucket = buckets[bucket(duration)];
+    int[] count = bucket != null ? bucket.get(traceId) : null;
+    if (count == null) return false;
+    if (--count[0] == 0) bucket.remove(traceId);
+    size--;
+    return true;
+  }
+
+  void clear() {
+    Arrays.fill(buckets, null);
+    size = 0;
+  }
+
+  /** Adds trace ids which may have a duration within the inclusive range to the result. */
+  void traceIds(long minDuration, long maxDuration, LongHashMap<Boolean> result) {
+    for (int b = bucket(minDuration), last = bucket(maxDuration); b <= last; b++) {
+      LongHashMap<int[]> bucket = buckets[b];
+      if (bucket == null) continue;
+      for (int slot = 0, capacity = bucket.capacity(); slot < capacity; slot++) {
+        if (bucket.valueAt(slot) != null) result.put(bucket.keyAt(slot), Boolean.TRUE);
+      }
+    }
+  }
+
+  /** 0 for durations up to 0, otherwise the count of significant bits: 1 holds 1, 2 holds 2-3... */
+  static int bucket(long duration) {
+    return duration <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(duration);
+  }
+}
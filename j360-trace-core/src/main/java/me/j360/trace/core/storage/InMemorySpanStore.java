@@ -15,40 +15,115 @@ package me.j360.trace.core.storage;
 
 import me.j360.trace.core.Annotation;
 import me.j360.trace.core.BinaryAnnotation;
+import me.j360.trace.core.Constants;
 import me.j360.trace.core.DependencyLink;
 import me.j360.trace.core.Span;
 import me.j360.trace.core.internal.*;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static me.j360.trace.core.internal.Util.sortedList;
 
-
+/**
+ * Keeps spans in memory, keyed by primitive trace id, with indexes of trace ids by timestamp, both
+ * overall and per service. Writers take a write lock once per batch of spans, and queries share a
+ * read lock, so that concurrent queries don't block each other.
+ *
+ * <p>Retention can be bounded by span count and by age. After each batch is accepted, whole traces
+ * are evicted, oldest span timestamp first, until at most {@code maxSpanCount} spans remain and no
+ * span is older than {@code ttl}. Spans without a timestamp don't affect this, except that a trace
+ * with no timestamps at all is aged from when it was first accepted.
+ *
+ * <p>Dependency links are maintained as spans are accepted, instead of walking all traces per
+ * query. Each trace's links are counted in the minute its earliest span started, and recomputed
+ * when more of its spans arrive. A query sums the minutes overlapping its interval, so a trace is
+ * linked in whole or not at all, even if the interval only covers part of it.
+ *
+ * <p>Queries narrow trace ids before loading any spans. Trace ids are indexed by span name,
+ * annotation value, string binary annotation and span duration. The posting lists of a query's
+ * criteria are intersected, smallest first, and only traces in the intersection are merged and
+ * checked.
+ */
 public final class InMemorySpanStore implements SpanStore {
-  private final Multimap<Long, Span> traceIdToSpans = new LinkedListMultimap<Long, Span>();
-  private final Set<Pair<Long>> traceIdTimeStamps = new TreeSet<Pair<Long>>(VALUE_2_DESCENDING);
-  private final Multimap<String, Pair<Long>> serviceToTraceIdTimeStamp =
-      new SortedByValue2Descending<String>();
-  private final Multimap<String, String> serviceToSpanNames = new LinkedHashSetMultimap<String, String>();
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final int maxSpanCount;
+  private final long ttlMicros;
+  // fields below are guarded by lock
+  private final LongHashMap<List<Span>> traceIdToSpans = new LongHashMap<List<Span>>();
+  private final TimestampIndex traceIdTimestamps = new TimestampIndex();
+  /** One entry per trace, at its oldest span timestamp, or when first accepted if it has none */
+  private final TimestampIndex traceIdEvictionOrder = new TimestampIndex();
+  private final LongHashMap<Long> traceIdToEvictionTimestamp = new LongHashMap<Long>();
+  private final Map<String, TimestampIndex> serviceToTraceIdTimestamps =
+      new LinkedHashMap<String, TimestampIndex>();
+  /** Count of spans per service and span name, so that names are dropped with their last span */
+  private final Map<String, Map<String, int[]>> serviceToSpanNames =
+      new LinkedHashMap<String, Map<String, int[]>>();
+  /** Links each trace contributed, so that they can be replaced or evicted */
+  private final LongHashMap<TraceLinks> traceIdToLinks = new LongHashMap<TraceLinks>();
+  /** Call counts per parent and child, by the minute in epoch micros that traces started */
+  private final TreeMap<Long, Map<Pair<String>, long[]>> linksByMinute =
+      new TreeMap<Long, Map<Pair<String>, long[]>>();
+  private final Map<String, LongHashMap<Boolean>> spanNameToTraceIds =
+      new LinkedHashMap<String, LongHashMap<Boolean>>();
+  private final Map<String, LongHashMap<Boolean>> annotationToTraceIds =
+      new LinkedHashMap<String, LongHashMap<Boolean>>();
+  /** Trace ids by binary annotation key, then UTF-8 value. Only string values are indexed. */
+  private final Map<String, Map<String, LongHashMap<Boolean>>> binaryAnnotationToTraceIds =
+      new LinkedHashMap<String, Map<String, LongHashMap<Boolean>>>();
+  /** Durations of merged spans, as client and server halves can report different ones */
+  private final DurationIndex traceIdDurations = new DurationIndex();
+  private final Map<String, DurationIndex> serviceToTraceIdDurations =
+      new LinkedHashMap<String, DurationIndex>();
+  /** Durations each trace indexed, so that they can be replaced or evicted */
+  private final LongHashMap<List<SpanDuration>> traceIdToDurations =
+      new LongHashMap<List<SpanDuration>>();
+  private int spanCount;
   volatile int acceptedSpanCount;
+  volatile int evictedTraceCount;
+  volatile int evictedSpanCount;
+
+  /** Retains all spans. */
+  public InMemorySpanStore() {
+    this(Integer.MAX_VALUE, 0L);
+  }
+
+  /**
+   * @param maxSpanCount maximum count of spans retained.
+   * @param ttlMillis spans older than this are evicted. 0 implies no limit.
+   */
+  InMemorySpanStore(int maxSpanCount, long ttlMillis) {
+    this.maxSpanCount = maxSpanCount;
+    this.ttlMicros = ttlMillis * 1000;
+  }
 
   final StorageAdapters.SpanConsumer spanConsumer = new StorageAdapters.SpanConsumer() {
     @Override public void accept(List<Span> spans) {
-      for (Span span : spans) {
-        span = ApplyTimestampAndDuration.apply(span);
-        Pair<Long> traceIdTimeStamp =
-            Pair.create(span.traceId, span.timestamp == null ? Long.MIN_VALUE : span.timestamp);
-        String spanName = span.name;
-        synchronized (InMemorySpanStore.this) {
-          traceIdTimeStamps.add(traceIdTimeStamp);
-          traceIdToSpans.put(span.traceId, span);
-          acceptedSpanCount++;
-
-          for (String serviceName : span.serviceNames()) {
-            serviceToTraceIdTimeStamp.put(serviceName, traceIdTimeStamp);
-            serviceToSpanNames.put(serviceName, spanName);
-          }
+      Span[] applied = new Span[spans.size()];
+      for (int i = 0; i < applied.length; i++) {
+        applied[i] = ApplyTimestampAndDuration.apply(spans.get(i));
+      }
+      long nowMicros = System.currentTimeMillis() * 1000;
+      lock.writeLock().lock();
+      try {
+        LongHashMap<Boolean> traceIds = new LongHashMap<Boolean>();
+        for (Span span : applied) {
+          index(span);
+          traceIds.put(span.traceId, Boolean.TRUE);
+        }
+        for (int slot = 0, capacity = traceIds.capacity(); slot < capacity; slot++) {
+          if (traceIds.valueAt(slot) == null) continue;
+          summarize(traceIds.keyAt(slot));
+          indexEviction(traceIds.keyAt(slot), nowMicros);
         }
+        acceptedSpanCount += applied.length;
+        spanCount += applied.length;
+        evict(nowMicros);
+      } finally {
+        lock.writeLock().unlock();
       }
     }
 
@@ -57,226 +132,440 @@ public final class InMemorySpanStore implements SpanStore {
     }
   };
 
-  public synchronized List<Long> traceIds() {
-    return sortedList(traceIdToSpans.keySet());
+  /** Guarded by the write lock. */
+  void index(Span span) {
+    long timestamp = span.timestamp == null ? Long.MIN_VALUE : span.timestamp;
+    List<Span> spans = traceIdToSpans.get(span.traceId);
+    if (spans == null) traceIdToSpans.put(span.traceId, spans = new ArrayList<Span>(4));
+    spans.add(span);
+    traceIdTimestamps.add(span.traceId, timestamp);
+
+    for (String serviceName : span.serviceNames()) {
+      TimestampIndex serviceIndex = serviceToTraceIdTimestamps.get(serviceName);
+      if (serviceIndex == null) {
+        serviceToTraceIdTimestamps.put(serviceName, serviceIndex = new TimestampIndex());
+      }
+      serviceIndex.add(span.traceId, timestamp);
+      Map<String, int[]> spanNames = serviceToSpanNames.get(serviceName);
+      if (spanNames == null) {
+        serviceToSpanNames.put(serviceName, spanNames = new LinkedHashMap<String, int[]>());
+      }
+      int[] count = spanNames.get(span.name);
+      if (count == null) spanNames.put(span.name, count = new int[1]);
+      count[0]++;
+    }
+
+    post(spanNameToTraceIds, span.name, span.traceId);
+    for (Annotation a : span.annotations) {
+      if (Constants.CORE_ANNOTATIONS.contains(a.value)) continue; // can't be queried
+      post(annotationToTraceIds, a.value, span.traceId);
+    }
+    for (BinaryAnnotation b : span.binaryAnnotations) {
+      if (b.type != BinaryAnnotation.Type.STRING) continue;
+      Map<String, LongHashMap<Boolean>> values = binaryAnnotationToTraceIds.get(b.key);
+      if (values == null) {
+        binaryAnnotationToTraceIds.put(b.key,
+            values = new LinkedHashMap<String, LongHashMap<Boolean>>());
+      }
+      post(values, new String(b.value, Util.UTF_8), span.traceId);
+    }
   }
 
-  synchronized void clear() {
-    acceptedSpanCount = 0;
-    traceIdToSpans.clear();
-    serviceToTraceIdTimeStamp.clear();
+  static void post(Map<String, LongHashMap<Boolean>> index, String key, long traceId) {
+    LongHashMap<Boolean> traceIds = index.get(key);
+    if (traceIds == null) index.put(key, traceIds = new LongHashMap<Boolean>(4));
+    traceIds.put(traceId, Boolean.TRUE);
   }
 
-  @Override
-  public synchronized List<List<Span>> getTraces(QueryRequest request) {
-    Set<Long> traceIds = traceIdsDescendingByTimestamp(request.serviceName);
-    if (traceIds == null || traceIds.isEmpty()) return Collections.emptyList();
+  static void unpost(Map<String, LongHashMap<Boolean>> index, String key, long traceId) {
+    LongHashMap<Boolean> traceIds = index.get(key);
+    if (traceIds == null) return;
+    traceIds.remove(traceId);
+    if (traceIds.isEmpty()) index.remove(key);
+  }
 
-    List<List<Span>> result = new ArrayList<List<Span>>(traceIds.size());
-    for (long traceId : traceIds) {
-      List<Span> next = getTrace(traceId);
-      if (next != null && test(request, next)) {
-        result.add(next);
-      }
-      if (result.size() == request.limit) {
-        break;
-      }
-    }
-    Collections.sort(result, TRACE_DESCENDING);
-    return result;
+  /** Recomputes what derives from the trace's merged spans. Guarded by the write lock. */
+  void summarize(long traceId) {
+    List<Span> merged = MergeById.apply(traceIdToSpans.get(traceId));
+    link(traceId, merged);
+    indexDurations(traceId, merged);
   }
 
-  Set<Long> traceIdsDescendingByTimestamp(@Nullable String serviceName) {
-    Collection<Pair<Long>> traceIdTimestamps = serviceName == null ? traceIdTimeStamps :
-        serviceToTraceIdTimeStamp.get(serviceName);
-    if (traceIdTimestamps == null || traceIdTimestamps.isEmpty()) return Collections.emptySet();
-    Set<Long> result = new LinkedHashSet<Long>();
-    for (Pair<Long> traceIdTimestamp : traceIdTimestamps) {
-      result.add(traceIdTimestamp._1);
+  /**
+   * Places the trace in eviction order by its oldest span timestamp, or by when it was first
+   * accepted if none of its spans have one. Guarded by the write lock.
+   */
+  void indexEviction(long traceId, long acceptedMicros) {
+    Long previous = traceIdToEvictionTimestamp.get(traceId);
+    long oldest = Long.MAX_VALUE;
+    for (Span span : traceIdToSpans.get(traceId)) {
+      if (span.timestamp != null) oldest = Math.min(oldest, span.timestamp);
     }
-    return result;
+    if (oldest == Long.MAX_VALUE) oldest = previous != null ? previous : acceptedMicros;
+    if (previous != null) {
+      if (previous == oldest) return;
+      traceIdEvictionOrder.remove(traceId, previous);
+    }
+    traceIdEvictionOrder.add(traceId, oldest);
+    traceIdToEvictionTimestamp.put(traceId, oldest);
   }
 
-  static final Comparator<List<Span>> TRACE_DESCENDING = new Comparator<List<Span>>() {
-    @Override
-    public int compare(List<Span> left, List<Span> right) {
-      return right.get(0).compareTo(left.get(0));
-    }
-  };
+  static final class TraceLinks {
+    final long minute;
+    final List<DependencyLink> links;
 
-  @Override
-  public synchronized List<Span> getTrace(long traceId) {
-    List<Span> spans = getRawTrace(traceId);
-    return spans == null ? null : CorrectForClockSkew.apply(MergeById.apply(spans));
+    TraceLinks(long minute, List<DependencyLink> links) {
+      this.minute = minute;
+      this.links = links;
+    }
   }
 
-  @Override
-  public synchronized List<Span> getRawTrace(long traceId) {
-    List<Span> spans = (List<Span>) traceIdToSpans.get(traceId);
-    if (spans == null || spans.isEmpty()) return null;
-    return spans;
-  }
+  static final long MINUTE_MICROS = TimeUnit.MINUTES.toMicros(1);
 
-  @Override
-  public synchronized List<String> getServiceNames() {
-    return sortedList(serviceToTraceIdTimeStamp.keySet());
+  /** Floors the timestamp to the minute, including negative ones. */
+  static long minute(long timestampMicros) {
+    long remainder = timestampMicros % MINUTE_MICROS;
+    return timestampMicros - (remainder < 0 ? remainder + MINUTE_MICROS : remainder);
   }
 
-  @Override
-  public synchronized List<String> getSpanNames(String service) {
-    if (service == null) return Collections.emptyList();
-    service = service.toLowerCase(); // service names are always lowercase!
-    return sortedList(serviceToSpanNames.get(service));
+  /** Replaces the trace's contribution to dependency links. Guarded by the write lock. */
+  void link(long traceId, List<Span> merged) {
+    unlink(traceId);
+    long start = Long.MAX_VALUE;
+    List<DependencyLinkSpan> linkSpans = new ArrayList<DependencyLinkSpan>(merged.size());
+    for (Span s : merged) {
+      if (s.timestamp == null) continue; // can't be placed in time
+      start = Math.min(start, s.timestamp);
+      linkSpans.add(DependencyLinkSpan.from(s));
+    }
+    if (linkSpans.isEmpty()) return;
+    List<DependencyLink> links = new DependencyLinker().putTrace(linkSpans.iterator()).link();
+    if (links.isEmpty()) return;
+
+    TraceLinks traceLinks = new TraceLinks(minute(start), links);
+    Map<Pair<String>, long[]> counts = linksByMinute.get(traceLinks.minute);
+    if (counts == null) {
+      linksByMinute.put(traceLinks.minute, counts = new LinkedHashMap<Pair<String>, long[]>());
+    }
+    for (DependencyLink link : links) {
+      Pair<String> key = Pair.create(link.parent, link.child);
+      long[] count = counts.get(key);
+      if (count == null) counts.put(key, count = new long[1]);
+      count[0] += link.callCount;
+    }
+    traceIdToLinks.put(traceId, traceLinks);
   }
 
-  @Override
-  public List<DependencyLink> getDependencies(long endTs, @Nullable Long lookback) {
-    endTs *= 1000;
-    if (lookback == null) {
-      lookback = endTs;
-    } else {
-      lookback *= 1000;
+  /** Subtracts the trace's contribution to dependency links. Guarded by the write lock. */
+  void unlink(long traceId) {
+    TraceLinks traceLinks = traceIdToLinks.remove(traceId);
+    if (traceLinks == null) return;
+    Map<Pair<String>, long[]> counts = linksByMinute.get(traceLinks.minute);
+    for (DependencyLink link : traceLinks.links) {
+      Pair<String> key = Pair.create(link.parent, link.child);
+      long[] count = counts.get(key);
+      if ((count[0] -= link.callCount) == 0) counts.remove(key);
     }
+    if (counts.isEmpty()) linksByMinute.remove(traceLinks.minute);
+  }
 
-    DependencyLinker linksBuilder = new DependencyLinker();
+  static final class SpanDuration {
+    final long duration;
+    final Set<String> serviceNames;
 
-    for (Collection<Span> trace : traceIdToSpans.delegate.values()) {
-      if (trace.isEmpty()) continue;
+    SpanDuration(long duration, Set<String> serviceNames) {
+      this.duration = duration;
+      this.serviceNames = serviceNames;
+    }
+  }
 
-      List<DependencyLinkSpan> linkSpans = new LinkedList<DependencyLinkSpan>();
-      for (Span s : MergeById.apply(trace)) {
-        Long timestamp = s.timestamp;
-        if (timestamp == null ||
-            timestamp < (endTs - lookback) ||
-            timestamp > endTs) {
-          continue;
+  /** Replaces the trace's entries in the duration indexes. Guarded by the write lock. */
+  void indexDurations(long traceId, List<Span> merged) {
+    unindexDurations(traceId);
+    List<SpanDuration> durations = new ArrayList<SpanDuration>(merged.size());
+    for (Span s : merged) {
+      if (s.duration == null) continue;
+      SpanDuration spanDuration = new SpanDuration(s.duration, s.serviceNames());
+      traceIdDurations.add(traceId, spanDuration.duration);
+      for (String serviceName : spanDuration.serviceNames) {
+        DurationIndex serviceIndex = serviceToTraceIdDurations.get(serviceName);
+        if (serviceIndex == null) {
+          serviceToTraceIdDurations.put(serviceName, serviceIndex = new DurationIndex());
         }
-        linkSpans.add(DependencyLinkSpan.from(s));
+        serviceIndex.add(traceId, spanDuration.duration);
       }
-
-      linksBuilder.putTrace(linkSpans.iterator());
+      durations.add(spanDuration);
     }
-    return linksBuilder.link();
+    if (!durations.isEmpty()) traceIdToDurations.put(traceId, durations);
   }
 
-  static boolean test(QueryRequest request, List<Span> spans) {
-    Long timestamp = spans.get(0).timestamp;
-    if (timestamp == null ||
-        timestamp < (request.endTs - request.lookback) * 1000 ||
-        timestamp > request.endTs * 1000) {
-      return false;
+  /** Removes the trace's entries from the duration indexes. Guarded by the write lock. */
+  void unindexDurations(long traceId) {
+    List<SpanDuration> durations = traceIdToDurations.remove(traceId);
+    if (durations == null) return;
+    for (SpanDuration spanDuration : durations) {
+      traceIdDurations.remove(traceId, spanDuration.duration);
+      for (String serviceName : spanDuration.serviceNames) {
+        DurationIndex serviceIndex = serviceToTraceIdDurations.get(serviceName);
+        serviceIndex.remove(traceId, spanDuration.duration);
+        if (serviceIndex.isEmpty()) serviceToTraceIdDurations.remove(serviceName);
+      }
     }
-    Set<String> serviceNames = new LinkedHashSet<String>();
-    boolean testedDuration = request.minDuration == null && request.maxDuration == null;
+  }
 
-    String spanName = request.spanName;
-    Set<String> annotations = new LinkedHashSet<String>(request.annotations);
-    Map<String, String> binaryAnnotations = new LinkedHashMap<String, String>(request.binaryAnnotations);
+  /** Evicts whole traces, oldest first, until within limits. Guarded by the write lock. */
+  void evict(long nowMicros) {
+    long expiredBefore = ttlMicros == 0 ? Long.MIN_VALUE : nowMicros - ttlMicros;
+    while (!traceIdEvictionOrder.isEmpty()) {
+      int oldest = traceIdEvictionOrder.start;
+      if (spanCount <= maxSpanCount && traceIdEvictionOrder.timestamps[oldest] >= expiredBefore) {
+        return;
+      }
+      List<Span> evicted = remove(traceIdEvictionOrder.traceIds[oldest]);
+      evictedTraceCount++;
+      evictedSpanCount += evicted.size();
+    }
+  }
 
-    Set<String> currentServiceNames = new LinkedHashSet<String>();
+  /** Removes the trace and its entries from every index. Guarded by the write lock. */
+  List<Span> remove(long traceId) {
+    List<Span> spans = traceIdToSpans.remove(traceId);
+    if (spans == null) return Collections.emptyList();
+    Long evictionTimestamp = traceIdToEvictionTimestamp.remove(traceId);
+    if (evictionTimestamp != null) traceIdEvictionOrder.remove(traceId, evictionTimestamp);
+    unlink(traceId);
+    unindexDurations(traceId);
     for (Span span : spans) {
-      currentServiceNames.clear();
-
+      unpost(spanNameToTraceIds, span.name, traceId);
       for (Annotation a : span.annotations) {
-        annotations.remove(a.value);
-        if (a.endpoint != null) {
-          serviceNames.add(a.endpoint.serviceName);
-          currentServiceNames.add(a.endpoint.serviceName);
-        }
+        if (Constants.CORE_ANNOTATIONS.contains(a.value)) continue;
+        unpost(annotationToTraceIds, a.value, traceId);
       }
-
       for (BinaryAnnotation b : span.binaryAnnotations) {
-        if (b.type == BinaryAnnotation.Type.STRING &&
-            new String(b.value, Util.UTF_8).equals(binaryAnnotations.get(b.key))) {
-          binaryAnnotations.remove(b.key);
-        }
-        if (b.endpoint != null) {
-          serviceNames.add(b.endpoint.serviceName);
-          currentServiceNames.add(b.endpoint.serviceName);
-        }
+        if (b.type != BinaryAnnotation.Type.STRING) continue;
+        Map<String, LongHashMap<Boolean>> values = binaryAnnotationToTraceIds.get(b.key);
+        if (values == null) continue;
+        unpost(values, new String(b.value, Util.UTF_8), traceId);
+        if (values.isEmpty()) binaryAnnotationToTraceIds.remove(b.key);
       }
-
-      if ((request.serviceName == null || currentServiceNames.contains(request.serviceName))
-          && !testedDuration) {
-        if (request.minDuration != null && request.maxDuration != null) {
-          testedDuration =
-              span.duration >= request.minDuration && span.duration <= request.maxDuration;
-        } else if (request.minDuration != null) {
-          testedDuration = span.duration >= request.minDuration;
+      long timestamp = span.timestamp == null ? Long.MIN_VALUE : span.timestamp;
+      traceIdTimestamps.remove(traceId, timestamp);
+      for (String serviceName : span.serviceNames()) {
+        TimestampIndex serviceIndex = serviceToTraceIdTimestamps.get(serviceName);
+        if (serviceIndex != null) {
+          serviceIndex.remove(traceId, timestamp);
+          if (serviceIndex.isEmpty()) serviceToTraceIdTimestamps.remove(serviceName);
         }
+        Map<String, int[]> spanNames = serviceToSpanNames.get(serviceName);
+        if (spanNames == null) continue;
+        int[] count = spanNames.get(span.name);
+        if (count != null && --count[0] == 0) spanNames.remove(span.name);
+        if (spanNames.isEmpty()) serviceToSpanNames.remove(serviceName);
       }
+    }
+    spanCount -= spans.size();
+    return spans;
+  }
+
+  public List<Long> traceIds() {
+    long[] traceIds;
+    lock.readLock().lock();
+    try {
+      traceIds = traceIdToSpans.sortedKeys();
+    } finally {
+      lock.readLock().unlock();
+    }
+    List<Long> result = new ArrayList<Long>(traceIds.length);
+    for (long traceId : traceIds) {
+      result.add(traceId);
+    }
+    return Collections.unmodifiableList(result);
+  }
+
+  void clear() {
+    lock.writeLock().lock();
+    try {
+      acceptedSpanCount = 0;
+      evictedTraceCount = 0;
+      evictedSpanCount = 0;
+      spanCount = 0;
+      traceIdToSpans.clear();
+      traceIdTimestamps.clear();
+      traceIdEvictionOrder.clear();
+      traceIdToEvictionTimestamp.clear();
+      serviceToTraceIdTimestamps.clear();
+      serviceToSpanNames.clear();
+      traceIdToLinks.clear();
+      linksByMinute.clear();
+      spanNameToTraceIds.clear();
+      annotationToTraceIds.clear();
+      binaryAnnotationToTraceIds.clear();
+      traceIdDurations.clear();
+      serviceToTraceIdDurations.clear();
+      traceIdToDurations.clear();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
 
-      if (span.name.equals(spanName)) {
-        spanName = null;
+  @Override
+  public List<List<Span>> getTraces(QueryRequest request) {
+    List<List<Span>> result = new ArrayList<List<Span>>();
+    lock.readLock().lock();
+    try {
+      TimestampIndex index = request.serviceName == null
+          ? traceIdTimestamps
+          : serviceToTraceIdTimestamps.get(request.serviceName);
+      if (index == null || index.isEmpty()) return Collections.emptyList();
+      LongHashMap<Boolean> candidates = candidates(request);
+      if (candidates != null && candidates.isEmpty()) return Collections.emptyList();
+
+      // the index has an entry per distinct span timestamp, so the same trace id can repeat
+      LongHashMap<Boolean> seen = new LongHashMap<Boolean>();
+      for (int i = index.end - 1; i >= index.start; i--) {
+        long traceId = index.traceIds[i];
+        if (candidates != null && !candidates.containsKey(traceId)) continue;
+        if (seen.put(traceId, Boolean.TRUE) != null) continue;
+        List<Span> next = getTrace(traceId);
+        if (next != null && request.test(next)) {
+          result.add(next);
+        }
+        if (result.size() == request.limit) {
+          break;
+        }
+        if (candidates != null && seen.size() == candidates.size()) {
+          break; // all candidates were checked
+        }
       }
+    } finally {
+      lock.readLock().unlock();
     }
-    return (request.serviceName == null || serviceNames.contains(request.serviceName))
-        && spanName == null
-        && annotations.isEmpty()
-        && binaryAnnotations.isEmpty()
-        && testedDuration;
+    Collections.sort(result, TRACE_DESCENDING);
+    return result;
   }
 
-  static final class LinkedListMultimap<K, V> extends Multimap<K, V> {
+  /**
+   * Returns the trace ids which match each indexed criterion of the request, or null if it has
+   * none. Guarded by the read lock.
+   */
+  @Nullable LongHashMap<Boolean> candidates(QueryRequest request) {
+    List<LongHashMap<Boolean>> postings = new ArrayList<LongHashMap<Boolean>>();
+    if (request.spanName != null) postings.add(spanNameToTraceIds.get(request.spanName));
+    for (String annotation : request.annotations) {
+      postings.add(annotationToTraceIds.get(annotation));
+    }
+    for (Map.Entry<String, String> entry : request.binaryAnnotations.entrySet()) {
+      Map<String, LongHashMap<Boolean>> values = binaryAnnotationToTraceIds.get(entry.getKey());
+      postings.add(values == null ? null : values.get(entry.getValue()));
+    }
+    if (request.minDuration != null) {
+      DurationIndex durations = request.serviceName == null
+          ? traceIdDurations
+          : serviceToTraceIdDurations.get(request.serviceName);
+      LongHashMap<Boolean> traceIds = new LongHashMap<Boolean>();
+      if (durations != null) {
+        long maxDuration = request.maxDuration == null ? Long.MAX_VALUE : request.maxDuration;
+        durations.traceIds(request.minDuration, maxDuration, traceIds);
+      }
+      postings.add(traceIds);
+    }
+    if (postings.isEmpty()) return null;
 
-    @Override Collection<V> valueContainer() {
-      return new LinkedList<V>();
+    LongHashMap<Boolean> smallest = null;
+    for (LongHashMap<Boolean> traceIds : postings) {
+      if (traceIds == null || traceIds.isEmpty()) return new LongHashMap<Boolean>(0);
+      if (smallest == null || traceIds.size() < smallest.size()) smallest = traceIds;
+    }
+    LongHashMap<Boolean> result = new LongHashMap<Boolean>(smallest.size());
+    nextSlot:
+    for (int slot = 0, capacity = smallest.capacity(); slot < capacity; slot++) {
+      if (smallest.valueAt(slot) == null) continue;
+      long traceId = smallest.keyAt(slot);
+      for (LongHashMap<Boolean> traceIds : postings) {
+        if (traceIds != smallest && !traceIds.containsKey(traceId)) continue nextSlot;
+      }
+      result.put(traceId, Boolean.TRUE);
     }
+    return result;
   }
 
-  static final Comparator<Pair<Long>> VALUE_2_DESCENDING = new Comparator<Pair<Long>>() {
+  static final Comparator<List<Span>> TRACE_DESCENDING = new Comparator<List<Span>>() {
     @Override
-    public int compare(Pair<Long> left, Pair<Long> right) {
-      int result = right._2.compareTo(left._2);
-      if (result != 0) return result;
-      return right._1.compareTo(left._1);
+    public int compare(List<Span> left, List<Span> right) {
+      return right.get(0).compareTo(left.get(0));
     }
   };
 
-  /** QueryRequest.limit needs trace ids are returned in timestamp descending order. */
-  static final class SortedByValue2Descending<K> extends Multimap<K, Pair<Long>> {
+  @Override
+  public List<Span> getTrace(long traceId) {
+    List<Span> spans = getRawTrace(traceId);
+    return spans == null ? null : CorrectForClockSkew.apply(MergeById.apply(spans));
+  }
 
-    @Override Set<Pair<Long>> valueContainer() {
-      return new TreeSet<Pair<Long>>(VALUE_2_DESCENDING);
+  @Override
+  public List<Span> getRawTrace(long traceId) {
+    lock.readLock().lock();
+    try {
+      List<Span> spans = traceIdToSpans.get(traceId);
+      if (spans == null || spans.isEmpty()) return null;
+      return new ArrayList<Span>(spans); // a copy, as writers append to the original
+    } finally {
+      lock.readLock().unlock();
     }
   }
 
-  static final class LinkedHashSetMultimap<K, V> extends Multimap<K, V> {
-
-    @Override Collection<V> valueContainer() {
-      return new LinkedHashSet<V>();
+  @Override
+  public List<String> getServiceNames() {
+    lock.readLock().lock();
+    try {
+      return sortedList(serviceToTraceIdTimestamps.keySet());
+    } finally {
+      lock.readLock().unlock();
     }
   }
 
-  static abstract class Multimap<K, V> {
-    private final Map<K, Collection<V>> delegate = new LinkedHashMap<K, Collection<V>>();
-
-    abstract Collection<V> valueContainer();
+  @Override
+  public List<String> getSpanNames(String service) {
+    if (service == null) return Collections.emptyList();
+    service = service.toLowerCase(); // service names are always lowercase!
+    lock.readLock().lock();
+    try {
+      Map<String, int[]> spanNames = serviceToSpanNames.get(service);
+      return spanNames == null ? Collections.<String>emptyList() : sortedList(spanNames.keySet());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
 
-    Set<K> keySet() {
-      return delegate.keySet();
+  @Override
+  public List<DependencyLink> getDependencies(long endTs, @Nullable Long lookback) {
+    endTs *= 1000;
+    if (lookback == null) {
+      lookback = endTs;
+    } else {
+      lookback *= 1000;
     }
 
-    void put(K key, V value) {
-      Collection<V> valueContainer = delegate.get(key);
-      if (valueContainer == null) {
-        synchronized (delegate) {
-          if (!delegate.containsKey(key)) {
-            valueContainer = valueContainer();
-            delegate.put(key, valueContainer);
-          }
+    Map<Pair<String>, long[]> sums = new LinkedHashMap<Pair<String>, long[]>();
+    lock.readLock().lock();
+    try {
+      for (Map<Pair<String>, long[]> counts : linksByMinute.subMap(
+          minute(endTs - lookback), true, minute(endTs), true).values()) {
+        for (Map.Entry<Pair<String>, long[]> entry : counts.entrySet()) {
+          long[] sum = sums.get(entry.getKey());
+          if (sum == null) sums.put(entry.getKey(), sum = new long[1]);
+          sum[0] += entry.getValue()[0];
         }
       }
-      valueContainer.add(value);
+    } finally {
+      lock.readLock().unlock();
     }
 
-    // not synchronized as only used for for testing
-    void clear() {
-      delegate.clear();
-    }
-
-    Collection<V> get(K key) {
-      return delegate.get(key);
+    List<DependencyLink> result = new ArrayList<DependencyLink>(sums.size());
+    for (Map.Entry<Pair<String>, long[]> entry : sums.entrySet()) {
+      Pair<String> key = entry.getKey();
+      result.add(DependencyLink.create(key._1, key._2, entry.getValue()[0]));
     }
+    return result;
   }
 }
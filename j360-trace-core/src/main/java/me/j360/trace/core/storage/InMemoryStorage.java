@@ -14,22 +14,73 @@
 package me.j360.trace.core.storage;
 
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
+import static me.j360.trace.core.internal.Util.checkArgument;
 import static me.j360.trace.core.storage.StorageAdapters.blockingToAsync;
 
 
 /**
- * Test storage component that keeps all spans in memory, accepting them on the calling thread.
+ * Storage component that keeps spans in memory, accepting them on the calling thread. By default,
+ * all spans are kept: use {@link #builder()} to bound retention when running a long-lived server.
  */
 public final class InMemoryStorage implements StorageComponent {
-  final InMemorySpanStore spanStore = new InMemorySpanStore();
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    int maxSpanCount = Integer.MAX_VALUE;
+    long ttlMillis = 0L;
+
+    /**
+     * Maximum count of spans retained. When exceeded, whole traces are evicted, oldest first.
+     * Defaults to unbounded.
+     */
+    public Builder maxSpanCount(int maxSpanCount) {
+      checkArgument(maxSpanCount > 0, "maxSpanCount should be positive: was %s", maxSpanCount);
+      this.maxSpanCount = maxSpanCount;
+      return this;
+    }
+
+    /**
+     * Traces with spans older than this are evicted, as new spans are accepted. Defaults to 0,
+     * which keeps spans regardless of age.
+     */
+    public Builder ttl(long ttl, TimeUnit unit) {
+      checkArgument(ttl >= 0, "ttl should not be negative: was %s", ttl);
+      this.ttlMillis = unit.toMillis(ttl);
+      return this;
+    }
+
+    public InMemoryStorage build() {
+      return new InMemoryStorage(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  final InMemorySpanStore spanStore;
   final Executor callingThread = new Executor() {
     @Override public void execute(Runnable command) {
       command.run();
     }
   };
-  final AsyncSpanStore asyncSpanStore = blockingToAsync(spanStore, callingThread);
-  final AsyncSpanConsumer asyncConsumer = blockingToAsync(spanStore.spanConsumer, callingThread);
+  final AsyncSpanStore asyncSpanStore;
+  final AsyncSpanConsumer asyncConsumer;
+
+  /** Keeps all spans. */
+  public InMemoryStorage() {
+    this(builder());
+  }
+
+  InMemoryStorage(Builder builder) {
+    spanStore = new InMemorySpanStore(builder.maxSpanCount, builder.ttlMillis);
+    asyncSpanStore = blockingToAsync(spanStore, callingThread);
+    asyncConsumer = blockingToAsync(spanStore.spanConsumer, callingThread);
+  }
 
   @Override public InMemorySpanStore spanStore() {
     return spanStore;
@@ -56,6 +107,16 @@ public final class InMemoryStorage implements StorageComponent {
     return spanStore.acceptedSpanCount;
   }
 
+  /** Count of traces evicted due to {@link Builder#maxSpanCount} or {@link Builder#ttl}. */
+  public int evictedTraceCount() {
+    return spanStore.evictedTraceCount;
+  }
+
+  /** Count of spans in {@link #evictedTraceCount() evicted traces}. */
+  public int evictedSpanCount() {
+    return spanStore.evictedSpanCount;
+  }
+
   @Override public CheckResult check() {
     return CheckResult.OK;
   }
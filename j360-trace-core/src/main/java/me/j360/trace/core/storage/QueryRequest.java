@@ -14,8 +14,12 @@
 package me.j360.trace.core.storage;
 
 
+import me.j360.trace.core.Annotation;
+import me.j360.trace.core.BinaryAnnotation;
 import me.j360.trace.core.Constants;
+import me.j360.trace.core.Span;
 import me.j360.trace.core.internal.Nullable;
+import me.j360.trace.core.internal.Util;
 
 import java.util.*;
 
@@ -90,6 +94,9 @@ public final class QueryRequest {
   /** Maximum number of traces to return. Defaults to 10 */
   public final int limit;
 
+  /** {@link #binaryAnnotations} encoded once, so that {@link #test} doesn't decode span values. */
+  private final Map<String, byte[]> utf8BinaryAnnotations;
+
   /**
    * Corresponds to query parameter "annotationQuery". Ex. "http.method=GET and error"
    *
@@ -137,10 +144,12 @@ public final class QueryRequest {
           "queries cannot be refined by core annotations: %s", annotation);
     }
     this.binaryAnnotations = binaryAnnotations;
+    this.utf8BinaryAnnotations = new LinkedHashMap<String, byte[]>(binaryAnnotations.size());
     for (Map.Entry<String, String> entry : binaryAnnotations.entrySet()) {
       checkArgument(!entry.getKey().isEmpty(), "binary annotation key was empty");
       checkArgument(!entry.getValue().isEmpty(),
           "binary annotation value for %s was empty", entry.getKey());
+      utf8BinaryAnnotations.put(entry.getKey(), entry.getValue().getBytes(Util.UTF_8));
     }
     if (minDuration != null) {
       checkArgument(minDuration > 0, "minDuration must be a positive number of microseconds");
@@ -164,6 +173,65 @@ public final class QueryRequest {
     return new Builder(this);
   }
 
+  /**
+   * Returns true if the trace, as returned by {@link SpanStore#getTrace}, matches this request.
+   * Stores which can't apply every filter natively can use this to check candidate traces.
+   */
+  public boolean test(List<Span> spans) {
+    Long timestamp = spans.get(0).timestamp;
+    if (timestamp == null ||
+        timestamp < (endTs - lookback) * 1000 ||
+        timestamp > endTs * 1000) {
+      return false;
+    }
+    Set<String> serviceNames = new LinkedHashSet<String>();
+    boolean testedDuration = minDuration == null && maxDuration == null;
+
+    String spanName = this.spanName;
+    Set<String> annotations = new LinkedHashSet<String>(this.annotations);
+    Map<String, byte[]> binaryAnnotations =
+        new LinkedHashMap<String, byte[]>(utf8BinaryAnnotations);
+
+    Set<String> currentServiceNames = new LinkedHashSet<String>();
+    for (Span span : spans) {
+      currentServiceNames.clear();
+
+      for (Annotation a : span.annotations) {
+        annotations.remove(a.value);
+        if (a.endpoint != null) {
+          serviceNames.add(a.endpoint.serviceName);
+          currentServiceNames.add(a.endpoint.serviceName);
+        }
+      }
+
+      for (BinaryAnnotation b : span.binaryAnnotations) {
+        if (b.type == BinaryAnnotation.Type.STRING &&
+            Arrays.equals(b.value, binaryAnnotations.get(b.key))) {
+          binaryAnnotations.remove(b.key);
+        }
+        if (b.endpoint != null) {
+          serviceNames.add(b.endpoint.serviceName);
+          currentServiceNames.add(b.endpoint.serviceName);
+        }
+      }
+
+      if ((serviceName == null || currentServiceNames.contains(serviceName))
+          && !testedDuration && span.duration != null) {
+        testedDuration = span.duration >= minDuration
+            && (maxDuration == null || span.duration <= maxDuration);
+      }
+
+      if (span.name.equals(spanName)) {
+        spanName = null;
+      }
+    }
+    return (serviceName == null || serviceNames.contains(serviceName))
+        && spanName == null
+        && annotations.isEmpty()
+        && binaryAnnotations.isEmpty()
+        && testedDuration;
+  }
+
   public static Builder builder() {
     return new Builder();
   }
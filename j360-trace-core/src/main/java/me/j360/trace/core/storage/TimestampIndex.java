@@ -0,0 +1,123 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.core.storage;
+
+import java.util.Arrays;
+
+/**
+ * Distinct (timestamp, trace id) pairs in ascending order, held in parallel primitive arrays. Read
+ * it newest first by iterating from {@code end - 1} down to {@code start}.
+ *
+ * <p>Spans mostly arrive in timestamp order, so inserts are usually appends. The live range is
+ * {@code [start, end)}, so that removing the oldest entries is also cheap.
+ *
+ * <p>This is not thread-safe.
+ */
+final class TimestampIndex {
+  long[] timestamps = new long[16];
+  long[] traceIds = new long[16];
+  int start, end;
+
+  int size() {
+    return end - start;
+  }
+
+  boolean isEmpty() {
+    return start == end;
+  }
+
+  /** Returns false if the pair was already present. */
+  boolean add(long traceId, long timestamp) {
+    int i = search(traceId, timestamp);
+    if (i >= 0) return false;
+    i = -i - 1;
+    if (i == start && start > 0) { // older than everything: prepend without shifting
+      start--;
+      timestamps[start] = timestamp;
+      traceIds[start] = traceId;
+      return true;
+    }
+    if (end == timestamps.length) {
+      i -= start;
+      ensureRoomForOneMore();
+      i += start;
+    }
+    System.arraycopy(timestamps, i, timestamps, i + 1, end - i);
+    System.arraycopy(traceIds, i, traceIds, i + 1, end - i);
+    timestamps[i] = timestamp;
+    traceIds[i] = traceId;
+    end++;
+    return true;
+  }
+
+  /** Returns false if the pair wasn't present. */
+  boolean remove(long traceId, long timestamp) {
+    int i = search(traceId, timestamp);
+    if (i < 0) return false;
+    if (i == start) {
+      start++;
+    } else {
+      System.arraycopy(timestamps, i + 1, timestamps, i, end - i - 1);
+      System.arraycopy(traceIds, i + 1, traceIds, i, end - i - 1);
+      end--;
+    }
+    if (start == end) start = end = 0;
+    return true;
+  }
+
+  void clear() {
+    start = end = 0;
+  }
+
+  /** Binary search over the live range, with the same return contract as {@link Arrays}. */
+  int search(long traceId, long timestamp) {
+    int low = start, high = end - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compare(timestamps[mid], traceIds[mid], timestamp, traceId);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  static int compare(long timestamp1, long traceId1, long timestamp2, long traceId2) {
+    if (timestamp1 != timestamp2) return timestamp1 < timestamp2 ? -1 : 1;
+    if (traceId1 != traceId2) return traceId1 < traceId2 ? -1 : 1;
+    return 0;
+  }
+
+  /** Reclaims the space before {@code start}, or grows the arrays when it is small. */
+  void ensureRoomForOneMore() {
+    int size = size();
+    if (start > 0 && start >= size / 2) {
+      System.arraycopy(timestamps, start, timestamps, 0, size);
+      System.arraycopy(traceIds, start, traceIds, 0, size);
+    } else {
+      long[] grownTimestamps = new long[timestamps.length * 2];
+      long[] grownTraceIds = new long[traceIds.length * 2];
+      System.arraycopy(timestamps, start, grownTimestamps, 0, size);
+      System.arraycopy(traceIds, start, grownTraceIds, 0, size);
+      timestamps = grownTimestamps;
+      traceIds = grownTraceIds;
+    }
+    start = 0;
+    end = size;
+  }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.core.collector;
+
+import me.j360.trace.core.BinaryAnnotation;
+import me.j360.trace.core.Constants;
+import me.j360.trace.core.Span;
+import me.j360.trace.core.storage.Callback;
+import me.j360.trace.core.storage.InMemoryStorage;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static me.j360.trace.core.TestObjects.APP_ENDPOINT;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TailSamplerTest {
+  static final long QUIET = SECONDS.toNanos(5);
+
+  InMemoryStorage storage = new InMemoryStorage();
+  InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+  TailSampler tailSampler;
+  Collector collector;
+  long now = System.nanoTime();
+
+  Collector collector(TailSampler.Builder builder) {
+    tailSampler = builder.scheduleFlush(false).build();
+    return collector = Collector.builder(Collector.class)
+        .storage(storage)
+        .metrics(metrics)
+        .tailSampler(tailSampler).build();
+  }
+
+  @After
+  public void close() {
+    if (tailSampler != null) tailSampler.close();
+  }
+
+  @Test
+  public void buffersUntilTheTraceIsQuiet() {
+    collector(TailSampler.builder().baseRate(1.0f));
+
+    accept(span(1L, 1L));
+    now += QUIET - 1;
+    accept(span(1L, 2L)); // extends the quiet period
+    now += QUIET - 1;
+    tailSampler.flush(now);
+    assertThat(storedTraceIds()).isEmpty();
+
+    now += 1;
+    tailSampler.flush(now);
+    assertThat(storage.spanStore().getRawTrace(1L)).hasSize(2);
+    assertThat(metrics.tracesBuffered()).isEqualTo(1);
+    assertThat(metrics.tracesKept()).isEqualTo(1);
+  }
+
+  @Test
+  public void keepsErrorTraces_dropsTheRest() {
+    collector(TailSampler.builder().baseRate(0.0f));
+
+    accept(span(1L, 1L), span(2L, 2L).toBuilder()
+        .addBinaryAnnotation(BinaryAnnotation.create(Constants.ERROR, "timeout", APP_ENDPOINT))
+        .build());
+    now += QUIET;
+    tailSampler.flush(now);
+
+    assertThat(storedTraceIds()).containsExactly(2L);
+    assertThat(metrics.tracesKept()).isEqualTo(1);
+    assertThat(metrics.tracesDropped()).isEqualTo(1);
+    assertThat(metrics.spansDropped()).isEqualTo(1);
+  }
+
+  @Test
+  public void keepsSlowTraces() {
+    collector(TailSampler.builder().baseRate(0.0f).slowTraceDuration(1, SECONDS));
+
+    accept(span(1L, 1L).toBuilder().timestamp(1000L).duration(999_999L).build(),
+        span(2L, 2L).toBuilder().timestamp(1000L).duration(10L).build(),
+        // spans of a trace together span a second, though neither does alone
+        span(2L, 3L).toBuilder().timestamp(1000L + 500_000L).duration(500_000L).build());
+    now += QUIET;
+    tailSampler.flush(now);
+
+    assertThat(storedTraceIds()).containsExactly(2L);
+  }
+
+  @Test
+  public void keepsDebugTraces() {
+    collector(TailSampler.builder().baseRate(0.0f));
+
+    accept(span(1L, 1L).toBuilder().debug(true).build());
+    now += QUIET;
+    tailSampler.flush(now);
+
+    assertThat(storedTraceIds()).containsExactly(1L);
+  }
+
+  @Test
+  public void lateSpansFollowTheDecision() {
+    collector(TailSampler.builder().baseRate(0.0f));
+    accept(span(1L, 1L).toBuilder().debug(true).build(), span(2L, 2L));
+    now += QUIET;
+    tailSampler.flush(now);
+
+    accept(span(1L, 3L), span(2L, 4L));
+
+    assertThat(storage.spanStore().getRawTrace(1L)).hasSize(2);
+    assertThat(storage.spanStore().getRawTrace(2L)).isNull();
+    assertThat(metrics.tracesBuffered()).isEqualTo(2);
+    assertThat(metrics.spansDropped()).isEqualTo(2);
+  }
+
+  @Test
+  public void decidesLeastRecentlyUpdatedTracesBeyondMaxTraces() {
+    collector(TailSampler.builder().baseRate(1.0f).maxTraces(2));
+
+    accept(span(1L, 1L));
+    now += MILLISECONDS.toNanos(1);
+    accept(span(2L, 2L));
+    now += MILLISECONDS.toNanos(1);
+    accept(span(1L, 3L)); // trace 1 is now the most recently updated
+    accept(span(3L, 4L));
+
+    assertThat(storedTraceIds()).containsExactly(2L);
+    assertThat(tailSampler.traces.keySet()).containsExactly(1L, 3L);
+  }
+
+  @Test
+  public void decidesEarlyBeyondMaxSpans() {
+    collector(TailSampler.builder().baseRate(1.0f).maxSpans(3));
+
+    accept(span(1L, 1L), span(1L, 2L));
+    accept(span(2L, 3L), span(2L, 4L));
+
+    assertThat(storedTraceIds()).containsExactly(1L);
+    assertThat(tailSampler.spanCount).isEqualTo(2);
+  }
+
+  @Test
+  public void closeStoresBufferedTraces() {
+    collector(TailSampler.builder().baseRate(1.0f));
+    accept(span(1L, 1L));
+
+    tailSampler.close();
+
+    assertThat(storedTraceIds()).containsExactly(1L);
+  }
+
+  @Test
+  public void collectorStoresKeptTraces() {
+    collector(TailSampler.builder().baseRate(1.0f));
+
+    collector.accept(asList(span(1L, 1L), span(1L, 2L)), Callback.NOOP);
+    assertThat(storedTraceIds()).isEmpty();
+    tailSampler.close();
+
+    assertThat(storage.spanStore().getRawTrace(1L)).hasSize(2);
+    assertThat(metrics.spans()).isEqualTo(2);
+  }
+
+  @Test
+  public void closingCollectorStoresBufferedTraces() {
+    collector(TailSampler.builder().baseRate(1.0f));
+
+    collector.accept(asList(span(1L, 1L), span(1L, 2L)), Callback.NOOP);
+    collector.close();
+
+    assertThat(storage.spanStore().getRawTrace(1L)).hasSize(2);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void boundToOneCollector() {
+    collector(TailSampler.builder());
+
+    Collector.builder(Collector.class).storage(storage).tailSampler(tailSampler).build();
+  }
+
+  void accept(Span... spans) {
+    List<Span> stored = tailSampler.accept(asList(spans), now);
+    if (!stored.isEmpty()) storage.spanConsumer().accept(stored);
+  }
+
+  List<Long> storedTraceIds() {
+    return storage.spanStore().traceIds();
+  }
+
+  static Span span(long traceId, long id) {
+    return Span.builder().traceId(traceId).id(id).name("get")
+        .timestamp(1000L).duration(1L)
+        .addBinaryAnnotation(BinaryAnnotation.create("http.path", "/api", APP_ENDPOINT))
+        .build();
+  }
+}
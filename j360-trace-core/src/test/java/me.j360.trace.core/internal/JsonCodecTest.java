@@ -211,6 +211,19 @@ public final class JsonCodecTest extends CodecTest {
         .isEqualTo(span);
   }
 
+  @Test
+  public void readSpan_slice() {
+    Span span = TestObjects.TRACE.get(2); // includes non-ascii annotations
+    byte[] json = codec().writeSpan(span);
+    byte[] padded = new byte[json.length + 4];
+    padded[0] = padded[1] = '[';
+    padded[padded.length - 2] = padded[padded.length - 1] = ']';
+    System.arraycopy(json, 0, padded, 2, json.length);
+
+    assertThat(codec().readSpan(padded, 2, json.length))
+        .isEqualTo(span);
+  }
+
   @Test
   public void sizeInBytes_span() throws IOException {
     Span span = TestObjects.LOTS_OF_SPANS[0];
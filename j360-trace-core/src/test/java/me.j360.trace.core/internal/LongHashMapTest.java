@@ -0,0 +1,95 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.core.internal;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LongHashMapTest {
+  LongHashMap<String> map = new LongHashMap<>();
+
+  @Test
+  public void putGetRemove() {
+    assertThat(map.put(1L, "a")).isNull();
+    assertThat(map.put(1L, "b")).isEqualTo("a");
+    assertThat(map.get(1L)).isEqualTo("b");
+    assertThat(map.size()).isEqualTo(1);
+
+    assertThat(map.remove(1L)).isEqualTo("b");
+    assertThat(map.get(1L)).isNull();
+    assertThat(map.remove(1L)).isNull();
+    assertThat(map.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void zeroAndNegativeKeys() {
+    map.put(0L, "zero");
+    map.put(Long.MIN_VALUE, "min");
+    map.put(-1L, "minus one");
+
+    assertThat(map.get(0L)).isEqualTo("zero");
+    assertThat(map.get(Long.MIN_VALUE)).isEqualTo("min");
+    assertThat(map.sortedKeys()).containsExactly(Long.MIN_VALUE, -1L, 0L);
+  }
+
+  /** Removal shifts back colliding entries: compare against a HashMap through many operations. */
+  @Test
+  public void matchesHashMap() {
+    Map<Long, String> expected = new HashMap<>();
+    Random random = new Random(0);
+    for (int i = 0; i < 100_000; i++) {
+      long key = random.nextInt(2000); // small range, so that keys collide and are removed
+      if (random.nextBoolean()) {
+        assertThat(map.put(key, "v" + i)).isEqualTo(expected.put(key, "v" + i));
+      } else {
+        assertThat(map.remove(key)).isEqualTo(expected.remove(key));
+      }
+    }
+
+    assertThat(map.size()).isEqualTo(expected.size());
+    for (Map.Entry<Long, String> entry : expected.entrySet()) {
+      assertThat(map.get(entry.getKey())).isEqualTo(entry.getValue());
+    }
+  }
+
+  @Test
+  public void iteratesSlots() {
+    for (long i = 0; i < 100; i++) {
+      map.put(i, String.valueOf(i));
+    }
+
+    int count = 0;
+    for (int slot = 0; slot < map.capacity(); slot++) {
+      String value = map.valueAt(slot);
+      if (value == null) continue;
+      assertThat(value).isEqualTo(String.valueOf(map.keyAt(slot)));
+      count++;
+    }
+    assertThat(count).isEqualTo(100);
+  }
+
+  @Test
+  public void clear() {
+    map.put(1L, "a");
+    map.clear();
+
+    assertThat(map.get(1L)).isNull();
+    assertThat(map.size()).isZero();
+  }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.core.storage;
+
+import me.j360.trace.core.internal.LongHashMap;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DurationIndexTest {
+  DurationIndex index = new DurationIndex();
+
+  @Test
+  public void bucketsByPowersOfTwo() {
+    assertThat(DurationIndex.bucket(0L)).isZero();
+    assertThat(DurationIndex.bucket(1L)).isEqualTo(1);
+    assertThat(DurationIndex.bucket(2L)).isEqualTo(2);
+    assertThat(DurationIndex.bucket(3L)).isEqualTo(2);
+    assertThat(DurationIndex.bucket(4L)).isEqualTo(3);
+    assertThat(DurationIndex.bucket(Long.MAX_VALUE)).isEqualTo(63);
+  }
+
+  @Test
+  public void rangeIncludesOverlappingBuckets() {
+    index.add(1L, 100L); // bucket 64-127
+    index.add(2L, 1000L); // bucket 512-1023
+    index.add(3L, 5000L); // bucket 4096-8191
+
+    assertThat(traceIds(120L, 600L)).containsExactly(1L, 2L);
+    assertThat(traceIds(2000L, Long.MAX_VALUE)).containsExactly(3L);
+    assertThat(traceIds(10000L, Long.MAX_VALUE)).isEmpty();
+  }
+
+  @Test
+  public void countsSpansPerTrace() {
+    index.add(1L, 100L);
+    index.add(1L, 101L);
+
+    assertThat(index.remove(1L, 100L)).isTrue();
+    assertThat(traceIds(100L, 100L)).containsExactly(1L);
+    assertThat(index.remove(1L, 101L)).isTrue();
+    assertThat(index.remove(1L, 101L)).isFalse();
+    assertThat(traceIds(100L, 100L)).isEmpty();
+    assertThat(index.isEmpty()).isTrue();
+  }
+
+  long[] traceIds(long minDuration, long maxDuration) {
+    LongHashMap<Boolean> result = new LongHashMap<>();
+    index.traceIds(minDuration, maxDuration, result);
+    return result.sortedKeys();
+  }
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.core.storage;
+
+import me.j360.trace.core.Annotation;
+import me.j360.trace.core.BinaryAnnotation;
+import me.j360.trace.core.Constants;
+import me.j360.trace.core.DependencyLink;
+import me.j360.trace.core.Endpoint;
+import me.j360.trace.core.Span;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static me.j360.trace.core.TestObjects.DAY;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InMemoryStorageTest {
+  static final Endpoint WEB = Endpoint.create("web", 172 << 24 | 17 << 16 | 3, 8080);
+  static final Endpoint APP = Endpoint.create("app", 172 << 24 | 17 << 16 | 2, 8080);
+  static final long NOW = System.currentTimeMillis();
+
+  @Test
+  public void evictsOldestTracesOverMaxSpanCount() {
+    InMemoryStorage storage = InMemoryStorage.builder().maxSpanCount(3).build();
+
+    accept(storage, span(1L, 1L, "get", WEB, NOW - 2000), span(1L, 2L, "query", APP, NOW - 1900));
+    accept(storage, span(2L, 3L, "get", WEB, NOW - 1000), span(2L, 4L, "post", WEB, NOW - 900));
+
+    assertThat(storage.spanStore().traceIds()).containsExactly(2L);
+    assertThat(storage.evictedTraceCount()).isEqualTo(1);
+    assertThat(storage.evictedSpanCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void evictionUpdatesIndexes() {
+    InMemoryStorage storage = InMemoryStorage.builder().maxSpanCount(2).build();
+
+    accept(storage, span(1L, 1L, "get", WEB, NOW - 2000), span(1L, 2L, "query", APP, NOW - 1900));
+    accept(storage, span(2L, 3L, "post", WEB, NOW - 1000));
+
+    assertThat(storage.spanStore().getServiceNames()).containsExactly("web");
+    assertThat(storage.spanStore().getSpanNames("web")).containsExactly("post");
+    assertThat(storage.spanStore().getSpanNames("app")).isEmpty();
+    assertThat(storage.spanStore().getTraces(QueryRequest.builder().serviceName("web").build()))
+        .extracting(t -> t.get(0).traceId).containsExactly(2L);
+  }
+
+  @Test
+  public void evictsExpiredTraces() {
+    InMemoryStorage storage = InMemoryStorage.builder().ttl(1, TimeUnit.DAYS).build();
+
+    accept(storage, span(1L, 1L, "get", WEB, NOW - 2 * DAY));
+    accept(storage, span(2L, 2L, "get", WEB, NOW - DAY / 2));
+
+    assertThat(storage.spanStore().traceIds()).containsExactly(2L);
+    assertThat(storage.spanStore().getRawTrace(1L)).isNull();
+    assertThat(storage.evictedTraceCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void spansWithoutTimestampsDontMakeTracesOldest() {
+    InMemoryStorage storage = InMemoryStorage.builder().maxSpanCount(3).build();
+
+    accept(storage, span(1L, 1L, "get", WEB, NOW - 2000));
+    accept(storage, span(2L, 2L, "get", WEB, NOW - 1000), untimed(2L, 3L));
+    accept(storage, span(3L, 4L, "get", WEB, NOW - 500));
+
+    assertThat(storage.spanStore().traceIds()).containsExactly(2L, 3L);
+  }
+
+  @Test
+  public void spansWithoutTimestampsDontExpireTraces() {
+    InMemoryStorage storage = InMemoryStorage.builder().ttl(1, TimeUnit.DAYS).build();
+
+    accept(storage, span(1L, 1L, "get", WEB, NOW - 1000), untimed(1L, 2L));
+    accept(storage, untimed(2L, 3L)); // aged from now, as it has no timestamps
+
+    assertThat(storage.spanStore().traceIds()).containsExactly(1L, 2L);
+    assertThat(storage.spanStore().getRawTrace(1L)).hasSize(2);
+  }
+
+  @Test
+  public void unboundedByDefault() {
+    InMemoryStorage storage = new InMemoryStorage();
+
+    for (long i = 1; i <= 1000; i++) {
+      accept(storage, span(i, i, "get", WEB, NOW - 365 * DAY));
+    }
+
+    assertThat(storage.spanStore().traceIds()).hasSize(1000);
+    assertThat(storage.evictedTraceCount()).isZero();
+  }
+
+  @Test
+  public void linksTracesIncrementally() {
+    InMemoryStorage storage = new InMemoryStorage();
+
+    accept(storage, span(1L, 1L, "get", WEB, NOW - 1000));
+    assertThat(storage.spanStore().getDependencies(NOW, null)).isEmpty();
+
+    accept(storage, child(1L, 1L, 2L, NOW - 900)); // the server side of a call from web to app
+    accept(storage, child(1L, 1L, 2L, NOW - 900)); // replayed: links are replaced, not added
+
+    assertThat(storage.spanStore().getDependencies(NOW, null))
+        .containsExactly(DependencyLink.create("web", "app", 1));
+  }
+
+  @Test
+  public void dependenciesOnlyIncludeMinutesInTheInterval() {
+    InMemoryStorage storage = new InMemoryStorage();
+    long tenMinutesAgo = NOW - TimeUnit.MINUTES.toMillis(10);
+
+    accept(storage, span(1L, 1L, "get", WEB, tenMinutesAgo), child(1L, 1L, 2L, tenMinutesAgo));
+    accept(storage, span(2L, 3L, "get", WEB, NOW - 1000), child(2L, 3L, 4L, NOW - 1000));
+
+    assertThat(storage.spanStore().getDependencies(NOW, TimeUnit.MINUTES.toMillis(2)))
+        .containsExactly(DependencyLink.create("web", "app", 1));
+    assertThat(storage.spanStore().getDependencies(NOW, TimeUnit.MINUTES.toMillis(20)))
+        .containsExactly(DependencyLink.create("web", "app", 2));
+  }
+
+  @Test
+  public void evictionRemovesLinks() {
+    InMemoryStorage storage = InMemoryStorage.builder().maxSpanCount(2).build();
+
+    accept(storage, span(1L, 1L, "get", WEB, NOW - 2000), child(1L, 1L, 2L, NOW - 1900));
+    accept(storage, span(2L, 3L, "get", WEB, NOW - 1000));
+
+    assertThat(storage.spanStore().getDependencies(NOW, null)).isEmpty();
+  }
+
+  @Test
+  public void minute_floorsNegativeTimestamps() {
+    long minute = TimeUnit.MINUTES.toMicros(1);
+
+    assertThat(InMemorySpanStore.minute(minute + 1)).isEqualTo(minute);
+    assertThat(InMemorySpanStore.minute(-1)).isEqualTo(-minute);
+  }
+
+  @Test
+  public void candidatesIntersectPostings() {
+    InMemoryStorage storage = new InMemoryStorage();
+    accept(storage,
+        span(1L, 1L, "get", WEB, NOW - 3000).toBuilder()
+            .addBinaryAnnotation(BinaryAnnotation.create("http.path", "/api", WEB)).build(),
+        span(2L, 2L, "get", WEB, NOW - 2000).toBuilder()
+            .addBinaryAnnotation(BinaryAnnotation.create("http.path", "/health", WEB)).build(),
+        span(3L, 3L, "post", WEB, NOW - 1000).toBuilder()
+            .addBinaryAnnotation(BinaryAnnotation.create("http.path", "/api", WEB)).build());
+
+    QueryRequest request = QueryRequest.builder()
+        .spanName("get").addBinaryAnnotation("http.path", "/api").build();
+    assertThat(storage.spanStore().candidates(request).sortedKeys()).containsExactly(1L);
+    assertThat(storage.spanStore().getTraces(request))
+        .extracting(t -> t.get(0).traceId).containsExactly(1L);
+
+    request = QueryRequest.builder().addAnnotation("cache.miss").build();
+    assertThat(storage.spanStore().candidates(request).isEmpty()).isTrue();
+    assertThat(storage.spanStore().candidates(QueryRequest.builder().build())).isNull();
+  }
+
+  @Test
+  public void durationCandidatesUseMergedSpans() {
+    InMemoryStorage storage = new InMemoryStorage();
+    // client and server halves report different durations, which merge to the client's
+    accept(storage,
+        span(1L, 1L, "get", WEB, NOW - 1000).toBuilder().duration(2000L).build(),
+        span(1L, 1L, "get", APP, NOW - 1000).toBuilder().timestamp(null).duration(null).build());
+
+    QueryRequest request = QueryRequest.builder().serviceName("app").minDuration(1500L).build();
+    assertThat(storage.spanStore().candidates(request).sortedKeys()).containsExactly(1L);
+    assertThat(storage.spanStore().getTraces(request)).hasSize(1);
+  }
+
+  @Test
+  public void evictionRemovesPostings() {
+    InMemoryStorage storage = InMemoryStorage.builder().maxSpanCount(1).build();
+
+    accept(storage, span(1L, 1L, "get", WEB, NOW - 2000).toBuilder()
+        .addAnnotation(Annotation.create((NOW - 2000) * 1000, "cache.miss", WEB)).build());
+    accept(storage, span(2L, 2L, "post", WEB, NOW - 1000));
+
+    InMemorySpanStore spanStore = storage.spanStore();
+    assertThat(spanStore.candidates(QueryRequest.builder().spanName("get").build()).isEmpty())
+        .isTrue();
+    assertThat(spanStore.candidates(QueryRequest.builder().addAnnotation("cache.miss").build())
+        .isEmpty()).isTrue();
+    assertThat(spanStore.candidates(QueryRequest.builder().minDuration(1L).build()).sortedKeys())
+        .containsExactly(2L);
+  }
+
+  static void accept(InMemoryStorage storage, Span... spans) {
+    storage.spanConsumer().accept(asList(spans));
+  }
+
+  /** A call from web to app, as reported by app */
+  static Span child(long traceId, long parentId, long id, long timestampMillis) {
+    return Span.builder().traceId(traceId).parentId(parentId).id(id).name("get")
+        .timestamp(timestampMillis * 1000).duration(10L)
+        .addAnnotation(Annotation.create(timestampMillis * 1000, Constants.SERVER_RECV, APP))
+        .build();
+  }
+
+  /** A span whose timestamp can't be derived, as it has no annotations */
+  static Span untimed(long traceId, long id) {
+    return Span.builder().traceId(traceId).id(id).name("get")
+        .addBinaryAnnotation(BinaryAnnotation.create("lc", "cache", APP))
+        .build();
+  }
+
+  static Span span(long traceId, long id, String name, Endpoint endpoint, long timestampMillis) {
+    return Span.builder().traceId(traceId).id(id).name(name)
+        .timestamp(timestampMillis * 1000).duration(10L)
+        .addAnnotation(Annotation.create(timestampMillis * 1000, Constants.SERVER_RECV, endpoint))
+        .build();
+  }
+}
@@ -18,6 +18,8 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import me.j360.trace.core.Constants;
 
+import static me.j360.trace.core.TestObjects.TODAY;
+import static me.j360.trace.core.TestObjects.TRACE;
 import static org.assertj.core.api.Assertions.assertThat;
 import static me.j360.trace.core.TraceKeys.HTTP_METHOD;
 
@@ -161,4 +163,23 @@ public class QueryRequestTest {
 
     QueryRequest.builder().serviceName("foo").minDuration(1L).maxDuration(0L).build();
   }
+
+  @Test
+  public void test_matchesAcrossSpansOfTheTrace() {
+    QueryRequest request = QueryRequest.builder().endTs(TODAY + 1000).lookback(1000L)
+        .serviceName("app").spanName("query").addAnnotation("⻩")
+        .addBinaryAnnotation(Constants.ERROR, "\uD83D\uDCA9")
+        .minDuration(100_000L).build();
+
+    assertThat(request.test(TRACE)).isTrue();
+    assertThat(request.toBuilder().spanName("post").build().test(TRACE)).isFalse();
+    assertThat(request.toBuilder().minDuration(400_000L).build().test(TRACE)).isFalse();
+  }
+
+  @Test
+  public void test_outsideTheInterval() {
+    QueryRequest request = QueryRequest.builder().endTs(TODAY - 1).lookback(1000L).build();
+
+    assertThat(request.test(TRACE)).isFalse();
+  }
 }
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.core.storage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimestampIndexTest {
+  TimestampIndex index = new TimestampIndex();
+
+  @Test
+  public void ordersByTimestampThenTraceId() {
+    index.add(2L, 200L);
+    index.add(1L, 300L);
+    index.add(3L, 200L);
+    index.add(4L, 100L);
+
+    assertThat(traceIdsNewestFirst()).containsExactly(1L, 3L, 2L, 4L);
+  }
+
+  @Test
+  public void ignoresDuplicates() {
+    assertThat(index.add(1L, 100L)).isTrue();
+    assertThat(index.add(1L, 100L)).isFalse();
+    assertThat(index.add(1L, 200L)).isTrue();
+
+    assertThat(index.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void removesOldestWithoutShifting() {
+    for (long i = 0; i < 10; i++) {
+      index.add(i, i * 100);
+    }
+
+    assertThat(index.remove(0L, 0L)).isTrue();
+    assertThat(index.remove(0L, 0L)).isFalse();
+    assertThat(index.start).isEqualTo(1);
+
+    index.add(42L, -1L); // older than everything reuses the space
+    assertThat(index.start).isZero();
+    assertThat(index.size()).isEqualTo(10);
+  }
+
+  @Test
+  public void growsAndCompacts() {
+    for (long i = 0; i < 1000; i++) {
+      index.add(i, i);
+      if (i % 2 == 1) index.remove(i - 1, i - 1);
+    }
+
+    assertThat(index.size()).isEqualTo(500);
+    assertThat(index.timestamps.length).isLessThanOrEqualTo(1024);
+    List<Long> traceIds = traceIdsNewestFirst();
+    assertThat(traceIds.get(0)).isEqualTo(999L);
+    assertThat(traceIds.get(499)).isEqualTo(1L);
+  }
+
+  List<Long> traceIdsNewestFirst() {
+    List<Long> result = new ArrayList<>();
+    for (int i = index.end - 1; i >= index.start; i--) {
+      result.add(index.traceIds[i]);
+    }
+    return result;
+  }
+}
@@ -34,6 +34,12 @@ import static me.j360.trace.core.internal.Util.checkNotNull;
  * messages reported by instrumented apps</li>
  *     <li>counter.zipkin_collector.spans_dropped.$transport - cumulative spans dropped; reasons
  * include sampling or storage failures</li>
+ *     <li>counter.zipkin_collector.traces_buffered.$transport - cumulative traces buffered by
+ * a tail sampler</li>
+ *     <li>counter.zipkin_collector.traces_kept.$transport - cumulative traces a tail sampler
+ * decided to store</li>
+ *     <li>counter.zipkin_collector.traces_dropped.$transport - cumulative traces a tail sampler
+ * decided not to store</li>
  *     <li>gauge.zipkin_collector.message_spans.$transport - last count of spans in a message</li>
  *     <li>gauge.zipkin_collector.message_bytes.$transport - last count of bytes in a message</li>
  * </ul>
@@ -52,6 +58,9 @@ final class ActuateCollectorMetrics implements CollectorMetrics {
   private final String bytes;
   private final String spans;
   private final String spansDropped;
+  private final String tracesBuffered;
+  private final String tracesKept;
+  private final String tracesDropped;
 
   ActuateCollectorMetrics(CounterService counterService, GaugeService gaugeService) {
     this(counterService, gaugeService, null);
@@ -69,6 +78,9 @@ final class ActuateCollectorMetrics implements CollectorMetrics {
     this.bytes = "zipkin_collector.bytes" + footer;
     this.spans = "zipkin_collector.spans" + footer;
     this.spansDropped = "zipkin_collector.spans_dropped" + footer;
+    this.tracesBuffered = "zipkin_collector.traces_buffered" + footer;
+    this.tracesKept = "zipkin_collector.traces_kept" + footer;
+    this.tracesDropped = "zipkin_collector.traces_dropped" + footer;
   }
 
   @Override public ActuateCollectorMetrics forTransport(String transportType) {
@@ -102,6 +114,18 @@ final class ActuateCollectorMetrics implements CollectorMetrics {
       counterService.increment(spansDropped);
   }
 
+  @Override public void incrementTracesBuffered() {
+    counterService.increment(tracesBuffered);
+  }
+
+  @Override public void incrementTracesKept() {
+    counterService.increment(tracesKept);
+  }
+
+  @Override public void incrementTracesDropped() {
+    counterService.increment(tracesDropped);
+  }
+
   // visible for testing
   void reset() {
     counterService.reset(messages);
@@ -109,6 +133,9 @@ final class ActuateCollectorMetrics implements CollectorMetrics {
     counterService.reset(bytes);
     counterService.reset(spans);
     counterService.reset(spansDropped);
+    counterService.reset(tracesBuffered);
+    counterService.reset(tracesKept);
+    counterService.reset(tracesDropped);
     gaugeService.submit(messageSpans, 0);
     gaugeService.submit(messageBytes, 0);
   }
@@ -25,11 +25,15 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.context.request.async.DeferredResult;
+import org.xerial.snappy.Snappy;
+
+import javax.annotation.PreDestroy;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.zip.GZIPInputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import static org.springframework.web.bind.annotation.RequestMethod.POST;
 
@@ -51,6 +55,10 @@ public class ZipkinHttpCollector {
         .storage(storage).sampler(sampler).metrics(this.metrics).build();
   }
 
+  @PreDestroy void close() {
+    collector.close();
+  }
+
   @RequestMapping(value = "/api/v1/spans", method = POST)
   @ResponseStatus(HttpStatus.ACCEPTED)
   public DeferredResult<ResponseEntity<?>> uploadSpansJson(
@@ -74,6 +82,15 @@ public class ZipkinHttpCollector {
             ResponseEntity.badRequest().body("Cannot gunzip spans: " + e.getMessage() + "\n"));
         return result;
       }
+    } else if (encoding != null && encoding.contains("snappy")) {
+      try {
+        body = unsnappy(body);
+      } catch (IOException e) {
+        metrics.incrementMessagesDropped();
+        result.setResult(ResponseEntity.badRequest()
+            .body("Cannot decompress snappy spans: " + e.getMessage() + "\n"));
+        return result;
+      }
     }
     collector.acceptSpans(body, codec, new Callback<Void>() {
       @Override public void onSuccess(@Nullable Void value) {
@@ -90,21 +107,124 @@ public class ZipkinHttpCollector {
     return result;
   }
 
-  private static final ThreadLocal<byte[]> GZIP_BUFFER = new ThreadLocal<byte[]>() {
-    @Override protected byte[] initialValue() {
-      return new byte[1024];
+  /** Buffers larger than this, for example after an unusually large message, aren't kept. */
+  static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
+  /** Per-thread, as request threads are pooled, and an inflater is only usable by one at a time. */
+  private static final ThreadLocal<Gunzipper> GUNZIPPER = new ThreadLocal<Gunzipper>() {
+    @Override protected Gunzipper initialValue() {
+      return new Gunzipper();
     }
   };
 
   static byte[] gunzip(byte[] input) throws IOException {
-    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(input));
-    try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream(input.length)) {
-      byte[] buf = GZIP_BUFFER.get();
-      int len;
-      while ((len = in.read(buf)) > 0) {
-        outputStream.write(buf, 0, len);
+    return GUNZIPPER.get().gunzip(input);
+  }
+
+  /**
+   * Inflates into a buffer reused across requests, sized by the gzip trailer, so that the only
+   * allocation is the returned array. Members are concatenated, as with {@link
+   * java.util.zip.GZIPInputStream}.
+   */
+  static final class Gunzipper {
+    final Inflater inflater = new Inflater(true);
+    final CRC32 crc = new CRC32();
+    byte[] buffer = new byte[1024];
+
+    byte[] gunzip(byte[] input) throws IOException {
+      int size = 0;
+      int pos = 0;
+      try {
+        do {
+          pos = skipHeader(input, pos);
+          int start = size;
+          inflater.setInput(input, pos, input.length - pos);
+          require(start + trailerSize(input));
+          while (!inflater.finished()) {
+            if (size == buffer.length) require(size + 1);
+            int count = inflater.inflate(buffer, size, buffer.length - size);
+            if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+              throw new IOException("Unexpected end of ZLIB input stream");
+            }
+            size += count;
+          }
+          pos = input.length - inflater.getRemaining();
+          inflater.reset();
+          if (pos + 8 > input.length) throw new IOException("Unexpected end of gzip trailer");
+          crc.update(buffer, start, size - start);
+          if (readIntLe(input, pos) != (int) crc.getValue()) {
+            throw new IOException("Corrupt GZIP trailer");
+          }
+          if (readIntLe(input, pos + 4) != size - start) {
+            throw new IOException("Corrupt GZIP trailer");
+          }
+          crc.reset();
+          pos += 8;
+        } while (pos < input.length);
+        return Arrays.copyOf(buffer, size);
+      } catch (DataFormatException e) {
+        throw new IOException(e.getMessage(), e);
+      } finally {
+        inflater.reset();
+        crc.reset();
+        if (buffer.length > MAX_POOLED_BUFFER_SIZE) buffer = new byte[1024];
       }
-      return outputStream.toByteArray();
     }
+
+    /** The uncompressed size of the last member, bounded in case the trailer is corrupt. */
+    static int trailerSize(byte[] input) {
+      if (input.length < 4) return 0;
+      int size = readIntLe(input, input.length - 4);
+      // deflate compresses at most ~1000:1, so a larger claim is garbage or a zip bomb
+      return size < 0 || size / 1032 > input.length ? 0 : size;
+    }
+
+    /** Returns the position after the header which starts at {@code pos}. */
+    static int skipHeader(byte[] input, int pos) throws IOException {
+      if (pos + 10 > input.length) throw new IOException("Unexpected end of gzip header");
+      if (input[pos] != (byte) 0x1f || input[pos + 1] != (byte) 0x8b) {
+        throw new IOException("Not in GZIP format");
+      }
+      if (input[pos + 2] != 8) throw new IOException("Unsupported compression method");
+      int flags = input[pos + 3];
+      pos += 10;
+      if ((flags & 4) != 0) { // FEXTRA
+        if (pos + 2 > input.length) throw new IOException("Unexpected end of gzip header");
+        pos += 2 + ((input[pos] & 0xff) | (input[pos + 1] & 0xff) << 8);
+      }
+      if ((flags & 8) != 0) pos = skipZeroTerminated(input, pos); // FNAME
+      if ((flags & 16) != 0) pos = skipZeroTerminated(input, pos); // FCOMMENT
+      if ((flags & 2) != 0) pos += 2; // FHCRC
+      if (pos > input.length) throw new IOException("Unexpected end of gzip header");
+      return pos;
+    }
+
+    static int skipZeroTerminated(byte[] input, int pos) throws IOException {
+      while (pos < input.length) {
+        if (input[pos++] == 0) return pos;
+      }
+      throw new IOException("Unexpected end of gzip header");
+    }
+
+    static int readIntLe(byte[] input, int pos) {
+      return (input[pos] & 0xff) | (input[pos + 1] & 0xff) << 8
+          | (input[pos + 2] & 0xff) << 16 | (input[pos + 3] & 0xff) << 24;
+    }
+
+    void require(int capacity) {
+      if (buffer.length < capacity) {
+        buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+      }
+    }
+  }
+
+  /** Raw snappy blocks include their uncompressed length, so no intermediate buffer is needed. */
+  static byte[] unsnappy(byte[] input) throws IOException {
+    if (!Snappy.isValidCompressedBuffer(input)) {
+      throw new IOException("Not in snappy format");
+    }
+    byte[] result = new byte[Snappy.uncompressedLength(input)];
+    Snappy.uncompress(input, 0, input.length, result, 0);
+    return result;
   }
 }
@@ -22,7 +22,9 @@ import me.j360.trace.server.brave.TracedStorageComponent;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
 import org.springframework.boot.actuate.health.HealthAggregator;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.boot.actuate.metrics.CounterService;
 import org.springframework.boot.actuate.metrics.GaugeService;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
@@ -30,6 +32,10 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
 @Configuration
 public class ZipkinServerConfiguration {
 
@@ -78,8 +84,25 @@ public class ZipkinServerConfiguration {
   @ConditionalOnMissingBean(StorageComponent.class)
   static class InMemoryConfiguration {
     @Bean
-    StorageComponent storage() {
-      return new InMemoryStorage();
+    InMemoryStorage storage(@Value("${zipkin.storage.mem.max-spans:500000}") int maxSpans,
+        @Value("${zipkin.storage.mem.ttl:0}") long ttl) {
+      return InMemoryStorage.builder()
+          .maxSpanCount(maxSpans)
+          .ttl(ttl, TimeUnit.MILLISECONDS).build();
+    }
+
+    /** Exports gauge.zipkin_storage.mem.evicted_traces and evicted_spans to "/metrics" */
+    @Bean
+    PublicMetrics inMemoryStorageMetrics(final InMemoryStorage storage) {
+      return new PublicMetrics() {
+        @Override public Collection<Metric<?>> metrics() {
+          return Arrays.<Metric<?>>asList(
+              new Metric<Integer>("gauge.zipkin_storage.mem.evicted_traces",
+                  storage.evictedTraceCount()),
+              new Metric<Integer>("gauge.zipkin_storage.mem.evicted_spans",
+                  storage.evictedSpanCount()));
+        }
+      };
     }
   }
 }
@@ -20,6 +20,7 @@ import me.j360.trace.core.collector.Collector;
 import me.j360.trace.core.collector.CollectorComponent;
 import me.j360.trace.core.collector.CollectorMetrics;
 import me.j360.trace.core.collector.CollectorSampler;
+import me.j360.trace.core.collector.TailSampler;
 import me.j360.trace.core.internal.LazyCloseable;
 import me.j360.trace.core.storage.AsyncSpanConsumer;
 import me.j360.trace.core.storage.StorageComponent;
@@ -103,6 +104,12 @@ public final class KafkaCollector implements CollectorComponent {
       return this;
     }
 
+    /** @see {@link Collector.Builder#tailSampler(TailSampler)} */
+    public Builder tailSampler(TailSampler tailSampler) {
+      delegate.tailSampler(tailSampler);
+      return this;
+    }
+
     public KafkaCollector build() {
       return new KafkaCollector(this);
     }
@@ -140,6 +147,7 @@ public final class KafkaCollector implements CollectorComponent {
   public void close() throws IOException {
     streams.close();
     connector.close();
+    streams.collector.close(); // stores buffered traces the tail sampler keeps
   }
 
   static final class LazyConnector extends LazyCloseable<ZookeeperConsumerConnector> {
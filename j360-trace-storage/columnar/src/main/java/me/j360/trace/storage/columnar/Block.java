@@ -0,0 +1,228 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.columnar;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A fixed number of spans, held as one primitive array per field, so that queries scan a column in
+ * a tight loop instead of visiting span objects. Strings are {@link Dictionary dictionary} ids of
+ * the partition. Services and terms can repeat per span, so they are held as a flat array of ids,
+ * with each row's ids starting at an offset.
+ *
+ * <p>The encoded spans are kept alongside, to materialize rows which match a query. When the block
+ * is full, it is sealed: this trims the arrays and compresses the encoded spans. When the store
+ * has a directory, the compressed spans are {@link PartitionFile written to a file} and read back
+ * from its mapping, instead of from the heap.
+ *
+ * <p>Mutations are guarded by the store's write lock, and reads by its read lock.
+ */
+final class Block {
+  /** Absent parent id, timestamp, duration or dictionary id */
+  static final long NULL = Long.MIN_VALUE;
+  static final int NONE = -1;
+
+  // Kinds of dictionary ids added to the bloom filter, so they don't collide with each other
+  static final int SERVICE = 1, SPAN_NAME = 2, TERM = 3;
+
+  static long key(int kind, int id) {
+    return (long) kind << 32 | id;
+  }
+
+  final int capacity;
+  int size;
+  final long[] traceIds, ids, parentIds, timestamps, durations;
+  final int[] spanNames;
+  /** Services of row i are {@code services[serviceStarts[i]..serviceStarts[i + 1])} */
+  final int[] serviceStarts;
+  int[] services = new int[64];
+  /** Annotation values and string binary annotations, as {@link #term}s */
+  final int[] termStarts;
+  int[] terms = new int[64];
+  /** Columns read by dependency linking: services from "sr", "ca" and "sa", or {@link #NONE} */
+  final int[] srServices, caServices, saServices;
+  long minTimestamp = Long.MAX_VALUE, maxTimestamp = Long.MIN_VALUE;
+  final BloomFilter bloom;
+
+  /** Encoded spans; row i is {@code payload[payloadStarts[i]..payloadStarts[i + 1])} */
+  final int[] payloadStarts;
+  ByteArrayOutputStream payload = new ByteArrayOutputStream();
+  /** Deflated payload, present once sealed. Either on the heap or mapped from a file. */
+  ByteBuffer compressed;
+
+  Block(int capacity) {
+    this.capacity = capacity;
+    traceIds = new long[capacity];
+    ids = new long[capacity];
+    parentIds = new long[capacity];
+    timestamps = new long[capacity];
+    durations = new long[capacity];
+    spanNames = new int[capacity];
+    serviceStarts = new int[capacity + 1];
+    termStarts = new int[capacity + 1];
+    srServices = new int[capacity];
+    caServices = new int[capacity];
+    saServices = new int[capacity];
+    payloadStarts = new int[capacity + 1];
+    bloom = new BloomFilter(capacity * 4);
+  }
+
+  boolean isFull() {
+    return size == capacity;
+  }
+
+  boolean isSealed() {
+    return compressed != null;
+  }
+
+  /** Adds a row. The caller sets its link columns, then seals the block when full. */
+  int add(long traceId, long id, long parentId, long timestamp, long duration, int spanName,
+      int[] rowServices, int serviceCount, int[] rowTerms, int termCount, byte[] encoded) {
+    int row = size++;
+    traceIds[row] = traceId;
+    ids[row] = id;
+    parentIds[row] = parentId;
+    timestamps[row] = timestamp;
+    durations[row] = duration;
+    spanNames[row] = spanName;
+    srServices[row] = caServices[row] = saServices[row] = NONE;
+    bloom.add(traceId);
+    bloom.add(key(SPAN_NAME, spanName));
+    if (timestamp != NULL) {
+      minTimestamp = Math.min(minTimestamp, timestamp);
+      maxTimestamp = Math.max(maxTimestamp, timestamp);
+    }
+
+    int start = serviceStarts[row];
+    if (start + serviceCount > services.length) {
+      services = Arrays.copyOf(services, Math.max(services.length * 2, start + serviceCount));
+    }
+    for (int i = 0; i < serviceCount; i++) {
+      services[start + i] = rowServices[i];
+      bloom.add(key(SERVICE, rowServices[i]));
+    }
+    serviceStarts[row + 1] = start + serviceCount;
+
+    start = termStarts[row];
+    if (start + termCount > terms.length) {
+      terms = Arrays.copyOf(terms, Math.max(terms.length * 2, start + termCount));
+    }
+    for (int i = 0; i < termCount; i++) {
+      terms[start + i] = rowTerms[i];
+      bloom.add(key(TERM, rowTerms[i]));
+    }
+    termStarts[row + 1] = start + termCount;
+
+    payload.write(encoded, 0, encoded.length);
+    payloadStarts[row + 1] = payloadStarts[row] + encoded.length;
+    return row;
+  }
+
+  boolean hasService(int row, int service) {
+    for (int i = serviceStarts[row], end = serviceStarts[row + 1]; i < end; i++) {
+      if (services[i] == service) return true;
+    }
+    return false;
+  }
+
+  boolean hasTerm(int row, int term) {
+    for (int i = termStarts[row], end = termStarts[row + 1]; i < end; i++) {
+      if (terms[i] == term) return true;
+    }
+    return false;
+  }
+
+  /** Returns true if the block has a row with a timestamp in the inclusive range. */
+  boolean overlaps(long begin, long end) {
+    return minTimestamp <= end && maxTimestamp >= begin;
+  }
+
+  /** Returns the length of each row's encoded span, as written with the compressed spans. */
+  int[] spanLengths() {
+    int[] result = new int[size];
+    for (int i = 0; i < size; i++) {
+      result[i] = payloadStarts[i + 1] - payloadStarts[i];
+    }
+    return result;
+  }
+
+  /** Compresses the encoded spans, to pass to {@link #seal(ByteBuffer)}. */
+  byte[] deflate() {
+    byte[] raw = payload.toByteArray();
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(raw);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /** Trims the value arrays, and replaces the encoded spans with their compressed form. */
+  void seal(ByteBuffer compressed) {
+    services = Arrays.copyOf(services, serviceStarts[size]);
+    terms = Arrays.copyOf(terms, termStarts[size]);
+    this.compressed = compressed;
+    payload = null;
+  }
+
+  /**
+   * Returns the encoded spans of all rows. This inflates a sealed block, so callers reading several
+   * rows should read this once.
+   */
+  byte[] payload() {
+    if (!isSealed()) return payload.toByteArray();
+    return inflate(compressed, payloadStarts[size]);
+  }
+
+  /** Inflates spans of the given total length, failing if the compressed data ends before that. */
+  static byte[] inflate(ByteBuffer compressed, int length) {
+    byte[] input = new byte[compressed.remaining()];
+    compressed.duplicate().get(input); // readers share the buffer, so don't move it
+    byte[] result = new byte[length];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(input);
+      int count = 0;
+      while (count < result.length) {
+        int inflated = inflater.inflate(result, count, result.length - count);
+        if (inflated == 0
+            && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IllegalStateException("corrupt block: inflated " + count + " of " + length);
+        }
+        count += inflated;
+      }
+    } catch (DataFormatException e) {
+      throw new IllegalStateException("corrupt block", e);
+    } finally {
+      inflater.end();
+    }
+    return result;
+  }
+
+  byte[] encoded(byte[] payload, int row) {
+    return Arrays.copyOfRange(payload, payloadStarts[row], payloadStarts[row + 1]);
+  }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.columnar;
+
+/**
+ * Approximate membership of long keys, such as trace ids and dictionary ids, in a block. False
+ * positives only cost reading the block, and there are no false negatives.
+ *
+ * <p>This is not thread-safe.
+ */
+final class BloomFilter {
+  static final int HASHES = 3;
+
+  final long[] bits;
+  final int bitCount;
+
+  /** Sized at 8 bits per expected key, for a few percent false positives. */
+  BloomFilter(int expectedKeys) {
+    int words = Math.max(1, (expectedKeys * 8 + 63) / 64);
+    this.bits = new long[words];
+    this.bitCount = words * 64;
+  }
+
+  void add(long key) {
+    long hash = mix(key);
+    int h1 = (int) hash, h2 = (int) (hash >>> 32);
+    for (int i = 0; i < HASHES; i++) {
+      int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+      bits[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  boolean mightContain(long key) {
+    long hash = mix(key);
+    int h1 = (int) hash, h2 = (int) (hash >>> 32);
+    for (int i = 0; i < HASHES; i++) {
+      int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+      if ((bits[bit >>> 6] & (1L << bit)) == 0) return false;
+    }
+    return true;
+  }
+
+  /** murmur3 finalizer, so that nearby keys set unrelated bits */
+  static long mix(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return key;
+  }
+}
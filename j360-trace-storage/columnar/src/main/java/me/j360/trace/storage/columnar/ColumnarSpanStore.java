@@ -0,0 +1,509 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.columnar;
+
+import me.j360.trace.core.Codec;
+import me.j360.trace.core.DependencyLink;
+import me.j360.trace.core.Span;
+import me.j360.trace.core.internal.ApplyTimestampAndDuration;
+import me.j360.trace.core.internal.CorrectForClockSkew;
+import me.j360.trace.core.internal.DependencyLinkSpan;
+import me.j360.trace.core.internal.DependencyLinker;
+import me.j360.trace.core.internal.LongHashMap;
+import me.j360.trace.core.internal.MergeById;
+import me.j360.trace.core.internal.Nullable;
+import me.j360.trace.core.storage.QueryRequest;
+import me.j360.trace.core.storage.SpanStore;
+import me.j360.trace.core.storage.StorageAdapters;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static me.j360.trace.core.internal.Util.sortedList;
+
+/**
+ * Keeps spans in hourly {@link Partition partitions} of columnar {@link Block blocks}. Queries
+ * prune partitions by hour and dictionary, and blocks by timestamp range and bloom filter, then
+ * scan the remaining columns for trace ids. Spans are only decoded for traces which pass every
+ * criterion, and dependency links are computed from columns without decoding spans at all.
+ *
+ * <p>Query criteria apply to any span of a trace, while partitions hold spans by their own
+ * timestamp. Criteria are matched against partitions overlapping the interval, and the hour after
+ * it, so a trace whose matching span is later than that is missed.
+ *
+ * <p>Whole partitions are dropped when they are older than the retention. With a directory, each
+ * partition's sealed blocks are written to a {@link PartitionFile file}, which is read back on
+ * start and deleted with the partition.
+ */
+public final class ColumnarSpanStore implements SpanStore, Closeable {
+  static final long HOUR_MICROS = TimeUnit.HOURS.toMicros(1);
+  static final FilenameFilter PARTITIONS = new FilenameFilter() {
+    @Override public boolean accept(File dir, String name) {
+      return name.endsWith(PartitionFile.SUFFIX);
+    }
+  };
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  @Nullable private final File directory;
+  private final int blockSize;
+  private final long retentionMicros;
+  /** Partitions by {@link #hour(long)}. Guarded by lock. */
+  private final TreeMap<Long, Partition> partitions = new TreeMap<Long, Partition>();
+
+  /**
+   * @param directory where partition files are written, or null to keep spans on the heap.
+   * @param blockSize count of spans per block.
+   * @param retentionMillis partitions older than this are dropped. 0 implies no limit.
+   */
+  ColumnarSpanStore(@Nullable File directory, int blockSize, long retentionMillis)
+      throws IOException {
+    this.directory = directory;
+    this.blockSize = blockSize;
+    this.retentionMicros = retentionMillis * 1000;
+    if (directory == null) return;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("couldn't create " + directory);
+    }
+    recover();
+  }
+
+  /** Opens existing partition files, rebuilding their columns from the spans in them. */
+  void recover() throws IOException {
+    for (File file : directory.listFiles(PARTITIONS)) {
+      Partition partition = Partition.open(file, blockSize);
+      partitions.put(partition.hour, partition);
+    }
+  }
+
+  Partition newPartition(long hour) throws IOException {
+    PartitionFile file = null;
+    if (directory != null) {
+      File partitionFile = PartitionFile.file(directory, hour);
+      if (partitionFile.exists()) throw new IOException(partitionFile + " already exists");
+      file = new PartitionFile(partitionFile);
+    }
+    return new Partition(hour, blockSize, file);
+  }
+
+  /** Floors the timestamp to the hour, including negative ones. */
+  static long hour(long timestampMicros) {
+    long remainder = timestampMicros % HOUR_MICROS;
+    return timestampMicros - (remainder < 0 ? remainder + HOUR_MICROS : remainder);
+  }
+
+  final StorageAdapters.SpanConsumer spanConsumer = new StorageAdapters.SpanConsumer() {
+    @Override public void accept(List<Span> spans) {
+      Span[] applied = new Span[spans.size()];
+      byte[][] encoded = new byte[applied.length][];
+      for (int i = 0; i < applied.length; i++) {
+        applied[i] = ApplyTimestampAndDuration.apply(spans.get(i));
+        encoded[i] = Codec.JSON.writeSpan(applied[i]);
+      }
+      long nowMicros = System.currentTimeMillis() * 1000;
+      lock.writeLock().lock();
+      try {
+        for (int i = 0; i < applied.length; i++) {
+          Long timestamp = applied[i].timestamp;
+          // spans without a timestamp can't be found by time, but are still part of their trace
+          long hour = hour(timestamp != null ? timestamp : nowMicros);
+          Partition partition = partitions.get(hour);
+          if (partition == null) partitions.put(hour, partition = newPartition(hour));
+          partition.append(applied[i], encoded[i]);
+        }
+        if (retentionMicros != 0) {
+          Map<Long, Partition> expired = partitions.headMap(hour(nowMicros - retentionMicros));
+          for (Partition partition : expired.values()) partition.delete();
+          expired.clear();
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("couldn't write partition in " + directory, e);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    @Override public String toString() {
+      return "ColumnarSpanConsumer";
+    }
+  };
+
+  @Override
+  public List<List<Span>> getTraces(QueryRequest request) {
+    long begin = (request.endTs - request.lookback) * 1000, end = request.endTs * 1000;
+    List<List<Span>> result = new ArrayList<List<Span>>();
+    lock.readLock().lock();
+    try {
+      LongHashMap<long[]> latest = tracesInInterval(begin, end);
+      Collection<Partition> around = partitions.subMap(
+          hour(begin), true, hour(end) + HOUR_MICROS, true).values();
+
+      LongHashMap<?> candidates = latest;
+      if (request.serviceName != null) {
+        candidates = scan(around, Block.SERVICE, request.serviceName, candidates);
+      }
+      if (request.spanName != null) {
+        candidates = scan(around, Block.SPAN_NAME, request.spanName, candidates);
+      }
+      for (String annotation : request.annotations) {
+        candidates = scan(around, Block.TERM, annotation, candidates);
+      }
+      for (Map.Entry<String, String> entry : request.binaryAnnotations.entrySet()) {
+        String term = Partition.term(entry.getKey(), entry.getValue());
+        candidates = scan(around, Block.TERM, term, candidates);
+      }
+      if (request.minDuration != null) {
+        long maxDuration = request.maxDuration != null ? request.maxDuration : Long.MAX_VALUE;
+        candidates = scanDuration(around, request.serviceName, request.minDuration, maxDuration,
+            candidates);
+      }
+
+      Map<Block, byte[]> payloads = new IdentityHashMap<Block, byte[]>();
+      for (long traceId : newestFirst(latest, candidates)) {
+        List<Span> trace = trace(traceId, payloads);
+        if (trace != null && request.test(trace)) result.add(trace);
+        if (result.size() == request.limit) break;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    Collections.sort(result, TRACE_DESCENDING);
+    return result;
+  }
+
+  static final Comparator<List<Span>> TRACE_DESCENDING = new Comparator<List<Span>>() {
+    @Override
+    public int compare(List<Span> left, List<Span> right) {
+      return right.get(0).compareTo(left.get(0));
+    }
+  };
+
+  /**
+   * Returns the trace ids with a span in the interval, mapped to the latest such timestamp. Guarded
+   * by the read lock.
+   */
+  LongHashMap<long[]> tracesInInterval(long begin, long end) {
+    LongHashMap<long[]> result = new LongHashMap<long[]>();
+    for (Partition partition : partitions.subMap(hour(begin), true, hour(end), true).values()) {
+      if (partition.minTimestamp > end || partition.maxTimestamp < begin) continue;
+      for (Block block : partition.blocks) {
+        if (!block.overlaps(begin, end)) continue;
+        long[] timestamps = block.timestamps, traceIds = block.traceIds;
+        for (int row = 0, size = block.size; row < size; row++) {
+          long timestamp = timestamps[row]; // Block.NULL is less than any interval
+          if (timestamp < begin || timestamp > end) continue;
+          long[] latest = result.get(traceIds[row]);
+          if (latest == null) {
+            result.put(traceIds[row], new long[] {timestamp});
+          } else if (timestamp > latest[0]) {
+            latest[0] = timestamp;
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the candidates with a span that has the dictionary value. Guarded by the read lock.
+   *
+   * @param kind {@link Block#SERVICE}, {@link Block#SPAN_NAME} or {@link Block#TERM}
+   */
+  static LongHashMap<Boolean> scan(Collection<Partition> partitions, int kind, String value,
+      LongHashMap<?> candidates) {
+    LongHashMap<Boolean> result = new LongHashMap<Boolean>();
+    if (candidates.isEmpty()) return result;
+    for (Partition partition : partitions) {
+      Dictionary dictionary = kind == Block.SERVICE ? partition.serviceNames
+          : kind == Block.SPAN_NAME ? partition.spanNames
+          : partition.terms;
+      int id = dictionary.id(value);
+      if (id == -1) continue; // no span in the partition has it
+      long key = Block.key(kind, id);
+      for (Block block : partition.blocks) {
+        if (!block.bloom.mightContain(key)) continue;
+        long[] traceIds = block.traceIds;
+        for (int row = 0, size = block.size; row < size; row++) {
+          boolean match = kind == Block.SPAN_NAME ? block.spanNames[row] == id
+              : kind == Block.SERVICE ? block.hasService(row, id)
+              : block.hasTerm(row, id);
+          if (match && candidates.containsKey(traceIds[row])) {
+            result.put(traceIds[row], Boolean.TRUE);
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the candidates with a span of the service whose duration is in the inclusive range.
+   * Guarded by the read lock.
+   */
+  static LongHashMap<Boolean> scanDuration(Collection<Partition> partitions,
+      @Nullable String serviceName, long minDuration, long maxDuration,
+      LongHashMap<?> candidates) {
+    LongHashMap<Boolean> result = new LongHashMap<Boolean>();
+    if (candidates.isEmpty()) return result;
+    for (Partition partition : partitions) {
+      int service = serviceName != null ? partition.serviceNames.id(serviceName) : Block.NONE;
+      if (serviceName != null && service == Block.NONE) continue;
+      for (Block block : partition.blocks) {
+        if (service != Block.NONE
+            && !block.bloom.mightContain(Block.key(Block.SERVICE, service))) {
+          continue;
+        }
+        long[] durations = block.durations, traceIds = block.traceIds;
+        for (int row = 0, size = block.size; row < size; row++) {
+          long duration = durations[row]; // Block.NULL is less than any range
+          if (duration < minDuration || duration > maxDuration) continue;
+          if (service != Block.NONE && !block.hasService(row, service)) continue;
+          if (candidates.containsKey(traceIds[row])) result.put(traceIds[row], Boolean.TRUE);
+        }
+      }
+    }
+    return result;
+  }
+
+  /** Orders the candidates by their latest timestamp in the interval, descending. */
+  static long[] newestFirst(LongHashMap<long[]> latest, LongHashMap<?> candidates) {
+    long[][] pairs = new long[candidates.size()][];
+    int count = 0;
+    for (int slot = 0, capacity = candidates.capacity(); slot < capacity; slot++) {
+      if (candidates.valueAt(slot) == null) continue;
+      long traceId = candidates.keyAt(slot);
+      pairs[count++] = new long[] {latest.get(traceId)[0], traceId};
+    }
+    Arrays.sort(pairs, new Comparator<long[]>() {
+      @Override public int compare(long[] left, long[] right) {
+        return left[0] < right[0] ? 1 : left[0] == right[0] ? 0 : -1;
+      }
+    });
+    long[] result = new long[count];
+    for (int i = 0; i < count; i++) {
+      result[i] = pairs[i][1];
+    }
+    return result;
+  }
+
+  /**
+   * Decodes the trace's spans, skipping blocks whose bloom filter excludes it. Inflated payloads
+   * are cached, as traces of a query tend to share blocks. Guarded by the read lock.
+   */
+  @Nullable List<Span> rawTrace(long traceId, Map<Block, byte[]> payloads) {
+    List<Span> result = new ArrayList<Span>();
+    for (Partition partition : partitions.values()) {
+      for (Block block : partition.blocks) {
+        if (!block.bloom.mightContain(traceId)) continue;
+        long[] traceIds = block.traceIds;
+        for (int row = 0, size = block.size; row < size; row++) {
+          if (traceIds[row] != traceId) continue;
+          byte[] payload = payloads.get(block);
+          if (payload == null) payloads.put(block, payload = block.payload());
+          result.add(Codec.JSON.readSpan(block.encoded(payload, row)));
+        }
+      }
+    }
+    return result.isEmpty() ? null : result;
+  }
+
+  /** Guarded by the read lock. */
+  @Nullable List<Span> trace(long traceId, Map<Block, byte[]> payloads) {
+    List<Span> spans = rawTrace(traceId, payloads);
+    return spans == null ? null : CorrectForClockSkew.apply(MergeById.apply(spans));
+  }
+
+  @Override
+  public List<Span> getTrace(long traceId) {
+    lock.readLock().lock();
+    try {
+      return trace(traceId, new IdentityHashMap<Block, byte[]>());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<Span> getRawTrace(long traceId) {
+    lock.readLock().lock();
+    try {
+      return rawTrace(traceId, new IdentityHashMap<Block, byte[]>());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<String> getServiceNames() {
+    Set<String> result = new LinkedHashSet<String>();
+    lock.readLock().lock();
+    try {
+      for (Partition partition : partitions.values()) {
+        result.addAll(partition.serviceToSpanNames.keySet());
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return sortedList(result);
+  }
+
+  @Override
+  public List<String> getSpanNames(String service) {
+    if (service == null) return Collections.emptyList();
+    service = service.toLowerCase(); // service names are always lowercase!
+    Set<String> result = new LinkedHashSet<String>();
+    lock.readLock().lock();
+    try {
+      for (Partition partition : partitions.values()) {
+        Set<String> spanNames = partition.serviceToSpanNames.get(service);
+        if (spanNames != null) result.addAll(spanNames);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return sortedList(result);
+  }
+
+  /** The link columns of a span, merged across rows which share its id. */
+  static final class LinkRow {
+    Long parentId;
+    String srService, caService, saService;
+
+    DependencyLinkSpan toLinkSpan(long traceId, long id) {
+      return DependencyLinkSpan.builder(traceId, parentId, id)
+          .srService(srService).caService(caService).saService(saService).build();
+    }
+  }
+
+  static final class TraceRows {
+    long start = Long.MAX_VALUE;
+    final Map<Long, LinkRow> spans = new LinkedHashMap<Long, LinkRow>();
+  }
+
+  /**
+   * Links traces which started in the interval. Only the id and link columns are read, as opposed
+   * to decoding spans.
+   */
+  @Override
+  public List<DependencyLink> getDependencies(long endTs, @Nullable Long lookback) {
+    long end = endTs * 1000;
+    long begin = lookback == null ? 0 : end - lookback * 1000;
+    LongHashMap<TraceRows> traces = new LongHashMap<TraceRows>();
+    lock.readLock().lock();
+    try {
+      LongHashMap<long[]> inInterval = tracesInInterval(begin, end);
+      if (inInterval.isEmpty()) return Collections.emptyList();
+      for (int slot = 0, capacity = inInterval.capacity(); slot < capacity; slot++) {
+        if (inInterval.valueAt(slot) != null) traces.put(inInterval.keyAt(slot), new TraceRows());
+      }
+      // spans of a trace can be in the hour before or after the one it started in
+      for (Partition partition : partitions.subMap(
+          hour(begin) - HOUR_MICROS, true, hour(end) + HOUR_MICROS, true).values()) {
+        for (Block block : partition.blocks) {
+          collect(partition, block, traces);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    DependencyLinker linker = new DependencyLinker();
+    for (int slot = 0, capacity = traces.capacity(); slot < capacity; slot++) {
+      TraceRows trace = traces.valueAt(slot);
+      if (trace == null || trace.start < begin || trace.start > end) continue;
+      long traceId = traces.keyAt(slot);
+      List<DependencyLinkSpan> linkSpans = new ArrayList<DependencyLinkSpan>(trace.spans.size());
+      for (Map.Entry<Long, LinkRow> span : trace.spans.entrySet()) {
+        linkSpans.add(span.getValue().toLinkSpan(traceId, span.getKey()));
+      }
+      linker.putTrace(linkSpans.iterator());
+    }
+    return linker.link();
+  }
+
+  /** Merges the link columns of rows in the traces. Guarded by the read lock. */
+  static void collect(Partition partition, Block block, LongHashMap<TraceRows> traces) {
+    long[] traceIds = block.traceIds;
+    for (int row = 0, size = block.size; row < size; row++) {
+      TraceRows trace = traces.get(traceIds[row]);
+      if (trace == null) continue;
+      long timestamp = block.timestamps[row];
+      if (timestamp != Block.NULL) trace.start = Math.min(trace.start, timestamp);
+      LinkRow span = trace.spans.get(block.ids[row]);
+      if (span == null) trace.spans.put(block.ids[row], span = new LinkRow());
+      if (span.parentId == null && block.parentIds[row] != Block.NULL) {
+        span.parentId = block.parentIds[row];
+      }
+      if (span.srService == null) span.srService = name(partition, block.srServices[row]);
+      if (span.caService == null) span.caService = name(partition, block.caServices[row]);
+      if (span.saService == null) span.saService = name(partition, block.saServices[row]);
+    }
+  }
+
+  @Nullable static String name(Partition partition, int service) {
+    return service == Block.NONE ? null : partition.serviceNames.value(service);
+  }
+
+  /** Returns a snapshot of the partitions, oldest first. */
+  List<Partition> partitions() {
+    lock.readLock().lock();
+    try {
+      return new ArrayList<Partition>(partitions.values());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  void clear() {
+    lock.writeLock().lock();
+    try {
+      for (Partition partition : partitions.values()) partition.delete();
+      partitions.clear();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Writes open blocks to their partition files, and closes them. Does nothing without files. */
+  @Override public void close() throws IOException {
+    if (directory == null) return;
+    lock.writeLock().lock();
+    try {
+      for (Partition partition : partitions.values()) partition.close();
+      partitions.clear();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override public String toString() {
+    return "ColumnarSpanStore(" + directory + ")";
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.columnar;
+
+import me.j360.trace.core.storage.AsyncSpanConsumer;
+import me.j360.trace.core.storage.AsyncSpanStore;
+import me.j360.trace.core.storage.StorageAdapters;
+import me.j360.trace.core.storage.StorageComponent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static me.j360.trace.core.internal.Util.checkArgument;
+import static me.j360.trace.core.storage.StorageAdapters.blockingToAsync;
+
+/**
+ * Storage component that keeps spans as compressed columns, partitioned by hour. Queries scan
+ * columns instead of span objects, which suits analytics. Spans are accepted on the calling thread.
+ *
+ * <p>By default, spans are only kept in memory, so they are lost on restart and a span costs a few
+ * primitives plus its deflated encoding on the heap. With a {@link Builder#directory directory},
+ * full blocks are written to a file per partition and read back from there, so the heap only holds
+ * the columns, and spans are recovered on restart. Only one process should use a directory at a
+ * time.
+ */
+public final class ColumnarStorage implements StorageComponent {
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    File directory;
+    int blockSize = 4096;
+    long retentionMillis = 0L;
+
+    /**
+     * Directory holding partition files. Created if it doesn't exist. Defaults to null, which keeps
+     * spans in memory only.
+     */
+    public Builder directory(File directory) {
+      this.directory = directory;
+      return this;
+    }
+
+    /**
+     * Count of spans per block. Larger blocks compress better, but are pruned less precisely and
+     * cost more to inflate when one of their spans is read. Defaults to 4096
+     */
+    public Builder blockSize(int blockSize) {
+      checkArgument(blockSize > 0, "blockSize should be positive: was %s", blockSize);
+      this.blockSize = blockSize;
+      return this;
+    }
+
+    /**
+     * Hourly partitions older than this are dropped with their files, as new spans are accepted.
+     * Defaults to 0, which keeps spans regardless of age.
+     */
+    public Builder retention(long retention, TimeUnit unit) {
+      checkArgument(retention >= 0, "retention should not be negative: was %s", retention);
+      this.retentionMillis = unit.toMillis(retention);
+      return this;
+    }
+
+    public ColumnarStorage build() {
+      return new ColumnarStorage(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  final ColumnarSpanStore spanStore;
+  final Executor callingThread = new Executor() {
+    @Override public void execute(Runnable command) {
+      command.run();
+    }
+  };
+  final AsyncSpanStore asyncSpanStore;
+  final AsyncSpanConsumer asyncConsumer;
+
+  public ColumnarStorage() {
+    this(builder());
+  }
+
+  ColumnarStorage(Builder builder) {
+    try {
+      spanStore =
+          new ColumnarSpanStore(builder.directory, builder.blockSize, builder.retentionMillis);
+    } catch (IOException e) {
+      throw new IllegalStateException("couldn't open " + builder.directory, e);
+    }
+    asyncSpanStore = blockingToAsync(spanStore, callingThread);
+    asyncConsumer = blockingToAsync(spanStore.spanConsumer, callingThread);
+  }
+
+  @Override public ColumnarSpanStore spanStore() {
+    return spanStore;
+  }
+
+  @Override public AsyncSpanStore asyncSpanStore() {
+    return asyncSpanStore;
+  }
+
+  public StorageAdapters.SpanConsumer spanConsumer() {
+    return spanStore.spanConsumer;
+  }
+
+  @Override public AsyncSpanConsumer asyncSpanConsumer() {
+    return asyncConsumer;
+  }
+
+  public void clear() {
+    spanStore.clear();
+  }
+
+  @Override public CheckResult check() {
+    return CheckResult.OK;
+  }
+
+  /** Writes open blocks to their partition files. */
+  @Override public void close() throws IOException {
+    spanStore.close();
+  }
+}
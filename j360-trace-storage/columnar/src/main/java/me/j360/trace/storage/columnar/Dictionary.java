@@ -0,0 +1,50 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.columnar;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns ids to strings, so that columns hold ints. A string absent from a partition's dictionary
+ * is absent from all of its blocks, which prunes partitions without reading them.
+ *
+ * <p>This is not thread-safe.
+ */
+final class Dictionary {
+  final Map<String, Integer> ids = new LinkedHashMap<String, Integer>();
+  final List<String> values = new ArrayList<String>();
+
+  /** Returns the id of the value, assigning one if it is new. */
+  int encode(String value) {
+    Integer id = ids.get(value);
+    if (id == null) {
+      ids.put(value, id = values.size());
+      values.add(value);
+    }
+    return id;
+  }
+
+  /** Returns the id of the value, or -1 if it was never encoded. */
+  int id(String value) {
+    Integer id = ids.get(value);
+    return id == null ? -1 : id;
+  }
+
+  String value(int id) {
+    return values.get(id);
+  }
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.columnar;
+
+import me.j360.trace.core.Annotation;
+import me.j360.trace.core.BinaryAnnotation;
+import me.j360.trace.core.Codec;
+import me.j360.trace.core.Constants;
+import me.j360.trace.core.Span;
+import me.j360.trace.core.internal.Nullable;
+import me.j360.trace.core.internal.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Spans whose timestamp falls in one hour, in {@link Block blocks} of a fixed row count. Only the
+ * last block is open for appends. Dictionaries are per partition, so that they are dropped with it.
+ *
+ * <p>When there's a {@link PartitionFile file}, sealed blocks are appended to it. Opening the file
+ * rebuilds the dictionaries and columns from the spans in it.
+ *
+ * <p>Mutations are guarded by the store's write lock, and reads by its read lock.
+ */
+final class Partition {
+  final long hour;
+  final int blockSize;
+  final Dictionary serviceNames = new Dictionary();
+  final Dictionary spanNames = new Dictionary();
+  final Dictionary terms = new Dictionary();
+  final List<Block> blocks = new ArrayList<Block>();
+  /** Small compared to the spans, and read often, so kept as strings */
+  final Map<String, Set<String>> serviceToSpanNames = new LinkedHashMap<String, Set<String>>();
+  long minTimestamp = Long.MAX_VALUE, maxTimestamp = Long.MIN_VALUE;
+  int spanCount;
+  @Nullable final PartitionFile file;
+
+  /**
+   * @param hour epoch microseconds at the start of the hour
+   * @param file where sealed blocks are written, or null to keep them on the heap
+   */
+  Partition(long hour, int blockSize, @Nullable PartitionFile file) {
+    this.hour = hour;
+    this.blockSize = blockSize;
+    this.file = file;
+  }
+
+  /** Opens an existing file, recovering its blocks up to the first incomplete or corrupt one. */
+  static Partition open(File file, int blockSize) throws IOException {
+    PartitionFile partitionFile = new PartitionFile(file);
+    Partition result = new Partition(PartitionFile.hour(file), blockSize, partitionFile);
+    try {
+      long offset = 0;
+      for (PartitionFile.Record record; (record = partitionFile.read(offset)) != null; ) {
+        int[] lengths = record.spanLengths;
+        long length = 0;
+        for (int spanLength : lengths) length += spanLength;
+        if (length > Integer.MAX_VALUE) break;
+        Span[] spans = new Span[lengths.length];
+        byte[][] encoded = new byte[lengths.length][];
+        try {
+          byte[] payload = Block.inflate(record.compressed, (int) length);
+          for (int i = 0, start = 0; i < lengths.length; start += lengths[i++]) {
+            encoded[i] = Arrays.copyOfRange(payload, start, start + lengths[i]);
+            spans[i] = Codec.JSON.readSpan(encoded[i]);
+          }
+        } catch (IllegalStateException | IllegalArgumentException e) {
+          break; // corrupt: treat as the end, so that the next append overwrites it
+        }
+        result.restore(spans, encoded, record.compressed);
+        offset = record.end;
+      }
+      partitionFile.truncate(offset);
+    } catch (IOException e) {
+      partitionFile.close();
+      throw e;
+    }
+    return result;
+  }
+
+  /** Term for a {@link QueryRequest#binaryAnnotations binary annotation query} */
+  static String term(String key, String value) {
+    return key + '\u0000' + value;
+  }
+
+  void append(Span span, byte[] encoded) throws IOException {
+    Block block = last();
+    // a block is sealed before it's full on close, and stays full but open if writing it failed
+    if (block == null || block.isFull() || block.isSealed()) {
+      blocks.add(block = new Block(blockSize));
+    }
+    add(block, span, encoded);
+    if (block.isFull()) seal(block);
+  }
+
+  /** Adds a block read from the file, already sealed with the compressed spans. */
+  void restore(Span[] spans, byte[][] encoded, ByteBuffer compressed) {
+    Block block = new Block(Math.max(blockSize, spans.length));
+    for (int i = 0; i < spans.length; i++) {
+      add(block, spans[i], encoded[i]);
+    }
+    block.seal(compressed);
+    blocks.add(block);
+  }
+
+  @Nullable Block last() {
+    return blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+  }
+
+  void add(Block block, Span span, byte[] encoded) {
+    Set<String> serviceNameSet = span.serviceNames();
+    int[] services = new int[serviceNameSet.size()];
+    int serviceCount = 0;
+    for (String serviceName : serviceNameSet) {
+      services[serviceCount++] = serviceNames.encode(serviceName);
+      Set<String> names = serviceToSpanNames.get(serviceName);
+      if (names == null) serviceToSpanNames.put(serviceName, names = new LinkedHashSet<String>());
+      names.add(span.name);
+    }
+    int[] rowTerms = new int[span.annotations.size() + span.binaryAnnotations.size()];
+    int termCount = 0;
+    for (Annotation a : span.annotations) {
+      if (Constants.CORE_ANNOTATIONS.contains(a.value)) continue; // can't be queried
+      rowTerms[termCount++] = terms.encode(a.value);
+    }
+    for (BinaryAnnotation b : span.binaryAnnotations) {
+      if (b.type != BinaryAnnotation.Type.STRING) continue;
+      rowTerms[termCount++] = terms.encode(term(b.key, new String(b.value, Util.UTF_8)));
+    }
+
+    long timestamp = span.timestamp != null ? span.timestamp : Block.NULL;
+    int row = block.add(span.traceId, span.id,
+        span.parentId != null ? span.parentId : Block.NULL,
+        timestamp,
+        span.duration != null ? span.duration : Block.NULL,
+        spanNames.encode(span.name),
+        services, serviceCount, rowTerms, termCount, encoded);
+    link(span, block, row);
+    if (timestamp != Block.NULL) {
+      minTimestamp = Math.min(minTimestamp, timestamp);
+      maxTimestamp = Math.max(maxTimestamp, timestamp);
+    }
+    spanCount++;
+  }
+
+  /** Compresses the block's spans, writing them to the file if there is one. */
+  void seal(Block block) throws IOException {
+    byte[] compressed = block.deflate();
+    block.seal(file != null
+        ? file.append(block.spanLengths(), compressed)
+        : ByteBuffer.wrap(compressed));
+  }
+
+  /** Sets the link columns, with the same rules as {@code DependencyLinkSpan.from}. */
+  void link(Span span, Block block, int row) {
+    for (BinaryAnnotation b : span.binaryAnnotations) {
+      if (b.endpoint == null) continue;
+      if (b.key.equals(Constants.CLIENT_ADDR)) {
+        block.caServices[row] = serviceNames.encode(b.endpoint.serviceName);
+      } else if (b.key.equals(Constants.SERVER_ADDR)) {
+        block.saServices[row] = serviceNames.encode(b.endpoint.serviceName);
+      }
+    }
+    for (Annotation a : span.annotations) {
+      if (a.value.equals(Constants.SERVER_RECV) && a.endpoint != null) {
+        block.srServices[row] = serviceNames.encode(a.endpoint.serviceName);
+        break;
+      }
+    }
+  }
+
+  /** Seals the open block, so that the file holds all spans, then closes the file. */
+  void close() throws IOException {
+    if (file == null) return;
+    Block block = last();
+    try {
+      if (block != null && !block.isSealed()) seal(block);
+      file.force();
+    } finally {
+      file.close();
+    }
+  }
+
+  /** Closes and deletes the file, if there is one. */
+  void delete() {
+    if (file == null) return;
+    try {
+      file.close();
+    } catch (IOException ignored) {
+      // best efforts, as the file is deleted next
+    }
+    file.file.delete();
+  }
+
+  @Override public String toString() {
+    return "Partition(hour=" + hour + ", spans=" + spanCount + ")";
+  }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.columnar;
+
+import me.j360.trace.core.internal.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The sealed blocks of one partition, appended to a file named by its hour. Each record is a
+ * block's deflated spans, after the lengths needed to split them once inflated:
+ *
+ * <pre>
+ * int rowCount, int compressedLength, int[rowCount] spanLength, byte[compressedLength] compressed
+ * </pre>
+ *
+ * <p>Columns aren't written, as they are rebuilt from the spans when the file is opened. The
+ * compressed spans are read back as mapped buffers, so they don't take space on the heap.
+ *
+ * <p>Mutations are guarded by the store's write lock, and reads by its read lock.
+ */
+final class PartitionFile implements Closeable {
+  static final int HEADER_SIZE = 4 + 4;
+  static final String SUFFIX = ".partition";
+
+  static File file(File directory, long hour) {
+    return new File(directory, hour + SUFFIX);
+  }
+
+  static long hour(File file) {
+    String name = file.getName();
+    return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+  }
+
+  /** A block read from the file */
+  static final class Record {
+    final int[] spanLengths;
+    final ByteBuffer compressed;
+    /** Offset after this record */
+    final long end;
+
+    Record(int[] spanLengths, ByteBuffer compressed, long end) {
+      this.spanLengths = spanLengths;
+      this.compressed = compressed;
+      this.end = end;
+    }
+  }
+
+  final File file;
+  final RandomAccessFile raf;
+  final FileChannel channel;
+  /** Offset after the last record */
+  long end;
+
+  PartitionFile(File file) throws IOException {
+    this.file = file;
+    this.raf = new RandomAccessFile(file, "rw");
+    this.channel = raf.getChannel();
+    this.end = channel.size();
+  }
+
+  /**
+   * Returns the record at the offset, or null if the file ends before it is complete. Pages reach
+   * the disk in any order, so a crash can leave the last record incomplete.
+   */
+  @Nullable Record read(long offset) throws IOException {
+    long size = channel.size();
+    if (offset + HEADER_SIZE > size) return null;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    read(header, offset);
+    int rowCount = header.getInt(0), compressedLength = header.getInt(4);
+    if (rowCount <= 0 || compressedLength <= 0) return null;
+    long compressedOffset = offset + HEADER_SIZE + 4L * rowCount;
+    if (compressedOffset + compressedLength > size) return null;
+
+    ByteBuffer lengths = ByteBuffer.allocate(4 * rowCount);
+    read(lengths, offset + HEADER_SIZE);
+    int[] spanLengths = new int[rowCount];
+    for (int i = 0; i < rowCount; i++) {
+      spanLengths[i] = lengths.getInt(i * 4);
+      if (spanLengths[i] <= 0) return null;
+    }
+    ByteBuffer compressed =
+        channel.map(FileChannel.MapMode.READ_ONLY, compressedOffset, compressedLength);
+    return new Record(spanLengths, compressed, compressedOffset + compressedLength);
+  }
+
+  /** Appends a sealed block, returning its compressed spans as mapped from the file. */
+  ByteBuffer append(int[] spanLengths, byte[] compressed) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 4 * spanLengths.length);
+    header.putInt(spanLengths.length).putInt(compressed.length);
+    for (int spanLength : spanLengths) {
+      header.putInt(spanLength);
+    }
+    header.flip();
+    long compressedOffset = end + header.remaining();
+    write(header, end);
+    write(ByteBuffer.wrap(compressed), compressedOffset);
+    end = compressedOffset + compressed.length;
+    return channel.map(FileChannel.MapMode.READ_ONLY, compressedOffset, compressed.length);
+  }
+
+  /** Drops anything after the offset, such as an incomplete or corrupt record. */
+  void truncate(long offset) throws IOException {
+    channel.truncate(offset);
+    end = offset;
+  }
+
+  void read(ByteBuffer buffer, long offset) throws IOException {
+    while (buffer.hasRemaining()) {
+      int count = channel.read(buffer, offset + buffer.position());
+      if (count < 0) throw new EOFException(file.toString());
+    }
+    buffer.flip();
+  }
+
+  void write(ByteBuffer buffer, long offset) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, offset + buffer.position());
+    }
+  }
+
+  /** Writes appended records to disk. */
+  void force() throws IOException {
+    channel.force(false);
+  }
+
+  /**
+   * Closes the file. Mappings are released when their buffers are garbage collected, as Java 7 has
+   * no supported way to unmap.
+   */
+  @Override public void close() throws IOException {
+    raf.close();
+  }
+
+  @Override public String toString() {
+    return "PartitionFile(" + file + ")";
+  }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.columnar;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BloomFilterTest {
+  BloomFilter bloom = new BloomFilter(1000);
+  Random random = new Random(1234L);
+
+  @Test
+  public void noFalseNegatives() {
+    long[] keys = new long[1000];
+    for (int i = 0; i < keys.length; i++) {
+      bloom.add(keys[i] = random.nextLong());
+    }
+
+    for (long key : keys) {
+      assertThat(bloom.mightContain(key)).isTrue();
+    }
+  }
+
+  @Test
+  public void fewFalsePositives() {
+    for (int i = 0; i < 1000; i++) {
+      bloom.add(random.nextLong());
+    }
+
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (bloom.mightContain(random.nextLong())) falsePositives++;
+    }
+    assertThat(falsePositives).isLessThan(1000);
+  }
+
+  @Test
+  public void distinguishesDictionaryIdsByKind() {
+    bloom.add(Block.key(Block.SERVICE, 1));
+
+    assertThat(bloom.mightContain(Block.key(Block.SERVICE, 1))).isTrue();
+    assertThat(bloom.mightContain(Block.key(Block.SPAN_NAME, 1))).isFalse();
+  }
+}
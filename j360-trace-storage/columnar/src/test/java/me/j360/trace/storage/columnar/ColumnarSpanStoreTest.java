@@ -0,0 +1,31 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.columnar;
+
+import me.j360.trace.core.storage.SpanStoreTest;
+import me.j360.trace.core.storage.StorageComponent;
+
+public class ColumnarSpanStoreTest extends SpanStoreTest {
+  // small blocks, so that tests cross from open to sealed blocks
+  final ColumnarStorage storage = ColumnarStorage.builder().blockSize(4).build();
+
+  @Override protected StorageComponent storage() {
+    return storage;
+  }
+
+  @Override
+  public void clear() {
+    storage.clear();
+  }
+}
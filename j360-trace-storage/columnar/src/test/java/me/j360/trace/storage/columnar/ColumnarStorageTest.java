@@ -0,0 +1,204 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.columnar;
+
+import me.j360.trace.core.Annotation;
+import me.j360.trace.core.BinaryAnnotation;
+import me.j360.trace.core.Codec;
+import me.j360.trace.core.Constants;
+import me.j360.trace.core.Endpoint;
+import me.j360.trace.core.Span;
+import me.j360.trace.core.storage.QueryRequest;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ColumnarStorageTest {
+  static final Endpoint WEB = Endpoint.create("web", 172 << 24 | 17 << 16 | 3, 8080);
+  static final long NOW = System.currentTimeMillis();
+  static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  ColumnarStorage storage = ColumnarStorage.builder().blockSize(4).build();
+
+  @After
+  public void close() throws IOException {
+    storage.close();
+  }
+
+  ColumnarStorage open(ColumnarStorage.Builder builder) throws IOException {
+    storage.close();
+    return storage = builder.directory(folder.getRoot()).build();
+  }
+
+  @Test
+  public void sealsFullBlocks() {
+    for (long i = 1; i <= 5; i++) {
+      accept(span(i, "get", NOW - 1000));
+    }
+
+    Partition partition = partition(NOW - 1000);
+    assertThat(partition.blocks).hasSize(2);
+    Block sealed = partition.blocks.get(0);
+    assertThat(sealed.isSealed()).isTrue();
+    assertThat(sealed.payload).isNull();
+    assertThat(partition.blocks.get(1).isSealed()).isFalse();
+    assertThat(storage.spanStore().getRawTrace(2L)).hasSize(1); // read from the compressed block
+  }
+
+  @Test
+  public void partitionsByHour() {
+    accept(span(1L, "get", NOW - 2 * HOUR), span(2L, "get", NOW));
+
+    assertThat(storage.spanStore().partitions()).hasSize(2);
+    assertThat(storage.spanStore().getTraces(QueryRequest.builder().lookback(HOUR).build()))
+        .extracting(t -> t.get(0).traceId).containsExactly(2L);
+  }
+
+  @Test
+  public void scansColumnsForEachCriterion() {
+    accept(span(1L, "get", NOW - 3000).toBuilder()
+            .addBinaryAnnotation(BinaryAnnotation.create("http.path", "/api", WEB)).build(),
+        span(2L, "get", NOW - 2000).toBuilder()
+            .addBinaryAnnotation(BinaryAnnotation.create("http.path", "/health", WEB)).build(),
+        span(3L, "post", NOW - 1000).toBuilder()
+            .addBinaryAnnotation(BinaryAnnotation.create("http.path", "/api", WEB)).build());
+
+    QueryRequest request = QueryRequest.builder()
+        .spanName("get").addBinaryAnnotation("http.path", "/api").build();
+    assertThat(storage.spanStore().getTraces(request))
+        .extracting(t -> t.get(0).traceId).containsExactly(1L);
+
+    request = QueryRequest.builder().serviceName("web").minDuration(10L).maxDuration(10L).build();
+    assertThat(storage.spanStore().getTraces(request)).hasSize(3);
+    request = request.toBuilder().serviceName("app").build();
+    assertThat(storage.spanStore().getTraces(request)).isEmpty();
+  }
+
+  @Test
+  public void dropsPartitionsOlderThanRetention() {
+    storage = ColumnarStorage.builder().retention(1, TimeUnit.DAYS).build();
+
+    accept(span(1L, "get", NOW - TimeUnit.DAYS.toMillis(2)));
+    accept(span(2L, "get", NOW - 1000));
+
+    assertThat(storage.spanStore().getRawTrace(1L)).isNull();
+    assertThat(storage.spanStore().partitions()).hasSize(1);
+  }
+
+  @Test
+  public void recoversPartitionFilesOnOpen() throws IOException {
+    open(ColumnarStorage.builder().blockSize(4));
+    for (long i = 1; i <= 5; i++) {
+      accept(span(i, "get", NOW - 1000));
+    }
+    accept(span(6L, "post", NOW - 2 * HOUR));
+
+    open(ColumnarStorage.builder().blockSize(4)); // closing wrote the open blocks
+
+    assertThat(storage.spanStore().partitions()).hasSize(2);
+    for (long i = 1; i <= 6; i++) {
+      assertThat(storage.spanStore().getRawTrace(i)).hasSize(1);
+    }
+    assertThat(storage.spanStore().getSpanNames("web")).containsOnly("get", "post");
+    assertThat(storage.spanStore().getTraces(QueryRequest.builder()
+        .serviceName("web").spanName("get").lookback(HOUR).build())).hasSize(5);
+
+    accept(span(7L, "get", NOW - 1000)); // recovered blocks are sealed, so this starts a new one
+    assertThat(partition(NOW - 1000).blocks).hasSize(3);
+    assertThat(storage.spanStore().getRawTrace(7L)).hasSize(1);
+  }
+
+  @Test
+  public void recoveryStopsAtAnIncompleteBlock() throws IOException {
+    open(ColumnarStorage.builder().blockSize(2));
+    accept(span(1L, "get", NOW - 1000), span(2L, "get", NOW - 1000));
+    File file = PartitionFile.file(folder.getRoot(), ColumnarSpanStore.hour((NOW - 1000) * 1000));
+    long firstBlockEnd = file.length();
+    accept(span(3L, "get", NOW - 1000));
+    storage.close();
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(raf.length() - 1); // as if the last page of the file was lost in a crash
+    }
+
+    open(ColumnarStorage.builder().blockSize(2));
+    assertThat(storage.spanStore().getRawTrace(2L)).hasSize(1);
+    assertThat(storage.spanStore().getRawTrace(3L)).isNull();
+    assertThat(file.length()).isEqualTo(firstBlockEnd);
+  }
+
+  @Test
+  public void deletesPartitionFilesOlderThanRetention() throws IOException {
+    open(ColumnarStorage.builder());
+    accept(span(1L, "get", NOW - TimeUnit.DAYS.toMillis(2)));
+
+    open(ColumnarStorage.builder().retention(1, TimeUnit.DAYS));
+    accept(span(2L, "get", NOW - 1000));
+
+    assertThat(storage.spanStore().getRawTrace(1L)).isNull();
+    assertThat(folder.getRoot().list()).containsExactly(
+        ColumnarSpanStore.hour((NOW - 1000) * 1000) + PartitionFile.SUFFIX);
+  }
+
+  @Test(expected = IllegalStateException.class, timeout = 10000L)
+  public void inflate_failsOnTruncatedData() throws IOException {
+    Partition partition = new Partition(0L, 1, null);
+    Span span = span(1L, "get", NOW);
+    partition.append(span, Codec.JSON.writeSpan(span));
+    Block sealed = partition.blocks.get(0);
+
+    ByteBuffer truncated = sealed.compressed.duplicate();
+    truncated.limit(truncated.limit() / 2);
+    Block.inflate(truncated, sealed.payloadStarts[1]);
+  }
+
+  @Test
+  public void hour_floorsNegativeTimestamps() {
+    long hour = TimeUnit.HOURS.toMicros(1);
+
+    assertThat(ColumnarSpanStore.hour(hour + 1)).isEqualTo(hour);
+    assertThat(ColumnarSpanStore.hour(-1)).isEqualTo(-hour);
+  }
+
+  Partition partition(long timestampMillis) {
+    long hour = ColumnarSpanStore.hour(timestampMillis * 1000);
+    for (Partition partition : storage.spanStore().partitions()) {
+      if (partition.hour == hour) return partition;
+    }
+    throw new AssertionError("no partition for " + timestampMillis);
+  }
+
+  void accept(Span... spans) {
+    storage.spanConsumer().accept(asList(spans));
+  }
+
+  static Span span(long traceId, String name, long timestampMillis) {
+    return Span.builder().traceId(traceId).id(traceId).name(name)
+        .timestamp(timestampMillis * 1000).duration(10L)
+        .addAnnotation(Annotation.create(timestampMillis * 1000, Constants.SERVER_RECV, WEB))
+        .build();
+  }
+}
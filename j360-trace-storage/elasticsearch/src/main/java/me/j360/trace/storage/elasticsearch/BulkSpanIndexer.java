@@ -0,0 +1,300 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.elasticsearch;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces index requests across calls into bulk requests, which are sent when {@link
+ * ElasticsearchStorage.Builder#bulkActions enough requests} or {@link
+ * ElasticsearchStorage.Builder#bulkSize bytes} are pending, or when the oldest pending request has
+ * waited for the {@link ElasticsearchStorage.Builder#flushInterval flush interval}.
+ *
+ * <p>At most {@link ElasticsearchStorage.Builder#concurrentRequests} bulk requests are in flight.
+ * Beyond that, callers block until one completes, which pushes back on transports instead of
+ * queueing work the cluster can't keep up with.
+ *
+ * <p>Items the cluster rejects because its queues are full are retried with exponential backoff.
+ * The future returned by {@link #add(List)} completes once all of its requests were indexed, or
+ * fails with the first item failure.
+ *
+ * <p>Once {@link #close() closed}, calls to {@link #add(List)} fail without queueing anything.
+ */
+class BulkSpanIndexer implements Closeable {
+  static final int MAX_RETRIES = 3;
+  static final long INITIAL_BACKOFF_MILLIS = 50L;
+  static final long CLOSE_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  /** An index request, and the call which added it. */
+  static final class Item {
+    final IndexRequest request;
+    final Batch batch;
+    int attempts;
+
+    Item(IndexRequest request, Batch batch) {
+      this.request = request;
+      this.batch = batch;
+    }
+  }
+
+  /** Completes the future of one call to {@link #add(List)}, once all of its items are done. */
+  static final class Batch {
+    final SettableFuture<Void> future = SettableFuture.create();
+    int remaining;
+    Throwable failure;
+
+    Batch(int remaining) {
+      this.remaining = remaining;
+    }
+
+    synchronized void done(Throwable failure) {
+      if (failure != null && this.failure == null) this.failure = failure;
+      if (--remaining > 0) return;
+      if (this.failure == null) {
+        future.set(null);
+      } else {
+        future.setException(this.failure);
+      }
+    }
+  }
+
+  final Client client;
+  final int bulkActions;
+  final long bulkBytes;
+  final long flushIntervalNanos;
+  final int concurrentRequests;
+  final Semaphore inFlight;
+  final ScheduledExecutorService scheduler;
+
+  // the below fields are guarded by this
+  List<Item> pending = new ArrayList<Item>();
+  long pendingBytes;
+  ScheduledFuture<?> scheduledFlush;
+  /** Items added, but not yet indexed or failed. */
+  long unfinished;
+  boolean closed;
+
+  BulkSpanIndexer(Client client, ElasticsearchStorage.Builder builder) {
+    this.client = client;
+    this.bulkActions = builder.bulkActions;
+    this.bulkBytes = builder.bulkSize;
+    this.flushIntervalNanos = builder.flushIntervalNanos;
+    this.concurrentRequests = builder.concurrentRequests;
+    this.inFlight = new Semaphore(concurrentRequests);
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "BulkSpanIndexer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Queues the requests, sending any bulk requests which became full. This blocks while the
+   * maximum count of bulk requests are in flight. Fails if this indexer was closed.
+   */
+  ListenableFuture<Void> add(List<IndexRequest> requests) {
+    Batch batch = new Batch(requests.size());
+    if (requests.isEmpty()) {
+      batch.future.set(null);
+      return batch.future;
+    }
+    List<List<Item>> full = new ArrayList<List<Item>>(1);
+    synchronized (this) {
+      if (closed) {
+        batch.future.setException(new IllegalStateException("closed"));
+        return batch.future;
+      }
+      unfinished += requests.size();
+      for (IndexRequest request : requests) {
+        pending.add(new Item(request, batch));
+        pendingBytes += request.source().length();
+        if (pending.size() >= bulkActions || pendingBytes >= bulkBytes) full.add(drain());
+      }
+      if (!pending.isEmpty() && scheduledFlush == null) {
+        scheduledFlush = scheduler.schedule(new Runnable() {
+          @Override public void run() {
+            flush();
+          }
+        }, flushIntervalNanos, TimeUnit.NANOSECONDS);
+      }
+    }
+    for (List<Item> bulk : full) {
+      execute(bulk);
+    }
+    return batch.future;
+  }
+
+  /** Sends pending requests now, regardless of the flush interval. */
+  void flush() {
+    List<Item> bulk;
+    synchronized (this) {
+      bulk = drain();
+    }
+    if (!bulk.isEmpty()) execute(bulk);
+  }
+
+  /** Guarded by this. */
+  List<Item> drain() {
+    List<Item> result = pending;
+    pending = new ArrayList<Item>();
+    pendingBytes = 0L;
+    if (scheduledFlush != null) {
+      scheduledFlush.cancel(false);
+      scheduledFlush = null;
+    }
+    return result;
+  }
+
+  void execute(final List<Item> bulk) {
+    inFlight.acquireUninterruptibly();
+    BulkRequest request = new BulkRequest();
+    for (Item item : bulk) {
+      item.attempts++;
+      request.add(item.request);
+    }
+    try {
+      execute(request, new ActionListener<BulkResponse>() {
+        @Override public void onResponse(BulkResponse response) {
+          inFlight.release();
+          complete(bulk, response);
+        }
+
+        @Override public void onFailure(Throwable e) {
+          inFlight.release();
+          fail(bulk, e);
+        }
+      });
+    } catch (RuntimeException e) {
+      inFlight.release();
+      fail(bulk, e);
+    }
+  }
+
+  /** Overridden in tests. */
+  void execute(BulkRequest request, ActionListener<BulkResponse> listener) {
+    client.bulk(request, listener);
+  }
+
+  /** Items in a bulk response are in the same order as the request. */
+  void complete(List<Item> bulk, BulkResponse response) {
+    BulkItemResponse[] responses = response.getItems();
+    List<Item> retries = new ArrayList<Item>(0);
+    for (int i = 0; i < responses.length; i++) {
+      Item item = bulk.get(i);
+      BulkItemResponse.Failure failure = responses[i].getFailure();
+      if (failure == null) {
+        done(item, null);
+      } else if (failure.getStatus() == RestStatus.TOO_MANY_REQUESTS
+          && item.attempts <= MAX_RETRIES) {
+        retries.add(item);
+      } else {
+        done(item, failure.getCause());
+      }
+    }
+    if (!retries.isEmpty()) retry(retries);
+  }
+
+  void fail(List<Item> bulk, Throwable e) {
+    boolean rejected = ExceptionsHelper.unwrapCause(e) instanceof EsRejectedExecutionException;
+    List<Item> retries = new ArrayList<Item>(0);
+    for (Item item : bulk) {
+      if (rejected && item.attempts <= MAX_RETRIES) {
+        retries.add(item);
+      } else {
+        done(item, e);
+      }
+    }
+    if (!retries.isEmpty()) retry(retries);
+  }
+
+  void done(Item item, Throwable failure) {
+    item.batch.done(failure);
+    synchronized (this) {
+      if (--unfinished == 0L) notifyAll();
+    }
+  }
+
+  /**
+   * Resends on the scheduler thread, as this is called on a transport thread. If close gave up
+   * waiting and shut the scheduler down, this resends inline instead of dropping the items.
+   */
+  void retry(final List<Item> items) {
+    int attempts = 0;
+    for (Item item : items) {
+      attempts = Math.max(attempts, item.attempts);
+    }
+    long backoffMillis = INITIAL_BACKOFF_MILLIS << (attempts - 1);
+    try {
+      scheduler.schedule(new Runnable() {
+        @Override public void run() {
+          execute(items);
+        }
+      }, backoffMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      execute(items);
+    }
+  }
+
+  /**
+   * Sends pending requests, and waits up to a minute for those in flight, including retries, before
+   * stopping the scheduler.
+   */
+  @Override public void close() {
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+    }
+    flush();
+    try {
+      synchronized (this) {
+        long deadline = System.nanoTime() + CLOSE_TIMEOUT_NANOS;
+        for (long remaining = CLOSE_TIMEOUT_NANOS; unfinished > 0L && remaining > 0L;
+            remaining = deadline - System.nanoTime()) {
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    scheduler.shutdown();
+  }
+
+  @Override public String toString() {
+    return "BulkSpanIndexer(bulkActions=" + bulkActions + ", concurrentRequests="
+        + concurrentRequests + ")";
+  }
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.elasticsearch;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import me.j360.trace.core.DependencyLink;
+import me.j360.trace.core.Span;
+import me.j360.trace.core.internal.ApplyTimestampAndDuration;
+import me.j360.trace.core.internal.DependencyLinker;
+import me.j360.trace.core.internal.Util;
+import org.elasticsearch.action.index.IndexRequest;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Derives dependency links from spans as they are stored, so that the dependency graph doesn't need
+ * a batch job. Spans are buffered by trace id until no span of that trace was received for the
+ * {@link ElasticsearchStorage.Builder#dependencyQuietPeriod quiet period}, then linked with {@link
+ * DependencyLinker} into the {@link ElasticsearchStorage.Builder#dependencyBucket time bucket} of
+ * the trace's start.
+ *
+ * <p>Buckets which changed are periodically written as one document per link, holding the count so
+ * far, so rewriting a bucket replaces its documents. Document ids include an id unique to each
+ * bucket held by this process, so that collectors, or a process which forgot a bucket, add to the
+ * counts of others instead of overwriting them. {@link ElasticsearchSpanStore#getDependencies} sums
+ * the documents of buckets overlapping its interval.
+ *
+ * <p>Memory is bounded by {@link #MAX_TRACES}, {@link #MAX_SPANS} and {@link #MAX_BUCKETS}. Beyond
+ * them, the least recently updated traces are linked early and the oldest buckets are forgotten.
+ * Spans of a trace arriving after it was linked are linked on their own.
+ */
+class DependencyRollups implements Closeable {
+  static final int MAX_TRACES = 10000;
+  static final int MAX_SPANS = 100000;
+  /** Two days of hourly buckets, so that late traces usually update the bucket already written. */
+  static final int MAX_BUCKETS = 48;
+
+  static final class Trace {
+    final List<Span> spans = new ArrayList<Span>(4);
+    long lastUpdate;
+    long timestamp = Long.MAX_VALUE; // epoch micros of the earliest span
+  }
+
+  static final class Bucket {
+    final String id;
+    final DependencyLinker linker = new DependencyLinker();
+    boolean dirty;
+
+    Bucket(String id) {
+      this.id = id;
+    }
+  }
+
+  final BulkSpanIndexer indexer;
+  final IndexNameFormatter indexNameFormatter;
+  final long bucketMillis;
+  final long quietPeriodNanos;
+  final String processId = Util.toLowerHex(new Random().nextLong());
+  final ScheduledExecutorService scheduler;
+
+  // the below fields are guarded by this
+  /** Buffered traces, least recently updated first. */
+  final LinkedHashMap<Long, Trace> traces = new LinkedHashMap<Long, Trace>(16, 0.75f, true);
+  /** Buckets by epoch millis of their start. */
+  final TreeMap<Long, Bucket> buckets = new TreeMap<Long, Bucket>();
+  int spanCount;
+  int bucketCount;
+
+  DependencyRollups(BulkSpanIndexer indexer, IndexNameFormatter indexNameFormatter,
+      ElasticsearchStorage.Builder builder) {
+    this.indexer = indexer;
+    this.indexNameFormatter = indexNameFormatter;
+    this.bucketMillis = builder.dependencyBucketMillis;
+    this.quietPeriodNanos = builder.dependencyQuietPeriodNanos;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "DependencyRollups");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long period = Math.max(quietPeriodNanos / 2, TimeUnit.MILLISECONDS.toNanos(100));
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override public void run() {
+        flush();
+      }
+    }, period, period, TimeUnit.NANOSECONDS);
+  }
+
+  void accept(List<Span> spans) {
+    accept(spans, System.nanoTime());
+  }
+
+  synchronized void accept(List<Span> spans, long now) {
+    for (Span next : spans) {
+      Span span = ApplyTimestampAndDuration.apply(next);
+      Trace trace = traces.get(span.traceId);
+      if (trace == null) traces.put(span.traceId, trace = new Trace());
+      trace.spans.add(span);
+      trace.lastUpdate = now;
+      if (span.timestamp != null) trace.timestamp = Math.min(trace.timestamp, span.timestamp);
+      spanCount++;
+    }
+    link(now);
+  }
+
+  /** Links quiet traces, and writes the buckets which changed. */
+  ListenableFuture<Void> flush() {
+    return flush(System.nanoTime());
+  }
+
+  ListenableFuture<Void> flush(long now) {
+    List<IndexRequest> requests = new ArrayList<IndexRequest>();
+    synchronized (this) {
+      link(now);
+      for (Map.Entry<Long, Bucket> entry : buckets.entrySet()) {
+        Bucket bucket = entry.getValue();
+        if (!bucket.dirty) continue;
+        bucket.dirty = false;
+        for (DependencyLink link : bucket.linker.link()) {
+          requests.add(indexRequest(entry.getKey(), bucket.id, link));
+        }
+      }
+      while (buckets.size() > MAX_BUCKETS) buckets.pollFirstEntry(); // already written
+    }
+    if (requests.isEmpty()) return Futures.immediateFuture(null);
+    return write(requests);
+  }
+
+  /** Overridden in tests. */
+  ListenableFuture<Void> write(List<IndexRequest> requests) {
+    return indexer.add(requests);
+  }
+
+  IndexRequest indexRequest(long bucketStart, String bucketId, DependencyLink link) {
+    return new IndexRequest(indexNameFormatter.indexNameForTimestamp(bucketStart),
+        ElasticsearchConstants.DEPENDENCY_LINK,
+        bucketStart + "|" + bucketId + "|" + link.parent + "|" + link.child)
+        .source("parent", link.parent,
+            "child", link.child,
+            "callCount", link.callCount,
+            "startTs", bucketStart,
+            "endTs", bucketStart + bucketMillis);
+  }
+
+  /** Links quiet traces, and the least recently updated beyond the caps. Guarded by this. */
+  void link(long now) {
+    for (Iterator<Map.Entry<Long, Trace>> i = traces.entrySet().iterator(); i.hasNext(); ) {
+      Trace trace = i.next().getValue();
+      boolean overCap = traces.size() > MAX_TRACES || spanCount > MAX_SPANS;
+      // now is Long.MAX_VALUE on close, so compare without subtracting
+      boolean quiet = now == Long.MAX_VALUE || now - trace.lastUpdate >= quietPeriodNanos;
+      if (!quiet && !overCap) break; // the rest were updated more recently
+      i.remove();
+      spanCount -= trace.spans.size();
+
+      long timestampMillis = trace.timestamp != Long.MAX_VALUE
+          ? TimeUnit.MICROSECONDS.toMillis(trace.timestamp)
+          : System.currentTimeMillis();
+      long bucketStart = bucketStart(timestampMillis);
+      Bucket bucket = buckets.get(bucketStart);
+      if (bucket == null) {
+        buckets.put(bucketStart, bucket = new Bucket(processId + "-" + bucketCount++));
+      }
+      bucket.linker.putTrace(trace.spans);
+      bucket.dirty = true;
+    }
+  }
+
+  /** Rounds down to a multiple of the bucket, also for timestamps before 1970. */
+  long bucketStart(long timestampMillis) {
+    long remainder = timestampMillis % bucketMillis;
+    return timestampMillis - (remainder < 0 ? remainder + bucketMillis : remainder);
+  }
+
+  /** Forgets buffered traces and counts, as their documents were deleted. */
+  synchronized void clear() {
+    traces.clear();
+    buckets.clear();
+    spanCount = 0;
+  }
+
+  /** Links all buffered traces and writes their buckets. */
+  @Override public void close() {
+    scheduler.shutdownNow();
+    flush(Long.MAX_VALUE); // links every trace, regardless of when it was last updated
+  }
+}
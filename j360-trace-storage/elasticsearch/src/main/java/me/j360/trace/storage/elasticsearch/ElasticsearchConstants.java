@@ -17,6 +17,10 @@ final class ElasticsearchConstants {
 
   static final String SPAN = "span";
   static final String DEPENDENCY_LINK = "dependencylink";
+  /** One document per service and span name, in each daily index they were seen. */
+  static final String SERVICE_SPAN = "servicespan";
+  /** One summary document per trace and service, in the daily index of the trace's start. */
+  static final String TRACE = "trace";
 
   private ElasticsearchConstants() {}
 }
@@ -17,19 +17,26 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import me.j360.trace.core.Codec;
 import me.j360.trace.core.Span;
 import me.j360.trace.core.internal.ApplyTimestampAndDuration;
+import me.j360.trace.core.internal.Nullable;
+import me.j360.trace.core.internal.Util;
 import me.j360.trace.storage.core.guava.GuavaSpanConsumer;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.Client;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
+import static com.google.common.util.concurrent.Futures.addCallback;
 import static com.google.common.util.concurrent.Futures.transform;
 import static me.j360.trace.storage.elasticsearch.ElasticFutures.toGuava;
 
@@ -37,31 +44,56 @@ final class ElasticsearchSpanConsumer implements GuavaSpanConsumer {
   private static final byte[] TIMESTAMP_MILLIS_PREFIX = "{\"timestamp_millis\":".getBytes();
   private static final Function<Object, Void> TO_VOID = Functions.<Void>constant(null);
 
+  /** Bounds memory of the service and span name pairs already written. */
+  static final int MAX_SPAN_NAMES = 10000;
+  /** Bounds memory of the traces whose summaries are accumulated. */
+  static final int MAX_TRACE_SUMMARIES = 10000;
+
   private final Client client;
+  private final BulkSpanIndexer indexer;
   private final IndexNameFormatter indexNameFormatter;
+  private final TraceTimestamps traceTimestamps;
+  @Nullable private final DependencyRollups dependencyRollups;
+  /**
+   * Keys of span name documents written or being written, which needn't be written again. Keys are
+   * removed if their write fails.
+   */
+  final Set<String> spanNames =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  final TraceSummaries traceSummaries = new TraceSummaries(MAX_TRACE_SUMMARIES);
 
-  ElasticsearchSpanConsumer(Client client, IndexNameFormatter indexNameFormatter) {
+  ElasticsearchSpanConsumer(Client client, BulkSpanIndexer indexer,
+      IndexNameFormatter indexNameFormatter, TraceTimestamps traceTimestamps,
+      @Nullable DependencyRollups dependencyRollups) {
     this.client = client;
+    this.indexer = indexer;
     this.indexNameFormatter = indexNameFormatter;
+    this.traceTimestamps = traceTimestamps;
+    this.dependencyRollups = dependencyRollups;
   }
 
+  /**
+   * Queues the spans on the shared {@link BulkSpanIndexer}, so that bulk requests are sized by
+   * throughput, not by how many spans a transport happened to deliver at once.
+   */
   @Override
   public ListenableFuture<Void> accept(List<Span> spans) {
     if (spans.isEmpty()) return Futures.immediateFuture(null);
+    if (dependencyRollups != null) dependencyRollups.accept(spans);
 
-    // Create a bulk request when there is more than one span to store
-    ListenableFuture<?> future;
-    if (spans.size() == 1) {
-      future = toGuava(createSpanIndexRequest(spans.get(0)).execute());
-    } else {
-      BulkRequestBuilder request = client.prepareBulk();
-      for (Span span : spans) {
-        request.add(createSpanIndexRequest(span));
+    final List<IndexRequest> requests = indexRequests(spans);
+    ListenableFuture<?> future = indexer.add(requests);
+    addCallback(future, new FutureCallback<Object>() {
+      @Override public void onSuccess(Object result) {
       }
-      future = toGuava(request.execute());
-    }
+
+      @Override public void onFailure(Throwable t) {
+        forgetSpanNames(requests);
+      }
+    });
 
     if (ElasticsearchStorage.FLUSH_ON_WRITES) {
+      indexer.flush();
       future = transform(future, new AsyncFunction() {
         @Override public ListenableFuture apply(Object input) {
           return toGuava(client.admin().indices()
@@ -74,20 +106,84 @@ final class ElasticsearchSpanConsumer implements GuavaSpanConsumer {
     return transform(future, TO_VOID);
   }
 
-  private IndexRequestBuilder createSpanIndexRequest(Span input) {
-    Span span = ApplyTimestampAndDuration.apply(input);
-    long timestampMillis;
-    final byte[] spanBytes;
-    if (span.timestamp != null) {
-      timestampMillis = TimeUnit.MICROSECONDS.toMillis(span.timestamp);
-      spanBytes = prefixWithTimestampMillis(Codec.JSON.writeSpan(span), timestampMillis);
-    } else {
-      timestampMillis = System.currentTimeMillis();
-      spanBytes = Codec.JSON.writeSpan(span);
+  /**
+   * Besides the spans, this writes the small documents {@link ElasticsearchSpanStore} reads instead
+   * of aggregating over spans: one per service and span name per day, and a summary of each trace
+   * per service.
+   */
+  List<IndexRequest> indexRequests(List<Span> input) {
+    List<IndexRequest> result = new ArrayList<IndexRequest>(input.size() * 2);
+    List<Span> spans = new ArrayList<Span>(input.size());
+    for (Span next : input) {
+      Span span = ApplyTimestampAndDuration.apply(next);
+      spans.add(span);
+      long timestampMillis;
+      final byte[] spanBytes;
+      if (span.timestamp != null) {
+        timestampMillis = TimeUnit.MICROSECONDS.toMillis(span.timestamp);
+        spanBytes = prefixWithTimestampMillis(Codec.JSON.writeSpan(span), timestampMillis);
+      } else {
+        timestampMillis = System.currentTimeMillis();
+        spanBytes = Codec.JSON.writeSpan(span);
+      }
+      String spanIndex = indexNameFormatter.indexNameForTimestamp(timestampMillis);
+      // routing by trace id places a trace's spans on one shard of each index
+      result.add(new IndexRequest(spanIndex, ElasticsearchConstants.SPAN)
+          .routing(Util.toLowerHex(span.traceId))
+          .source(spanBytes));
+
+      for (String serviceName : span.serviceNames()) {
+        String id = serviceName + "|" + span.name;
+        if (!spanNames.add(spanNameKey(spanIndex, id))) continue;
+        result.add(new IndexRequest(spanIndex, ElasticsearchConstants.SERVICE_SPAN, id)
+            .source("serviceName", serviceName, "spanName", span.name));
+      }
+    }
+    if (spanNames.size() > MAX_SPAN_NAMES) spanNames.clear(); // rewriting them is harmless
+
+    for (TraceSummaries.Summary summary : traceSummaries.update(spans)) {
+      long timestampMillis = TimeUnit.MICROSECONDS.toMillis(summary.timestamp);
+      String traceId = Util.toLowerHex(summary.traceId);
+      traceTimestamps.put(summary.traceId, timestampMillis);
+      // Summaries are rewritten in every day's index they were written to, so that those written
+      // before an earlier span moved the trace's start across midnight aren't left stale. Queries
+      // filter on the timestamp, so the copy in a later day's index doesn't match that day.
+      for (long day : summary.days) {
+        String index = indexNameFormatter.indexNameForTimestamp(day);
+        // Keyed by service, as collectors which see different parts of a trace would otherwise
+        // overwrite each other's summary. This way, a trace is found by any service that saw it.
+        for (String serviceName : summary.serviceNames) {
+          result.add(new IndexRequest(index, ElasticsearchConstants.TRACE,
+              traceId + "|" + serviceName)
+              .source("traceId", traceId,
+                  "serviceName", serviceName,
+                  "serviceNames", summary.serviceNames,
+                  "timestamp", summary.timestamp,
+                  "timestamp_millis", timestampMillis,
+                  "duration", summary.duration));
+        }
+      }
+    }
+    return result;
+  }
+
+  static String spanNameKey(String index, String id) {
+    return index + "|" + id;
+  }
+
+  /** Allows span name documents of a failed write to be written again. */
+  void forgetSpanNames(List<IndexRequest> requests) {
+    for (IndexRequest request : requests) {
+      if (!request.type().equals(ElasticsearchConstants.SERVICE_SPAN)) continue;
+      spanNames.remove(spanNameKey(request.index(), request.id()));
     }
-    String spanIndex = indexNameFormatter.indexNameForTimestamp(timestampMillis);
-    return client.prepareIndex(spanIndex, ElasticsearchConstants.SPAN)
-        .setSource(spanBytes);
+  }
+
+  /** Forgets documents written, as they were deleted. */
+  void clear() {
+    spanNames.clear();
+    traceSummaries.clear();
+    if (dependencyRollups != null) dependencyRollups.clear();
   }
 
   /**
@@ -14,13 +14,11 @@
 package me.j360.trace.storage.elasticsearch;
 
 import com.google.common.base.Function;
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Ordering;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import me.j360.trace.core.Codec;
 import me.j360.trace.core.DependencyLink;
 import me.j360.trace.core.Span;
 import me.j360.trace.core.internal.*;
@@ -39,6 +37,8 @@ import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.elasticsearch.search.aggregations.bucket.nested.Nested;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms.Order;
+import org.elasticsearch.search.aggregations.metrics.sum.Sum;
+import org.elasticsearch.search.sort.SortOrder;
 
 import java.util.*;
 import java.util.concurrent.TimeUnit;
@@ -48,16 +48,6 @@ import static com.google.common.util.concurrent.Futures.transform;
 import static org.elasticsearch.index.query.QueryBuilders.*;
 
 final class ElasticsearchSpanStore implements GuavaSpanStore {
-  /**
-   * The maximum count of raw spans returned in a trace query.
-   *
-   * <p>Not configurable as it implies adjustments to the index template (index.max_result_window)
-   * and user settings
-   *
-   * <p> See https://www.elastic.co/guide/en/elasticsearch/reference/current/search-request-from-size.html
-   */
-  static final int MAX_RAW_SPANS = 10000; // the default elasticsearch allowed limit
-
   static final long ONE_DAY_IN_MILLIS = TimeUnit.DAYS.toMillis(1);
   static final ListenableFuture<List<String>> EMPTY_LIST =
       immediateFuture(Collections.<String>emptyList());
@@ -70,13 +60,23 @@ final class ElasticsearchSpanStore implements GuavaSpanStore {
 
   private final Client client;
   private final IndexNameFormatter indexNameFormatter;
+  private final TraceTimestamps traceTimestamps;
+  private final ScrollSpans scrollSpans;
 
-  ElasticsearchSpanStore(Client client, IndexNameFormatter indexNameFormatter) {
+  ElasticsearchSpanStore(Client client, IndexNameFormatter indexNameFormatter,
+      TraceTimestamps traceTimestamps) {
+    this(client, indexNameFormatter, traceTimestamps, new ScrollSpans(client));
+  }
+
+  ElasticsearchSpanStore(Client client, IndexNameFormatter indexNameFormatter,
+      TraceTimestamps traceTimestamps, ScrollSpans scrollSpans) {
     this.client = client;
+    this.scrollSpans = scrollSpans;
     this.indexNameFormatter = indexNameFormatter;
+    this.traceTimestamps = traceTimestamps;
   }
 
-  @Override public ListenableFuture<List<List<Span>>> getTraces(QueryRequest request) {
+  @Override public ListenableFuture<List<List<Span>>> getTraces(final QueryRequest request) {
     long endMillis = request.endTs;
     long beginMillis = endMillis - request.lookback;
 
@@ -121,6 +121,24 @@ final class ElasticsearchSpanStore implements GuavaSpanStore {
 
     List<String> strings = computeIndices(beginMillis, endMillis);
     final String[] indices = strings.toArray(new String[strings.size()]);
+    if (request.serviceName != null && request.spanName == null && request.annotations.isEmpty()
+        && request.binaryAnnotations.isEmpty() && request.minDuration == null) {
+      final BoolQueryBuilder spanFilter = filter;
+      return transform(getTracesByServiceName(request, indices),
+          new AsyncFunction<List<List<Span>>, List<List<Span>>>() {
+            @Override public ListenableFuture<List<List<Span>>> apply(List<List<Span>> input) {
+              if (!input.isEmpty()) return immediateFuture(input);
+              // days indexed before trace summaries were written only have spans
+              return getTracesBySpans(request, spanFilter, indices);
+            }
+          });
+    }
+    return getTracesBySpans(request, filter, indices);
+  }
+
+  /** Aggregates trace ids over the spans matching the filter. */
+  ListenableFuture<List<List<Span>>> getTracesBySpans(QueryRequest request, BoolQueryBuilder filter,
+      final String[] indices) {
     // We need to filter to traces that contain at least one span that matches the request,
     // but the zipkin API is supposed to order traces by first span, regardless of if it was
     // filtered or not. This is not possible without either multiple, heavyweight queries
@@ -160,6 +178,41 @@ final class ElasticsearchSpanStore implements GuavaSpanStore {
     );
   }
 
+  /**
+   * When only the service name is queried, trace ids are read from summary documents, which are
+   * already ordered by the start of their trace. This avoids aggregating over spans.
+   */
+  ListenableFuture<List<List<Span>>> getTracesByServiceName(QueryRequest request,
+      final String[] indices) {
+    long endMillis = request.endTs;
+    long beginMillis = endMillis - request.lookback;
+    SearchRequestBuilder elasticRequest = client.prepareSearch(indices)
+        .setIndicesOptions(IndicesOptions.lenientExpandOpen())
+        .setTypes(ElasticsearchConstants.TRACE)
+        .setQuery(boolQuery()
+            .filter(termQuery("serviceName", request.serviceName))
+            .filter(rangeQuery("timestamp_millis").gte(beginMillis).lte(endMillis)))
+        .addSort("timestamp_millis", SortOrder.DESC)
+        .setFetchSource(false)
+        .setSize(request.limit);
+
+    return transform(ElasticFutures.toGuava(elasticRequest.execute()),
+        new AsyncFunction<SearchResponse, List<List<Span>>>() {
+          @Override public ListenableFuture<List<List<Span>>> apply(SearchResponse input) {
+            // a trace which started near midnight can have a summary in both days' indexes
+            Set<Long> traceIds = new LinkedHashSet<>();
+            for (SearchHit hit : input.getHits()) {
+              String id = hit.getId();
+              traceIds.add(Util.lowerHexToUnsignedLong(id.substring(0, id.indexOf('|'))));
+            }
+            if (traceIds.isEmpty()) {
+              return Futures.immediateFuture(Collections.<List<Span>>emptyList());
+            }
+            return getTracesByIds(traceIds, indices);
+          }
+        });
+  }
+
   @Override public ListenableFuture<List<Span>> getTrace(long traceId) {
     return transform(getRawTrace(traceId), new Function<List<Span>, List<Span>>() {
       @Override public List<Span> apply(List<Span> input) {
@@ -168,27 +221,86 @@ final class ElasticsearchSpanStore implements GuavaSpanStore {
     });
   }
 
+  /** Searches the days the trace is known to span, or all days if its start is unknown. */
   @Override public ListenableFuture<List<Span>> getRawTrace(long traceId) {
-    SearchRequestBuilder elasticRequest = client.prepareSearch(indexNameFormatter.catchAll())
-        .setTypes(ElasticsearchConstants.SPAN)
-        .setSize(MAX_RAW_SPANS)
-        .setQuery(termQuery("traceId", Util.toLowerHex(traceId)));
+    return getRawTrace(traceId, traceTimestamps.get(traceId));
+  }
 
-    return Futures.transform(ElasticFutures.toGuava(elasticRequest.execute()), new Function<SearchResponse, List<Span>>() {
-      @Override public List<Span> apply(SearchResponse response) {
-        if (response.getHits().totalHits() == 0) {
-          return null;
-        }
-        ImmutableList.Builder<Span> trace = ImmutableList.builder();
-        for (SearchHit hit : response.getHits()) {
-          trace.add(Codec.JSON.readSpan(hit.getSourceRef().toBytes()));
-        }
-        return trace.build();
-      }
-    });
+  /**
+   * Searches the daily indexes of the trace's start and the day after, as a trace can cross
+   * midnight. Spans are routed by trace id, so only one shard of each is searched. If the hint was
+   * wrong, for example due to clock skew, this falls back to searching all days.
+   */
+  ListenableFuture<List<Span>> getRawTrace(final long traceId, @Nullable Long timestampMillis) {
+    if (timestampMillis == null) {
+      return getRawTrace(traceId, new String[] {indexNameFormatter.catchAll()});
+    }
+    List<String> days = computeIndices(timestampMillis, timestampMillis + ONE_DAY_IN_MILLIS);
+    return transform(getRawTrace(traceId, days.toArray(new String[days.size()])),
+        new AsyncFunction<List<Span>, List<Span>>() {
+          @Override public ListenableFuture<List<Span>> apply(List<Span> input) {
+            if (input != null) return immediateFuture(input);
+            return getRawTrace(traceId, new String[] {indexNameFormatter.catchAll()});
+          }
+        });
   }
 
-  ListenableFuture<List<List<Span>>> getTracesByIds(Collection<Long> traceIds, String[] indices) {
+  /**
+   * Reads all spans of the trace, however many pages they take. Spans indexed before they were
+   * routed by trace id can be on any shard, so if the routed search finds nothing, this searches
+   * again without routing.
+   */
+  ListenableFuture<List<Span>> getRawTrace(final long traceId, final String[] indices) {
+    final List<Long> traceIds = Collections.singletonList(traceId);
+    return transform(readSpans(traceIds, indices, true),
+        new AsyncFunction<LongHashMap<List<Span>>, List<Span>>() {
+          @Override public ListenableFuture<List<Span>> apply(LongHashMap<List<Span>> input) {
+            List<Span> result = input.get(traceId);
+            if (result != null) return immediateFuture(result);
+            return transform(readSpans(traceIds, indices, false),
+                new Function<LongHashMap<List<Span>>, List<Span>>() {
+                  @Override public List<Span> apply(LongHashMap<List<Span>> input) {
+                    return input.get(traceId);
+                  }
+                });
+          }
+        });
+  }
+
+  /**
+   * Reads all spans of the traces, however many pages they take. Like {@link #getRawTrace(long,
+   * String[])}, traces the routed search didn't find are searched again without routing.
+   */
+  ListenableFuture<List<List<Span>>> getTracesByIds(Collection<Long> traceIds,
+      final String[] indices) {
+    final List<Long> ids = new ArrayList<>(traceIds);
+    ListenableFuture<LongHashMap<List<Span>>> traces = transform(readSpans(ids, indices, true),
+        new AsyncFunction<LongHashMap<List<Span>>, LongHashMap<List<Span>>>() {
+          @Override public ListenableFuture<LongHashMap<List<Span>>> apply(
+              final LongHashMap<List<Span>> routed) {
+            List<Long> missing = new ArrayList<>();
+            for (long traceId : ids) {
+              if (routed.get(traceId) == null) missing.add(traceId);
+            }
+            if (missing.isEmpty()) return immediateFuture(routed);
+            return transform(readSpans(missing, indices, false),
+                new Function<LongHashMap<List<Span>>, LongHashMap<List<Span>>>() {
+                  @Override public LongHashMap<List<Span>> apply(LongHashMap<List<Span>> input) {
+                    for (int i = 0, length = input.capacity(); i < length; i++) {
+                      List<Span> trace = input.valueAt(i);
+                      if (trace != null) routed.put(trace.get(0).traceId, trace);
+                    }
+                    return routed;
+                  }
+                });
+          }
+        });
+    return transform(transform(traces, MergeTraces.INSTANCE), rememberTimestamps);
+  }
+
+  /** Reads the spans of the traces, only searching the shards they are routed to if routed. */
+  ListenableFuture<LongHashMap<List<Span>>> readSpans(List<Long> traceIds, String[] indices,
+      boolean routed) {
     List<String> traceIdsStr = new ArrayList<>(traceIds.size());
     for (long traceId : traceIds) {
       traceIdsStr.add(Util.toLowerHex(traceId));
@@ -196,30 +308,65 @@ final class ElasticsearchSpanStore implements GuavaSpanStore {
     SearchRequestBuilder elasticRequest = client.prepareSearch(indices)
         .setIndicesOptions(IndicesOptions.lenientExpandOpen())
         .setTypes(ElasticsearchConstants.SPAN)
-        .setSize(MAX_RAW_SPANS)
         .setQuery(termsQuery("traceId", traceIdsStr));
-    return Futures.transform(ElasticFutures.toGuava(elasticRequest.execute()), ConvertTracesResponse.INSTANCE);
+    if (routed) elasticRequest.setRouting(traceIdsStr.toArray(new String[traceIdsStr.size()]));
+    return scrollSpans.read(elasticRequest);
   }
 
-  enum ConvertTracesResponse implements Function<SearchResponse, List<List<Span>>> {
-    INSTANCE;
+  /** Traces returned by queries are likely to be looked up next. */
+  final Function<List<List<Span>>, List<List<Span>>> rememberTimestamps =
+      new Function<List<List<Span>>, List<List<Span>>>() {
+        @Override public List<List<Span>> apply(List<List<Span>> input) {
+          for (List<Span> trace : input) {
+            Span first = trace.get(0);
+            if (first.timestamp != null) {
+              traceTimestamps.put(first.traceId, TimeUnit.MICROSECONDS.toMillis(first.timestamp));
+            }
+          }
+          return input;
+        }
+      };
 
-    @Override public List<List<Span>> apply(SearchResponse response) {
+  enum MergeTraces implements Function<LongHashMap<List<Span>>, List<List<Span>>> {
+    INSTANCE;
 
-      ArrayListMultimap<Long, Span> groupedSpans = ArrayListMultimap.create();
-      for (SearchHit hit : response.getHits()) {
-        Span span = Codec.JSON.readSpan(hit.getSourceRef().toBytes());
-        groupedSpans.put(span.traceId, span);
-      }
-      List<List<Span>> result = new ArrayList<>(groupedSpans.size());
-      for (Long traceId : groupedSpans.keySet()) {
-        result.add(CorrectForClockSkew.apply(MergeById.apply(groupedSpans.get(traceId))));
+    @Override public List<List<Span>> apply(LongHashMap<List<Span>> input) {
+      List<List<Span>> result = new ArrayList<>(input.size());
+      for (int i = 0, length = input.capacity(); i < length; i++) {
+        List<Span> trace = input.valueAt(i);
+        if (trace != null) result.add(CorrectForClockSkew.apply(MergeById.apply(trace)));
       }
       return TRACE_DESCENDING.immutableSortedCopy(result);
     }
   }
 
+  /**
+   * Reads the service names of span name documents, instead of aggregating over spans. If there are
+   * none, for example as all days were indexed before they were written, this aggregates over spans.
+   */
   @Override public ListenableFuture<List<String>> getServiceNames() {
+    SearchRequestBuilder elasticRequest =
+        client.prepareSearch(indexNameFormatter.catchAll())
+            .setTypes(ElasticsearchConstants.SERVICE_SPAN)
+            .setQuery(matchAllQuery())
+            .setSize(0)
+            .addAggregation(AggregationBuilders.terms("serviceName_agg")
+                .field("serviceName")
+                .order(Order.term(true))
+                .size(0));
+
+    ListenableFuture<List<String>> result = Futures.transform(
+        ElasticFutures.toGuava(elasticRequest.execute()),
+        new ConvertTermsResponse("serviceName_agg"));
+    return transform(result, new AsyncFunction<List<String>, List<String>>() {
+      @Override public ListenableFuture<List<String>> apply(List<String> input) {
+        if (!input.isEmpty()) return immediateFuture(input);
+        return getServiceNamesFromSpans();
+      }
+    });
+  }
+
+  ListenableFuture<List<String>> getServiceNamesFromSpans() {
     SearchRequestBuilder elasticRequest =
         client.prepareSearch(indexNameFormatter.catchAll())
             .setTypes(ElasticsearchConstants.SPAN)
@@ -234,7 +381,8 @@ final class ElasticsearchSpanStore implements GuavaSpanStore {
                     .field("binaryAnnotations.endpoint.serviceName")
                     .size(0)));
 
-    return Futures.transform(ElasticFutures.toGuava(elasticRequest.execute()), ConvertServiceNamesResponse.INSTANCE);
+    return Futures.transform(ElasticFutures.toGuava(elasticRequest.execute()),
+        ConvertServiceNamesResponse.INSTANCE);
   }
 
   enum ConvertServiceNamesResponse implements Function<SearchResponse, List<String>> {
@@ -269,14 +417,36 @@ final class ElasticsearchSpanStore implements GuavaSpanStore {
     }
   }
 
+  /** Like {@link #getServiceNames()}, this aggregates over spans if there are no name documents. */
   @Override public ListenableFuture<List<String>> getSpanNames(String serviceName) {
     if (Strings.isNullOrEmpty(serviceName)) {
       return EMPTY_LIST;
     }
-    serviceName = serviceName.toLowerCase();
+    final String lowercaseServiceName = serviceName.toLowerCase();
+    SearchRequestBuilder elasticRequest = client.prepareSearch(indexNameFormatter.catchAll())
+        .setTypes(ElasticsearchConstants.SERVICE_SPAN)
+        .setQuery(boolQuery().filter(termQuery("serviceName", lowercaseServiceName)))
+        .setSize(0)
+        .addAggregation(AggregationBuilders.terms("name_agg")
+            .order(Order.term(true))
+            .field("spanName")
+            .size(0));
+
+    ListenableFuture<List<String>> result = Futures.transform(
+        ElasticFutures.toGuava(elasticRequest.execute()), ConvertSpanNameResponse.INSTANCE);
+    return transform(result, new AsyncFunction<List<String>, List<String>>() {
+      @Override public ListenableFuture<List<String>> apply(List<String> input) {
+        if (!input.isEmpty()) return immediateFuture(input);
+        return getSpanNamesFromSpans(lowercaseServiceName);
+      }
+    });
+  }
+
+  ListenableFuture<List<String>> getSpanNamesFromSpans(String serviceName) {
     QueryBuilder filter = boolQuery()
         .should(termQuery("annotations.endpoint.serviceName", serviceName))
-        .should(termQuery("binaryAnnotations.endpoint.serviceName", serviceName));
+        .should(nestedQuery("binaryAnnotations",
+            termQuery("binaryAnnotations.endpoint.serviceName", serviceName)));
     SearchRequestBuilder elasticRequest = client.prepareSearch(indexNameFormatter.catchAll())
         .setTypes(ElasticsearchConstants.SPAN)
         .setQuery(boolQuery().must(matchAllQuery()).filter(filter))
@@ -286,7 +456,32 @@ final class ElasticsearchSpanStore implements GuavaSpanStore {
             .field("name")
             .size(0));
 
-    return Futures.transform(ElasticFutures.toGuava(elasticRequest.execute()), ConvertSpanNameResponse.INSTANCE);
+    return Futures.transform(ElasticFutures.toGuava(elasticRequest.execute()),
+        ConvertSpanNameResponse.INSTANCE);
+  }
+
+  /** Sorted keys of the terms aggregation, skipping empty ones. */
+  static final class ConvertTermsResponse implements Function<SearchResponse, List<String>> {
+    final String aggregation;
+
+    ConvertTermsResponse(String aggregation) {
+      this.aggregation = aggregation;
+    }
+
+    @Override public List<String> apply(SearchResponse response) {
+      if (response.getAggregations() == null) {
+        return Collections.emptyList();
+      }
+      Terms terms = response.getAggregations().get(aggregation);
+      if (terms == null) {
+        return Collections.emptyList();
+      }
+      ImmutableList.Builder<String> result = ImmutableList.builder();
+      for (Terms.Bucket bucket : terms.getBuckets()) {
+        if (!bucket.getKeyAsString().isEmpty()) result.add(bucket.getKeyAsString());
+      }
+      return result.build();
+    }
   }
 
   enum ConvertSpanNameResponse implements Function<SearchResponse, List<String>> {
@@ -308,36 +503,57 @@ final class ElasticsearchSpanStore implements GuavaSpanStore {
     }
   }
 
+  /**
+   * Sums the call counts of {@link DependencyRollups rollup} buckets overlapping the interval, in
+   * the cluster. Links written without a bucket, for example by a batch job, cover their whole day.
+   */
   @Override public ListenableFuture<List<DependencyLink>> getDependencies(long endMillis,
       @Nullable Long lookback) {
     long beginMillis = lookback != null ? endMillis - lookback : 0;
-    // We just return all dependencies in the days that fall within endTs and lookback as
-    // dependency links themselves don't have timestamps.
     List<String> strings = computeIndices(beginMillis, endMillis);
     SearchRequestBuilder elasticRequest = client.prepareSearch(
         strings.toArray(new String[strings.size()]))
         .setIndicesOptions(IndicesOptions.lenientExpandOpen())
         .setTypes(ElasticsearchConstants.DEPENDENCY_LINK)
-        .setQuery(matchAllQuery());
-
-    return Futures.transform(ElasticFutures.toGuava(elasticRequest.execute()), ConvertDependenciesResponse.INSTANCE);
+        .setQuery(boolQuery().filter(boolQuery()
+            .should(boolQuery()
+                .must(rangeQuery("startTs").lte(endMillis))
+                .must(rangeQuery("endTs").gt(beginMillis)))
+            .should(boolQuery().mustNot(existsQuery("startTs")))))
+        .setSize(0)
+        .addAggregation(AggregationBuilders.terms("parent_agg")
+            .field("parent")
+            .size(0)
+            .subAggregation(AggregationBuilders.terms("child_agg")
+                .field("child")
+                .size(0)
+                .subAggregation(AggregationBuilders.sum("callCount_agg").field("callCount"))));
+
+    return Futures.transform(ElasticFutures.toGuava(elasticRequest.execute()),
+        ConvertDependenciesResponse.INSTANCE);
   }
 
   enum ConvertDependenciesResponse implements Function<SearchResponse, List<DependencyLink>> {
     INSTANCE;
 
     @Override public List<DependencyLink> apply(SearchResponse response) {
-      if (response.getHits() == null) {
+      if (response.getAggregations() == null) {
         return Collections.emptyList();
       }
-
-      ImmutableList.Builder<DependencyLink> unmerged = ImmutableList.builder();
-      for (SearchHit hit : response.getHits()) {
-        DependencyLink link = Codec.JSON.readDependencyLink(hit.getSourceRef().toBytes());
-        unmerged.add(link);
+      Terms parents = response.getAggregations().get("parent_agg");
+      if (parents == null) {
+        return Collections.emptyList();
       }
-
-      return DependencyLinker.merge(unmerged.build());
+      ImmutableList.Builder<DependencyLink> result = ImmutableList.builder();
+      for (Terms.Bucket parent : parents.getBuckets()) {
+        Terms children = parent.getAggregations().get("child_agg");
+        for (Terms.Bucket child : children.getBuckets()) {
+          Sum callCount = child.getAggregations().get("callCount_agg");
+          result.add(DependencyLink.create(parent.getKeyAsString(), child.getKeyAsString(),
+              (long) callCount.getValue()));
+        }
+      }
+      return result.build();
     }
   }
 
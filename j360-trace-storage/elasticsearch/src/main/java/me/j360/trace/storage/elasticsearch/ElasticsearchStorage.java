@@ -15,6 +15,7 @@ package me.j360.trace.storage.elasticsearch;
 
 import com.google.common.annotations.VisibleForTesting;
 import me.j360.trace.core.DependencyLink;
+import me.j360.trace.core.internal.LazyCloseable;
 import me.j360.trace.core.internal.Util;
 import me.j360.trace.storage.core.guava.LazyGuavaStorageComponent;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
@@ -26,9 +27,11 @@ import org.elasticsearch.cluster.health.ClusterHealthStatus;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.util.concurrent.Futures.getUnchecked;
+import static me.j360.trace.core.internal.Util.checkArgument;
 import static me.j360.trace.core.internal.Util.checkNotNull;
 
 public final class ElasticsearchStorage
@@ -51,6 +54,13 @@ public final class ElasticsearchStorage
     String index = "zipkin";
     int indexShards = 5;
     int indexReplicas = 1;
+    int bulkActions = 1000;
+    long bulkSize = 5 * 1024 * 1024;
+    long flushIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+    int concurrentRequests = 2;
+    boolean dependencyRollups = true;
+    long dependencyBucketMillis = TimeUnit.HOURS.toMillis(1);
+    long dependencyQuietPeriodNanos = TimeUnit.SECONDS.toNanos(10);
 
     /**
      * The elasticsearch cluster to connect to, defaults to "elasticsearch".
@@ -104,6 +114,79 @@ public final class ElasticsearchStorage
       return this;
     }
 
+    /**
+     * Spans are sent in a bulk request once this many are pending, across calls to the span
+     * consumer. Defaults to 1000.
+     */
+    public Builder bulkActions(int bulkActions) {
+      checkArgument(bulkActions > 0, "bulkActions should be positive: was %s", bulkActions);
+      this.bulkActions = bulkActions;
+      return this;
+    }
+
+    /** Spans are sent in a bulk request once their json is this many bytes. Defaults to 5MiB. */
+    public Builder bulkSize(long bulkSize) {
+      checkArgument(bulkSize > 0, "bulkSize should be positive: was %s", bulkSize);
+      this.bulkSize = bulkSize;
+      return this;
+    }
+
+    /**
+     * The longest a span waits for others to share its bulk request. Defaults to 1 second, which is
+     * also how often Elasticsearch refreshes indexes by default.
+     */
+    public Builder flushInterval(long flushInterval, TimeUnit unit) {
+      checkArgument(flushInterval > 0, "flushInterval should be positive: was %s", flushInterval);
+      this.flushIntervalNanos = unit.toNanos(flushInterval);
+      return this;
+    }
+
+    /**
+     * Maximum count of bulk requests in flight. When reached, the span consumer blocks until one
+     * completes. Defaults to 2.
+     */
+    public Builder concurrentRequests(int concurrentRequests) {
+      checkArgument(concurrentRequests > 0, "concurrentRequests should be positive: was %s",
+          concurrentRequests);
+      this.concurrentRequests = concurrentRequests;
+      return this;
+    }
+
+    /**
+     * When true, dependency links are derived from spans as they are stored, and written as counts
+     * per {@link #dependencyBucket bucket}. Set to false when links are written by a separate job.
+     * Defaults to true.
+     */
+    public Builder dependencyRollups(boolean dependencyRollups) {
+      this.dependencyRollups = dependencyRollups;
+      return this;
+    }
+
+    /**
+     * The time range dependency links are counted over. Queries sum the buckets overlapping their
+     * interval, so smaller buckets answer short lookbacks more precisely, at the cost of more
+     * documents. Must evenly divide a day. Defaults to 1 hour.
+     */
+    public Builder dependencyBucket(long dependencyBucket, TimeUnit unit) {
+      long millis = unit.toMillis(dependencyBucket);
+      checkArgument(millis > 0 && TimeUnit.DAYS.toMillis(1) % millis == 0,
+          "dependencyBucket should evenly divide a day: was %s %s", dependencyBucket, unit);
+      this.dependencyBucketMillis = millis;
+      return this;
+    }
+
+    /**
+     * How long to wait after the last span of a trace before linking it. Spans of the trace
+     * arriving later are linked on their own, so this should be longer than instrumentation holds
+     * spans before reporting them. Defaults to 10 seconds.
+     */
+    public Builder dependencyQuietPeriod(long dependencyQuietPeriod, TimeUnit unit) {
+      checkArgument(dependencyQuietPeriod > 0, "dependencyQuietPeriod should be positive: was %s",
+          dependencyQuietPeriod);
+      this.dependencyQuietPeriodNanos = unit.toNanos(dependencyQuietPeriod);
+      return this;
+    }
+
     public ElasticsearchStorage build() {
       return new ElasticsearchStorage(this);
     }
@@ -112,13 +195,63 @@ public final class ElasticsearchStorage
     }
   }
 
+  /** Bounds memory of when recent traces started. */
+  static final int MAX_TRACE_TIMESTAMPS = 10000;
+
   private final LazyClient lazyClient;
+  private final LazyIndexer lazyIndexer;
+  private final LazyRollups lazyRollups;
   @VisibleForTesting
   final IndexNameFormatter indexNameFormatter;
+  final TraceTimestamps traceTimestamps = new TraceTimestamps(MAX_TRACE_TIMESTAMPS);
 
   ElasticsearchStorage(Builder builder) {
     lazyClient = new LazyClient(builder);
+    lazyIndexer = new LazyIndexer(lazyClient, builder);
     indexNameFormatter = new IndexNameFormatter(builder.index);
+    lazyRollups = builder.dependencyRollups
+        ? new LazyRollups(lazyIndexer, indexNameFormatter, builder)
+        : null;
+  }
+
+  static final class LazyIndexer extends LazyCloseable<BulkSpanIndexer> {
+    final LazyClient lazyClient;
+    final Builder builder;
+
+    LazyIndexer(LazyClient lazyClient, Builder builder) {
+      this.lazyClient = lazyClient;
+      this.builder = builder;
+    }
+
+    @Override protected BulkSpanIndexer compute() {
+      return new BulkSpanIndexer(lazyClient.get(), builder);
+    }
+
+    @Override public void close() {
+      BulkSpanIndexer maybeNull = maybeNull();
+      if (maybeNull != null) maybeNull.close();
+    }
+  }
+
+  static final class LazyRollups extends LazyCloseable<DependencyRollups> {
+    final LazyIndexer lazyIndexer;
+    final IndexNameFormatter indexNameFormatter;
+    final Builder builder;
+
+    LazyRollups(LazyIndexer lazyIndexer, IndexNameFormatter indexNameFormatter, Builder builder) {
+      this.lazyIndexer = lazyIndexer;
+      this.indexNameFormatter = indexNameFormatter;
+      this.builder = builder;
+    }
+
+    @Override protected DependencyRollups compute() {
+      return new DependencyRollups(lazyIndexer.get(), indexNameFormatter, builder);
+    }
+
+    @Override public void close() {
+      DependencyRollups maybeNull = maybeNull();
+      if (maybeNull != null) maybeNull.close();
+    }
   }
 
   /** Lazy initializes or returns the client in use by this storage component. */
@@ -127,11 +260,12 @@ public final class ElasticsearchStorage
   }
 
   @Override protected ElasticsearchSpanStore computeGuavaSpanStore() {
-    return new ElasticsearchSpanStore(lazyClient.get(), indexNameFormatter);
+    return new ElasticsearchSpanStore(lazyClient.get(), indexNameFormatter, traceTimestamps);
   }
 
   @Override protected ElasticsearchSpanConsumer computeGuavaSpanConsumer() {
-    return new ElasticsearchSpanConsumer(lazyClient.get(), indexNameFormatter);
+    return new ElasticsearchSpanConsumer(lazyClient.get(), lazyIndexer.get(), indexNameFormatter,
+        traceTimestamps, lazyRollups != null ? lazyRollups.get() : null);
   }
 
   @VisibleForTesting void writeDependencyLinks(List<DependencyLink> links, long timestampMillis) {
@@ -155,6 +289,8 @@ public final class ElasticsearchStorage
     lazyClient.get().admin().indices().delete(new DeleteIndexRequest(indexNameFormatter.catchAll()))
             .actionGet();
     lazyClient.get().admin().indices().flush(new FlushRequest()).actionGet();
+    guavaSpanConsumer().clear();
+    traceTimestamps.clear();
   }
 
   @Override public CheckResult check() {
@@ -168,7 +304,10 @@ public final class ElasticsearchStorage
     return CheckResult.OK;
   }
 
+  /** Sends pending spans and dependency links before closing the client. */
   @Override public void close() {
+    if (lazyRollups != null) lazyRollups.close();
+    lazyIndexer.close();
     lazyClient.close();
   }
 
@@ -13,34 +13,91 @@
  */
 package me.j360.trace.storage.elasticsearch;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Formats daily index names, like "zipkin-2016-10-01", from epoch milliseconds in UTC.
+ *
+ * <p>Spans are written in timestamp order, so consecutive calls are usually for the same day. The
+ * name of the last day formatted is remembered, and returned without allocation. Other days are
+ * derived with calendar arithmetic, instead of a {@code SimpleDateFormat} and {@code Date} per call.
+ */
 final class IndexNameFormatter {
+  static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
 
-  private static final String DAILY_INDEX_FORMAT = "yyyy-MM-dd";
+  static final class DayName {
+    final long day;
+    final String name;
+
+    DayName(long day, String name) {
+      this.day = day;
+      this.name = name;
+    }
+  }
 
   private final String index;
-  // SimpleDateFormat isn't thread-safe
-  private final ThreadLocal<SimpleDateFormat> dateFormat;
+  private volatile DayName last = new DayName(Long.MIN_VALUE, null);
 
   IndexNameFormatter(String index) {
     this.index = index;
-    this.dateFormat = new ThreadLocal<SimpleDateFormat>() {
-      @Override protected SimpleDateFormat initialValue() {
-        SimpleDateFormat result = new SimpleDateFormat(DAILY_INDEX_FORMAT);
-        result.setTimeZone(TimeZone.getTimeZone("UTC"));
-        return result;
-      }
-    };
   }
 
   String indexNameForTimestamp(long timestampMillis) {
-    return index + "-" + dateFormat.get().format(new Date(timestampMillis));
+    long day = epochDay(timestampMillis);
+    DayName last = this.last;
+    if (last.day == day) return last.name;
+    String name = format(day);
+    this.last = new DayName(day, name);
+    return name;
   }
 
   String catchAll() {
     return index + "-*";
   }
+
+  /** Days since 1970-01-01, rounding down for timestamps before it. */
+  static long epochDay(long timestampMillis) {
+    long day = timestampMillis / DAY_MILLIS;
+    return timestampMillis % DAY_MILLIS < 0 ? day - 1 : day;
+  }
+
+  /**
+   * Converts days since epoch to a proleptic Gregorian date, using Howard Hinnant's
+   * civil_from_days: <a href="http://howardhinnant.github.io/date_algorithms.html">date
+   * algorithms</a>
+   */
+  String format(long epochDay) {
+    long z = epochDay + 719468; // shifts the epoch to 0000-03-01
+    long era = (z >= 0 ? z : z - 146096) / 146097;
+    long dayOfEra = z - era * 146097;
+    long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    long shiftedMonth = (5 * dayOfYear + 2) / 153; // March is 0
+    int dayOfMonth = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+    int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+    if (year < 0 || year > 9999) {
+      return index + "-" + year + "-" + twoDigits(month) + "-" + twoDigits(dayOfMonth);
+    }
+
+    int length = index.length();
+    char[] result = new char[length + 11];
+    index.getChars(0, length, result, 0);
+    result[length] = '-';
+    result[length + 1] = (char) ('0' + year / 1000);
+    result[length + 2] = (char) ('0' + year / 100 % 10);
+    result[length + 3] = (char) ('0' + year / 10 % 10);
+    result[length + 4] = (char) ('0' + year % 10);
+    result[length + 5] = '-';
+    result[length + 6] = (char) ('0' + month / 10);
+    result[length + 7] = (char) ('0' + month % 10);
+    result[length + 8] = '-';
+    result[length + 9] = (char) ('0' + dayOfMonth / 10);
+    result[length + 10] = (char) ('0' + dayOfMonth % 10);
+    return new String(result);
+  }
+
+  static String twoDigits(int value) {
+    return value < 10 ? "0" + value : String.valueOf(value);
+  }
 }
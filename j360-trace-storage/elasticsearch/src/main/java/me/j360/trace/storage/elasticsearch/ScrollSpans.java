@@ -0,0 +1,104 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.elasticsearch;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.ListenableFuture;
+import me.j360.trace.core.Codec;
+import me.j360.trace.core.Span;
+import me.j360.trace.core.internal.LongHashMap;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.google.common.util.concurrent.Futures.transform;
+
+/**
+ * Reads all spans matching a search, a page at a time, so that traces aren't truncated at the
+ * search window (index.max_result_window). Each page is decoded as it arrives, straight from the
+ * hits' source, and its spans are grouped by trace id, so pages needn't be held until the end.
+ *
+ * <p>Elasticsearch 2.x has no search_after, so this pages with a scroll, in {@code _doc} order,
+ * which is the cheapest to page through. The scroll is cleared once read.
+ */
+class ScrollSpans {
+  static final int PAGE_SIZE = 1000;
+  static final TimeValue KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
+  final Client client;
+
+  ScrollSpans(Client client) {
+    this.client = client;
+  }
+
+  /** Returns the spans matching the search, grouped by trace id. */
+  ListenableFuture<LongHashMap<List<Span>>> read(SearchRequestBuilder request) {
+    request.setScroll(KEEP_ALIVE).addSort("_doc", SortOrder.ASC).setSize(PAGE_SIZE);
+    return transform(search(request), new Pages());
+  }
+
+  /** Overridden in tests. */
+  ListenableFuture<SearchResponse> search(SearchRequestBuilder request) {
+    return ElasticFutures.toGuava(request.execute());
+  }
+
+  /** Overridden in tests. */
+  ListenableFuture<SearchResponse> scroll(String scrollId) {
+    return ElasticFutures.toGuava(
+        client.prepareSearchScroll(scrollId).setScroll(KEEP_ALIVE).execute());
+  }
+
+  /** Overridden in tests. Not waited on, as the scroll would expire anyway. */
+  void clear(String scrollId) {
+    client.prepareClearScroll().addScrollId(scrollId).execute();
+  }
+
+  /** Accumulates one read. Pages are applied in sequence, as each requests the next. */
+  final class Pages implements AsyncFunction<SearchResponse, LongHashMap<List<Span>>> {
+    final LongHashMap<List<Span>> traces = new LongHashMap<>();
+    long spanCount;
+
+    @Override public ListenableFuture<LongHashMap<List<Span>>> apply(SearchResponse page) {
+      SearchHit[] hits = page.getHits().getHits();
+      for (SearchHit hit : hits) {
+        Span span = readSpan(hit.getSourceRef());
+        List<Span> trace = traces.get(span.traceId);
+        if (trace == null) traces.put(span.traceId, trace = new ArrayList<>());
+        trace.add(span);
+      }
+      spanCount += hits.length;
+      if (hits.length == 0 || spanCount >= page.getHits().getTotalHits()) {
+        if (page.getScrollId() != null) clear(page.getScrollId());
+        return immediateFuture(traces);
+      }
+      return transform(scroll(page.getScrollId()), this);
+    }
+  }
+
+  /** Decodes the source in place when it is backed by an array, which is the usual case. */
+  static Span readSpan(BytesReference source) {
+    if (source.hasArray()) {
+      return Codec.JSON.readSpan(source.array(), source.arrayOffset(), source.length());
+    }
+    return Codec.JSON.readSpan(source.toBytes());
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.elasticsearch;
+
+import me.j360.trace.core.Span;
+import me.j360.trace.core.internal.Util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulates what this process has seen of recent traces, so that each write of a span can
+ * rewrite its trace's summary document with the root timestamp, total duration and services seen so
+ * far. Traces which weren't updated recently are forgotten first.
+ */
+final class TraceSummaries {
+
+  /** Immutable view of a trace's summary. */
+  static final class Summary {
+    final long traceId;
+    /** Epoch microseconds of the earliest span. */
+    final long timestamp;
+    /** Microseconds from the earliest span's start to the latest span's end. */
+    final long duration;
+    final List<String> serviceNames;
+    /**
+     * Epoch milliseconds of the UTC midnight of each timestamp this trace's summary had, including
+     * the current one. An earlier span can move a trace's start to the previous day, and summaries
+     * written to that day's index would otherwise be left stale.
+     */
+    final List<Long> days;
+
+    Summary(long traceId, long timestamp, long duration, List<String> serviceNames,
+        List<Long> days) {
+      this.traceId = traceId;
+      this.timestamp = timestamp;
+      this.duration = duration;
+      this.serviceNames = serviceNames;
+      this.days = days;
+    }
+  }
+
+  static final class Accumulator {
+    long timestamp = Long.MAX_VALUE;
+    long end = Long.MIN_VALUE;
+    final SortedSet<String> serviceNames = new TreeSet<String>();
+    final SortedSet<Long> days = new TreeSet<Long>();
+  }
+
+  /** Guarded by this. */
+  final LinkedHashMap<Long, Accumulator> traces;
+
+  TraceSummaries(final int maxTraces) {
+    traces = new LinkedHashMap<Long, Accumulator>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<Long, Accumulator> eldest) {
+        return size() > maxTraces;
+      }
+    };
+  }
+
+  /**
+   * Adds the spans, which should have timestamps applied, and returns the summaries of traces they
+   * changed. Spans without a timestamp, or without a service, don't change their trace's summary.
+   */
+  synchronized List<Summary> update(List<Span> spans) {
+    Map<Long, Accumulator> changed = new LinkedHashMap<Long, Accumulator>();
+    for (Span span : spans) {
+      if (span.timestamp == null) continue;
+      List<String> serviceNames = new ArrayList<String>(span.serviceNames());
+      if (serviceNames.isEmpty()) continue;
+      Accumulator trace = traces.get(span.traceId);
+      if (trace == null) traces.put(span.traceId, trace = new Accumulator());
+      long end = span.timestamp + (span.duration != null ? span.duration : 0L);
+      boolean updated = false;
+      if (span.timestamp < trace.timestamp) {
+        trace.timestamp = span.timestamp;
+        updated = true;
+      }
+      if (end > trace.end) {
+        trace.end = end;
+        updated = true;
+      }
+      if (trace.serviceNames.addAll(serviceNames)) updated = true;
+      if (updated) changed.put(span.traceId, trace);
+    }
+    List<Summary> result = new ArrayList<Summary>(changed.size());
+    for (Map.Entry<Long, Accumulator> entry : changed.entrySet()) {
+      Accumulator trace = entry.getValue();
+      trace.days.add(Util.midnightUTC(TimeUnit.MICROSECONDS.toMillis(trace.timestamp)));
+      result.add(new Summary(entry.getKey(), trace.timestamp, trace.end - trace.timestamp,
+          new ArrayList<String>(trace.serviceNames), new ArrayList<Long>(trace.days)));
+    }
+    return result;
+  }
+
+  synchronized void clear() {
+    traces.clear();
+  }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.elasticsearch;
+
+import me.j360.trace.core.internal.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers when recent traces started, so that looking up a trace only searches the daily indexes
+ * which hold its spans, instead of all of them. Entries come from traces written by this process,
+ * and from traces returned by queries, which is usually how a trace id is learned before it is
+ * looked up.
+ */
+final class TraceTimestamps {
+  /** Guarded by this. */
+  final LinkedHashMap<Long, Long> timestamps;
+
+  TraceTimestamps(final int maxTraces) {
+    timestamps = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+        return size() > maxTraces;
+      }
+    };
+  }
+
+  /** Keeps the earliest timestamp seen for the trace. */
+  synchronized void put(long traceId, long timestampMillis) {
+    Long previous = timestamps.get(traceId);
+    if (previous == null || timestampMillis < previous) timestamps.put(traceId, timestampMillis);
+  }
+
+  /** Returns the epoch milliseconds the trace started, or null if unknown. */
+  @Nullable synchronized Long get(long traceId) {
+    return timestamps.get(traceId);
+  }
+
+  synchronized void clear() {
+    timestamps.clear();
+  }
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.elasticsearch;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+public class BulkSpanIndexerTest {
+
+  static final class Sent {
+    final BulkRequest request;
+    final ActionListener<BulkResponse> listener;
+
+    Sent(BulkRequest request, ActionListener<BulkResponse> listener) {
+      this.request = request;
+      this.listener = listener;
+    }
+  }
+
+  final LinkedBlockingQueue<Sent> sent = new LinkedBlockingQueue<>();
+  BulkSpanIndexer indexer;
+
+  void indexer(ElasticsearchStorage.Builder builder) {
+    indexer = new BulkSpanIndexer(null, builder) {
+      @Override void execute(BulkRequest request, ActionListener<BulkResponse> listener) {
+        sent.add(new Sent(request, listener));
+      }
+    };
+  }
+
+  @After
+  public void close() {
+    if (indexer != null) indexer.scheduler.shutdownNow();
+  }
+
+  @Test
+  public void coalescesAcrossCalls() throws Exception {
+    indexer(ElasticsearchStorage.builder().bulkActions(3).flushInterval(1, TimeUnit.HOURS));
+
+    ListenableFuture<Void> first = indexer.add(asList(request("a"), request("b")));
+    assertThat(sent).isEmpty();
+    ListenableFuture<Void> second = indexer.add(singletonList(request("c")));
+
+    Sent bulk = sent.poll();
+    assertThat(bulk.request.numberOfActions()).isEqualTo(3);
+    assertThat(first.isDone()).isFalse();
+
+    bulk.listener.onResponse(response(null, null, null));
+    assertThat(first.get()).isNull();
+    assertThat(second.get()).isNull();
+  }
+
+  @Test
+  public void sendsWhenBulkSizeReached() {
+    indexer(ElasticsearchStorage.builder().bulkSize(10).flushInterval(1, TimeUnit.HOURS));
+
+    indexer.add(singletonList(request("a")));
+    assertThat(sent).isEmpty();
+    indexer.add(singletonList(request("0123456789")));
+
+    assertThat(sent.poll().request.numberOfActions()).isEqualTo(2);
+  }
+
+  @Test
+  public void sendsPartialBulkAfterFlushInterval() throws Exception {
+    indexer(ElasticsearchStorage.builder().flushInterval(10, TimeUnit.MILLISECONDS));
+
+    indexer.add(singletonList(request("a")));
+
+    assertThat(sent.poll(1, TimeUnit.SECONDS).request.numberOfActions()).isEqualTo(1);
+  }
+
+  @Test
+  public void retriesRejectedItems() throws Exception {
+    indexer(ElasticsearchStorage.builder().flushInterval(1, TimeUnit.HOURS));
+    ListenableFuture<Void> future = indexer.add(asList(request("a"), request("b")));
+    indexer.flush();
+
+    sent.poll().listener.onResponse(response(null, new EsRejectedExecutionException("full")));
+
+    Sent retry = sent.poll(1, TimeUnit.SECONDS);
+    assertThat(retry.request.requests())
+        .extracting(r -> ((IndexRequest) r).source().toUtf8())
+        .containsExactly("{\"b\":1}");
+    assertThat(future.isDone()).isFalse();
+
+    retry.listener.onResponse(response((Throwable) null));
+    assertThat(future.get()).isNull();
+  }
+
+  @Test
+  public void retriesRejectedBulk() throws Exception {
+    indexer(ElasticsearchStorage.builder().flushInterval(1, TimeUnit.HOURS));
+    ListenableFuture<Void> future = indexer.add(singletonList(request("a")));
+    indexer.flush();
+
+    sent.poll().listener.onFailure(new EsRejectedExecutionException("full"));
+    sent.poll(1, TimeUnit.SECONDS).listener.onResponse(response((Throwable) null));
+
+    assertThat(future.get()).isNull();
+  }
+
+  @Test
+  public void reportsItemFailures() throws Exception {
+    indexer(ElasticsearchStorage.builder().flushInterval(1, TimeUnit.HOURS));
+    ListenableFuture<Void> ok = indexer.add(singletonList(request("a")));
+    ListenableFuture<Void> failed = indexer.add(singletonList(request("b")));
+    indexer.flush();
+
+    IllegalArgumentException mappingFailure = new IllegalArgumentException("mapping");
+    sent.poll().listener.onResponse(response(null, mappingFailure));
+
+    assertThat(ok.get()).isNull();
+    try {
+      failed.get();
+      failBecauseExceptionWasNotThrown(ExecutionException.class);
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isSameAs(mappingFailure);
+    }
+    assertThat(sent).isEmpty(); // only rejections are retried
+  }
+
+  @Test
+  public void givesUpAfterMaxRetries() throws Exception {
+    indexer(ElasticsearchStorage.builder().flushInterval(1, TimeUnit.HOURS));
+    ListenableFuture<Void> future = indexer.add(singletonList(request("a")));
+    indexer.flush();
+
+    for (int i = 0; i <= BulkSpanIndexer.MAX_RETRIES; i++) {
+      sent.poll(1, TimeUnit.SECONDS).listener.onFailure(new EsRejectedExecutionException("full"));
+    }
+
+    try {
+      future.get(1, TimeUnit.SECONDS);
+      failBecauseExceptionWasNotThrown(ExecutionException.class);
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(EsRejectedExecutionException.class);
+    }
+  }
+
+  @Test
+  public void blocksBeyondConcurrentRequests() throws Exception {
+    indexer(ElasticsearchStorage.builder().bulkActions(1).concurrentRequests(1));
+    indexer.add(singletonList(request("a")));
+
+    Thread blocked = new Thread(() -> indexer.add(singletonList(request("b"))));
+    blocked.start();
+    blocked.join(100);
+    assertThat(blocked.isAlive()).isTrue();
+    assertThat(sent).hasSize(1);
+
+    sent.poll().listener.onResponse(response((Throwable) null));
+    blocked.join(1000);
+    assertThat(blocked.isAlive()).isFalse();
+    assertThat(sent).hasSize(1);
+  }
+
+  @Test
+  public void closeWaitsForRetries() throws Exception {
+    indexer(ElasticsearchStorage.builder().flushInterval(1, TimeUnit.HOURS));
+    ListenableFuture<Void> future = indexer.add(singletonList(request("a")));
+
+    Thread closing = new Thread(() -> indexer.close());
+    closing.start();
+    sent.poll(1, TimeUnit.SECONDS).listener.onFailure(new EsRejectedExecutionException("full"));
+
+    Sent retry = sent.poll(1, TimeUnit.SECONDS);
+    assertThat(closing.isAlive()).isTrue();
+    retry.listener.onResponse(response((Throwable) null));
+
+    closing.join(1000);
+    assertThat(closing.isAlive()).isFalse();
+    assertThat(future.get()).isNull();
+  }
+
+  @Test
+  public void retriesInlineWhenSchedulerIsShutdown() throws Exception {
+    indexer(ElasticsearchStorage.builder().flushInterval(1, TimeUnit.HOURS));
+    ListenableFuture<Void> future = indexer.add(singletonList(request("a")));
+    indexer.flush();
+    indexer.scheduler.shutdown();
+
+    sent.poll().listener.onFailure(new EsRejectedExecutionException("full"));
+    sent.poll().listener.onResponse(response((Throwable) null));
+
+    assertThat(future.get()).isNull();
+  }
+
+  @Test
+  public void addAfterClose_failsWithoutQueueing() throws Exception {
+    indexer(ElasticsearchStorage.builder().flushInterval(1, TimeUnit.HOURS));
+    indexer.close();
+
+    ListenableFuture<Void> future = indexer.add(singletonList(request("a")));
+
+    try {
+      future.get();
+      failBecauseExceptionWasNotThrown(ExecutionException.class);
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(IllegalStateException.class);
+    }
+    assertThat(indexer.pending).isEmpty();
+    indexer.flush();
+    assertThat(sent).isEmpty();
+  }
+
+  static IndexRequest request(String field) {
+    return new IndexRequest("zipkin-2016-01-01", ElasticsearchConstants.SPAN)
+        .source("{\"" + field + "\":1}");
+  }
+
+  /** Null failures are successful items. */
+  static BulkResponse response(Throwable... failures) {
+    List<Throwable> list = Arrays.asList(failures);
+    BulkItemResponse[] items = new BulkItemResponse[list.size()];
+    for (int i = 0; i < items.length; i++) {
+      items[i] = list.get(i) == null
+          ? new BulkItemResponse(i, "index",
+          new IndexResponse("zipkin-2016-01-01", ElasticsearchConstants.SPAN, "id", 1L, true))
+          : new BulkItemResponse(i, "index", new BulkItemResponse.Failure("zipkin-2016-01-01",
+              ElasticsearchConstants.SPAN, "id", list.get(i)));
+    }
+    return new BulkResponse(items, 1L);
+  }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.elasticsearch;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import me.j360.trace.core.Span;
+import org.elasticsearch.action.index.IndexRequest;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+import static me.j360.trace.core.TestObjects.TODAY;
+import static me.j360.trace.core.TestObjects.TRACE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DependencyRollupsTest {
+  static final long QUIET = SECONDS.toNanos(10);
+
+  final List<IndexRequest> written = new ArrayList<>();
+  final IndexNameFormatter indexNameFormatter = new IndexNameFormatter("zipkin");
+  final DependencyRollups rollups = new DependencyRollups(null, indexNameFormatter,
+      ElasticsearchStorage.builder().dependencyBucket(1, HOURS)) {
+    @Override ListenableFuture<Void> write(List<IndexRequest> requests) {
+      written.addAll(requests);
+      return Futures.immediateFuture(null);
+    }
+  };
+  long now = System.nanoTime();
+
+  @After
+  public void close() {
+    rollups.scheduler.shutdownNow();
+  }
+
+  @Test
+  public void linksTracesOnceQuiet() {
+    rollups.accept(TRACE.subList(0, 2), now);
+    now += QUIET - 1;
+    rollups.accept(TRACE.subList(2, 3), now); // extends the quiet period
+    now += QUIET - 1;
+    rollups.flush(now);
+    assertThat(written).isEmpty();
+
+    now += 1;
+    rollups.flush(now);
+    assertThat(links()).containsOnly("web|app|1", "app|db|1");
+  }
+
+  @Test
+  public void writesCountsSoFar_onlyOfChangedBuckets() {
+    rollups.accept(TRACE, now);
+    rollups.flush(now + QUIET);
+    List<String> ids = written.stream().map(IndexRequest::id).collect(toList());
+    written.clear();
+
+    rollups.flush(now + QUIET); // nothing changed
+    assertThat(written).isEmpty();
+
+    rollups.accept(withTraceId(TRACE, 2L), now);
+    rollups.flush(now + QUIET);
+    assertThat(links()).containsOnly("web|app|2", "app|db|2");
+    assertThat(written).extracting(IndexRequest::id) // overwrites the same documents
+        .containsOnlyElementsOf(ids);
+  }
+
+  @Test
+  public void bucketsByTraceStart() {
+    long lastHour = (TODAY - HOURS.toMillis(1)) * 1000;
+    rollups.accept(TRACE, now);
+    rollups.accept(withTraceId(TRACE, 2L).stream()
+        .map(s -> s.toBuilder().timestamp(s.timestamp - (TODAY * 1000 - lastHour)).build())
+        .collect(toList()), now);
+    rollups.close();
+
+    assertThat(written).extracting(r -> r.sourceAsMap().get("startTs"))
+        .containsOnly(TODAY, TODAY - HOURS.toMillis(1));
+    Map<String, Object> source = written.get(0).sourceAsMap();
+    assertThat((Long) source.get("endTs") - (Long) source.get("startTs"))
+        .isEqualTo(HOURS.toMillis(1));
+    // the bucket before midnight is written to yesterday's index
+    assertThat(written).extracting(IndexRequest::index).containsOnly(
+        indexNameFormatter.indexNameForTimestamp(TODAY),
+        indexNameFormatter.indexNameForTimestamp(TODAY - 1));
+  }
+
+  /** A bucket forgotten and counted again mustn't overwrite the count written before. */
+  @Test
+  public void forgottenBucketsAreWrittenUnderNewIds() {
+    rollups.accept(TRACE, now);
+    rollups.flush(now + QUIET);
+    String firstId = written.get(0).id();
+    rollups.buckets.clear();
+    written.clear();
+
+    rollups.accept(withTraceId(TRACE, 2L), now);
+    rollups.flush(now + QUIET);
+    assertThat(links()).containsOnly("web|app|1", "app|db|1");
+    assertThat(written).extracting(IndexRequest::id).doesNotContain(firstId);
+  }
+
+  @Test
+  public void closeLinksBufferedTraces() {
+    rollups.accept(TRACE, now);
+
+    rollups.close();
+
+    assertThat(links()).containsOnly("web|app|1", "app|db|1");
+  }
+
+  @Test
+  public void bucketStart_beforeEpoch() {
+    assertThat(rollups.bucketStart(-1L)).isEqualTo(-HOURS.toMillis(1));
+    assertThat(rollups.bucketStart(HOURS.toMillis(1) + 1)).isEqualTo(HOURS.toMillis(1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void bucketMustDivideADay() {
+    ElasticsearchStorage.builder().dependencyBucket(7, HOURS);
+  }
+
+  List<String> links() {
+    return written.stream().map(r -> {
+      Map<String, Object> source = r.sourceAsMap();
+      return source.get("parent") + "|" + source.get("child") + "|" + source.get("callCount");
+    }).collect(toList());
+  }
+
+  static List<Span> withTraceId(List<Span> trace, long traceId) {
+    return trace.stream().map(s -> s.toBuilder().traceId(traceId).build()).collect(toList());
+  }
+}
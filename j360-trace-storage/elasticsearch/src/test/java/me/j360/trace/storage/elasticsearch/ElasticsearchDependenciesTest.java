@@ -44,8 +44,8 @@ public class ElasticsearchDependenciesTest extends DependenciesTest {
   }
 
   /**
-   * The current implementation does not include dependency aggregation. It includes retrieval of
-   * pre-aggregated links.
+   * Links derived at ingest are covered by {@link DependencyRollupsTest}. This checks retrieval of
+   * links written per day by a batch job, which must keep working alongside rollups.
    *
    * <p>This uses {@link InMemorySpanStore} to prepare links and {@link
    * ElasticsearchStorage#writeDependencyLinks(List, long)}} to store them.
@@ -56,10 +56,10 @@ public class ElasticsearchSpanStoreTest extends SpanStoreTest {
             .serviceName("j360servletinterceptorintegration")
             .spanName("")
             .parseAnnotationQuery("")
-            .minDuration(1l)
+            .minDuration(1L)
             .maxDuration(3600000L)
             .endTs(1574947278711000L)
-            .lookback(3600000l)
+            .lookback(3600000L)
             .limit(10).build();
 
     List<List<Span>> spanList = storage.spanStore().getTraces(queryRequest);
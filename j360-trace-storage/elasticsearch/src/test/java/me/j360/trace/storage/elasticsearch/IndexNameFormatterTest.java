@@ -0,0 +1,68 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.elasticsearch;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static me.j360.trace.core.TestObjects.DAY;
+import static me.j360.trace.core.TestObjects.TODAY;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IndexNameFormatterTest {
+  IndexNameFormatter formatter = new IndexNameFormatter("zipkin");
+  SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+  {
+    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+  }
+
+  @Test
+  public void indexNameForTimestamp() {
+    assertThat(formatter.indexNameForTimestamp(0L)).isEqualTo("zipkin-1970-01-01");
+    assertThat(formatter.indexNameForTimestamp(DAY - 1)).isEqualTo("zipkin-1970-01-01");
+    assertThat(formatter.indexNameForTimestamp(-1L)).isEqualTo("zipkin-1969-12-31");
+    assertThat(formatter.indexNameForTimestamp(951782400000L)) // leap day of a century
+        .isEqualTo("zipkin-2000-02-29");
+    assertThat(formatter.indexNameForTimestamp(1475280000000L)).isEqualTo("zipkin-2016-10-01");
+  }
+
+  @Test
+  public void matchesSimpleDateFormat() {
+    Random random = new Random(0L);
+    for (int i = 0; i < 10000; i++) {
+      // between 1900 and 2100
+      long timestamp = (long) ((random.nextDouble() - 0.5) * 200 * 365.25 * DAY);
+      assertThat(formatter.indexNameForTimestamp(timestamp))
+          .isEqualTo("zipkin-" + dateFormat.format(new Date(timestamp)));
+    }
+  }
+
+  @Test
+  public void reusesNameOfSameDay() {
+    String name = formatter.indexNameForTimestamp(TODAY);
+
+    assertThat(formatter.indexNameForTimestamp(TODAY + DAY - 1)).isSameAs(name);
+    assertThat(formatter.indexNameForTimestamp(TODAY + DAY)).isNotEqualTo(name);
+  }
+
+  @Test
+  public void catchAll() {
+    assertThat(formatter.catchAll()).isEqualTo("zipkin-*");
+  }
+}
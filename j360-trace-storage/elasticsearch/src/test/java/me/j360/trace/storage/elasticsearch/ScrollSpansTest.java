@@ -0,0 +1,133 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.elasticsearch;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import me.j360.trace.core.Codec;
+import me.j360.trace.core.Span;
+import me.j360.trace.core.TestObjects;
+import me.j360.trace.core.internal.LongHashMap;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class ScrollSpansTest {
+  static final Span WEB = TestObjects.TRACE.get(0);
+  static final Span APP = TestObjects.TRACE.get(1);
+  static final Span DB = TestObjects.TRACE.get(2);
+  static final Span OTHER = TestObjects.span(1L);
+
+  final LinkedList<SearchResponse> pages = new LinkedList<>();
+  final List<String> scrolled = new ArrayList<>();
+  final List<String> cleared = new ArrayList<>();
+
+  final ScrollSpans scrollSpans = new ScrollSpans(null) {
+    @Override ListenableFuture<SearchResponse> search(SearchRequestBuilder request) {
+      return Futures.immediateFuture(pages.pop());
+    }
+
+    @Override ListenableFuture<SearchResponse> scroll(String scrollId) {
+      scrolled.add(scrollId);
+      return Futures.immediateFuture(pages.pop());
+    }
+
+    @Override void clear(String scrollId) {
+      cleared.add(scrollId);
+    }
+  };
+
+  @Test
+  public void readsAllPages() throws Exception {
+    pages.add(page("scroll1", 4, WEB, OTHER));
+    pages.add(page("scroll2", 4, APP));
+    pages.add(page("scroll3", 4, DB));
+
+    LongHashMap<List<Span>> traces = read();
+
+    assertThat(traces.size()).isEqualTo(2);
+    assertThat(traces.get(WEB.traceId)).containsExactly(WEB, APP, DB);
+    assertThat(traces.get(OTHER.traceId)).containsExactly(OTHER);
+    assertThat(scrolled).containsExactly("scroll1", "scroll2");
+    assertThat(cleared).containsExactly("scroll3");
+  }
+
+  @Test
+  public void singlePage() throws Exception {
+    pages.add(page("scroll1", 3, WEB, APP, DB));
+
+    assertThat(read().get(WEB.traceId)).containsExactly(WEB, APP, DB);
+    assertThat(scrolled).isEmpty();
+    assertThat(cleared).containsExactly("scroll1");
+  }
+
+  /** Hits can be fewer than counted, for example when a shard fails during the scroll. */
+  @Test
+  public void stopsOnEmptyPage() throws Exception {
+    pages.add(page("scroll1", 3, WEB));
+    pages.add(page("scroll2", 3));
+
+    assertThat(read().get(WEB.traceId)).containsExactly(WEB);
+    assertThat(cleared).containsExactly("scroll2");
+  }
+
+  @Test
+  public void noHits() throws Exception {
+    pages.add(page("scroll1", 0));
+
+    assertThat(read().isEmpty()).isTrue();
+  }
+
+  @Test
+  public void readSpan_slice() {
+    byte[] json = Codec.JSON.writeSpan(DB);
+    byte[] padded = new byte[json.length + 10];
+    System.arraycopy(json, 0, padded, 5, json.length);
+
+    assertThat(ScrollSpans.readSpan(new BytesArray(padded, 5, json.length)))
+        .isEqualTo(DB);
+  }
+
+  LongHashMap<List<Span>> read() throws Exception {
+    return scrollSpans.read(new SearchRequestBuilder(mock(Client.class), SearchAction.INSTANCE)).get();
+  }
+
+  static SearchResponse page(String scrollId, long totalHits, Span... spans) {
+    InternalSearchHit[] hits = new InternalSearchHit[spans.length];
+    for (int i = 0; i < spans.length; i++) {
+      hits[i] = new InternalSearchHit(i, Long.toHexString(spans[i].id),
+          new Text(ElasticsearchConstants.SPAN), null);
+      hits[i].sourceRef(new BytesArray(Codec.JSON.writeSpan(spans[i])));
+    }
+    InternalSearchResponse response = new InternalSearchResponse(
+        new InternalSearchHits(hits, totalHits, 0f), null, null, null, false, null);
+    return new SearchResponse(response, scrollId, 1, 1, 1L, new ShardSearchFailure[0]);
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.elasticsearch;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import me.j360.trace.core.Span;
+import me.j360.trace.core.internal.Util;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static java.util.Arrays.asList;
+import static me.j360.trace.core.TestObjects.DAY;
+import static me.j360.trace.core.TestObjects.TODAY;
+import static me.j360.trace.core.TestObjects.TRACE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+public class SpanIndexRequestsTest {
+  IndexNameFormatter indexNameFormatter = new IndexNameFormatter("zipkin");
+  TraceTimestamps traceTimestamps = new TraceTimestamps(10);
+  ElasticsearchSpanConsumer consumer =
+      new ElasticsearchSpanConsumer(null, null, indexNameFormatter, traceTimestamps, null);
+  String today = indexNameFormatter.indexNameForTimestamp(TODAY);
+
+  @Test
+  public void writesSpanNamesOnce() {
+    List<IndexRequest> first = consumer.indexRequests(TRACE);
+    assertThat(ids(first, ElasticsearchConstants.SERVICE_SPAN))
+        .hasSize(4).containsOnly("web|get", "app|get", "app|query", "db|query");
+
+    List<IndexRequest> second = consumer.indexRequests(TRACE);
+    assertThat(ids(second, ElasticsearchConstants.SERVICE_SPAN)).isEmpty();
+    assertThat(ids(second, ElasticsearchConstants.SPAN)).hasSize(3);
+  }
+
+  @Test
+  public void rewritesSpanNamesWhoseWriteFailed() throws Exception {
+    BulkSpanIndexer failing = new BulkSpanIndexer(null, ElasticsearchStorage.builder()) {
+      @Override void execute(BulkRequest request, ActionListener<BulkResponse> listener) {
+        listener.onFailure(new IllegalStateException("unavailable"));
+      }
+    };
+    consumer = new ElasticsearchSpanConsumer(null, failing, indexNameFormatter, traceTimestamps,
+        null);
+    ListenableFuture<Void> future = consumer.accept(TRACE);
+    failing.close(); // sends the bulk, which fails
+    try {
+      future.get();
+      failBecauseExceptionWasNotThrown(ExecutionException.class);
+    } catch (ExecutionException expected) {
+    }
+
+    assertThat(ids(consumer.indexRequests(TRACE), ElasticsearchConstants.SERVICE_SPAN))
+        .hasSize(4);
+  }
+
+  @Test
+  public void writesTraceSummaryPerService() {
+    String traceId = Util.toLowerHex(TRACE.get(0).traceId);
+
+    List<IndexRequest> requests = consumer.indexRequests(TRACE);
+    assertThat(ids(requests, ElasticsearchConstants.TRACE)).containsExactly(
+        traceId + "|app", traceId + "|db", traceId + "|web");
+    for (IndexRequest request : requests) {
+      if (!request.type().equals(ElasticsearchConstants.TRACE)) continue;
+      assertThat(request.index()).isEqualTo(today);
+      assertThat(request.sourceAsMap())
+          .containsEntry("timestamp_millis", TODAY)
+          .containsEntry("duration", 350000);
+    }
+  }
+
+  @Test
+  public void rewritesTraceSummaryInEachDaysIndex() {
+    consumer.indexRequests(TRACE);
+    Span beforeMidnight = TRACE.get(0).toBuilder().id(4L).parentId(TRACE.get(0).id)
+        .timestamp((TODAY - 10) * 1000).build();
+
+    List<String> indexes = new ArrayList<>();
+    for (IndexRequest request : consumer.indexRequests(asList(beforeMidnight))) {
+      if (!request.type().equals(ElasticsearchConstants.TRACE)) continue;
+      indexes.add(request.index());
+      assertThat(request.sourceAsMap()).containsEntry("timestamp_millis", TODAY - 10);
+    }
+    assertThat(indexes).containsOnly(indexNameFormatter.indexNameForTimestamp(TODAY - DAY), today)
+        .hasSize(6); // both days' summaries for each of the three services
+  }
+
+  @Test
+  public void routesSpansByTraceId() {
+    for (IndexRequest request : consumer.indexRequests(TRACE)) {
+      if (!request.type().equals(ElasticsearchConstants.SPAN)) continue;
+      assertThat(request.routing()).isEqualTo(Util.toLowerHex(TRACE.get(0).traceId));
+    }
+  }
+
+  @Test
+  public void remembersWhenTracesStarted() {
+    consumer.indexRequests(TRACE.subList(1, 3));
+    consumer.indexRequests(TRACE.subList(0, 1));
+
+    assertThat(traceTimestamps.get(TRACE.get(0).traceId)).isEqualTo(TODAY);
+  }
+
+  @Test
+  public void clearForgetsWrittenDocuments() {
+    consumer.indexRequests(TRACE);
+    consumer.clear();
+
+    assertThat(ids(consumer.indexRequests(TRACE), ElasticsearchConstants.SERVICE_SPAN))
+        .isNotEmpty();
+  }
+
+  static List<String> ids(List<IndexRequest> requests, String type) {
+    List<String> result = new ArrayList<>();
+    for (IndexRequest request : requests) {
+      if (request.type().equals(type)) result.add(request.id());
+    }
+    return result;
+  }
+}
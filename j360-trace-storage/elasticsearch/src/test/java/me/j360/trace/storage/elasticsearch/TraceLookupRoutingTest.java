@@ -0,0 +1,111 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.elasticsearch;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import me.j360.trace.core.Span;
+import me.j360.trace.core.internal.LongHashMap;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static me.j360.trace.storage.elasticsearch.ScrollSpansTest.APP;
+import static me.j360.trace.storage.elasticsearch.ScrollSpansTest.DB;
+import static me.j360.trace.storage.elasticsearch.ScrollSpansTest.OTHER;
+import static me.j360.trace.storage.elasticsearch.ScrollSpansTest.WEB;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/** Spans indexed before they were routed by trace id must still be found. */
+public class TraceLookupRoutingTest {
+  final Client client = mock(Client.class);
+  /** Spans each search returns, in order. */
+  final LinkedList<List<Span>> results = new LinkedList<>();
+  /** Routing of each search, or null when not routed. */
+  final List<String> routings = new ArrayList<>();
+
+  final ElasticsearchSpanStore store = new ElasticsearchSpanStore(client,
+      new IndexNameFormatter("zipkin"), new TraceTimestamps(10), new ScrollSpans(client) {
+        @Override ListenableFuture<LongHashMap<List<Span>>> read(SearchRequestBuilder request) {
+          routings.add(request.request().routing());
+          LongHashMap<List<Span>> traces = new LongHashMap<>();
+          for (Span span : results.pop()) {
+            List<Span> trace = traces.get(span.traceId);
+            if (trace == null) traces.put(span.traceId, trace = new ArrayList<>());
+            trace.add(span);
+          }
+          return Futures.immediateFuture(traces);
+        }
+      });
+
+  {
+    when(client.prepareSearch(anyVararg())).thenAnswer(
+        invocation -> new SearchRequestBuilder(client, SearchAction.INSTANCE));
+  }
+
+  String[] indices = {"zipkin-*"};
+
+  @Test
+  public void getRawTrace_routed() throws Exception {
+    results.add(asList(WEB, APP, DB));
+
+    assertThat(store.getRawTrace(WEB.traceId, indices).get()).containsExactly(WEB, APP, DB);
+    assertThat(routings).hasSize(1).doesNotContainNull();
+  }
+
+  @Test
+  public void getRawTrace_fallsBackToUnrouted() throws Exception {
+    results.add(asList());
+    results.add(asList(WEB, APP, DB));
+
+    assertThat(store.getRawTrace(WEB.traceId, indices).get()).containsExactly(WEB, APP, DB);
+    assertThat(routings).hasSize(2).endsWith((String) null);
+  }
+
+  @Test
+  public void getRawTrace_missing() throws Exception {
+    results.add(asList());
+    results.add(asList());
+
+    assertThat(store.getRawTrace(WEB.traceId, indices).get()).isNull();
+  }
+
+  @Test
+  public void getTracesByIds_searchesMissingTracesUnrouted() throws Exception {
+    results.add(asList(WEB, APP, DB));
+    results.add(asList(OTHER));
+
+    assertThat(store.getTracesByIds(asList(WEB.traceId, OTHER.traceId), indices).get())
+        .hasSize(2);
+    assertThat(routings).hasSize(2).endsWith((String) null);
+  }
+
+  @Test
+  public void getTracesByIds_allRouted() throws Exception {
+    results.add(asList(WEB, APP, DB, OTHER));
+
+    assertThat(store.getTracesByIds(asList(WEB.traceId, OTHER.traceId), indices).get())
+        .hasSize(2);
+    assertThat(routings).hasSize(1);
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.elasticsearch;
+
+import me.j360.trace.core.Annotation;
+import me.j360.trace.core.Span;
+import org.junit.Test;
+
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static me.j360.trace.core.Constants.SERVER_RECV;
+import static me.j360.trace.core.TestObjects.APP_ENDPOINT;
+import static me.j360.trace.core.TestObjects.DAY;
+import static me.j360.trace.core.TestObjects.TODAY;
+import static me.j360.trace.core.TestObjects.TRACE;
+import static me.j360.trace.core.TestObjects.WEB_ENDPOINT;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceSummariesTest {
+  TraceSummaries summaries = new TraceSummaries(2);
+
+  @Test
+  public void summarizesTrace() {
+    List<TraceSummaries.Summary> result = summaries.update(TRACE);
+
+    assertThat(result).hasSize(1);
+    TraceSummaries.Summary summary = result.get(0);
+    assertThat(summary.traceId).isEqualTo(TRACE.get(0).traceId);
+    assertThat(summary.timestamp).isEqualTo(TODAY * 1000);
+    assertThat(summary.duration).isEqualTo(350 * 1000);
+    assertThat(summary.serviceNames).containsExactly("app", "db", "web");
+    assertThat(summary.days).containsExactly(TODAY);
+  }
+
+  @Test
+  public void accumulatesAcrossUpdates() {
+    summaries.update(asList(TRACE.get(2)));
+    TraceSummaries.Summary summary = summaries.update(asList(TRACE.get(0))).get(0);
+
+    assertThat(summary.timestamp).isEqualTo(TODAY * 1000);
+    assertThat(summary.duration).isEqualTo(350 * 1000);
+    assertThat(summary.serviceNames).containsExactly("app", "db", "web");
+  }
+
+  @Test
+  public void unchangedTracesArentReturned() {
+    summaries.update(TRACE);
+
+    assertThat(summaries.update(asList(TRACE.get(1)))).isEmpty();
+  }
+
+  @Test
+  public void skipsSpansWithoutTimestampOrService() {
+    Span noTimestamp = Span.builder().traceId(1L).id(1L).name("get")
+        .addAnnotation(Annotation.create(TODAY * 1000, SERVER_RECV, WEB_ENDPOINT)).build();
+    Span noService = Span.builder().traceId(2L).id(2L).name("get").timestamp(TODAY * 1000).build();
+
+    assertThat(summaries.update(asList(noTimestamp, noService))).isEmpty();
+  }
+
+  @Test
+  public void forgetsLeastRecentlyUpdatedTraces() {
+    summaries.update(asList(span(1L, WEB_ENDPOINT.serviceName)));
+    summaries.update(asList(span(2L, WEB_ENDPOINT.serviceName)));
+    summaries.update(asList(span(3L, WEB_ENDPOINT.serviceName)));
+
+    // trace 1 was forgotten, so its summary starts over
+    assertThat(summaries.update(asList(span(1L, APP_ENDPOINT.serviceName))).get(0).serviceNames)
+        .containsExactly("app");
+  }
+
+  @Test
+  public void remembersEachDayOfTheTracesStart() {
+    summaries.update(TRACE);
+    Span beforeMidnight = TRACE.get(0).toBuilder().id(4L).parentId(TRACE.get(0).id)
+        .timestamp((TODAY - 10) * 1000).build();
+
+    assertThat(summaries.update(asList(beforeMidnight)).get(0).days)
+        .containsExactly(TODAY - DAY, TODAY);
+  }
+
+  static Span span(long traceId, String serviceName) {
+    return Span.builder().traceId(traceId).id(traceId).name("get").timestamp(TODAY * 1000)
+        .addAnnotation(Annotation.create(TODAY * 1000, SERVER_RECV,
+            serviceName.equals("app") ? APP_ENDPOINT : WEB_ENDPOINT))
+        .build();
+  }
+}
@@ -0,0 +1,413 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.mmap;
+
+import me.j360.trace.core.Codec;
+import me.j360.trace.core.DependencyLink;
+import me.j360.trace.core.Span;
+import me.j360.trace.core.internal.ApplyTimestampAndDuration;
+import me.j360.trace.core.internal.CorrectForClockSkew;
+import me.j360.trace.core.internal.DependencyLinker;
+import me.j360.trace.core.internal.LongHashMap;
+import me.j360.trace.core.internal.MergeById;
+import me.j360.trace.core.internal.Nullable;
+import me.j360.trace.core.storage.QueryRequest;
+import me.j360.trace.core.storage.SpanStore;
+import me.j360.trace.core.storage.StorageAdapters;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static me.j360.trace.core.internal.Util.checkArgument;
+import static me.j360.trace.core.internal.Util.sortedList;
+
+/**
+ * Appends spans to {@link Segment memory-mapped segments}, and finds traces with an off-heap {@link
+ * TraceIndex index} of trace id to the position of their newest record. The heap only holds the
+ * names and timestamp range of each segment, so that queries can skip segments.
+ *
+ * <p>Queries scan the headers of segments overlapping their interval, newest first, and only
+ * decode traces with a record in the interval. This favors write rate over query latency, which
+ * suits single node and edge deployments.
+ *
+ * <p>A segment is rolled when full. Segments whose newest span is older than the retention are
+ * deleted whole as spans are accepted.
+ */
+public final class MmapSpanStore implements SpanStore, Closeable {
+  static final FilenameFilter SEGMENTS = new FilenameFilter() {
+    @Override public boolean accept(File dir, String name) {
+      return name.endsWith(Segment.SUFFIX);
+    }
+  };
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final File directory;
+  private final int segmentSize;
+  private final long retentionMicros;
+  // fields below are guarded by lock
+  /** Oldest first. Ids are consecutive, so a segment is found by subtracting the first id. */
+  private final List<Segment> segments = new ArrayList<Segment>();
+  private final TraceIndex index = new TraceIndex(1024);
+  private long nextSegmentId = 1;
+
+  /**
+   * @param retentionMillis segments older than this are deleted. 0 implies no limit.
+   */
+  MmapSpanStore(File directory, int segmentSize, long retentionMillis) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.retentionMicros = retentionMillis * 1000;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("couldn't create " + directory);
+    }
+    recover();
+  }
+
+  /** Opens existing segments, rebuilding the index from their records. */
+  void recover() throws IOException {
+    File[] files = directory.listFiles(SEGMENTS);
+    Arrays.sort(files, new Comparator<File>() {
+      @Override public int compare(File left, File right) {
+        long leftId = Segment.id(left), rightId = Segment.id(right);
+        return leftId < rightId ? -1 : leftId == rightId ? 0 : 1;
+      }
+    });
+    for (File file : files) {
+      Segment segment = Segment.open(file);
+      if (!segments.isEmpty() && segment.id != last().id + 1) {
+        // a gap would break position lookups: drop what's before it
+        for (Segment older : segments) delete(older);
+        segments.clear();
+      }
+      segments.add(segment);
+      nextSegmentId = segment.id + 1;
+    }
+    index.clear();
+    for (Segment segment : segments) {
+      for (int offset = segment.first(); offset != -1; offset = segment.next(offset)) {
+        index.put(segment.traceId(offset), Segment.position(segment.id, offset));
+      }
+    }
+  }
+
+  final StorageAdapters.SpanConsumer spanConsumer = new StorageAdapters.SpanConsumer() {
+    @Override public void accept(List<Span> spans) {
+      Span[] applied = new Span[spans.size()];
+      byte[][] encoded = new byte[applied.length][];
+      for (int i = 0; i < applied.length; i++) {
+        applied[i] = ApplyTimestampAndDuration.apply(spans.get(i));
+        encoded[i] = Codec.JSON.writeSpan(applied[i]);
+        checkArgument(Segment.HEADER_SIZE + encoded[i].length <= segmentSize,
+            "span larger than segmentSize %s: %s", segmentSize, applied[i]);
+      }
+      long nowMicros = System.currentTimeMillis() * 1000;
+      lock.writeLock().lock();
+      try {
+        for (int i = 0; i < applied.length; i++) {
+          append(applied[i], encoded[i], nowMicros);
+        }
+        expire(nowMicros);
+      } catch (IOException e) {
+        throw new IllegalStateException("couldn't roll segment in " + directory, e);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    @Override public String toString() {
+      return "MmapSpanConsumer(" + directory + ")";
+    }
+  };
+
+  /** Guarded by the write lock. */
+  void append(Span span, byte[] encoded, long nowMicros) throws IOException {
+    long timestamp = span.timestamp != null ? span.timestamp : nowMicros;
+    long previous = index.get(span.traceId);
+    Segment segment = segments.isEmpty() ? roll() : last();
+    int offset = segment.append(span, timestamp, previous, encoded);
+    if (offset == -1) {
+      segment = roll();
+      offset = segment.append(span, timestamp, previous, encoded);
+    }
+    index.put(span.traceId, Segment.position(segment.id, offset));
+  }
+
+  /** Guarded by the write lock. */
+  Segment roll() throws IOException {
+    Segment segment = Segment.create(directory, nextSegmentId++, segmentSize);
+    segments.add(segment);
+    return segment;
+  }
+
+  /** Deletes segments older than the retention, except the current one. Guarded by the write lock. */
+  void expire(long nowMicros) {
+    if (retentionMicros == 0) return;
+    int expired = 0;
+    while (expired < segments.size() - 1
+        && segments.get(expired).maxTimestamp < nowMicros - retentionMicros) {
+      delete(segments.get(expired++));
+    }
+    if (expired == 0) return;
+    segments.subList(0, expired).clear();
+    index.retainFrom(Segment.position(segments.get(0).id, 0));
+  }
+
+  static void delete(Segment segment) {
+    try {
+      segment.close();
+    } catch (IOException ignored) {
+      // best efforts, as the file is deleted next
+    }
+    segment.file.delete();
+  }
+
+  Segment last() {
+    return segments.get(segments.size() - 1);
+  }
+
+  /** Returns the segment holding the position, or null if it was deleted. Guarded by the lock. */
+  @Nullable Segment segment(long position) {
+    if (segments.isEmpty()) return null;
+    long i = Segment.segmentId(position) - segments.get(0).id;
+    return i >= 0 && i < segments.size() ? segments.get((int) i) : null;
+  }
+
+  /**
+   * Reads the trace's records, in the order they were accepted. Guarded by the read lock.
+   *
+   * <p>Mapped pages aren't written to disk in order, so after a crash, recovery can truncate a
+   * segment before a record that later segments still point to. The walk stops there, and where
+   * another trace's record has since been appended at the same offset.
+   */
+  @Nullable List<Span> readTrace(long traceId) {
+    List<Span> result = new ArrayList<Span>();
+    for (long position = index.get(traceId); position != 0; ) {
+      Segment segment = segment(position);
+      if (segment == null) break; // older records were deleted
+      int offset = Segment.offset(position);
+      if (offset >= segment.end || segment.traceId(offset) != traceId) break;
+      result.add(Codec.JSON.readSpan(segment.payload(offset)));
+      position = segment.previous(offset);
+    }
+    if (result.isEmpty()) return null;
+    Collections.reverse(result);
+    return result;
+  }
+
+  @Override
+  public List<List<Span>> getTraces(QueryRequest request) {
+    long begin = (request.endTs - request.lookback) * 1000, end = request.endTs * 1000;
+    List<List<Span>> result = new ArrayList<List<Span>>();
+    lock.readLock().lock();
+    try {
+      LongHashMap<Boolean> seen = new LongHashMap<Boolean>();
+      segments:
+      for (int s = segments.size() - 1; s >= 0; s--) {
+        Segment segment = segments.get(s);
+        if (!overlaps(segment, begin, end)) continue;
+        if (request.serviceName != null
+            && !segment.serviceToSpanNames.containsKey(request.serviceName)) {
+          continue;
+        }
+        int[] offsets = offsets(segment);
+        for (int i = offsets.length - 1; i >= 0; i--) {
+          long timestamp = segment.timestamp(offsets[i]);
+          if (timestamp < begin || timestamp > end) continue;
+          long traceId = segment.traceId(offsets[i]);
+          if (seen.put(traceId, Boolean.TRUE) != null) continue;
+          List<Span> trace = trace(traceId);
+          if (trace != null && request.test(trace)) result.add(trace);
+          if (result.size() == request.limit) break segments;
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    Collections.sort(result, TRACE_DESCENDING);
+    return result;
+  }
+
+  static final Comparator<List<Span>> TRACE_DESCENDING = new Comparator<List<Span>>() {
+    @Override
+    public int compare(List<Span> left, List<Span> right) {
+      return right.get(0).compareTo(left.get(0));
+    }
+  };
+
+  static boolean overlaps(Segment segment, long begin, long end) {
+    return !segment.isEmpty() && segment.minTimestamp <= end && segment.maxTimestamp >= begin;
+  }
+
+  /** Offsets of the segment's records, oldest first. Guarded by the read lock. */
+  static int[] offsets(Segment segment) {
+    int[] result = new int[64];
+    int count = 0;
+    for (int offset = segment.first(); offset != -1; offset = segment.next(offset)) {
+      if (count == result.length) result = Arrays.copyOf(result, count * 2);
+      result[count++] = offset;
+    }
+    return Arrays.copyOf(result, count);
+  }
+
+  /** Guarded by the read lock. */
+  @Nullable List<Span> trace(long traceId) {
+    List<Span> spans = readTrace(traceId);
+    return spans == null ? null : CorrectForClockSkew.apply(MergeById.apply(spans));
+  }
+
+  @Override
+  public List<Span> getTrace(long traceId) {
+    lock.readLock().lock();
+    try {
+      return trace(traceId);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<Span> getRawTrace(long traceId) {
+    lock.readLock().lock();
+    try {
+      return readTrace(traceId);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<String> getServiceNames() {
+    Set<String> result = new LinkedHashSet<String>();
+    lock.readLock().lock();
+    try {
+      for (Segment segment : segments) {
+        result.addAll(segment.serviceToSpanNames.keySet());
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return sortedList(result);
+  }
+
+  @Override
+  public List<String> getSpanNames(String service) {
+    if (service == null) return Collections.emptyList();
+    service = service.toLowerCase(); // service names are always lowercase!
+    Set<String> result = new LinkedHashSet<String>();
+    lock.readLock().lock();
+    try {
+      for (Segment segment : segments) {
+        Set<String> spanNames = segment.serviceToSpanNames.get(service);
+        if (spanNames != null) result.addAll(spanNames);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return sortedList(result);
+  }
+
+  /**
+   * Links traces which started in the interval. This decodes them, as links aren't aggregated at
+   * write time.
+   */
+  @Override
+  public List<DependencyLink> getDependencies(long endTs, @Nullable Long lookback) {
+    long end = endTs * 1000;
+    long begin = lookback == null ? 0 : end - lookback * 1000;
+    DependencyLinker linker = new DependencyLinker();
+    lock.readLock().lock();
+    try {
+      LongHashMap<Boolean> seen = new LongHashMap<Boolean>();
+      for (Segment segment : segments) {
+        if (!overlaps(segment, begin, end)) continue;
+        for (int offset = segment.first(); offset != -1; offset = segment.next(offset)) {
+          long timestamp = segment.timestamp(offset);
+          if (timestamp < begin || timestamp > end) continue;
+          long traceId = segment.traceId(offset);
+          if (seen.put(traceId, Boolean.TRUE) != null) continue;
+          List<Span> trace = trace(traceId);
+          if (trace == null) continue;
+          Long start = trace.get(0).timestamp;
+          if (start == null || start < begin || start > end) continue;
+          linker.putTrace(trace);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return linker.link();
+  }
+
+  int segmentCount() {
+    lock.readLock().lock();
+    try {
+      return segments.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Writes mapped pages of all segments to disk. */
+  public void flush() {
+    lock.readLock().lock();
+    try {
+      for (Segment segment : segments) {
+        segment.force();
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Deletes all segments. */
+  void clear() {
+    lock.writeLock().lock();
+    try {
+      for (Segment segment : segments) delete(segment);
+      segments.clear();
+      index.clear();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      for (Segment segment : segments) {
+        segment.force();
+        segment.close();
+      }
+      segments.clear();
+      index.clear();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override public String toString() {
+    return "MmapSpanStore(" + directory + ")";
+  }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.mmap;
+
+import me.j360.trace.core.internal.LazyCloseable;
+import me.j360.trace.core.storage.AsyncSpanConsumer;
+import me.j360.trace.core.storage.AsyncSpanStore;
+import me.j360.trace.core.storage.StorageAdapters;
+import me.j360.trace.core.storage.StorageComponent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static me.j360.trace.core.internal.Util.checkArgument;
+import static me.j360.trace.core.internal.Util.checkNotNull;
+import static me.j360.trace.core.storage.StorageAdapters.blockingToAsync;
+
+/**
+ * Storage component that appends spans to memory-mapped files in a local directory, for single
+ * node deployments and edge collectors which can't run Elasticsearch. Spans are accepted on the
+ * calling thread, and survive restarts: existing segments are recovered when the store is opened.
+ *
+ * <p>Only one process should use a directory at a time.
+ */
+public final class MmapStorage implements StorageComponent {
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    File directory;
+    int segmentSize = 64 * 1024 * 1024;
+    long retentionMillis = TimeUnit.DAYS.toMillis(7);
+
+    /** Directory holding segment files. Created if it doesn't exist. Required. */
+    public Builder directory(File directory) {
+      this.directory = checkNotNull(directory, "directory");
+      return this;
+    }
+
+    /** Size in bytes of each segment file, which limits the size of a span. Defaults to 64MiB */
+    public Builder segmentSize(int segmentSize) {
+      checkArgument(segmentSize >= 1024, "segmentSize should be at least 1024: was %s",
+          segmentSize);
+      this.segmentSize = segmentSize;
+      return this;
+    }
+
+    /**
+     * Segments whose spans are all older than this are deleted, as new spans are accepted. 0 keeps
+     * segments regardless of age. Defaults to 7 days.
+     */
+    public Builder retention(long retention, TimeUnit unit) {
+      checkArgument(retention >= 0, "retention should not be negative: was %s", retention);
+      this.retentionMillis = unit.toMillis(retention);
+      return this;
+    }
+
+    public MmapStorage build() {
+      checkNotNull(directory, "directory");
+      return new MmapStorage(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  final Executor callingThread = new Executor() {
+    @Override public void execute(Runnable command) {
+      command.run();
+    }
+  };
+  final LazyCloseable<MmapSpanStore> spanStore;
+
+  MmapStorage(final Builder builder) {
+    final File directory = builder.directory;
+    final int segmentSize = builder.segmentSize;
+    final long retentionMillis = builder.retentionMillis;
+    spanStore = new LazyCloseable<MmapSpanStore>() {
+      @Override protected MmapSpanStore compute() {
+        try {
+          return new MmapSpanStore(directory, segmentSize, retentionMillis);
+        } catch (IOException e) {
+          throw new IllegalStateException("couldn't open " + directory, e);
+        }
+      }
+    };
+  }
+
+  /** Opens the directory on first use, recovering any segments in it. */
+  @Override public MmapSpanStore spanStore() {
+    return spanStore.get();
+  }
+
+  @Override public AsyncSpanStore asyncSpanStore() {
+    return blockingToAsync(spanStore(), callingThread);
+  }
+
+  public StorageAdapters.SpanConsumer spanConsumer() {
+    return spanStore().spanConsumer;
+  }
+
+  @Override public AsyncSpanConsumer asyncSpanConsumer() {
+    return blockingToAsync(spanConsumer(), callingThread);
+  }
+
+  /** Deletes all segments. */
+  public void clear() {
+    spanStore().clear();
+  }
+
+  @Override public CheckResult check() {
+    try {
+      spanStore();
+    } catch (RuntimeException e) {
+      return CheckResult.failed(e);
+    }
+    return CheckResult.OK;
+  }
+
+  @Override public void close() throws IOException {
+    spanStore.close();
+  }
+}
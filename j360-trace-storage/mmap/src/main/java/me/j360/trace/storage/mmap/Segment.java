@@ -0,0 +1,202 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.mmap;
+
+import me.j360.trace.core.Codec;
+import me.j360.trace.core.Span;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An append-only log file of encoded spans, mapped into memory. Each record is a header followed
+ * by the encoded span:
+ *
+ * <pre>
+ * int length, long traceId, long timestamp, long previous, byte[length] span
+ * </pre>
+ *
+ * <p>{@code previous} is the position of the prior record of the same trace, which may be in an
+ * older segment, or zero. So, a trace is read by following the chain back from its newest record.
+ *
+ * <p>The file is allocated up front, so unused space reads as zero. The length is written after the
+ * rest of the record, so a record interrupted by a crash reads as the end of the log.
+ *
+ * <p>Mutations are guarded by the store's write lock, and reads by its read lock.
+ */
+final class Segment implements Closeable {
+  static final int HEADER_SIZE = 4 + 8 + 8 + 8;
+  static final String SUFFIX = ".segment";
+
+  /** Positions combine the segment id and offset, so that the index holds a single long. */
+  static long position(long segmentId, int offset) {
+    return segmentId << 32 | offset;
+  }
+
+  static long segmentId(long position) {
+    return position >>> 32;
+  }
+
+  static int offset(long position) {
+    return (int) position;
+  }
+
+  static Segment create(File directory, long id, int size) throws IOException {
+    File file = new File(directory, id + SUFFIX);
+    if (file.exists()) throw new IOException(file + " already exists");
+    return new Segment(id, file, size);
+  }
+
+  /** Opens an existing segment, recovering its records up to the first incomplete one. */
+  static Segment open(File file) throws IOException {
+    Segment result = new Segment(id(file), file, (int) file.length());
+    int offset = 0;
+    while (offset + HEADER_SIZE <= result.capacity()) {
+      int length = result.buffer.getInt(offset);
+      if (length <= 0 || offset + HEADER_SIZE + length > result.capacity()) break;
+      Span span;
+      try {
+        span = Codec.JSON.readSpan(result.payload(offset));
+      } catch (IllegalArgumentException e) {
+        break; // corrupt: treat as the end, so that the next append overwrites it
+      }
+      result.end = offset + HEADER_SIZE + length;
+      result.update(span, result.timestamp(offset));
+      offset = result.end;
+    }
+    return result;
+  }
+
+  static long id(File file) {
+    String name = file.getName();
+    return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+  }
+
+  final long id;
+  final File file;
+  final RandomAccessFile raf;
+  final MappedByteBuffer buffer;
+  /** Offset after the last record */
+  int end;
+  long minTimestamp = Long.MAX_VALUE;
+  long maxTimestamp = Long.MIN_VALUE;
+  /** Names in this segment, so that queries can skip it. These are small compared to the spans. */
+  final Map<String, Set<String>> serviceToSpanNames = new LinkedHashMap<String, Set<String>>();
+
+  Segment(long id, File file, int size) throws IOException {
+    this.id = id;
+    this.file = file;
+    this.raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(size);
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+  }
+
+  int capacity() {
+    return buffer.capacity();
+  }
+
+  boolean isEmpty() {
+    return end == 0;
+  }
+
+  /** Returns the offset of the appended record, or -1 if there isn't room for it. */
+  int append(Span span, long timestamp, long previous, byte[] bytes) {
+    int offset = end;
+    if (offset + HEADER_SIZE + bytes.length > buffer.capacity()) return -1;
+    buffer.putLong(offset + 4, span.traceId);
+    buffer.putLong(offset + 12, timestamp);
+    buffer.putLong(offset + 20, previous);
+    ByteBuffer payload = buffer.duplicate();
+    payload.position(offset + HEADER_SIZE);
+    payload.put(bytes);
+    buffer.putInt(offset, bytes.length); // last, as a non-zero length marks the record complete
+    end = offset + HEADER_SIZE + bytes.length;
+    update(span, timestamp);
+    return offset;
+  }
+
+  void update(Span span, long timestamp) {
+    minTimestamp = Math.min(minTimestamp, timestamp);
+    maxTimestamp = Math.max(maxTimestamp, timestamp);
+    for (String serviceName : span.serviceNames()) {
+      Set<String> spanNames = serviceToSpanNames.get(serviceName);
+      if (spanNames == null) {
+        serviceToSpanNames.put(serviceName, spanNames = new LinkedHashSet<String>());
+      }
+      spanNames.add(span.name);
+    }
+  }
+
+  /** Returns the offset of the first record, or -1 if there are none. */
+  int first() {
+    return end == 0 ? -1 : 0;
+  }
+
+  /** Returns the offset of the record after this one, or -1 if this is the last. */
+  int next(int offset) {
+    int next = offset + HEADER_SIZE + buffer.getInt(offset);
+    return next < end ? next : -1;
+  }
+
+  long traceId(int offset) {
+    return buffer.getLong(offset + 4);
+  }
+
+  long timestamp(int offset) {
+    return buffer.getLong(offset + 12);
+  }
+
+  long previous(int offset) {
+    return buffer.getLong(offset + 20);
+  }
+
+  byte[] payload(int offset) {
+    byte[] result = new byte[buffer.getInt(offset)];
+    ByteBuffer payload = buffer.duplicate(); // readers share the buffer, so don't move it
+    payload.position(offset + HEADER_SIZE);
+    payload.get(result);
+    return result;
+  }
+
+  /** Writes the mapped pages to disk. */
+  void force() {
+    buffer.force();
+  }
+
+  /**
+   * Closes the file. The mapping itself is released when the buffer is garbage collected, as Java
+   * 7 has no supported way to unmap.
+   */
+  @Override public void close() throws IOException {
+    raf.close();
+  }
+
+  @Override public String toString() {
+    return "Segment(" + file + ")";
+  }
+}
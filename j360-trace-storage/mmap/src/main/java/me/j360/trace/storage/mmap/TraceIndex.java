@@ -0,0 +1,105 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.mmap;
+
+import java.nio.ByteBuffer;
+
+import static me.j360.trace.core.internal.Util.checkArgument;
+
+/**
+ * Maps trace ids to the {@link Segment#position position} of their newest record. Slots are held
+ * in a direct buffer, outside the heap, and collisions are resolved by linear probing. Zero marks
+ * an empty slot, which can't be confused with a position, as segment ids start at one.
+ *
+ * <p>This is not thread-safe.
+ */
+final class TraceIndex {
+  static final int SLOT_SIZE = 16; // trace id, position
+
+  ByteBuffer slots;
+  int mask;
+  int size;
+
+  TraceIndex(int expectedSize) {
+    checkArgument(expectedSize >= 0, "expectedSize should not be negative: was %s", expectedSize);
+    allocate(Integer.highestOneBit(Math.max(4, expectedSize * 4 / 3 + 1) - 1) << 1);
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** Returns the position of the trace's newest record, or zero if there is none. */
+  long get(long traceId) {
+    for (int i = slot(traceId); ; i = (i + 1) & mask) {
+      long position = slots.getLong(i * SLOT_SIZE + 8);
+      if (position == 0 || slots.getLong(i * SLOT_SIZE) == traceId) return position;
+    }
+  }
+
+  void put(long traceId, long position) {
+    checkArgument(position != 0, "position should not be zero");
+    int i = slot(traceId);
+    for (; slots.getLong(i * SLOT_SIZE + 8) != 0; i = (i + 1) & mask) {
+      if (slots.getLong(i * SLOT_SIZE) == traceId) break;
+    }
+    if (slots.getLong(i * SLOT_SIZE + 8) == 0) size++;
+    slots.putLong(i * SLOT_SIZE, traceId);
+    slots.putLong(i * SLOT_SIZE + 8, position);
+    if (size > (mask + 1) * 3 / 4) rehash((mask + 1) * 2, 0L);
+  }
+
+  /** Drops traces whose newest record is before the position, as when segments are deleted. */
+  void retainFrom(long minPosition) {
+    rehash(mask + 1, minPosition);
+  }
+
+  void clear() {
+    allocate(16);
+  }
+
+  int slot(long traceId) {
+    // murmur3 finalizer, as sequential ids would otherwise cluster
+    traceId ^= traceId >>> 33;
+    traceId *= 0xff51afd7ed558ccdL;
+    traceId ^= traceId >>> 33;
+    return (int) traceId & mask;
+  }
+
+  void rehash(int capacity, long minPosition) {
+    ByteBuffer old = slots;
+    int oldCapacity = mask + 1;
+    allocate(capacity);
+    for (int i = 0; i < oldCapacity; i++) {
+      long position = old.getLong(i * SLOT_SIZE + 8);
+      if (position == 0 || position < minPosition) continue;
+      long traceId = old.getLong(i * SLOT_SIZE);
+      int j = slot(traceId);
+      while (slots.getLong(j * SLOT_SIZE + 8) != 0) j = (j + 1) & mask;
+      slots.putLong(j * SLOT_SIZE, traceId);
+      slots.putLong(j * SLOT_SIZE + 8, position);
+      size++;
+    }
+  }
+
+  void allocate(int capacity) {
+    slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE); // zeroed, so all slots are empty
+    mask = capacity - 1;
+    size = 0;
+  }
+
+  @Override public String toString() {
+    return "TraceIndex(size=" + size + ")";
+  }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.mmap;
+
+import me.j360.trace.core.storage.SpanStoreTest;
+import me.j360.trace.core.storage.StorageComponent;
+import org.junit.AfterClass;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+public class MmapSpanStoreTest extends SpanStoreTest {
+  static final File DIRECTORY = directory();
+  static final MmapStorage STORAGE = MmapStorage.builder().directory(DIRECTORY).build();
+
+  static File directory() {
+    try {
+      return Files.createTempDirectory("mmap").toFile();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @AfterClass
+  public static void close() throws IOException {
+    STORAGE.clear();
+    STORAGE.close();
+    DIRECTORY.delete();
+  }
+
+  @Override protected StorageComponent storage() {
+    return STORAGE;
+  }
+
+  @Override
+  public void clear() {
+    STORAGE.clear();
+  }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.mmap;
+
+import me.j360.trace.core.Annotation;
+import me.j360.trace.core.Constants;
+import me.j360.trace.core.Endpoint;
+import me.j360.trace.core.Span;
+import me.j360.trace.core.storage.QueryRequest;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MmapStorageTest {
+  static final Endpoint WEB = Endpoint.create("web", 172 << 24 | 17 << 16 | 3, 8080);
+  static final long NOW = System.currentTimeMillis();
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  MmapStorage storage;
+
+  @After
+  public void close() throws IOException {
+    if (storage != null) storage.close();
+  }
+
+  MmapStorage open(MmapStorage.Builder builder) throws IOException {
+    if (storage != null) storage.close();
+    return storage = builder.directory(folder.getRoot()).build();
+  }
+
+  @Test
+  public void recoversSegmentsOnOpen() throws IOException {
+    open(MmapStorage.builder());
+    accept(span(1L, 1L, "get", NOW - 2000), span(2L, 2L, "post", NOW - 1000));
+    accept(span(1L, 3L, "query", NOW - 1900));
+
+    open(MmapStorage.builder());
+
+    assertThat(storage.spanStore().getRawTrace(1L)).extracting(s -> s.id).containsExactly(1L, 3L);
+    assertThat(storage.spanStore().getSpanNames("web")).containsExactly("get", "post", "query");
+    assertThat(storage.spanStore().getTraces(QueryRequest.builder().serviceName("web").build()))
+        .hasSize(2);
+  }
+
+  @Test
+  public void recoveryStopsAtAnIncompleteRecord() throws IOException {
+    open(MmapStorage.builder());
+    accept(span(1L, 1L, "get", NOW - 2000), span(2L, 2L, "post", NOW - 1000));
+    int second = storage.spanStore().segment(Segment.position(1, 0)).next(0);
+    storage.close();
+
+    File segment = new File(folder.getRoot(), 1 + Segment.SUFFIX);
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.seek(second); // the length is written last, so a crash can leave it zero
+      file.writeInt(0);
+    }
+
+    open(MmapStorage.builder());
+    assertThat(storage.spanStore().getRawTrace(2L)).isNull();
+    accept(span(3L, 3L, "get", NOW - 500)); // overwrites the incomplete record
+    assertThat(storage.spanStore().getRawTrace(3L)).hasSize(1);
+  }
+
+  @Test
+  public void traceReadStopsAtRecordsLostInRecovery() throws IOException {
+    open(MmapStorage.builder().segmentSize(1024));
+    accept(span(1L, 1L, "get", NOW - 2000)); // first record of the first segment
+    for (long i = 2; storage.spanStore().segmentCount() == 1; i++) {
+      accept(span(2L, i, "get", NOW - 2000 + i));
+    }
+    accept(span(1L, 100L, "get", NOW - 1000)); // points back to the first segment
+    storage.close();
+
+    File segment = new File(folder.getRoot(), 1 + Segment.SUFFIX);
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.writeInt(0); // recovery truncates the first segment before the first record
+    }
+
+    open(MmapStorage.builder().segmentSize(1024));
+    assertThat(storage.spanStore().getRawTrace(1L)).extracting(s -> s.id).containsExactly(100L);
+  }
+
+  @Test
+  public void traceReadStopsAtAnotherTracesRecord() throws IOException {
+    open(MmapStorage.builder().segmentSize(1024));
+    accept(span(1L, 1L, "get", NOW - 2000));
+    for (long i = 2; storage.spanStore().segmentCount() == 1; i++) {
+      accept(span(2L, i, "get", NOW - 2000 + i));
+    }
+    accept(span(1L, 100L, "get", NOW - 1000));
+    storage.close();
+
+    File segment = new File(folder.getRoot(), 1 + Segment.SUFFIX);
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.seek(4); // as if another trace's record was appended where trace 1's was lost
+      file.writeLong(3L);
+    }
+
+    open(MmapStorage.builder().segmentSize(1024));
+    assertThat(storage.spanStore().getRawTrace(1L)).extracting(s -> s.id).containsExactly(100L);
+  }
+
+  @Test
+  public void rollsFullSegments() throws IOException {
+    open(MmapStorage.builder().segmentSize(1024));
+    for (long i = 1; i <= 20; i++) {
+      accept(span(1L, i, "get", NOW - 2000 + i));
+    }
+
+    assertThat(storage.spanStore().segmentCount()).isGreaterThan(1);
+    assertThat(folder.getRoot().list()).hasSize(storage.spanStore().segmentCount());
+    assertThat(storage.spanStore().getRawTrace(1L)).hasSize(20);
+  }
+
+  @Test
+  public void deletesSegmentsOlderThanRetention() throws IOException {
+    open(MmapStorage.builder().segmentSize(1024).retention(1, TimeUnit.DAYS));
+    for (long i = 1; i <= 10; i++) {
+      accept(span(i, i, "get", NOW - TimeUnit.DAYS.toMillis(2)));
+    }
+    accept(span(11L, 11L, "get", NOW - 1000));
+
+    assertThat(storage.spanStore().getRawTrace(1L)).isNull();
+    assertThat(storage.spanStore().getRawTrace(11L)).hasSize(1);
+    assertThat(storage.spanStore().segmentCount()).isEqualTo(1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void spansLargerThanASegmentAreRejected() throws IOException {
+    open(MmapStorage.builder().segmentSize(1024));
+    char[] tooBig = new char[1024];
+    Arrays.fill(tooBig, 'a');
+
+    accept(span(1L, 1L, new String(tooBig), NOW));
+  }
+
+  @Test
+  public void checkFailsWhenTheDirectoryCantBeCreated() throws IOException {
+    File file = folder.newFile();
+    storage = MmapStorage.builder().directory(new File(file, "spans")).build();
+
+    assertThat(storage.check().ok).isFalse();
+  }
+
+  void accept(Span... spans) {
+    storage.spanConsumer().accept(asList(spans));
+  }
+
+  static Span span(long traceId, long id, String name, long timestampMillis) {
+    return Span.builder().traceId(traceId).id(id).name(name)
+        .timestamp(timestampMillis * 1000).duration(10L)
+        .addAnnotation(Annotation.create(timestampMillis * 1000, Constants.SERVER_RECV, WEB))
+        .build();
+  }
+}
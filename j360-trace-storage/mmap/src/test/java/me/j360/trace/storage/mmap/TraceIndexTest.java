@@ -0,0 +1,59 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.mmap;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceIndexTest {
+  TraceIndex index = new TraceIndex(4);
+
+  @Test
+  public void putReplacesPosition() {
+    index.put(1L, Segment.position(1, 0));
+    index.put(1L, Segment.position(1, 100));
+
+    assertThat(index.get(1L)).isEqualTo(Segment.position(1, 100));
+    assertThat(index.get(2L)).isZero();
+    assertThat(index.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void growsOffHeap() {
+    for (long i = 0; i < 1000; i++) {
+      index.put(i, Segment.position(1, (int) i * 10));
+    }
+
+    assertThat(index.slots.isDirect()).isTrue();
+    assertThat(index.size()).isEqualTo(1000);
+    for (long i = 0; i < 1000; i++) {
+      assertThat(index.get(i)).isEqualTo(Segment.position(1, (int) i * 10));
+    }
+  }
+
+  @Test
+  public void retainFromDropsTracesInDeletedSegments() {
+    index.put(1L, Segment.position(1, 0));
+    index.put(2L, Segment.position(2, 0));
+    index.put(3L, Segment.position(3, 50));
+
+    index.retainFrom(Segment.position(2, 0));
+
+    assertThat(index.get(1L)).isZero();
+    assertThat(index.get(2L)).isEqualTo(Segment.position(2, 0));
+    assertThat(index.get(3L)).isEqualTo(Segment.position(3, 50));
+    assertThat(index.size()).isEqualTo(2);
+  }
+}
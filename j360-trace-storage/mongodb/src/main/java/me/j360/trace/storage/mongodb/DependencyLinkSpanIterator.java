@@ -1,115 +1,98 @@
-package me.j360.trace.storage.mongodb;
-
 /**
- * Package: me.j360.trace.storage.mongodb
- * User: min_xu
- * Date: 2016/9/26 下午3:35
- * 说明：
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
  */
+package me.j360.trace.storage.mongodb;
 
 import me.j360.trace.core.internal.DependencyLinkSpan;
+import me.j360.trace.core.internal.PeekingIterator;
+import org.bson.Document;
 
 import java.util.Iterator;
 
-/** Convenience that lazy converts rows into {@linkplain DependencyLinkSpan} objects. */
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.CA_SERVICE;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.ID;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.PARENT_ID;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.SA_SERVICE;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.SR_SERVICE;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.TRACE_ID;
+
+/** Convenience that lazy converts documents into {@linkplain DependencyLinkSpan} objects. */
 final class DependencyLinkSpanIterator implements Iterator<DependencyLinkSpan> {
 
-    @Override
-    public boolean hasNext() {
-        return false;
-    }
+  /** Assumes the input documents are sorted by trace id, span id */
+  static final class ByTraceId implements Iterator<Iterator<DependencyLinkSpan>> {
+    final PeekingIterator<Document> delegate;
 
-    @Override
-    public DependencyLinkSpan next() {
-        return null;
+    ByTraceId(Iterator<Document> delegate) {
+      this.delegate = new PeekingIterator<Document>(delegate);
     }
 
-    /** Assumes the input records are sorted by trace id, span id */
-    /*static final class ByTraceId implements Iterator<Iterator<DependencyLinkSpan>> {
-        final PeekingIterator<Record5<Long, Long, Long, String, String>> delegate;
-
-        Long currentTraceId;
-
-        ByTraceId(Iterator<Record5<Long, Long, Long, String, String>> delegate) {
-            this.delegate = new PeekingIterator<>(delegate);
-        }
-
-        @Override public boolean hasNext() {
-            return delegate.hasNext();
-        }
-
-        @Override public Iterator<DependencyLinkSpan> next() {
-            currentTraceId = delegate.peek().getValue(ZipkinSpans.ZIPKIN_SPANS.TRACE_ID);
-            return new DependencyLinkSpanIterator(delegate, currentTraceId);
-        }
-
-        @Override public void remove() {
-            throw new UnsupportedOperationException();
-        }
+    @Override public boolean hasNext() {
+      return delegate.hasNext();
     }
 
-    final PeekingIterator<Record5<Long, Long, Long, String, String>> delegate;
-    final Long traceId;
-
-    DependencyLinkSpanIterator(PeekingIterator<Record5<Long, Long, Long, String, String>> delegate,
-                               Long traceId) {
-        this.delegate = delegate;
-        this.traceId = traceId;
+    @Override public Iterator<DependencyLinkSpan> next() {
+      long traceId = delegate.peek().getLong(TRACE_ID);
+      return new DependencyLinkSpanIterator(delegate, traceId);
     }
 
-    @Override
-    public boolean hasNext() {
-        return delegate.hasNext() && delegate.peek().getValue(ZipkinSpans.ZIPKIN_SPANS.TRACE_ID).equals(traceId);
+    @Override public void remove() {
+      throw new UnsupportedOperationException();
     }
-
-    @Override
-    public DependencyLinkSpan next() {
-        Record5<Long, Long, Long, String, String> row = delegate.next();
-
-        DependencyLinkSpan.Builder result = DependencyLinkSpan.builder(
-                traceId,
-                row.getValue(ZipkinSpans.ZIPKIN_SPANS.PARENT_ID),
-                row.getValue(ZipkinSpans.ZIPKIN_SPANS.ID)
-        );
-        parseClientAndServerNames(
-                result,
-                row.getValue(ZIPKIN_ANNOTATIONS.A_KEY),
-                row.getValue(ZIPKIN_ANNOTATIONS.ENDPOINT_SERVICE_NAME));
-
-        while (hasNext()) {
-            Record5<Long, Long, Long, String, String> next = delegate.peek();
-            if (next == null) {
-                continue;
-            }
-            if (row.getValue(ZipkinSpans.ZIPKIN_SPANS.ID).equals(next.getValue(ZipkinSpans.ZIPKIN_SPANS.ID))) {
-                delegate.next(); // advance the iterator since we are in the same span id
-                parseClientAndServerNames(
-                        result,
-                        next.getValue(ZIPKIN_ANNOTATIONS.A_KEY),
-                        next.getValue(ZIPKIN_ANNOTATIONS.ENDPOINT_SERVICE_NAME));
-            } else {
-                break;
-            }
-        }
-        return result.build();
+  }
+
+  final PeekingIterator<Document> delegate;
+  final long traceId;
+
+  DependencyLinkSpanIterator(PeekingIterator<Document> delegate, long traceId) {
+    this.delegate = delegate;
+    this.traceId = traceId;
+  }
+
+  @Override
+  public boolean hasNext() {
+    return delegate.hasNext() && delegate.peek().getLong(TRACE_ID) == traceId;
+  }
+
+  /** Merges consecutive documents of the same span id, such as client and server halves. */
+  @Override
+  public DependencyLinkSpan next() {
+    Document document = delegate.next();
+    long id = document.getLong(ID);
+    Long parentId = document.getLong(PARENT_ID);
+    String srService = document.getString(SR_SERVICE);
+    String caService = document.getString(CA_SERVICE);
+    String saService = document.getString(SA_SERVICE);
+
+    while (hasNext()) {
+      Document next = delegate.peek();
+      if (next.getLong(ID) != id) break;
+      delegate.next(); // advance the iterator since we are in the same span id
+      if (parentId == null) parentId = next.getLong(PARENT_ID);
+      if (srService == null) srService = next.getString(SR_SERVICE);
+      if (caService == null) caService = next.getString(CA_SERVICE);
+      if (saService == null) saService = next.getString(SA_SERVICE);
     }
 
-    void parseClientAndServerNames(DependencyLinkSpan.Builder span, String key, String value) {
-        if (key == null) return; // neither client nor server
-        switch (key) {
-            case CLIENT_ADDR:
-                span.caService(value);
-                break;
-            case SERVER_ADDR:
-                span.saService(value);
-                break;
-            case SERVER_RECV:
-                span.srService(value);
-        }
-    }*/
-
-    @Override
-    public void remove() {
-        throw new UnsupportedOperationException();
-    }
+    DependencyLinkSpan.Builder result = DependencyLinkSpan.builder(traceId, parentId, id);
+    if (srService != null) result.srService(srService);
+    if (caService != null) result.caService(caService);
+    if (saService != null) result.saService(saService);
+    return result.build();
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
 }
@@ -1,10 +1,136 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
 package me.j360.trace.storage.mongodb;
 
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import me.j360.trace.core.Annotation;
+import me.j360.trace.core.BinaryAnnotation;
+import me.j360.trace.core.Codec;
+import me.j360.trace.core.Constants;
+import me.j360.trace.core.Span;
+import me.j360.trace.core.internal.ApplyTimestampAndDuration;
+import me.j360.trace.core.internal.DependencyLinkSpan;
+import me.j360.trace.core.storage.StorageAdapters;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static me.j360.trace.core.internal.Util.UTF_8;
+
 /**
- * Package: me.j360.trace.storage.mongodb
- * User: min_xu
- * Date: 2016/9/26 下午3:35
- * 说明：
+ * Writes one document per span. Besides the encoded span, each document holds the fields queries
+ * filter on, and those needed to {@link DependencyLinkSpan link} it, so that neither requires
+ * decoding.
  */
-public class MongoSpanConsumer {
+public final class MongoSpanConsumer implements StorageAdapters.SpanConsumer {
+  static final String TRACE_ID = "traceId";
+  static final String PARENT_ID = "parentId";
+  static final String ID = "id";
+  static final String NAME = "name";
+  /** Epoch microseconds, absent when the span has no timestamp. */
+  static final String TIMESTAMP = "timestamp";
+  static final String DURATION = "duration";
+  static final String SERVICE_NAMES = "serviceNames";
+  /** Annotation values. */
+  static final String ANNOTATIONS = "annotations";
+  /** {@link #binaryAnnotation(String, String) Key and value} of string binary annotations. */
+  static final String BINARY_ANNOTATIONS = "binaryAnnotations";
+  static final String SR_SERVICE = "srService";
+  static final String CA_SERVICE = "caService";
+  static final String SA_SERVICE = "saService";
+  /** Date the TTL index counts from: the span's timestamp, or when it was stored. */
+  static final String EXPIRES_FROM = "expiresFrom";
+  /** The span in {@link Codec#JSON json}. */
+  static final String SPAN = "span";
+
+  final MongoCollection<Document> spans;
+
+  MongoSpanConsumer(MongoCollection<Document> spans) {
+    this.spans = spans;
+  }
+
+  /**
+   * Inserts the spans in one unordered bulk write, which the server can apply in parallel, and
+   * which doesn't stop at the first failed document.
+   */
+  @Override public void accept(List<Span> spans) {
+    if (spans.isEmpty()) return;
+    long nowMillis = System.currentTimeMillis();
+    List<Document> documents = new ArrayList<Document>(spans.size());
+    for (Span span : spans) {
+      documents.add(toDocument(ApplyTimestampAndDuration.apply(span), nowMillis));
+    }
+    this.spans.insertMany(documents, new InsertManyOptions().ordered(false));
+  }
+
+  static Document toDocument(Span span, long nowMillis) {
+    Document result = new Document(TRACE_ID, span.traceId);
+    if (span.parentId != null) result.append(PARENT_ID, span.parentId);
+    result.append(ID, span.id).append(NAME, span.name);
+    if (span.timestamp != null) result.append(TIMESTAMP, span.timestamp);
+    if (span.duration != null) result.append(DURATION, span.duration);
+    // always written, even if empty, as aggregation operators don't accept missing arrays
+    result.append(SERVICE_NAMES, new ArrayList<String>(span.serviceNames()));
+
+    List<String> annotations = new ArrayList<String>(span.annotations.size());
+    for (Annotation a : span.annotations) {
+      annotations.add(a.value);
+    }
+    result.append(ANNOTATIONS, annotations);
+    List<String> binaryAnnotations = new ArrayList<String>(span.binaryAnnotations.size());
+    for (BinaryAnnotation b : span.binaryAnnotations) {
+      if (b.type != BinaryAnnotation.Type.STRING) continue;
+      binaryAnnotations.add(binaryAnnotation(b.key, new String(b.value, UTF_8)));
+    }
+    result.append(BINARY_ANNOTATIONS, binaryAnnotations);
+
+    appendLinkServices(result, span);
+    long expiresFrom = span.timestamp != null ? span.timestamp / 1000 : nowMillis;
+    result.append(EXPIRES_FROM, new Date(expiresFrom));
+    return result.append(SPAN, Codec.JSON.writeSpan(span));
+  }
+
+  /** Same fields as {@link DependencyLinkSpan#from(Span)} reads. */
+  static void appendLinkServices(Document result, Span span) {
+    for (BinaryAnnotation b : span.binaryAnnotations) {
+      if (b.endpoint == null) continue;
+      if (b.key.equals(Constants.CLIENT_ADDR)) {
+        result.append(CA_SERVICE, b.endpoint.serviceName);
+      } else if (b.key.equals(Constants.SERVER_ADDR)) {
+        result.append(SA_SERVICE, b.endpoint.serviceName);
+      }
+    }
+    for (Annotation a : span.annotations) {
+      if (a.value.equals(Constants.SERVER_RECV) && a.endpoint != null) {
+        result.append(SR_SERVICE, a.endpoint.serviceName);
+        break;
+      }
+    }
+  }
+
+  /**
+   * Matching binary annotations with one string keeps the query a simple array match. This is
+   * ambiguous when keys include '=', but results are tested against the decoded spans anyway.
+   */
+  static String binaryAnnotation(String key, String value) {
+    return key + '=' + value;
+  }
+
+  @Override public String toString() {
+    return "MongoSpanConsumer(" + spans.getNamespace() + ")";
+  }
 }
@@ -1,10 +1,315 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
 package me.j360.trace.storage.mongodb;
 
+import com.mongodb.Function;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import me.j360.trace.core.Codec;
+import me.j360.trace.core.DependencyLink;
+import me.j360.trace.core.Span;
+import me.j360.trace.core.internal.CorrectForClockSkew;
+import me.j360.trace.core.internal.DependencyLinker;
+import me.j360.trace.core.internal.LongHashMap;
+import me.j360.trace.core.internal.MergeById;
+import me.j360.trace.core.internal.Nullable;
+import me.j360.trace.core.storage.QueryRequest;
+import me.j360.trace.core.storage.SpanStore;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Aggregates.project;
+import static com.mongodb.client.model.Aggregates.sort;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Sorts.descending;
+import static me.j360.trace.core.internal.Util.sortedList;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.ANNOTATIONS;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.BINARY_ANNOTATIONS;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.CA_SERVICE;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.DURATION;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.ID;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.NAME;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.PARENT_ID;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.SA_SERVICE;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.SERVICE_NAMES;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.SPAN;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.SR_SERVICE;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.TIMESTAMP;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.TRACE_ID;
+import static me.j360.trace.storage.mongodb.MongoSpanConsumer.binaryAnnotation;
+
 /**
- * Package: me.j360.trace.storage.mongodb
- * User: min_xu
- * Date: 2016/9/26 下午3:35
- * 说明：
+ * Queries span documents written by {@link MongoSpanConsumer}. Candidate traces are selected by an
+ * aggregation pipeline, so only their spans are transferred and decoded. As the pipeline considers
+ * each span's timestamp, not that of its trace, candidates are then tested with {@link
+ * QueryRequest#test(List)}.
  */
-public class MongoSpanStore {
+public final class MongoSpanStore implements SpanStore {
+  /** Count of trace ids per query for spans, which bounds the size of the {@code $in} filter. */
+  static final int TRACE_ID_BATCH = 1000;
+
+  final MongoCollection<Document> spans;
+
+  MongoSpanStore(MongoCollection<Document> spans) {
+    this.spans = spans;
+  }
+
+  @Override
+  public List<List<Span>> getTraces(QueryRequest request) {
+    List<List<Span>> result = new ArrayList<List<Span>>();
+    MongoCursor<Document> candidates = spans.aggregate(candidatesPipeline(request))
+        .allowDiskUse(true)
+        .batchSize(request.limit)
+        .iterator();
+    try {
+      List<Long> batch = new ArrayList<Long>(request.limit);
+      while (result.size() < request.limit && candidates.hasNext()) {
+        batch.add(candidates.next().getLong("_id"));
+        if (batch.size() < request.limit && candidates.hasNext()) continue;
+        LongHashMap<List<Span>> traces = rawTraces(batch);
+        for (int i = 0; i < batch.size() && result.size() < request.limit; i++) {
+          List<Span> trace = traces.get(batch.get(i));
+          if (trace == null) continue; // expired since it was selected
+          trace = CorrectForClockSkew.apply(MergeById.apply(trace));
+          if (request.test(trace)) result.add(trace);
+        }
+        batch.clear();
+      }
+    } finally {
+      candidates.close();
+    }
+    Collections.sort(result, TRACE_DESCENDING);
+    return result;
+  }
+
+  static final Comparator<List<Span>> TRACE_DESCENDING = new Comparator<List<Span>>() {
+    @Override
+    public int compare(List<Span> left, List<Span> right) {
+      return right.get(0).compareTo(left.get(0));
+    }
+  };
+
+  /**
+   * Returns trace ids, newest first, which have spans in the interval meeting each condition of the
+   * request. A span meeting any condition passes the first stage, which can use an index on
+   * service or span name. Grouping by trace id then records which conditions were met by any span.
+   */
+  static List<Bson> candidatesPipeline(QueryRequest request) {
+    long begin = (request.endTs - request.lookback) * 1000, end = request.endTs * 1000;
+    List<Bson> filters = new ArrayList<Bson>();
+    List<Object> expressions = new ArrayList<Object>();
+    if (request.serviceName != null) {
+      filters.add(eq(SERVICE_NAMES, request.serviceName));
+      expressions.add(contains(SERVICE_NAMES, request.serviceName));
+    }
+    if (request.spanName != null) {
+      filters.add(eq(NAME, request.spanName));
+      expressions.add(new Document("$eq", Arrays.asList("$" + NAME, literal(request.spanName))));
+    }
+    for (String annotation : request.annotations) {
+      filters.add(eq(ANNOTATIONS, annotation));
+      expressions.add(contains(ANNOTATIONS, annotation));
+    }
+    for (Map.Entry<String, String> entry : request.binaryAnnotations.entrySet()) {
+      String value = binaryAnnotation(entry.getKey(), entry.getValue());
+      filters.add(eq(BINARY_ANNOTATIONS, value));
+      expressions.add(contains(BINARY_ANNOTATIONS, value));
+    }
+    if (request.minDuration != null) {
+      List<Bson> durationFilters = new ArrayList<Bson>();
+      List<Object> durationExpressions = new ArrayList<Object>();
+      if (request.serviceName != null) {
+        durationFilters.add(eq(SERVICE_NAMES, request.serviceName));
+        durationExpressions.add(contains(SERVICE_NAMES, request.serviceName));
+      }
+      durationFilters.add(gte(DURATION, request.minDuration));
+      durationExpressions.add(new Document("$gte", Arrays.asList("$" + DURATION,
+          request.minDuration)));
+      if (request.maxDuration != null) {
+        durationFilters.add(lte(DURATION, request.maxDuration));
+        durationExpressions.add(new Document("$lte", Arrays.asList("$" + DURATION,
+            request.maxDuration)));
+      }
+      filters.add(and(durationFilters));
+      expressions.add(new Document("$and", durationExpressions));
+    }
+
+    Bson interval = and(gte(TIMESTAMP, begin), lte(TIMESTAMP, end));
+    Document grouped = new Document("_id", "$" + TRACE_ID)
+        .append(TIMESTAMP, new Document("$max", "$" + TIMESTAMP));
+    Document met = new Document();
+    for (int i = 0; i < expressions.size(); i++) {
+      Object condition = new Document("$cond", Arrays.asList(expressions.get(i), 1, 0));
+      grouped.append("c" + i, new Document("$max", condition));
+      met.append("c" + i, 1);
+    }
+    List<Bson> result = new ArrayList<Bson>();
+    result.add(match(filters.isEmpty() ? interval : and(interval, or(filters))));
+    result.add(grouped(grouped));
+    if (!met.isEmpty()) result.add(match(met));
+    result.add(sort(descending(TIMESTAMP)));
+    return result;
+  }
+
+  static Bson grouped(Document group) {
+    return new Document("$group", group);
+  }
+
+  /** Aggregation expression that's true when the array field includes the value. */
+  static Document contains(String arrayField, String value) {
+    return new Document("$setIsSubset",
+        Arrays.asList(Collections.singletonList(literal(value)), "$" + arrayField));
+  }
+
+  /** Keeps a value which starts with '$' from being read as a field path. */
+  static Document literal(String value) {
+    return new Document("$literal", value);
+  }
+
+  @Override
+  public List<Span> getTrace(long traceId) {
+    List<Span> spans = getRawTrace(traceId);
+    return spans == null ? null : CorrectForClockSkew.apply(MergeById.apply(spans));
+  }
+
+  @Override
+  public List<Span> getRawTrace(long traceId) {
+    return rawTraces(Collections.singletonList(traceId)).get(traceId);
+  }
+
+  /** Spans of the traces, in the order they were stored. */
+  LongHashMap<List<Span>> rawTraces(List<Long> traceIds) {
+    LongHashMap<List<Span>> result = new LongHashMap<List<Span>>(traceIds.size());
+    MongoCursor<Document> cursor = spans.find(traceIds.size() == 1
+        ? eq(TRACE_ID, traceIds.get(0))
+        : in(TRACE_ID, traceIds))
+        .projection(include(TRACE_ID, SPAN))
+        .sort(ascending("_id"))
+        .iterator();
+    try {
+      while (cursor.hasNext()) {
+        Document document = cursor.next();
+        long traceId = document.getLong(TRACE_ID);
+        List<Span> trace = result.get(traceId);
+        if (trace == null) result.put(traceId, trace = new ArrayList<Span>());
+        trace.add(Codec.JSON.readSpan(document.get(SPAN, Binary.class).getData()));
+      }
+    } finally {
+      cursor.close();
+    }
+    return result;
+  }
+
+  @Override
+  public List<String> getServiceNames() {
+    return sortedList(spans.distinct(SERVICE_NAMES, String.class).into(new ArrayList<String>()));
+  }
+
+  @Override
+  public List<String> getSpanNames(String serviceName) {
+    if (serviceName == null) return Collections.emptyList();
+    serviceName = serviceName.toLowerCase(); // service names are always lowercase!
+    return sortedList(spans.distinct(NAME, String.class)
+        .filter(eq(SERVICE_NAMES, serviceName))
+        .into(new ArrayList<String>()));
+  }
+
+  /**
+   * Links traces which started in the interval. Trace ids are selected server-side, then the linked
+   * fields of their spans are streamed, sorted by trace and span id, into {@link
+   * DependencyLinkSpanIterator}. Spans aren't decoded.
+   */
+  @Override
+  public List<DependencyLink> getDependencies(long endTs, @Nullable Long lookback) {
+    long end = endTs * 1000;
+    long begin = lookback == null ? 0 : end - lookback * 1000;
+    DependencyLinker linker = new DependencyLinker();
+    MongoCursor<Document> traceIds = spans.aggregate(Arrays.asList(
+        match(and(gte(TIMESTAMP, begin), lte(TIMESTAMP, end))),
+        grouped(new Document("_id", "$" + TRACE_ID))
+    )).allowDiskUse(true).batchSize(TRACE_ID_BATCH).iterator();
+    try {
+      List<Long> batch = new ArrayList<Long>(TRACE_ID_BATCH);
+      while (traceIds.hasNext()) {
+        batch.add(traceIds.next().getLong("_id"));
+        if (batch.size() < TRACE_ID_BATCH && traceIds.hasNext()) continue;
+        List<Long> started = startedIn(batch, begin, end);
+        if (!started.isEmpty()) link(linker, started);
+        batch.clear();
+      }
+    } finally {
+      traceIds.close();
+    }
+    return linker.link();
+  }
+
+  /**
+   * Traces with a span in the interval can have started before it. This returns those which didn't,
+   * by their earliest span.
+   */
+  List<Long> startedIn(List<Long> traceIds, long begin, long end) {
+    return spans.aggregate(Arrays.asList(
+        match(in(TRACE_ID, traceIds)),
+        grouped(new Document("_id", "$" + TRACE_ID)
+            .append(TIMESTAMP, new Document("$min", "$" + TIMESTAMP))),
+        match(and(gte(TIMESTAMP, begin), lte(TIMESTAMP, end))),
+        project(include("_id"))
+    )).map(new Function<Document, Long>() {
+      @Override public Long apply(Document document) {
+        return document.getLong("_id");
+      }
+    }).into(new ArrayList<Long>(traceIds.size()));
+  }
+
+  void link(DependencyLinker linker, List<Long> traceIds) {
+    MongoCursor<Document> rows = spans.aggregate(Arrays.asList(
+        match(in(TRACE_ID, traceIds)),
+        sort(ascending(TRACE_ID, ID)),
+        project(include(TRACE_ID, PARENT_ID, ID, SR_SERVICE, CA_SERVICE, SA_SERVICE))
+    )).allowDiskUse(true).iterator();
+    try {
+      for (DependencyLinkSpanIterator.ByTraceId i = new DependencyLinkSpanIterator.ByTraceId(rows);
+          i.hasNext(); ) {
+        linker.putTrace(i.next());
+      }
+    } finally {
+      rows.close();
+    }
+  }
+
+  /** Deletes all spans. Use {@link MongoStorage#clear()} to also drop indexes. */
+  void clear() {
+    spans.deleteMany(new Document());
+  }
+
+  @Override public String toString() {
+    return "MongoSpanStore(" + spans.getNamespace() + ")";
+  }
 }
@@ -1,10 +1,222 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
 package me.j360.trace.storage.mongodb;
 
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+import me.j360.trace.core.internal.Lazy;
+import me.j360.trace.core.internal.LazyCloseable;
+import me.j360.trace.core.storage.AsyncSpanConsumer;
+import me.j360.trace.core.storage.AsyncSpanStore;
+import me.j360.trace.core.storage.StorageComponent;
+import org.bson.Document;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Indexes.ascending;
+import static com.mongodb.client.model.Indexes.compoundIndex;
+import static com.mongodb.client.model.Indexes.descending;
+import static me.j360.trace.core.internal.Util.checkArgument;
+import static me.j360.trace.core.internal.Util.checkNotNull;
+import static me.j360.trace.core.storage.StorageAdapters.blockingToAsync;
+
 /**
- * Package: me.j360.trace.storage.mongodb
- * User: min_xu
- * Date: 2016/9/26 下午3:34
- * 说明：
+ * Storage component that keeps one document per span in a MongoDB collection. Spans are written
+ * with unordered bulk inserts, and queries are filtered server-side, using indexes on trace id,
+ * service name and span name. Retention is left to a TTL index, so that MongoDB deletes expired
+ * spans in the background.
+ *
+ * <p>The driver blocks, so spans are accepted and queries run on the calling thread.
  */
-public class MongoStorage {
+public final class MongoStorage implements StorageComponent {
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    String uri = "mongodb://localhost:27017";
+    String database = "zipkin";
+    String collection = "spans";
+    long retentionSeconds = 0L;
+
+    /**
+     * Connection string of the deployment, which can include options such as replica set or
+     * timeouts. Defaults to "mongodb://localhost:27017".
+     *
+     * <p>See <a href="https://docs.mongodb.com/manual/reference/connection-string/">Connection
+     * String URI Format</a>
+     */
+    public Builder uri(String uri) {
+      this.uri = checkNotNull(uri, "uri");
+      return this;
+    }
+
+    /** The database holding the span collection. Defaults to zipkin. */
+    public Builder database(String database) {
+      this.database = checkNotNull(database, "database");
+      return this;
+    }
+
+    /** The collection holding one document per span. Defaults to spans. */
+    public Builder collection(String collection) {
+      this.collection = checkNotNull(collection, "collection");
+      return this;
+    }
+
+    /**
+     * Spans older than this are deleted by a TTL index. Changing this updates the index of an
+     * existing collection. 0 keeps spans regardless of age. Defaults to 0.
+     */
+    public Builder retention(long retention, TimeUnit unit) {
+      checkArgument(retention >= 0, "retention should not be negative: was %s", retention);
+      this.retentionSeconds = unit.toSeconds(retention);
+      return this;
+    }
+
+    public MongoStorage build() {
+      return new MongoStorage(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  final Executor callingThread = new Executor() {
+    @Override public void execute(Runnable command) {
+      command.run();
+    }
+  };
+  final String database;
+  final String collection;
+  final long retentionSeconds;
+  final LazyCloseable<MongoClient> client;
+  final Lazy<MongoCollection<Document>> spans;
+  final Lazy<MongoSpanStore> spanStore;
+  final Lazy<MongoSpanConsumer> spanConsumer;
+
+  MongoStorage(Builder builder) {
+    final MongoClientURI uri = new MongoClientURI(builder.uri);
+    database = builder.database;
+    collection = builder.collection;
+    retentionSeconds = builder.retentionSeconds;
+    client = new LazyCloseable<MongoClient>() {
+      @Override protected MongoClient compute() {
+        return new MongoClient(uri);
+      }
+
+      @Override public void close() {
+        MongoClient maybeNull = maybeNull();
+        if (maybeNull != null) maybeNull.close();
+      }
+    };
+    spans = new Lazy<MongoCollection<Document>>() {
+      @Override protected MongoCollection<Document> compute() {
+        MongoCollection<Document> result =
+            client.get().getDatabase(database).getCollection(collection);
+        ensureIndexes(result);
+        return result;
+      }
+    };
+    spanStore = new Lazy<MongoSpanStore>() {
+      @Override protected MongoSpanStore compute() {
+        return new MongoSpanStore(spans.get());
+      }
+    };
+    spanConsumer = new Lazy<MongoSpanConsumer>() {
+      @Override protected MongoSpanConsumer compute() {
+        return new MongoSpanConsumer(spans.get());
+      }
+    };
+  }
+
+  /** Lazy initializes or returns the client in use by this storage component. */
+  public MongoClient client() {
+    return client.get();
+  }
+
+  /** Connects and creates indexes on first use. */
+  @Override public MongoSpanStore spanStore() {
+    return spanStore.get();
+  }
+
+  @Override public AsyncSpanStore asyncSpanStore() {
+    return blockingToAsync(spanStore(), callingThread);
+  }
+
+  public MongoSpanConsumer spanConsumer() {
+    return spanConsumer.get();
+  }
+
+  @Override public AsyncSpanConsumer asyncSpanConsumer() {
+    return blockingToAsync(spanConsumer(), callingThread);
+  }
+
+  /**
+   * Indexes backing {@link MongoSpanStore}. Queries by service or span name are bounded by
+   * timestamp, so it is the second key of those indexes. Creating an index which already exists is
+   * a no-op.
+   */
+  void ensureIndexes(MongoCollection<Document> spans) {
+    spans.createIndex(ascending(MongoSpanConsumer.TRACE_ID));
+    spans.createIndex(compoundIndex(ascending(MongoSpanConsumer.SERVICE_NAMES),
+        descending(MongoSpanConsumer.TIMESTAMP)));
+    spans.createIndex(compoundIndex(ascending(MongoSpanConsumer.NAME),
+        descending(MongoSpanConsumer.TIMESTAMP)));
+    if (retentionSeconds == 0L) return;
+    try {
+      spans.createIndex(ascending(MongoSpanConsumer.EXPIRES_FROM),
+          new IndexOptions().expireAfter(retentionSeconds, TimeUnit.SECONDS));
+    } catch (MongoCommandException e) {
+      if (e.getErrorCode() != INDEX_OPTIONS_CONFLICT) throw e;
+      // the index exists with a different retention, which collMod changes in place
+      Document index = new Document("keyPattern", new Document(MongoSpanConsumer.EXPIRES_FROM, 1))
+          .append("expireAfterSeconds", retentionSeconds);
+      client.get().getDatabase(database)
+          .runCommand(new Document("collMod", collection).append("index", index));
+    }
+  }
+
+  static final int INDEX_OPTIONS_CONFLICT = 85;
+
+  /** Drops the span collection, and recreates its indexes. */
+  public void clear() {
+    MongoCollection<Document> spans = this.spans.get();
+    spans.drop();
+    ensureIndexes(spans);
+  }
+
+  @Override public CheckResult check() {
+    try {
+      client.get().getDatabase(database).runCommand(new Document("ping", 1));
+      spans.get();
+    } catch (RuntimeException e) {
+      return CheckResult.failed(e);
+    }
+    return CheckResult.OK;
+  }
+
+  @Override public void close() throws IOException {
+    client.close();
+  }
+
+  @Override public String toString() {
+    return "MongoStorage(" + database + "." + collection + ")";
+  }
 }
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.mongodb;
+
+import me.j360.trace.core.Annotation;
+import me.j360.trace.core.BinaryAnnotation;
+import me.j360.trace.core.Constants;
+import me.j360.trace.core.DependencyLink;
+import me.j360.trace.core.Span;
+import me.j360.trace.core.internal.DependencyLinkSpan;
+import me.j360.trace.core.internal.DependencyLinker;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static me.j360.trace.core.TestObjects.LINKS;
+import static me.j360.trace.core.TestObjects.TRACE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DependencyLinkSpanIteratorTest {
+
+  @Test
+  public void linksLikeSpans() {
+    assertThat(link(documents(TRACE)))
+        .containsExactlyElementsOf(LINKS);
+  }
+
+  /** The client and server sides of a span are often reported separately. */
+  @Test
+  public void mergesDocumentsOfTheSameSpan() {
+    Span app = TRACE.get(1);
+    Span.Builder server = Span.builder().traceId(app.traceId).id(app.id).name(app.name);
+    Span.Builder client = Span.builder().traceId(app.traceId).parentId(app.parentId).id(app.id)
+        .name(app.name);
+    for (Annotation a : app.annotations) {
+      (a.endpoint.serviceName.equals("app") ? server : client).addAnnotation(a);
+    }
+    for (BinaryAnnotation b : app.binaryAnnotations) {
+      (b.key.equals(Constants.CLIENT_ADDR) ? server : client).addBinaryAnnotation(b);
+    }
+
+    // the server side sorts first, so its missing parent id is read from the client side
+    assertThat(link(documents(asList(TRACE.get(0), server.build(), client.build(),
+        TRACE.get(2))))).containsExactlyElementsOf(LINKS);
+  }
+
+  @Test
+  public void splitsByTraceId() {
+    List<Span> other = new ArrayList<Span>();
+    for (Span span : TRACE) {
+      other.add(span.toBuilder().traceId(span.traceId + 1).build());
+    }
+    List<Document> documents = documents(TRACE);
+    documents.addAll(documents(other));
+
+    DependencyLinkSpanIterator.ByTraceId traces =
+        new DependencyLinkSpanIterator.ByTraceId(documents.iterator());
+    int count = 0;
+    while (traces.hasNext()) {
+      Iterator<DependencyLinkSpan> trace = traces.next();
+      while (trace.hasNext()) trace.next();
+      count++;
+    }
+    assertThat(count).isEqualTo(2);
+  }
+
+  /** Mimics the projection in {@link MongoSpanStore#link}: sorted by trace id, span id. */
+  static List<Document> documents(List<Span> spans) {
+    List<Document> result = new ArrayList<Document>();
+    for (Span span : spans) {
+      result.add(MongoSpanConsumer.toDocument(span, 0L));
+    }
+    result.sort((left, right) -> {
+      int byTraceId = left.getLong("traceId").compareTo(right.getLong("traceId"));
+      return byTraceId != 0 ? byTraceId : left.getLong("id").compareTo(right.getLong("id"));
+    });
+    return result;
+  }
+
+  static List<DependencyLink> link(List<Document> documents) {
+    DependencyLinker linker = new DependencyLinker();
+    DependencyLinkSpanIterator.ByTraceId traces =
+        new DependencyLinkSpanIterator.ByTraceId(documents.iterator());
+    while (traces.hasNext()) linker.putTrace(traces.next());
+    return linker.link();
+  }
+}
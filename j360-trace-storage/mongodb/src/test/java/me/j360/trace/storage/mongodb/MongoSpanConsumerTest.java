@@ -0,0 +1,74 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.mongodb;
+
+import me.j360.trace.core.Codec;
+import me.j360.trace.core.Span;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.List;
+
+import static me.j360.trace.core.TestObjects.TODAY;
+import static me.j360.trace.core.TestObjects.TRACE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MongoSpanConsumerTest {
+
+  @Test
+  public void toDocument_queriedFields() {
+    Span span = TRACE.get(2);
+    Document document = MongoSpanConsumer.toDocument(span, 0L);
+
+    assertThat(document.getLong("traceId")).isEqualTo(span.traceId);
+    assertThat(document.getLong("parentId")).isEqualTo(span.parentId);
+    assertThat(document.getString("name")).isEqualTo("query");
+    assertThat(document.getLong("timestamp")).isEqualTo(span.timestamp);
+    assertThat(document.getLong("duration")).isEqualTo(span.duration);
+    assertThat(document.get("serviceNames", List.class))
+        .containsOnly("app", "db");
+    assertThat(document.get("annotations", List.class))
+        .containsExactly("cs", "cr", "⻩");
+    assertThat(document.get("binaryAnnotations", List.class))
+        .containsExactly("error=💩");
+  }
+
+  @Test
+  public void toDocument_linkedServices() {
+    Document document = MongoSpanConsumer.toDocument(TRACE.get(1), 0L);
+
+    assertThat(document.getString("srService")).isEqualTo("app");
+    assertThat(document.getString("caService")).isEqualTo("web");
+    assertThat(document.getString("saService")).isEqualTo("app");
+  }
+
+  @Test
+  public void toDocument_roundTripsSpan() {
+    Span span = TRACE.get(1);
+    byte[] encoded = MongoSpanConsumer.toDocument(span, 0L).get("span", byte[].class);
+
+    assertThat(Codec.JSON.readSpan(encoded)).isEqualTo(span);
+  }
+
+  @Test
+  public void toDocument_expiresFromTimestamp_elseNow() {
+    assertThat(MongoSpanConsumer.toDocument(TRACE.get(0), 0L).getDate("expiresFrom"))
+        .isEqualTo(new Date(TODAY));
+
+    Span noTimestamp = TRACE.get(0).toBuilder().timestamp(null).build();
+    assertThat(MongoSpanConsumer.toDocument(noTimestamp, 1000L).getDate("expiresFrom"))
+        .isEqualTo(new Date(1000L));
+  }
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.mongodb;
+
+import me.j360.trace.core.storage.SpanStoreTest;
+import me.j360.trace.core.storage.StorageComponent;
+
+public class MongoSpanStoreTest extends SpanStoreTest {
+
+  private final MongoStorage storage;
+
+  public MongoSpanStoreTest() {
+    this.storage = MongoTestGraph.INSTANCE.storage.get();
+  }
+
+  @Override protected StorageComponent storage() {
+    return storage;
+  }
+
+  @Override public void clear() {
+    storage.clear();
+  }
+}
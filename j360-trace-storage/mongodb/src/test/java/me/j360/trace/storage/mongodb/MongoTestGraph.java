@@ -0,0 +1,37 @@
+/**
+ * Copyright 2015-2016 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package me.j360.trace.storage.mongodb;
+
+import me.j360.trace.core.Component;
+import me.j360.trace.core.internal.LazyCloseable;
+import org.junit.AssumptionViolatedException;
+
+/** Tests which need a server are skipped unless one listens on localhost:27017. */
+enum MongoTestGraph {
+  INSTANCE;
+
+  final LazyCloseable<MongoStorage> storage = new LazyCloseable<MongoStorage>() {
+    public AssumptionViolatedException ex;
+
+    @Override protected MongoStorage compute() {
+      if (ex != null) throw ex;
+      MongoStorage result = MongoStorage.builder()
+          .uri("mongodb://localhost:27017/?serverSelectionTimeoutMS=1000")
+          .database("zipkin_test").build();
+      Component.CheckResult check = result.check();
+      if (check.ok) return result;
+      throw ex = new AssumptionViolatedException(check.exception.getMessage());
+    }
+  };
+}